@@ -18,6 +18,7 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.WeightsInfo;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.modes.WeightParameters;
@@ -25,8 +26,11 @@ import it.unimi.dsi.fastutil.ints.IntAVLTreeSet;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.ints.IntSortedSet;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.io.IOException;
+import java.util.Collections;
 
 /**
  * Iterate through an alignment to populate an array of AnnotationCountInterface with read matches.
@@ -38,6 +42,7 @@ import java.io.IOException;
 public class AnnotationCountIterateAlignments extends IterateAlignments {
     private WeightParameters weightParams;
     private WeightsInfo weights;
+    private Object2ObjectMap<String, ObjectList<Annotation>> annotations;
 
 
     /**
@@ -57,6 +62,17 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
 
     }
 
+    /**
+     * Provide the annotations that will be counted, grouped by reference sequence name. When annotations are
+     * provided, weights are not used and the alignment is sorted, reads are counted with
+     * {@link AnnotationOverlapCount} as the alignment is iterated over, instead of being kept in memory.
+     *
+     * @param annotations Annotations grouped by reference sequence name.
+     */
+    public void setAnnotations(final Object2ObjectMap<String, ObjectList<Annotation>> annotations) {
+        this.annotations = annotations;
+    }
+
     @Override
     public void processNumberOfReferences(final String basename, final int numberOfReferences) throws IOException {
         algs = new AnnotationCountInterface[numberOfReferences];
@@ -84,9 +100,16 @@ public class AnnotationCountIterateAlignments extends IterateAlignments {
         if (numAlignedReadsInSample == -1) {
             numAlignedReadsInSample = alignmentReader.getNumberOfAlignedReads();
         }
-        AnnotationCountInterface algo = new AnnotationCount();
-
-        algo = chooseAlgorithm(weightParams, weights, algo);
+        AnnotationCountInterface algo;
+        if (annotations != null && !weightParams.useWeights && alignmentReader.isSorted()) {
+            final ObjectList<Annotation> annotationsOnReference =
+                    annotations.get(getReferenceId(referenceIndex).toString());
+            algo = new AnnotationOverlapCount(annotationsOnReference == null ?
+                    Collections.<Annotation>emptyList() : annotationsOnReference);
+        } else {
+            algo = new AnnotationCount();
+            algo = chooseAlgorithm(weightParams, weights, algo);
+        }
         algs[referenceIndex] = algo;
         algs[referenceIndex].startPopulating();
         referencesSelected.add(referenceIndex);
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Counts reads that overlap with, or fall strictly within, the genes, exons and introns of a set of annotations,
+ * in a single pass over reads presented in order of increasing start position. The annotation intervals are
+ * indexed when the instance is created, and the counts of an interval are final as soon as the sweep passes its
+ * end. Reads are not kept: only the reads that overlap the sweep position are queued, so memory is proportional
+ * to the number of annotation intervals and to the depth of coverage, rather than to the number of reads.
+ * <p/>
+ * Reads have the same conventions as {@link AnnotationCount#populate(int, int)}. Counts and depths are those of
+ * {@link AnnotationCount}, for the intervals of the annotations provided to the constructor, with one exception:
+ * when several reads start at the start of an interval, AnnotationCount.countReadsStriclyWithinInterval may miss
+ * some of them (its binary search can land on any of these reads), while this class counts all of them.
+ */
+public class AnnotationOverlapCount implements AnnotationCountInterface {
+    /**
+     * Start and end positions of the distinct intervals of the annotations.
+     */
+    private final int[] intervalStarts;
+    private final int[] intervalEnds;
+    /**
+     * Maps an interval (start in the high bits, end in the low bits) to its index.
+     */
+    private final Long2IntMap intervalIndices;
+    /**
+     * Interval indices sorted by start, and by end. The sweep visits the start and end of each interval in order.
+     */
+    private final int[] byStart;
+    private final int[] byEnd;
+    /**
+     * Distinct interval starts in increasing order, and the rank of the start of each interval in this array.
+     */
+    private final int[] distinctStarts;
+    private final int[] startRanks;
+    /**
+     * Starts of the reads that ended, counted by the rank of the largest interval start at or before the read start.
+     */
+    private final FenwickTree endedReadStarts;
+    /**
+     * Reads that started and may not have ended yet, end in the high bits, start in the low bits.
+     */
+    private final LongHeapPriorityQueue pendingReads = new LongHeapPriorityQueue();
+    private final int[] overlapCounts;
+    private final int[] withinCounts;
+    /**
+     * Sum over the positions of each interval of the number of reads that cover the position.
+     */
+    private final long[] coveredBases;
+    private int nextStartIndex;
+    private int nextEndIndex;
+    private int numStartedReads;
+    private int numEndedReads;
+    /**
+     * Sum of the lengths of the reads that ended.
+     */
+    private long endedReadBases;
+    /**
+     * Sum of the start positions of the reads that started and have not ended.
+     */
+    private long pendingReadStarts;
+    private int lastStart;
+    private boolean done;
+
+    /**
+     * Index the intervals of a set of annotations: the gene, each exon and each intron.
+     *
+     * @param annotations Annotations on the reference sequence whose reads will be populated.
+     */
+    public AnnotationOverlapCount(final Collection<Annotation> annotations) {
+        super();
+        intervalIndices = new Long2IntOpenHashMap();
+        intervalIndices.defaultReturnValue(-1);
+        final IntArrayList starts = new IntArrayList();
+        final IntArrayList ends = new IntArrayList();
+        for (final Annotation annotation : annotations) {
+            addInterval(annotation.getStart(), annotation.getEnd(), starts, ends);
+            final int numSegments = annotation.getSegments().size();
+            for (int i = 0; i < numSegments; i++) {
+                final Segment segment = annotation.getSegments().get(i);
+                addInterval(segment.getStart(), segment.getEnd(), starts, ends);
+                if (i < numSegments - 1) {
+                    addInterval(segment.getEnd() + 1, annotation.getSegments().get(i + 1).getStart() - 1, starts, ends);
+                }
+            }
+        }
+        intervalStarts = starts.toIntArray();
+        intervalEnds = ends.toIntArray();
+        final int numIntervals = intervalStarts.length;
+        byStart = identity(numIntervals);
+        IntArrays.quickSort(byStart, new IntervalComparator(intervalStarts));
+        byEnd = identity(numIntervals);
+        IntArrays.quickSort(byEnd, new IntervalComparator(intervalEnds));
+
+        final IntArrayList distinct = new IntArrayList();
+        for (final int index : byStart) {
+            final int start = intervalStarts[index];
+            if (distinct.isEmpty() || distinct.getInt(distinct.size() - 1) != start) {
+                distinct.add(start);
+            }
+        }
+        distinctStarts = distinct.toIntArray();
+        startRanks = new int[numIntervals];
+        for (int index = 0; index < numIntervals; index++) {
+            startRanks[index] = Arrays.binarySearch(distinctStarts, intervalStarts[index]);
+        }
+        endedReadStarts = new FenwickTree(distinctStarts.length);
+        overlapCounts = new int[numIntervals];
+        withinCounts = new int[numIntervals];
+        coveredBases = new long[numIntervals];
+    }
+
+    private void addInterval(final int start, final int end, final IntArrayList starts, final IntArrayList ends) {
+        final long key = intervalKey(start, end);
+        if (intervalIndices.get(key) == -1) {
+            intervalIndices.put(key, starts.size());
+            starts.add(start);
+            ends.add(end);
+        }
+    }
+
+    private static long intervalKey(final int start, final int end) {
+        return ((long) start) << 32 | (end & 0xFFFFFFFFL);
+    }
+
+    private static int[] identity(final int n) {
+        final int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    public void startPopulating() {
+    }
+
+    /**
+     * Populate with a read. This implementation ignores queryIndex.
+     */
+    public void populate(final int startPosition, final int endPosition, final int queryIndex) {
+        populate(startPosition, endPosition);
+    }
+
+    /**
+     * Add a read. Reads must be added in order of increasing start position.
+     *
+     * @param startPosition Start position of the read.
+     * @param endPosition   End position of the read.
+     */
+    public final void populate(final int startPosition, final int endPosition) {
+        if (startPosition < lastStart) {
+            throw new IllegalArgumentException(String.format("Reads must be sorted by start position: %d follows %d",
+                    startPosition, lastStart));
+        }
+        if (done) {
+            throw new IllegalStateException("Reads cannot be added after the counts have been finalized.");
+        }
+        lastStart = startPosition;
+        // the counts of the intervals visited before this read start are final:
+        sweepTo(startPosition - 1);
+        ++numStartedReads;
+        pendingReadStarts += startPosition;
+        pendingReads.enqueue(((long) endPosition) << 32 | startPosition);
+    }
+
+    /**
+     * Visit the interval boundaries at or before position. All the reads that start at or before position
+     * must have been added.
+     */
+    private void sweepTo(final int position) {
+        while (true) {
+            // the overlap count of an interval excludes the reads that end before its start, and includes
+            // the reads that start at or before its end:
+            final int nextStart = nextStartIndex < byStart.length ? intervalStarts[byStart[nextStartIndex]] - 1
+                    : Integer.MAX_VALUE;
+            final int nextEnd = nextEndIndex < byEnd.length ? intervalEnds[byEnd[nextEndIndex]] : Integer.MAX_VALUE;
+            final int boundary = Math.min(nextStart, nextEnd);
+            if (boundary > position || boundary == Integer.MAX_VALUE) {
+                return;
+            }
+            releaseReads(boundary);
+            if (nextStart == boundary) {
+                final int index = byStart[nextStartIndex++];
+                overlapCounts[index] -= numEndedReads;
+                coveredBases[index] -= coveredBasesUpTo(boundary);
+            } else {
+                final int index = byEnd[nextEndIndex++];
+                overlapCounts[index] += numStartedReads;
+                coveredBases[index] += coveredBasesUpTo(boundary);
+                // ended reads that start at or after the interval start lie within the interval:
+                final int rank = startRanks[index];
+                withinCounts[index] = (int) (endedReadStarts.getTotalCount()
+                        - endedReadStarts.getCumulativeCount(rank - 1));
+            }
+        }
+    }
+
+    /**
+     * Return the number of bases of the reads at or before position, that is the sum of the depth of coverage
+     * over the positions up to position. Reads that end at or before position must have been released.
+     */
+    private long coveredBasesUpTo(final int position) {
+        final long numPendingReads = numStartedReads - numEndedReads;
+        return endedReadBases + numPendingReads * (position + 1L) - pendingReadStarts;
+    }
+
+    /**
+     * Count the reads that end at or before position.
+     */
+    private void releaseReads(final int position) {
+        while (!pendingReads.isEmpty() && (pendingReads.firstLong() >> 32) <= position) {
+            final long read = pendingReads.dequeueLong();
+            final int readStart = (int) read;
+            final int readEnd = (int) (read >> 32);
+            ++numEndedReads;
+            pendingReadStarts -= readStart;
+            endedReadBases += readEnd - readStart + 1;
+            final int insertionPoint = Arrays.binarySearch(distinctStarts, readStart);
+            final int rank = insertionPoint >= 0 ? insertionPoint : -insertionPoint - 2;
+            if (rank >= 0) {
+                endedReadStarts.incrementCount(rank);
+            }
+        }
+    }
+
+    /**
+     * Finalize the counts of the intervals that end after the last read.
+     */
+    public void sortReads() {
+        if (!done) {
+            sweepTo(Integer.MAX_VALUE - 1);
+            pendingReads.clear();
+            done = true;
+        }
+    }
+
+    public void accumulate() {
+        sortReads();
+    }
+
+    public void baseCount() {
+    }
+
+    /**
+     * Returns the average read coverage per base for an interval of the annotations.
+     *
+     * @param geneStart start of the interval.
+     * @param geneEnd   end of the interval.
+     * @return average count per base on this interval.
+     */
+    public float averageReadsPerPosition(final int geneStart, final int geneEnd) {
+        if (geneEnd < geneStart) {
+            return 0;
+        }
+        final int segmentSize = geneEnd - geneStart + 1;
+        return ((float) coveredBases[intervalIndex(geneStart, geneEnd)]) / ((float) segmentSize);
+    }
+
+    public double countReadsPartiallyOverlappingWithInterval(final int geneStart, final int geneEnd) {
+        return overlapCounts[intervalIndex(geneStart, geneEnd)];
+    }
+
+    public double countReadsStriclyWithinInterval(final int geneStart, final int geneEnd) {
+        return withinCounts[intervalIndex(geneStart, geneEnd)];
+    }
+
+    /**
+     * Return the number of reads that map within exons of an annotation, excluding intron counts.
+     *
+     * @param annot an annotation provided to the constructor.
+     * @return number of reads covered on the genes except all reads exclusively in introns
+     */
+    public double geneExpressionCount(final Annotation annot) {
+        double sum = countReadsPartiallyOverlappingWithInterval(annot.getStart(), annot.getEnd());
+        final int numIntrons = annot.getSegments().size() - 1;
+        for (int k = 0; k < numIntrons; k++) {
+            sum -= countReadsStriclyWithinInterval(annot.getSegments().get(k).getEnd() + 1,
+                    annot.getSegments().get(k + 1).getStart() - 1);
+        }
+        return sum;
+    }
+
+    private int intervalIndex(final int start, final int end) {
+        sortReads();
+        final int index = intervalIndices.get(intervalKey(start, end));
+        if (index == -1) {
+            throw new IllegalArgumentException(String.format("Interval [%d,%d] is not part of the annotations "
+                    + "provided to the constructor.", start, end));
+        }
+        return index;
+    }
+
+    private static final class IntervalComparator implements IntComparator {
+        private final int[] keys;
+
+        private IntervalComparator(final int[] keys) {
+            this.keys = keys;
+        }
+
+        public int compare(final int k1, final int k2) {
+            return keys[k1] < keys[k2] ? -1 : keys[k1] == keys[k2] ? 0 : 1;
+        }
+
+        public int compare(final Integer k1, final Integer k2) {
+            return compare(k1.intValue(), k2.intValue());
+        }
+    }
+}
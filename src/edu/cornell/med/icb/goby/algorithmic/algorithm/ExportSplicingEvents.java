@@ -21,33 +21,59 @@ package edu.cornell.med.icb.goby.algorithmic.algorithm;
 import edu.cornell.med.icb.goby.alignments.AlignmentReader;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
 import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
-import it.unimi.dsi.fastutil.longs.Long2IntArrayMap;
-import it.unimi.dsi.fastutil.longs.Long2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntArrayMap;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.IOException;
-import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * A mode that extracts splicing events (instances when a read cross a splice junction) from alignment files.
+ * Junctions of the current reference are tallied with packed long keys (donor, acceptor and strand) in a primitive
+ * hash map, and written when the alignment moves to another reference. When the alignment is sorted, junctions
+ * whose donor is behind the current alignment position cannot be observed again and are written as the
+ * alignment is read. When the alignment is indexed and several threads are requested, references are tallied
+ * in parallel, consecutive small references in the same task, and their junctions are written in reference order.
+ *
  * @author Fabien Campagne
  *         Date: 9/14/12
  *         Time: 10:54 AM
  */
 public class ExportSplicingEvents {
-    private DoubleIndexedIdentifier reverseIds = null;
+    /**
+     * Number of distinct junctions tallied before the junctions behind the current position of a sorted
+     * alignment are written.
+     */
+    private static final int MIN_STREAMING_JUNCTIONS = 10000;
+    /**
+     * Number of groups of references tallied per thread when an indexed alignment is processed in parallel.
+     */
+    private static final int TASKS_PER_THREAD = 8;
 
+    private DoubleIndexedIdentifier reverseIds = null;
 
-    final Object2IntArrayMap<SpliceEvent> eventMap = new Object2IntArrayMap<SpliceEvent>();
+    /**
+     * Index of each junction of the current reference in junctionKeys and junctionCounts, in the order
+     * junctions were first observed.
+     */
+    private final Long2IntOpenHashMap junctionIndices = new Long2IntOpenHashMap();
+    private final LongArrayList junctionKeys = new LongArrayList();
+    private final IntArrayList junctionCounts = new IntArrayList();
+    private int streamingThreshold = MIN_STREAMING_JUNCTIONS;
+    private boolean sorted;
     int lastTargetIndex = -1;
     private String sampleFilename = "sample-id";
     final PrintWriter output;
@@ -56,10 +82,11 @@ public class ExportSplicingEvents {
      * reads with a mapping quality less than this threshold are ignored. The default value is 255.
      */
     private int qualTheshold=255;
+    private int numThreads = 1;
 
     public ExportSplicingEvents(final Writer output) {
         this.output = new PrintWriter(output);
-        eventMap.defaultReturnValue(0);
+        junctionIndices.defaultReturnValue(-1);
     }
 
     public void process(final Collection<Alignments.AlignmentEntry> entries,
@@ -67,36 +94,44 @@ public class ExportSplicingEvents {
         this.reverseIds = reverseIds;
         for (final Alignments.AlignmentEntry entry : entries) {
 
-            processEntry(eventMap, entry);
+            processEntry(entry);
         }
-        flushPreviousRef(null, eventMap);
+        flushPreviousRef(null);
         output.flush();
     }
 
     public void process(final String filename) throws IOException {
         final AlignmentReader reader = new AlignmentReaderImpl(filename);
-        reader.readHeader();
-        final IndexedIdentifier targetIds = reader.getTargetIdentifiers();
-        reverseIds = new DoubleIndexedIdentifier(targetIds);
-        sampleFilename = FilenameUtils.getBaseName(filename);
-        lastTargetIndex = -1;
-
-        for (final Alignments.AlignmentEntry entry : reader) {
+        try {
+            reader.readHeader();
+            final IndexedIdentifier targetIds = reader.getTargetIdentifiers();
+            reverseIds = new DoubleIndexedIdentifier(targetIds);
+            sampleFilename = FilenameUtils.getBaseName(filename);
+            lastTargetIndex = -1;
+            if (numThreads > 1 && reader.isIndexed()) {
+                processReferences(filename, reader.getTargetLength(), reader.getNumberOfTargets());
+                return;
+            }
+            sorted = reader.isSorted();
+            for (final Alignments.AlignmentEntry entry : reader) {
 
-            processEntry(eventMap, entry);
+                processEntry(entry);
+            }
+            flushPreviousRef(null);
+            output.flush();
+        } finally {
+            reader.close();
         }
-        flushPreviousRef(null, eventMap);
-        output.flush();
     }
 
-    private void processEntry(final Object2IntArrayMap<SpliceEvent> eventMap, final Alignments.AlignmentEntry entry) {
+    private void processEntry(final Alignments.AlignmentEntry entry) {
         assert reverseIds != null : " reverse Id cannot be null";
         if ( entry.hasMappingQuality() && entry.getMappingQuality()<qualTheshold) {
             // ignore alignments that have a mapping quality field with a value strictly less than the threshold.
             return;
         }
         if (entry.hasSplicedForwardAlignmentLink()) {
-            flushPreviousRef(entry, eventMap);
+            flushPreviousRef(entry);
 
             final Alignments.RelatedAlignmentEntry link = entry.getSplicedForwardAlignmentLink();
             final int firstBase = entry.getPosition() + entry.getTargetAlignedLength() + 1;
@@ -105,98 +140,79 @@ public class ExportSplicingEvents {
             } else {
                 final int endBase = link.getPosition()+1;
                 // increment the count of the observed splice junction:
-                final char strand = entry.getMatchingReverseStrand() ? '-' : '+';
-                observeSplice(firstBase, endBase, strand);
+                final boolean reverseStrand = entry.getMatchingReverseStrand();
+                observeSplice(firstBase, endBase, reverseStrand);
+            }
+            if (sorted && junctionKeys.size() >= streamingThreshold) {
+                // entries that follow start at or after this position, so their donors are after it:
+                writeJunctions(entry.getPosition());
+                streamingThreshold = Math.max(MIN_STREAMING_JUNCTIONS, junctionKeys.size() * 2);
             }
         }
     }
 
-    private void observeSplice(final int firstBase, final int endBase, final char strand) {
-        final SpliceEvent key = new SpliceEvent(firstBase, endBase, strand);
-        final int count = eventMap.getInt(key);
-
-        eventMap.put(key, count + 1);
+    private void observeSplice(final int firstBase, final int endBase, final boolean reverseStrand) {
+        final long key = junctionKey(firstBase, endBase, reverseStrand);
+        final int index = junctionIndices.get(key);
+        if (index == -1) {
+            junctionIndices.put(key, junctionKeys.size());
+            junctionKeys.add(key);
+            junctionCounts.add(1);
+        } else {
+            junctionCounts.set(index, junctionCounts.getInt(index) + 1);
+        }
     }
 
     public void setMinMappingQuality(int qualThreshold) {
         this.qualTheshold=qualThreshold;
     }
 
+    /**
+     * Set the number of threads used to tally the references of an indexed alignment.
+     *
+     * @param numThreads number of threads, one to read the alignment sequentially.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
 
-    private class SpliceEvent implements Comparable<SpliceEvent>{
-        int firstBase;
-        int lastBase;
-        char strand;
-
-        public SpliceEvent(final int firstBase, final int endBase, final char strand) {
-            this.firstBase = firstBase;
-            this.lastBase = endBase;
-            this.strand = strand;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            SpliceEvent that = (SpliceEvent) o;
-
-            if (firstBase != that.firstBase) return false;
-            if (lastBase != that.lastBase) return false;
-            if (strand != that.strand) return false;
+    /**
+     * Declare whether the entries given to process are sorted by reference position, in which case junctions
+     * are written as soon as they cannot be observed again.
+     */
+    void setSorted(final boolean sorted) {
+        this.sorted = sorted;
+    }
 
-            return true;
-        }
+    /**
+     * Pack a junction in a long: the donor in the high 32 bits, then the acceptor and the strand in the low bit.
+     * Positions are never negative, so the acceptor fits in 31 bits.
+     */
+    private static long junctionKey(final int firstBase, final int endBase, final boolean reverseStrand) {
+        return ((long) firstBase << 32) | ((long) endBase << 1) | (reverseStrand ? 1 : 0);
+    }
 
-        @Override
-        public int hashCode() {
-            int result = firstBase;
-            result = 31 * result + lastBase;
-            result = 31 * result + (int) strand;
-            return result;
-        }
+    private static int donor(final long key) {
+        return (int) (key >> 32);
+    }
 
-        @Override
-        public int compareTo(SpliceEvent spliceEvent) {
-         return  firstBase-spliceEvent.firstBase;
-        }
+    private static int acceptor(final long key) {
+        return (int) ((key & 0xffffffffL) >>> 1);
     }
 
+    private static char strand(final long key) {
+        return (key & 1) == 1 ? '-' : '+';
+    }
 
-    private void flushPreviousRef(final Alignments.AlignmentEntry entry, final Object2IntArrayMap<SpliceEvent> eventMap) {
+    private void flushPreviousRef(final Alignments.AlignmentEntry entry) {
         if (lastTargetIndex == -1 && entry!=null) {
             lastTargetIndex=entry.getTargetIndex();
             return;
         }
         if (entry == null || entry.getTargetIndex() != lastTargetIndex) {
 
-            final ObjectSet<SpliceEvent> spliceEvents = eventMap.keySet();
-            ObjectArrayList<SpliceEvent> list= new ObjectArrayList<SpliceEvent>();
-            list.addAll(spliceEvents);
-            Collections.sort(list);
-            for (final SpliceEvent event : list) {
-
-                final int firstBase = event.firstBase;
-                final int lastBase = event.lastBase;
-                output.print(sampleFilename);
-                output.print("\t");
-                output.print(reverseIds.getId(lastTargetIndex));
-                output.print("\t");
-                output.print(firstBase);
-                output.print("\t");
-                output.print(lastBase);
-                output.print("\t");
-                output.print(event.strand);
-                output.print("\t");
-                output.print("??"); // motif
-                output.print("\t");
-                output.print(eventMap.getInt(event)); // the number of times the splicing event was observed in the sample
-                output.print("\t");
-                output.print("0.0");
-                output.println();
-
-            }
-            eventMap.clear();
+            writeJunctions(Long.MAX_VALUE);
+            streamingThreshold = MIN_STREAMING_JUNCTIONS;
             if (entry != null) {
                 lastTargetIndex = entry.getTargetIndex();
             }
@@ -205,7 +221,141 @@ public class ExportSplicingEvents {
 
     }
 
-}
-
+    /**
+     * Write the junctions of the current reference whose donor is at most maxDonor, sorted by donor, and
+     * forget them. Junctions with the same donor are written in the order they were first observed.
+     */
+    private void writeJunctions(final long maxDonor) {
+        final int numJunctions = junctionKeys.size();
+        final long[] order = new long[numJunctions];
+        int numWritten = 0;
+        for (int index = 0; index < numJunctions; index++) {
+            final int donor = donor(junctionKeys.getLong(index));
+            if (donor <= maxDonor) {
+                order[numWritten++] = ((long) donor << 32) | index;
+            }
+        }
+        Arrays.sort(order, 0, numWritten);
+        for (int i = 0; i < numWritten; i++) {
+            final int index = (int) (order[i] & 0xffffffffL);
+            final long key = junctionKeys.getLong(index);
+            output.print(sampleFilename);
+            output.print("\t");
+            output.print(reverseIds.getId(lastTargetIndex));
+            output.print("\t");
+            output.print(donor(key));
+            output.print("\t");
+            output.print(acceptor(key));
+            output.print("\t");
+            output.print(strand(key));
+            output.print("\t");
+            output.print("??"); // motif
+            output.print("\t");
+            output.print(junctionCounts.getInt(index)); // the number of times the splicing event was observed in the sample
+            output.print("\t");
+            output.print("0.0");
+            output.println();
+        }
+        junctionIndices.clear();
+        if (numWritten == numJunctions) {
+            junctionKeys.clear();
+            junctionCounts.clear();
+            return;
+        }
+        // keep the junctions that may still be observed, in the order they were first observed:
+        int numKept = 0;
+        for (int index = 0; index < numJunctions; index++) {
+            final long key = junctionKeys.getLong(index);
+            if (donor(key) > maxDonor) {
+                junctionKeys.set(numKept, key);
+                junctionCounts.set(numKept, junctionCounts.getInt(index));
+                junctionIndices.put(key, numKept);
+                numKept++;
+            }
+        }
+        junctionKeys.size(numKept);
+        junctionCounts.size(numKept);
+    }
 
+    /**
+     * Tally groups of consecutive references of an indexed alignment in parallel, and write the junctions of the
+     * groups in reference order, as they are written when the alignment is read sequentially. Each thread opens
+     * one reader and repositions it at the first reference of each group it tallies.
+     */
+    private void processReferences(final String basename, final int[] targetLengths,
+                                   final int numberOfReferences) throws IOException {
+        final OrderedExecutor<String> executor = new OrderedExecutor<String>("splicing-events", numThreads);
+        final List<AlignmentReader> readers = Collections.synchronizedList(new ArrayList<AlignmentReader>());
+        final ThreadLocal<AlignmentReader> threadReader = new ThreadLocal<AlignmentReader>();
+        final boolean hasLengths = targetLengths != null && targetLengths.length == numberOfReferences;
+        long totalLength = 0;
+        for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+            totalLength += hasLengths ? targetLengths[referenceIndex] : 1;
+        }
+        // small references are grouped until a group is about this long:
+        final long groupLength = Math.max(1, totalLength / (numThreads * TASKS_PER_THREAD));
+        try {
+            int firstReference = 0;
+            long length = 0;
+            for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+                length += hasLengths ? targetLengths[referenceIndex] : 1;
+                if (length >= groupLength || referenceIndex == numberOfReferences - 1) {
+                    executor.submit(newReferencesTask(basename, threadReader, readers,
+                            firstReference, referenceIndex));
+                    while (executor.hasReadyResult()) {
+                        output.print(executor.take());
+                    }
+                    firstReference = referenceIndex + 1;
+                    length = 0;
+                }
+            }
+            while (!executor.isEmpty()) {
+                output.print(executor.take());
+            }
+        } finally {
+            executor.shutdown();
+            synchronized (readers) {
+                for (final AlignmentReader reader : readers) {
+                    reader.close();
+                }
+            }
+        }
+        output.flush();
+    }
 
+    private Callable<String> newReferencesTask(final String basename,
+                                               final ThreadLocal<AlignmentReader> threadReader,
+                                               final List<AlignmentReader> readers,
+                                               final int firstReference, final int lastReference) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                AlignmentReader reader = threadReader.get();
+                if (reader == null) {
+                    reader = new AlignmentReaderImpl(basename);
+                    readers.add(reader);
+                    threadReader.set(reader);
+                }
+                final StringWriter referencesOutput = new StringWriter();
+                final ExportSplicingEvents processor = new ExportSplicingEvents(referencesOutput);
+                processor.reverseIds = reverseIds;
+                processor.sampleFilename = sampleFilename;
+                processor.qualTheshold = qualTheshold;
+                processor.sorted = true;
+                reader.reposition(firstReference, 0);
+                while (reader.hasNext()) {
+                    final Alignments.AlignmentEntry entry = reader.next();
+                    if (entry.getTargetIndex() > lastReference) {
+                        break;
+                    }
+                    if (entry.getTargetIndex() >= firstReference) {
+                        processor.processEntry(entry);
+                    }
+                }
+                processor.flushPreviousRef(null);
+                processor.output.flush();
+                return referencesOutput.toString();
+            }
+        };
+    }
+}
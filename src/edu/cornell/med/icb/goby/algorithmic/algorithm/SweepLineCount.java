@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.counts.CountsWriterI;
+import it.unimi.dsi.fastutil.ints.IntHeapPriorityQueue;
+
+import java.io.IOException;
+
+/**
+ * Computes base-level coverage over one reference sequence from reads presented in order of increasing start
+ * position, and writes count transitions to a CountsWriter as soon as they are known. Positions where reads end
+ * are kept in a min-heap, so memory is proportional to the depth of coverage rather than to the length of the
+ * reference. Reads have the same conventions as {@link ComputeCount#populate(int, int)}, and the counts written
+ * are identical to those of {@link ComputeCount#baseCount(CountsWriterI)}.
+ */
+public class SweepLineCount {
+    private final CountsWriterI writer;
+    /**
+     * Positions where the count decreases, one per read overlapping the current position.
+     */
+    private final IntHeapPriorityQueue ends = new IntHeapPriorityQueue();
+    private int depth;
+    private int lastStart;
+    /**
+     * Position where the current depth started.
+     */
+    private int segmentStart;
+    /**
+     * Count and length of the last run, not written yet because the next run may have the same count.
+     */
+    private int pendingCount;
+    private int pendingLength;
+
+    public SweepLineCount(final CountsWriterI writer) {
+        super();
+        this.writer = writer;
+    }
+
+    /**
+     * Add a read. Reads must be added in order of increasing start position.
+     *
+     * @param startPosition Start position of the read ON or BEFORE the startPosition on the reference sequence.
+     * @param endPosition   End position of the read BEFORE the endPosition on the reference sequence.
+     * @throws IOException if counts cannot be written.
+     */
+    public void populate(final int startPosition, final int endPosition) throws IOException {
+        if (startPosition < lastStart) {
+            throw new IllegalArgumentException(String.format("Reads must be sorted by start position: %d follows %d",
+                    startPosition, lastStart));
+        }
+        lastStart = startPosition;
+        releaseEnds(startPosition);
+        changeDepth(startPosition, depth + 1);
+        ends.enqueue(endPosition + 1);
+    }
+
+    /**
+     * Write the counts after the last read, and close the writer.
+     *
+     * @throws IOException if counts cannot be written.
+     */
+    public void close() throws IOException {
+        releaseEnds(Integer.MAX_VALUE);
+        // counts return to zero after the last read, the last zero run is not written:
+        if (pendingCount != 0 && pendingLength > 0) {
+            writer.appendCount(pendingCount, pendingLength);
+        }
+        writer.close();
+    }
+
+    /**
+     * Decrease the depth for the reads that end at or before position.
+     */
+    private void releaseEnds(final int position) throws IOException {
+        while (!ends.isEmpty() && ends.firstInt() <= position) {
+            changeDepth(ends.dequeueInt(), depth - 1);
+        }
+    }
+
+    private void changeDepth(final int position, final int newDepth) throws IOException {
+        final int length = position - segmentStart;
+        if (length > 0) {
+            if (depth == pendingCount) {
+                pendingLength += length;
+            } else {
+                if (pendingLength > 0) {
+                    writer.appendCount(pendingCount, pendingLength);
+                }
+                pendingCount = depth;
+                pendingLength = length;
+            }
+            segmentStart = position;
+        }
+        depth = newDepth;
+    }
+}
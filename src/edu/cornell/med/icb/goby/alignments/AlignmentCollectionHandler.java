@@ -449,6 +449,60 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         return result.build();
     }
 
+    /**
+     * Decompress a collection directly into the columns of a cursor, without creating AlignmentEntry messages.
+     * Links to related alignments, insert sizes and soft clips are not decoded.
+     *
+     * @param reducedCollection The reduced collection, as parsed from the leftover bytes of the chunk.
+     * @param compressedBytes   The compressed bits of the chunk.
+     * @param cursor            The cursor that will hold the entries of the chunk. It is cleared first.
+     * @throws IOException if the compressed bits cannot be read.
+     */
+    public void decompressColumns(final Message reducedCollection, final byte[] compressedBytes,
+                                  final AlignmentEntryCursor cursor) throws IOException {
+        reset();
+        cursor.clear();
+        final byte[] moreRoom = new byte[compressedBytes.length + 100];
+        System.arraycopy(compressedBytes, 0, moreRoom, 0, compressedBytes.length);
+
+        final Alignments.AlignmentCollection alignmentCollection = (Alignments.AlignmentCollection) reducedCollection;
+        final InputBitStream bitInput = new InputBitStream(new FastByteArrayInputStream(moreRoom));
+        final int numEntriesInChunk = alignmentCollection.getAlignmentEntriesCount();
+
+        final int streamVersion = decompressBits(bitInput, numEntriesInChunk);
+        if (streamVersion > VERSION) {
+            throw new IOException(String.format("The input data has been generated with a more recent version " +
+                    "(streamVersion=%d) of Goby than this parser (VERSION=%d).", streamVersion, VERSION));
+        }
+        int originalIndex = 0;
+        for (int templateIndex = 0; templateIndex < numEntriesInChunk; templateIndex++) {
+            final int templatePositionIndex = varPositionIndex;
+            final int templateVarFromToIndex = varFromToIndex;
+            final Alignments.AlignmentEntry reduced = alignmentCollection.getAlignmentEntries(templateIndex);
+            while (multiplicities.get(templateIndex) >= 1) {
+                multiplicities.set(templateIndex, multiplicities.get(templateIndex) - 1);
+                andBackToColumns(templateIndex, originalIndex, reduced, streamVersion, cursor);
+                if (multiplicities.get(templateIndex) >= 1) {
+                    // go back to the indices for the template:
+                    varPositionIndex = templatePositionIndex;
+                    varFromToIndex = templateVarFromToIndex;
+                }
+                originalIndex++;
+            }
+        }
+        ++chunkIndex;
+    }
+
+    /**
+     * Same decoding as andBack, writing the fields of the entry to the columns of the cursor.
+     */
+    private void andBackToColumns(final int index, final int originalIndex, final Alignments.AlignmentEntry reduced,
+                                  final int streamVersion, final AlignmentEntryCursor cursor) {
+        cursorFields.cursor = cursor;
+        cursorFields.entryIndex = cursor.addEntry(reduced);
+        decodeFields(index, originalIndex, reduced, streamVersion, cursorFields);
+    }
+
     private void restoreLinks(final Alignments.AlignmentCollection.Builder alignmentCollection) {
         if (enableDomainOptimizations) {
             //   queryIndexToPositionList.clear();
@@ -1804,8 +1858,35 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         if (!multiplicityFieldsAllMissing) {
             result.setMultiplicity(1);
         }
+        builderFields.result = result;
+        builderFields.template = reduced;
+        decodeFields(index, originalIndex, reduced, streamVersion, builderFields);
+
+        Alignments.RelatedAlignmentEntry link = pairLinks.decode(originalIndex, result, reduced.getPairAlignmentLink());
+        if (link != null) {
+            result.setPairAlignmentLink(link);
+        }
+        link = forwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedForwardAlignmentLink());
+        if (link != null) {
+            result.setSplicedForwardAlignmentLink(link);
+        }
+        link = backwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedBackwardAlignmentLink());
+        if (link != null) {
+            result.setSplicedBackwardAlignmentLink(link);
+        }
+
+        decodeInsertSize(result, index);
+        return result.build();
+    }
+
+    /**
+     * Decode the fields of an entry that are stored in the streams of the chunk, and pass them to the
+     * destination of the entry. Links and insert sizes are decoded by andBack only.
+     */
+    private void decodeFields(final int index, final int originalIndex, final Alignments.AlignmentEntry reduced,
+                              final int streamVersion, final DecodedEntry entry) {
         final int queryIndex = queryIndices.getInt(originalIndex);
-        result.setQueryIndex(queryIndex);
+        entry.setQueryIndex(queryIndex);
         // System.out.printf("decoding query-index=%d (originalIndex=%d) varPositionIndex=%d %n",queryIndex,originalIndex, varPositionIndex);
 
         if (originalIndex == 0 || reduced.hasPosition() || reduced.hasTargetIndex()) {
@@ -1817,8 +1898,7 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
             final int deltaTarget = deltaTargetIndices.getInt(deltaPosIndex);
             final int position = previousPosition + deltaPos;
             final int targetIndex = previousTargetIndex + deltaTarget;
-            result.setPosition(position);
-            result.setTargetIndex(targetIndex);
+            entry.setLocation(targetIndex, position);
             previousPosition += deltaPos;
             previousTargetIndex += deltaTarget;
             deltaPosIndex++;
@@ -1826,105 +1906,84 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
         if (streamVersion >= 2) {
             final int numReadQualScores = numReadQualityScores.get(numReadQualScoresIndex++);
             if (numReadQualScores > 0) {
-
-                final byte[] scores = new byte[numReadQualScores];
+                if (readQualityBuffer.length < numReadQualScores) {
+                    readQualityBuffer = new byte[numReadQualScores];
+                }
                 for (int i = 0; i < numReadQualScores; i++) {
-                    scores[i] = (byte) allReadQualityScores.getInt(qualScoreIndex++);
+                    readQualityBuffer[i] = (byte) allReadQualityScores.getInt(qualScoreIndex++);
                 }
-                result.setReadQualityScores(ByteString.copyFrom(scores));
-
+                entry.setReadQualityScores(readQualityBuffer, numReadQualScores);
             }
         }
         int anInt = mappingQualities.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setMappingQuality(anInt);
+            entry.setMappingQuality(anInt);
         }
         anInt = fragmentIndices.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setFragmentIndex(anInt);
+            entry.setFragmentIndex(anInt);
         }
         anInt = matchingReverseStrand.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setMatchingReverseStrand(anInt == 1);
+            entry.setMatchingReverseStrand(anInt == 1);
         }
         anInt = numberOfMismatches.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setNumberOfMismatches(anInt);
+            entry.setNumberOfMismatches(anInt);
         }
 
         anInt = numberOfIndels.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setNumberOfIndels(anInt);
+            entry.setNumberOfIndels(anInt);
 
         }
         final int queryLength = queryLengths.getInt(index);
         if (queryLength != MISSING_VALUE) {
-            result.setQueryLength(queryLength);
+            entry.setQueryLength(queryLength);
         }
 
         anInt = queryPositions.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setQueryPosition(anInt);
+            entry.setQueryPosition(anInt);
         }
         final int targetAlignedLength = targetAlignedLengths.getInt(index);
         if (targetAlignedLength != MISSING_VALUE) {
-            result.setTargetAlignedLength(targetAlignedLength);
+            entry.setTargetAlignedLength(targetAlignedLength);
         }
         anInt = queryAlignedLengths.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setQueryAlignedLength(decodeQueryAlignedLength(anInt, targetAlignedLength));
+            entry.setQueryAlignedLength(decodeQueryAlignedLength(anInt, targetAlignedLength));
         }
         anInt = sampleIndices.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setSampleIndex(anInt);
+            entry.setSampleIndex(anInt);
         }
         anInt = readOriginIndices.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setReadOriginIndex(anInt);
+            entry.setReadOriginIndex(anInt);
         }
         anInt = pairFlags.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setPairFlags(restoreSamFlags(anInt, result.getMatchingReverseStrand()));
+            entry.setPairFlags(restoreSamFlags(anInt, entry.getMatchingReverseStrand()));
         }
         anInt = scores.getInt(index);
         if (anInt != MISSING_VALUE) {
-            result.setScore(Float.intBitsToFloat(anInt));
-        }
-        Alignments.RelatedAlignmentEntry link = pairLinks.decode(originalIndex, result, reduced.getPairAlignmentLink());
-        if (link != null) {
-            result.setPairAlignmentLink(link);
-        }
-        link = forwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedForwardAlignmentLink());
-        if (link != null) {
-            result.setSplicedForwardAlignmentLink(link);
-        }
-        link = backwardSpliceLinks.decode(originalIndex, result, reduced.getSplicedBackwardAlignmentLink());
-        if (link != null) {
-            result.setSplicedBackwardAlignmentLink(link);
+            entry.setScore(Float.intBitsToFloat(anInt));
         }
 
-        decodeInsertSize(result, index);
-
-        final boolean templateHasSequenceVariations = reduced.getSequenceVariationsCount() > 0;
         final int numVariations = variationCount.getInt(index);
-
+        final boolean hasReadQualityScores = entry.getNumReadQualityScores() > 0;
         for (int varIndex = 0; varIndex < numVariations; varIndex++) {
-            final Alignments.SequenceVariation template = templateHasSequenceVariations ? reduced.getSequenceVariations(varIndex) : null;
-            final Alignments.SequenceVariation.Builder varBuilder = templateHasSequenceVariations ?
-                    Alignments.SequenceVariation.newBuilder(template) : Alignments.SequenceVariation.newBuilder();
-
             from.setLength(0);
             to.setLength(0);
 
             final int fromLength = fromLengths.getInt(varPositionIndex);
             final int toLength = toLengths.getInt(varPositionIndex);
             final int position = varPositions.getInt(varPositionIndex);
-            varBuilder.setPosition(position);
 
             final int recodedReadIndex = varReadIndex.getInt(varPositionIndex);
-            final boolean entryMatchingReverseStrand = result.hasMatchingReverseStrand() ? result.getMatchingReverseStrand() : false;
+            final boolean entryMatchingReverseStrand = entry.getMatchingReverseStrand();
             final int readIndex = entryMatchingReverseStrand ? recodedReadIndex + (queryLength - position) - 5 : -recodedReadIndex + position + 5;
-            varBuilder.setReadIndex(readIndex);
             //  System.out.printf("%c DECODING position=%d queryLength=%d recodedReadIndex=%d readIndex=%d  %n",
             //         entryMatchingReverseStrand ? '+' : '-', position, queryLength, recodedReadIndex, readIndex);
 
@@ -1954,49 +2013,283 @@ public final class AlignmentCollectionHandler implements ProtobuffCollectionHand
 
                 }
             }
+            if (hasReadQualityScores) {
+                // put toQual back on the variation, from the read quality scores:
+                final int numReadQualScores = entry.getNumReadQualityScores();
+                if (toQualityBuffer.length < to.length()) {
+                    toQualityBuffer = new byte[to.length()];
+                }
+                final byte[] toQuals = toQualityBuffer;
+                int indelOffset = 0;
+                for (int l = 0; l < to.length(); ++l) {
+                    final int i = l + readIndex - 1 - indelOffset;
+                    final byte b = i >= numReadQualScores ? 0 : entry.getReadQualityScore(i);
+                    final boolean ignoreBase = to.charAt(l) == '-';
+                    toQuals[l] = ignoreBase ? 0 : b;
+
+                    if (ignoreBase) {
+                        indelOffset++;
+                    }
+                }
+                entry.addSequenceVariation(varIndex, position, readIndex, from, to, toQuals, to.length());
+            } else {
+                entry.addSequenceVariation(varIndex, position, readIndex, from, to, quals, toQualLength);
+            }
+        }
+    }
+
+    /**
+     * Receives the fields of an entry decoded by decodeFields. Fields that are not stored in the streams of the
+     * chunk keep the value of the template entry, and must be provided by getters as such.
+     */
+    private interface DecodedEntry {
+        void setQueryIndex(int queryIndex);
+
+        void setLocation(int targetIndex, int position);
+
+        void setReadQualityScores(byte[] readQualityScores, int length);
+
+        int getNumReadQualityScores();
+
+        byte getReadQualityScore(int i);
+
+        void setMappingQuality(int mappingQuality);
+
+        void setFragmentIndex(int fragmentIndex);
+
+        void setMatchingReverseStrand(boolean matchingReverseStrand);
+
+        boolean getMatchingReverseStrand();
+
+        void setNumberOfMismatches(int numberOfMismatches);
+
+        void setNumberOfIndels(int numberOfIndels);
+
+        void setQueryLength(int queryLength);
+
+        void setQueryPosition(int queryPosition);
+
+        void setTargetAlignedLength(int targetAlignedLength);
+
+        void setQueryAlignedLength(int queryAlignedLength);
+
+        void setSampleIndex(int sampleIndex);
+
+        void setReadOriginIndex(int readOriginIndex);
+
+        void setPairFlags(int pairFlags);
+
+        void setScore(float score);
+
+        /**
+         * Add a sequence variation. The strings and quality array are reused for the next variation.
+         */
+        void addSequenceVariation(int varIndex, int position, int readIndex, MutableString from, MutableString to,
+                                  byte[] toQuals, int toQualLength);
+    }
+
+    /**
+     * Decodes fields to an AlignmentEntry builder created from the template entry.
+     */
+    private final class BuilderFields implements DecodedEntry {
+        private Alignments.AlignmentEntry.Builder result;
+        private Alignments.AlignmentEntry template;
+
+        public void setQueryIndex(final int queryIndex) {
+            result.setQueryIndex(queryIndex);
+        }
+
+        public void setLocation(final int targetIndex, final int position) {
+            result.setPosition(position);
+            result.setTargetIndex(targetIndex);
+        }
+
+        public void setReadQualityScores(final byte[] readQualityScores, final int length) {
+            result.setReadQualityScores(ByteString.copyFrom(readQualityScores, 0, length));
+        }
+
+        public int getNumReadQualityScores() {
+            return result.hasReadQualityScores() ? result.getReadQualityScores().size() : 0;
+        }
+
+        public byte getReadQualityScore(final int i) {
+            return result.getReadQualityScores().byteAt(i);
+        }
+
+        public void setMappingQuality(final int mappingQuality) {
+            result.setMappingQuality(mappingQuality);
+        }
+
+        public void setFragmentIndex(final int fragmentIndex) {
+            result.setFragmentIndex(fragmentIndex);
+        }
+
+        public void setMatchingReverseStrand(final boolean matchingReverseStrand) {
+            result.setMatchingReverseStrand(matchingReverseStrand);
+        }
+
+        public boolean getMatchingReverseStrand() {
+            return result.hasMatchingReverseStrand() && result.getMatchingReverseStrand();
+        }
+
+        public void setNumberOfMismatches(final int numberOfMismatches) {
+            result.setNumberOfMismatches(numberOfMismatches);
+        }
+
+        public void setNumberOfIndels(final int numberOfIndels) {
+            result.setNumberOfIndels(numberOfIndels);
+        }
+
+        public void setQueryLength(final int queryLength) {
+            result.setQueryLength(queryLength);
+        }
+
+        public void setQueryPosition(final int queryPosition) {
+            result.setQueryPosition(queryPosition);
+        }
+
+        public void setTargetAlignedLength(final int targetAlignedLength) {
+            result.setTargetAlignedLength(targetAlignedLength);
+        }
+
+        public void setQueryAlignedLength(final int queryAlignedLength) {
+            result.setQueryAlignedLength(queryAlignedLength);
+        }
+
+        public void setSampleIndex(final int sampleIndex) {
+            result.setSampleIndex(sampleIndex);
+        }
+
+        public void setReadOriginIndex(final int readOriginIndex) {
+            result.setReadOriginIndex(readOriginIndex);
+        }
+
+        public void setPairFlags(final int pairFlags) {
+            result.setPairFlags(pairFlags);
+        }
+
+        public void setScore(final float score) {
+            result.setScore(score);
+        }
+
+        public void addSequenceVariation(final int varIndex, final int position, final int readIndex,
+                                         final MutableString from, final MutableString to,
+                                         final byte[] toQuals, final int toQualLength) {
+            final boolean templateHasSequenceVariations = template.getSequenceVariationsCount() > 0;
+            final Alignments.SequenceVariation.Builder varBuilder = templateHasSequenceVariations ?
+                    Alignments.SequenceVariation.newBuilder(template.getSequenceVariations(varIndex)) :
+                    Alignments.SequenceVariation.newBuilder();
+            varBuilder.setPosition(position);
+            varBuilder.setReadIndex(readIndex);
             varBuilder.setFrom(from.toString());
             varBuilder.setTo(to.toString());
             if (toQualLength > 0) {
-                varBuilder.setToQuality(ByteString.copyFrom(quals));
+                varBuilder.setToQuality(ByteString.copyFrom(toQuals, 0, toQualLength));
             }
-
             if (templateHasSequenceVariations) {
                 result.setSequenceVariations(varIndex, varBuilder);
             } else {
                 result.addSequenceVariations(varBuilder);
             }
+        }
+    }
+
+    /**
+     * Decodes fields to the columns of a cursor, for an entry initialized from the template entry.
+     */
+    private static final class CursorFields implements DecodedEntry {
+        private AlignmentEntryCursor cursor;
+        private int entryIndex;
 
+        public void setQueryIndex(final int queryIndex) {
+            cursor.setQueryIndex(entryIndex, queryIndex);
         }
-        if (result.hasReadQualityScores()) {
 
-            final ByteString readQualScores = result.getReadQualityScores();
-            // put toQual back on entries:
-            for (int varIndex = 0; varIndex < numVariations; varIndex++) {
+        public void setLocation(final int targetIndex, final int position) {
+            cursor.setLocation(entryIndex, targetIndex, position);
+        }
 
-                final Alignments.SequenceVariation.Builder seqVarBuilder = result.getSequenceVariationsBuilder(varIndex);
-                final String toBases = seqVarBuilder.getTo();
+        public void setReadQualityScores(final byte[] readQualityScores, final int length) {
+            final int start = cursor.allocateReadQualities(entryIndex, length);
+            System.arraycopy(readQualityScores, 0, cursor.getReadQualities(), start, length);
+        }
 
-                final byte[] toQuals = new byte[toBases.length()];
-                int indelOffset = 0;
-                for (int l = 0; l < toBases.length(); ++l) {
-                    final int i = l + seqVarBuilder.getReadIndex() - 1 - indelOffset;
-                    final byte b = i >= readQualScores.size() ? 0 : readQualScores.byteAt(i);
-                    final boolean ignoreBase = toBases.charAt(l) == '-';
-                    toQuals[l] = ignoreBase ? 0 : b;
+        public int getNumReadQualityScores() {
+            return cursor.getReadQualityScoresLength(entryIndex);
+        }
 
-                    if (ignoreBase) {
-                        indelOffset++;
-                    }
-                }
-                seqVarBuilder.setToQuality(ByteString.copyFrom(toQuals));
+        public byte getReadQualityScore(final int i) {
+            return cursor.getReadQualities()[cursor.getReadQualityScoresStart(entryIndex) + i];
+        }
 
-                result.setSequenceVariations(varIndex, seqVarBuilder);
-            }
+        public void setMappingQuality(final int mappingQuality) {
+            cursor.setMappingQuality(entryIndex, mappingQuality);
+        }
 
+        public void setFragmentIndex(final int fragmentIndex) {
+            cursor.setFragmentIndex(entryIndex, fragmentIndex);
+        }
+
+        public void setMatchingReverseStrand(final boolean matchingReverseStrand) {
+            cursor.setMatchingReverseStrand(entryIndex, matchingReverseStrand ? 1 : 0);
+        }
+
+        public boolean getMatchingReverseStrand() {
+            return cursor.getMatchingReverseStrand(entryIndex);
+        }
+
+        public void setNumberOfMismatches(final int numberOfMismatches) {
+            cursor.setNumberOfMismatches(entryIndex, numberOfMismatches);
+        }
+
+        public void setNumberOfIndels(final int numberOfIndels) {
+            cursor.setNumberOfIndels(entryIndex, numberOfIndels);
+        }
+
+        public void setQueryLength(final int queryLength) {
+            cursor.setQueryLength(entryIndex, queryLength);
+        }
+
+        public void setQueryPosition(final int queryPosition) {
+            cursor.setQueryPosition(entryIndex, queryPosition);
+        }
+
+        public void setTargetAlignedLength(final int targetAlignedLength) {
+            cursor.setTargetAlignedLength(entryIndex, targetAlignedLength);
+        }
+
+        public void setQueryAlignedLength(final int queryAlignedLength) {
+            cursor.setQueryAlignedLength(entryIndex, queryAlignedLength);
+        }
+
+        public void setSampleIndex(final int sampleIndex) {
+            cursor.setSampleIndex(entryIndex, sampleIndex);
+        }
+
+        public void setReadOriginIndex(final int readOriginIndex) {
+            cursor.setReadOriginIndex(entryIndex, readOriginIndex);
+        }
+
+        public void setPairFlags(final int pairFlags) {
+            cursor.setPairFlags(entryIndex, pairFlags);
+        }
+
+        public void setScore(final float score) {
+            cursor.setScore(entryIndex, score);
+        }
+
+        public void addSequenceVariation(final int varIndex, final int position, final int readIndex,
+                                         final MutableString from, final MutableString to,
+                                         final byte[] toQuals, final int toQualLength) {
+            cursor.addVariation(entryIndex, position, readIndex, from, to, toQuals, toQualLength);
         }
-        return result.build();
     }
 
+    private final BuilderFields builderFields = new BuilderFields();
+    private final CursorFields cursorFields = new CursorFields();
+    private byte[] readQualityBuffer = new byte[0];
+    private byte[] toQualityBuffer = new byte[0];
+
 
     /**
      * Decode the insert size given the already stored positions, an arithmetic expression linking position and insert size,
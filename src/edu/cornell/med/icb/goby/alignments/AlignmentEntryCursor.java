@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import com.google.protobuf.ByteString;
+import it.unimi.dsi.fastutil.bytes.ByteArrays;
+import it.unimi.dsi.fastutil.floats.FloatArrays;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.lang.MutableString;
+
+import java.util.BitSet;
+
+/**
+ * A flyweight cursor over the entries of a decoded alignment chunk. Entry fields are stored in primitive
+ * columns that are reused from one chunk to the next, so that iterating over alignment entries does not
+ * allocate AlignmentEntry or SequenceVariation objects. Fill a cursor with
+ * {@link AlignmentReaderImpl#readNextChunk(AlignmentEntryCursor)}, then call {@link #next()} to move
+ * to each entry of the chunk and use the accessors to obtain the values of the current entry.
+ * <p/>
+ * The cursor exposes the fields most tools need: location, strand, lengths, sequence variations and quality
+ * scores. Other fields (links to related alignments, insert size, soft clips) are only available through
+ * {@link Alignments.AlignmentEntry}. Optional integer fields that are absent in an entry are returned as
+ * {@link #MISSING_VALUE}. Use {@link #hasScore()} to find out if an entry has a score.
+ */
+public class AlignmentEntryCursor {
+    /**
+     * Value of optional integer fields that are not defined for an entry.
+     */
+    public static final int MISSING_VALUE = AlignmentCollectionHandler.MISSING_VALUE;
+
+    private int size;
+    private int current = -1;
+
+    private int[] queryIndices = IntArrays.EMPTY_ARRAY;
+    private int[] targetIndices = IntArrays.EMPTY_ARRAY;
+    private int[] positions = IntArrays.EMPTY_ARRAY;
+    private int[] matchingReverseStrand = IntArrays.EMPTY_ARRAY;
+    private int[] queryLengths = IntArrays.EMPTY_ARRAY;
+    private int[] mappingQualities = IntArrays.EMPTY_ARRAY;
+    private int[] fragmentIndices = IntArrays.EMPTY_ARRAY;
+    private int[] numberOfMismatches = IntArrays.EMPTY_ARRAY;
+    private int[] numberOfIndels = IntArrays.EMPTY_ARRAY;
+    private int[] queryPositions = IntArrays.EMPTY_ARRAY;
+    private int[] queryAlignedLengths = IntArrays.EMPTY_ARRAY;
+    private int[] targetAlignedLengths = IntArrays.EMPTY_ARRAY;
+    private int[] sampleIndices = IntArrays.EMPTY_ARRAY;
+    private int[] readOriginIndices = IntArrays.EMPTY_ARRAY;
+    private int[] pairFlags = IntArrays.EMPTY_ARRAY;
+    private float[] scores = FloatArrays.EMPTY_ARRAY;
+    /**
+     * Entries that have a score. Any float, NaN included, is a valid score, so absence cannot be encoded in scores.
+     */
+    private final BitSet hasScores = new BitSet();
+    private int[] readQualityStarts = IntArrays.EMPTY_ARRAY;
+    private int[] readQualityLengths = IntArrays.EMPTY_ARRAY;
+    private int[] firstVariations = IntArrays.EMPTY_ARRAY;
+    private int[] variationCounts = IntArrays.EMPTY_ARRAY;
+
+    /**
+     * Read quality scores of all the entries of the chunk.
+     */
+    private byte[] readQualities = ByteArrays.EMPTY_ARRAY;
+    private int numReadQualities;
+
+    // sequence variation columns:
+    private int numVariations;
+    private int[] varPositions = IntArrays.EMPTY_ARRAY;
+    private int[] varReadIndices = IntArrays.EMPTY_ARRAY;
+    private int[] varFromStarts = IntArrays.EMPTY_ARRAY;
+    private int[] varFromLengths = IntArrays.EMPTY_ARRAY;
+    private int[] varToStarts = IntArrays.EMPTY_ARRAY;
+    private int[] varToLengths = IntArrays.EMPTY_ARRAY;
+    private int[] varToQualityStarts = IntArrays.EMPTY_ARRAY;
+    private int[] varToQualityLengths = IntArrays.EMPTY_ARRAY;
+    /**
+     * From and to bases of all the sequence variations of the chunk.
+     */
+    private byte[] varBases = ByteArrays.EMPTY_ARRAY;
+    private int numVarBases;
+    private byte[] varToQualities = ByteArrays.EMPTY_ARRAY;
+    private int numVarToQualities;
+
+    /**
+     * Remove all entries, keeping the storage allocated for the previous chunk.
+     */
+    public void clear() {
+        size = 0;
+        current = -1;
+        numReadQualities = 0;
+        numVariations = 0;
+        numVarBases = 0;
+        numVarToQualities = 0;
+    }
+
+    /**
+     * Return the number of entries in the chunk.
+     *
+     * @return the number of entries in the chunk.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Move to the next entry of the chunk.
+     *
+     * @return True if the cursor is positioned on a new entry, false if all the entries of the chunk were visited.
+     */
+    public boolean next() {
+        if (current + 1 >= size) {
+            current = size;
+            return false;
+        }
+        ++current;
+        return true;
+    }
+
+    /**
+     * Move to an entry of the chunk.
+     *
+     * @param entryIndex index of the entry in the chunk, between zero and size()-1.
+     */
+    public void moveTo(final int entryIndex) {
+        assert entryIndex >= 0 && entryIndex < size : "entry index out of bounds.";
+        current = entryIndex;
+    }
+
+    /**
+     * Return the index of the current entry in the chunk.
+     *
+     * @return index of the current entry.
+     */
+    public int getEntryIndex() {
+        return current;
+    }
+
+    public int getQueryIndex() {
+        return queryIndices[current];
+    }
+
+    public int getTargetIndex() {
+        return targetIndices[current];
+    }
+
+    public int getPosition() {
+        return positions[current];
+    }
+
+    public boolean getMatchingReverseStrand() {
+        return matchingReverseStrand[current] == 1;
+    }
+
+    public int getQueryLength() {
+        return queryLengths[current];
+    }
+
+    public int getMappingQuality() {
+        return mappingQualities[current];
+    }
+
+    public int getFragmentIndex() {
+        return fragmentIndices[current];
+    }
+
+    public int getNumberOfMismatches() {
+        return numberOfMismatches[current];
+    }
+
+    public int getNumberOfIndels() {
+        return numberOfIndels[current];
+    }
+
+    public int getQueryPosition() {
+        return queryPositions[current];
+    }
+
+    public int getQueryAlignedLength() {
+        return queryAlignedLengths[current];
+    }
+
+    public int getTargetAlignedLength() {
+        return targetAlignedLengths[current];
+    }
+
+    public int getSampleIndex() {
+        return sampleIndices[current];
+    }
+
+    public int getReadOriginIndex() {
+        return readOriginIndices[current];
+    }
+
+    public int getPairFlags() {
+        return pairFlags[current];
+    }
+
+    public boolean hasScore() {
+        return hasScores.get(current);
+    }
+
+    public float getScore() {
+        return scores[current];
+    }
+
+    /**
+     * Return the number of read quality scores of the current entry, zero if the entry has none.
+     *
+     * @return number of read quality scores.
+     */
+    public int getReadQualityScoresLength() {
+        return readQualityLengths[current];
+    }
+
+    public byte getReadQualityScore(final int i) {
+        return readQualities[readQualityStarts[current] + i];
+    }
+
+    public int getNumberOfSequenceVariations() {
+        return variationCounts[current];
+    }
+
+    public int getVariationPosition(final int varIndex) {
+        return varPositions[firstVariations[current] + varIndex];
+    }
+
+    public int getVariationReadIndex(final int varIndex) {
+        return varReadIndices[firstVariations[current] + varIndex];
+    }
+
+    public int getVariationFromLength(final int varIndex) {
+        return varFromLengths[firstVariations[current] + varIndex];
+    }
+
+    public char getVariationFrom(final int varIndex, final int i) {
+        return (char) varBases[varFromStarts[firstVariations[current] + varIndex] + i];
+    }
+
+    public int getVariationToLength(final int varIndex) {
+        return varToLengths[firstVariations[current] + varIndex];
+    }
+
+    public char getVariationTo(final int varIndex, final int i) {
+        return (char) varBases[varToStarts[firstVariations[current] + varIndex] + i];
+    }
+
+    public int getVariationToQualityLength(final int varIndex) {
+        return varToQualityLengths[firstVariations[current] + varIndex];
+    }
+
+    public byte getVariationToQuality(final int varIndex, final int i) {
+        return varToQualities[varToQualityStarts[firstVariations[current] + varIndex] + i];
+    }
+
+    /**
+     * Copy the from bases of a sequence variation of the current entry to a reusable string.
+     *
+     * @param varIndex index of the variation in the current entry.
+     * @param from     where the bases are copied, after it is cleared.
+     */
+    public void getVariationFrom(final int varIndex, final MutableString from) {
+        from.setLength(0);
+        final int length = getVariationFromLength(varIndex);
+        for (int i = 0; i < length; i++) {
+            from.append(getVariationFrom(varIndex, i));
+        }
+    }
+
+    /**
+     * Copy the to bases of a sequence variation of the current entry to a reusable string.
+     *
+     * @param varIndex index of the variation in the current entry.
+     * @param to       where the bases are copied, after it is cleared.
+     */
+    public void getVariationTo(final int varIndex, final MutableString to) {
+        to.setLength(0);
+        final int length = getVariationToLength(varIndex);
+        for (int i = 0; i < length; i++) {
+            to.append(getVariationTo(varIndex, i));
+        }
+    }
+
+    /**
+     * Fill the cursor with the entries of a collection. Used when the chunk codec cannot decode chunks directly
+     * to columns.
+     *
+     * @param collection the decoded collection.
+     */
+    public void fill(final Alignments.AlignmentCollection collection) {
+        clear();
+        for (final Alignments.AlignmentEntry entry : collection.getAlignmentEntriesList()) {
+            final int index = addEntry(entry);
+            for (final Alignments.SequenceVariation var : entry.getSequenceVariationsList()) {
+                final int varIndex = addVariation(index, var.getPosition(), var.getReadIndex());
+                final String from = var.getFrom();
+                final String to = var.getTo();
+                final int fromStart = allocateFrom(varIndex, from.length());
+                for (int i = 0; i < from.length(); i++) {
+                    varBases[fromStart + i] = (byte) from.charAt(i);
+                }
+                final int toStart = allocateTo(varIndex, to.length());
+                for (int i = 0; i < to.length(); i++) {
+                    varBases[toStart + i] = (byte) to.charAt(i);
+                }
+                final ByteString toQuals = var.getToQuality();
+                final int toQualStart = allocateToQualities(varIndex, toQuals.size());
+                for (int i = 0; i < toQuals.size(); i++) {
+                    varToQualities[toQualStart + i] = toQuals.byteAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append an entry to the chunk, with the fields and read quality scores of an entry. Sequence variations
+     * are not copied.
+     *
+     * @param entry the entry whose fields are copied.
+     * @return the index of the new entry.
+     */
+    int addEntry(final Alignments.AlignmentEntry entry) {
+        final int index = addEntry();
+        queryIndices[index] = entry.getQueryIndex();
+        targetIndices[index] = entry.getTargetIndex();
+        positions[index] = entry.getPosition();
+        matchingReverseStrand[index] = entry.hasMatchingReverseStrand() ? (entry.getMatchingReverseStrand() ? 1 : 0) : MISSING_VALUE;
+        queryLengths[index] = entry.hasQueryLength() ? entry.getQueryLength() : MISSING_VALUE;
+        mappingQualities[index] = entry.hasMappingQuality() ? entry.getMappingQuality() : MISSING_VALUE;
+        fragmentIndices[index] = entry.hasFragmentIndex() ? entry.getFragmentIndex() : MISSING_VALUE;
+        numberOfMismatches[index] = entry.hasNumberOfMismatches() ? entry.getNumberOfMismatches() : MISSING_VALUE;
+        numberOfIndels[index] = entry.hasNumberOfIndels() ? entry.getNumberOfIndels() : MISSING_VALUE;
+        queryPositions[index] = entry.hasQueryPosition() ? entry.getQueryPosition() : MISSING_VALUE;
+        queryAlignedLengths[index] = entry.hasQueryAlignedLength() ? entry.getQueryAlignedLength() : MISSING_VALUE;
+        targetAlignedLengths[index] = entry.hasTargetAlignedLength() ? entry.getTargetAlignedLength() : MISSING_VALUE;
+        sampleIndices[index] = entry.hasSampleIndex() ? entry.getSampleIndex() : MISSING_VALUE;
+        readOriginIndices[index] = entry.hasReadOriginIndex() ? entry.getReadOriginIndex() : MISSING_VALUE;
+        pairFlags[index] = entry.hasPairFlags() ? entry.getPairFlags() : MISSING_VALUE;
+        if (entry.hasScore()) {
+            setScore(index, entry.getScore());
+        }
+        if (entry.hasReadQualityScores()) {
+            final ByteString quals = entry.getReadQualityScores();
+            final int length = quals.size();
+            final int start = allocateReadQualities(index, length);
+            for (int i = 0; i < length; i++) {
+                readQualities[start + i] = quals.byteAt(i);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Append an entry to the chunk. All fields of the new entry must be set by the caller.
+     *
+     * @return the index of the new entry.
+     */
+    private int addEntry() {
+        final int index = size++;
+        if (size > queryIndices.length) {
+            queryIndices = IntArrays.grow(queryIndices, size);
+            targetIndices = IntArrays.grow(targetIndices, size);
+            positions = IntArrays.grow(positions, size);
+            matchingReverseStrand = IntArrays.grow(matchingReverseStrand, size);
+            queryLengths = IntArrays.grow(queryLengths, size);
+            mappingQualities = IntArrays.grow(mappingQualities, size);
+            fragmentIndices = IntArrays.grow(fragmentIndices, size);
+            numberOfMismatches = IntArrays.grow(numberOfMismatches, size);
+            numberOfIndels = IntArrays.grow(numberOfIndels, size);
+            queryPositions = IntArrays.grow(queryPositions, size);
+            queryAlignedLengths = IntArrays.grow(queryAlignedLengths, size);
+            targetAlignedLengths = IntArrays.grow(targetAlignedLengths, size);
+            sampleIndices = IntArrays.grow(sampleIndices, size);
+            readOriginIndices = IntArrays.grow(readOriginIndices, size);
+            pairFlags = IntArrays.grow(pairFlags, size);
+            scores = FloatArrays.grow(scores, size);
+            readQualityStarts = IntArrays.grow(readQualityStarts, size);
+            readQualityLengths = IntArrays.grow(readQualityLengths, size);
+            firstVariations = IntArrays.grow(firstVariations, size);
+            variationCounts = IntArrays.grow(variationCounts, size);
+        }
+        hasScores.clear(index);
+        readQualityStarts[index] = numReadQualities;
+        readQualityLengths[index] = 0;
+        firstVariations[index] = numVariations;
+        variationCounts[index] = 0;
+        return index;
+    }
+
+    /**
+     * Reserve storage for the read quality scores of an entry.
+     *
+     * @return the offset of the first quality score in readQualities.
+     */
+    int allocateReadQualities(final int entryIndex, final int length) {
+        final int start = numReadQualities;
+        numReadQualities += length;
+        readQualities = ByteArrays.grow(readQualities, numReadQualities);
+        readQualityStarts[entryIndex] = start;
+        readQualityLengths[entryIndex] = length;
+        return start;
+    }
+
+    /**
+     * Append a sequence variation to an entry. Variations must be added to the last entry of the chunk.
+     *
+     * @return the index of the new variation in the chunk.
+     */
+    int addVariation(final int entryIndex, final int position, final int readIndex) {
+        assert entryIndex == size - 1 : "variations must be added to the last entry.";
+        final int varIndex = numVariations++;
+        if (numVariations > varPositions.length) {
+            varPositions = IntArrays.grow(varPositions, numVariations);
+            varReadIndices = IntArrays.grow(varReadIndices, numVariations);
+            varFromStarts = IntArrays.grow(varFromStarts, numVariations);
+            varFromLengths = IntArrays.grow(varFromLengths, numVariations);
+            varToStarts = IntArrays.grow(varToStarts, numVariations);
+            varToLengths = IntArrays.grow(varToLengths, numVariations);
+            varToQualityStarts = IntArrays.grow(varToQualityStarts, numVariations);
+            varToQualityLengths = IntArrays.grow(varToQualityLengths, numVariations);
+        }
+        varPositions[varIndex] = position;
+        varReadIndices[varIndex] = readIndex;
+        varFromStarts[varIndex] = numVarBases;
+        varFromLengths[varIndex] = 0;
+        varToStarts[varIndex] = numVarBases;
+        varToLengths[varIndex] = 0;
+        varToQualityStarts[varIndex] = numVarToQualities;
+        varToQualityLengths[varIndex] = 0;
+        variationCounts[entryIndex]++;
+        return varIndex;
+    }
+
+    /**
+     * Append a sequence variation to an entry, copying its bases and to qualities.
+     *
+     * @return the index of the new variation in the chunk.
+     */
+    int addVariation(final int entryIndex, final int position, final int readIndex,
+                     final MutableString from, final MutableString to, final byte[] toQuals, final int toQualLength) {
+        final int varIndex = addVariation(entryIndex, position, readIndex);
+        final int fromStart = allocateFrom(varIndex, from.length());
+        for (int i = 0; i < from.length(); i++) {
+            varBases[fromStart + i] = (byte) from.charAt(i);
+        }
+        final int toStart = allocateTo(varIndex, to.length());
+        for (int i = 0; i < to.length(); i++) {
+            varBases[toStart + i] = (byte) to.charAt(i);
+        }
+        final int toQualStart = allocateToQualities(varIndex, toQualLength);
+        System.arraycopy(toQuals, 0, varToQualities, toQualStart, toQualLength);
+        return varIndex;
+    }
+
+    int allocateFrom(final int varIndex, final int length) {
+        varFromStarts[varIndex] = allocateBases(length);
+        varFromLengths[varIndex] = length;
+        return varFromStarts[varIndex];
+    }
+
+    int allocateTo(final int varIndex, final int length) {
+        varToStarts[varIndex] = allocateBases(length);
+        varToLengths[varIndex] = length;
+        return varToStarts[varIndex];
+    }
+
+    int allocateToQualities(final int varIndex, final int length) {
+        final int start = numVarToQualities;
+        numVarToQualities += length;
+        varToQualities = ByteArrays.grow(varToQualities, numVarToQualities);
+        varToQualityStarts[varIndex] = start;
+        varToQualityLengths[varIndex] = length;
+        return start;
+    }
+
+    private int allocateBases(final int length) {
+        final int start = numVarBases;
+        numVarBases += length;
+        varBases = ByteArrays.grow(varBases, numVarBases);
+        return start;
+    }
+
+    int getReadQualityScoresStart(final int entryIndex) {
+        return readQualityStarts[entryIndex];
+    }
+
+    int getReadQualityScoresLength(final int entryIndex) {
+        return readQualityLengths[entryIndex];
+    }
+
+    byte[] getVarBases() {
+        return varBases;
+    }
+
+    byte[] getVarToQualities() {
+        return varToQualities;
+    }
+
+    byte[] getReadQualities() {
+        return readQualities;
+    }
+
+    void setQueryIndex(final int index, final int queryIndex) {
+        queryIndices[index] = queryIndex;
+    }
+
+    void setLocation(final int index, final int targetIndex, final int position) {
+        targetIndices[index] = targetIndex;
+        positions[index] = position;
+    }
+
+    void setMatchingReverseStrand(final int index, final int value) {
+        matchingReverseStrand[index] = value;
+    }
+
+    boolean getMatchingReverseStrand(final int index) {
+        return matchingReverseStrand[index] == 1;
+    }
+
+    void setQueryLength(final int index, final int value) {
+        queryLengths[index] = value;
+    }
+
+    void setMappingQuality(final int index, final int value) {
+        mappingQualities[index] = value;
+    }
+
+    void setFragmentIndex(final int index, final int value) {
+        fragmentIndices[index] = value;
+    }
+
+    void setNumberOfMismatches(final int index, final int value) {
+        numberOfMismatches[index] = value;
+    }
+
+    void setNumberOfIndels(final int index, final int value) {
+        numberOfIndels[index] = value;
+    }
+
+    void setQueryPosition(final int index, final int value) {
+        queryPositions[index] = value;
+    }
+
+    void setQueryAlignedLength(final int index, final int value) {
+        queryAlignedLengths[index] = value;
+    }
+
+    void setTargetAlignedLength(final int index, final int value) {
+        targetAlignedLengths[index] = value;
+    }
+
+    void setSampleIndex(final int index, final int value) {
+        sampleIndices[index] = value;
+    }
+
+    void setReadOriginIndex(final int index, final int value) {
+        readOriginIndices[index] = value;
+    }
+
+    void setPairFlags(final int index, final int value) {
+        pairFlags[index] = value;
+    }
+
+    void setScore(final int index, final float score) {
+        scores[index] = score;
+        hasScores.set(index);
+    }
+}
@@ -21,9 +21,18 @@
 package edu.cornell.med.icb.goby.alignments;
 
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Message;
+import edu.cornell.med.icb.goby.compression.ByteBufferChunkCodec;
 import edu.cornell.med.icb.goby.compression.ChunkCodec;
+import edu.cornell.med.icb.goby.compression.ChunkCodecHelper;
 import edu.cornell.med.icb.goby.compression.FastBufferedMessageChunksReader;
+import edu.cornell.med.icb.goby.compression.HybridChunkCodec;
+import edu.cornell.med.icb.goby.compression.MappedMessageChunksReader;
+import edu.cornell.med.icb.goby.compression.SeekableMessageChunksReader;
 import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
@@ -39,7 +48,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -55,9 +69,19 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      */
     private static final Log LOG = LogFactory.getLog(AlignmentReaderImpl.class);
 
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(AlignmentReaderImpl.class,
+            "read-ahead-chunks:integer, the number of chunks each reader decodes ahead of the entries it returns. Zero decodes chunks in the thread that iterates over entries.:0",
+            "read-ahead-threads:integer, the number of threads shared by all readers to decode chunks ahead. Zero or less uses one thread per processor.:0",
+            "memory-map-entries:boolean, when true, read local entries files through memory-mapped buffers instead of buffered streams.:false");
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
     private InputStream headerStream;
     private int numberOfAlignedReads;
-    private final FastBufferedMessageChunksReader alignmentEntryReader;
+    private final SeekableMessageChunksReader alignmentEntryReader;
     private Alignments.AlignmentCollection collection;
     private Properties stats;
     private String basename;
@@ -107,6 +131,27 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     private boolean hasQueryIndexOccurrences;
     private List<Alignments.ReadOriginInfo> readOriginInfoList;
     private boolean hasAmbiguity;
+    /**
+     * Number of chunks decoded ahead of the current collection. Zero when chunks are decoded in the iterating thread.
+     */
+    private int numReadAheadChunks = doc().getInteger("read-ahead-chunks");
+    /**
+     * Collections being decoded ahead, in the order the chunks appear in the entries file.
+     */
+    private final ArrayDeque<Future<Alignments.AlignmentCollection>> readAheadCollections =
+            new ArrayDeque<Future<Alignments.AlignmentCollection>>();
+    /**
+     * Decodes chunks ahead for all the readers of this JVM, created on first use.
+     */
+    private static ExecutorService readAheadExecutor;
+    /**
+     * Codec used by each read-ahead thread. Codecs and handlers keep state and cannot be shared.
+     */
+    private static final ThreadLocal<ChunkCodec> readAheadCodec = new ThreadLocal<ChunkCodec>();
+    /**
+     * Handler used to decode chunks directly to the columns of a cursor, created on first use.
+     */
+    private AlignmentCollectionHandler columnsHandler;
 
 
     /**
@@ -225,18 +270,17 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         if (!indexed)
             throw new UnsupportedOperationException("The alignment must be sorted and indexed to read slices of data by reference position.");
         readIndex();
-        final InputStream stream = new RepositionableInputStream(this.basename + ".entries");
         final long startOffset = getByteOffset(startReferenceIndex, startPosition, 0);
-        long endOffset = getByteOffset(endReferenceIndex, endPosition + 1, 1);
+        // endPosition may be Integer.MAX_VALUE to read until the end of a reference: do not overflow.
+        long endOffset = getByteOffset(endReferenceIndex, nextPosition(endPosition), 1);
 
 
         this.endPosition = endPosition;
         this.endReferenceIndex = endReferenceIndex;
         this.startPosition = startPosition;
         this.startReferenceIndex = startReferenceIndex;
-        alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset > 0 ? startOffset : 0,
-                endOffset > 0 ? endOffset : Long.MAX_VALUE,
-                new FastBufferedInputStream(stream));
+        alignmentEntryReader = openEntries(this.basename + ".entries", startOffset > 0 ? startOffset : 0,
+                endOffset > 0 ? endOffset : Long.MAX_VALUE);
         alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
         LOG.trace("start offset :" + startOffset + " end offset " + endOffset);
 
@@ -291,9 +335,7 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         final String entriesFile = this.basename + ".entries";
         boolean entriesFileExist = RepositionableInputStream.resourceExist(entriesFile);
         if (entriesFileExist) {
-            final InputStream stream = new RepositionableInputStream(entriesFile);
-
-            alignmentEntryReader = new FastBufferedMessageChunksReader(startOffset, endOffset, new FastBufferedInputStream(stream));
+            alignmentEntryReader = openEntries(entriesFile, startOffset, endOffset);
             alignmentEntryReader.setHandler(new AlignmentCollectionHandler());
         } else {
             alignmentEntryReader = null;
@@ -330,6 +372,20 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
     }
 
 
+    /**
+     * Open a chunk reader over the entries file, between the byte positions start and end. Local files are
+     * memory-mapped when the memory-map-entries option is set.
+     */
+    private static SeekableMessageChunksReader openEntries(final String entriesFile, final long start, final long end)
+            throws IOException {
+        if (doc().getBoolean("memory-map-entries") && RepositionableInputStream.isLocalFile(entriesFile)) {
+            return new MappedMessageChunksReader(entriesFile, start, end);
+        } else {
+            final InputStream stream = new RepositionableInputStream(entriesFile);
+            return new FastBufferedMessageChunksReader(start, end, new FastBufferedInputStream(stream));
+        }
+    }
+
     public AlignmentReaderImpl(final String basename) throws IOException {
         this(0, Long.MAX_VALUE, getBasename(basename), true);
 
@@ -458,13 +514,20 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
             return true;
         } else {
             collection = null;
-            final boolean hasNext = alignmentEntryReader.hasNext(collection, numberOfEntries());
-
-            final ChunkCodec codec = alignmentEntryReader.getChunkCodec();
+            final boolean hasNext;
+            final boolean decoded;
             try {
-                final byte[] compressedBytes = alignmentEntryReader.getCompressedBytes();
-                if (compressedBytes != null) {
-                    collection = (Alignments.AlignmentCollection) codec.decode(compressedBytes);
+                if (numReadAheadChunks > 0) {
+                    hasNext = nextReadAheadCollection();
+                    decoded = hasNext;
+                } else {
+                    hasNext = alignmentEntryReader.hasNext(collection, numberOfEntries());
+                    decoded = alignmentEntryReader.getCompressedBuffer() != null;
+                    if (decoded) {
+                        collection = (Alignments.AlignmentCollection) decodeChunk();
+                    }
+                }
+                if (decoded) {
                     if (collection == null || collection.getAlignmentEntriesCount() == 0) {
                         return false;
                     }
@@ -498,6 +561,155 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
 
     }
 
+    /**
+     * Read the next chunk of the entries file and decode it into the columns of a cursor, without creating
+     * AlignmentEntry messages. Chunks written with a hybrid codec are decoded directly to columns, other
+     * chunks are decoded to a collection first. Entries are returned as stored in the chunk: they are not
+     * filtered by the genomic window of this reader. Do not mix calls to this method with iteration over
+     * entries (next/skipTo) on the same reader.
+     *
+     * @param cursor The cursor that will hold the entries of the chunk. Its storage is reused across chunks.
+     * @return True if a chunk was read, false if no more chunks are available in the slice.
+     * @throws IOException If an error occurs reading or decoding the chunk.
+     */
+    public boolean readNextChunk(final AlignmentEntryCursor cursor) throws IOException {
+        cursor.clear();
+        if (!alignmentEntryReader.hasNext(null, 0)) {
+            return false;
+        }
+        final ByteBuffer compressedBuffer = alignmentEntryReader.getCompressedBuffer();
+        if (compressedBuffer == null) {
+            return false;
+        }
+        final ChunkCodec codec = alignmentEntryReader.getChunkCodec();
+        if (codec instanceof HybridChunkCodec) {
+            final HybridChunkCodec hybridCodec = (HybridChunkCodec) codec;
+            final Message reducedCollection = hybridCodec.decodeReduced(compressedBuffer);
+            if (reducedCollection == null) {
+                return false;
+            }
+            if (columnsHandler == null) {
+                columnsHandler = new AlignmentCollectionHandler();
+            }
+            columnsHandler.decompressColumns(reducedCollection, hybridCodec.getCompressedBits(), cursor);
+        } else {
+            final Alignments.AlignmentCollection decoded = (Alignments.AlignmentCollection) decodeChunk();
+            if (decoded == null) {
+                return false;
+            }
+            cursor.fill(decoded);
+        }
+        return cursor.size() > 0;
+    }
+
+    /**
+     * Decode the current chunk of the entries reader. Codecs that decode buffers read memory-mapped chunks
+     * in place, other codecs decode a copy of the chunk.
+     *
+     * @return the decoded collection, or null if the chunk content does not validate.
+     * @throws IOException If an error occurs decoding the chunk.
+     */
+    private Message decodeChunk() throws IOException {
+        final ChunkCodec codec = alignmentEntryReader.getChunkCodec();
+        if (codec instanceof ByteBufferChunkCodec) {
+            return ((ByteBufferChunkCodec) codec).decode(alignmentEntryReader.getCompressedBuffer());
+        } else {
+            return codec.decode(alignmentEntryReader.getCompressedBytes());
+        }
+    }
+
+    /**
+     * Set the number of chunks decoded ahead of the entries returned by this reader. Chunks are read from the
+     * entries file in order and decoded on threads shared by all readers. Zero decodes chunks in the thread
+     * that iterates over entries.
+     *
+     * @param numReadAheadChunks number of chunks to decode ahead.
+     */
+    public void setReadAheadChunks(final int numReadAheadChunks) {
+        cancelReadAhead();
+        this.numReadAheadChunks = numReadAheadChunks;
+    }
+
+    /**
+     * Read compressed chunks until numReadAheadChunks are being decoded, or the end of the slice is reached,
+     * then make the oldest decoded chunk the current collection.
+     *
+     * @return True if a new collection was obtained, false if no more chunks are available in the slice.
+     * @throws IOException If an error occurs decoding the chunk.
+     */
+    private boolean nextReadAheadCollection() throws IOException {
+        while (readAheadCollections.size() < numReadAheadChunks && alignmentEntryReader.hasNext(null, 0)) {
+            final ChunkCodec chunkCodec = alignmentEntryReader.getChunkCodec();
+            // the read-ahead codec has the same type as the reader codec, so it decodes buffers when this one does:
+            final ByteBuffer compressedBuffer = chunkCodec instanceof ByteBufferChunkCodec
+                    ? alignmentEntryReader.getCompressedBuffer() : null;
+            final byte[] compressedBytes = compressedBuffer == null ? alignmentEntryReader.getCompressedBytes() : null;
+            if (compressedBuffer == null && compressedBytes == null) {
+                break;
+            }
+            final byte registrationCode = chunkCodec.registrationCode();
+            readAheadCollections.add(getReadAheadExecutor().submit(new Callable<Alignments.AlignmentCollection>() {
+                @Override
+                public Alignments.AlignmentCollection call() throws IOException {
+                    final ChunkCodec codec = getReadAheadCodec(registrationCode);
+                    return (Alignments.AlignmentCollection) (compressedBuffer != null
+                            ? ((ByteBufferChunkCodec) codec).decode(compressedBuffer)
+                            : codec.decode(compressedBytes));
+                }
+            }));
+        }
+        if (readAheadCollections.isEmpty()) {
+            return false;
+        }
+        try {
+            collection = readAheadCollections.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunk to be decoded.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to decode chunk.", cause);
+        }
+        // the entry index was reset by the last chunk read, which may not be this one:
+        alignmentEntryReader.resetEntryIndex();
+        return true;
+    }
+
+    /**
+     * Discard chunks decoded ahead. Must be called whenever the entries stream is repositioned.
+     */
+    private void cancelReadAhead() {
+        for (final Future<Alignments.AlignmentCollection> pending : readAheadCollections) {
+            pending.cancel(false);
+        }
+        readAheadCollections.clear();
+    }
+
+    private static ChunkCodec getReadAheadCodec(final byte registrationCode) {
+        ChunkCodec codec = readAheadCodec.get();
+        if (codec == null || codec.registrationCode() != registrationCode) {
+            codec = ChunkCodecHelper.withRegistrationCode(registrationCode);
+            codec.setHandler(new AlignmentCollectionHandler());
+            readAheadCodec.set(codec);
+        }
+        return codec;
+    }
+
+    private static synchronized ExecutorService getReadAheadExecutor() {
+        if (readAheadExecutor == null) {
+            int numThreads = doc().getInteger("read-ahead-threads");
+            if (numThreads <= 0) {
+                numThreads = Runtime.getRuntime().availableProcessors();
+            }
+            // readers are not always closed, the pool must not prevent the JVM from exiting:
+            readAheadExecutor = OrderedExecutor.newDaemonThreadPool("alignment-read-ahead", numThreads);
+        }
+        return readAheadExecutor;
+    }
+
     private Alignments.AlignmentEntry nextEntry() {
         //      System.out.println("nextEntry");
         if (!hasNextEntry()) {
@@ -633,6 +845,7 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * @throws IOException If an error occured.
      */
     protected void seek(long byteOffset) throws IOException {
+        cancelReadAhead();
         alignmentEntryReader.seek(byteOffset);
         nextEntry = null;
         nextEntryNoFilter = null;
@@ -820,6 +1033,7 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
      * {@inheritDoc}
      */
     public void close() {
+        cancelReadAhead();
         if (alignmentEntryReader != null) {
             alignmentEntryReader.close();
         }
@@ -961,13 +1175,17 @@ public class AlignmentReaderImpl extends AbstractAlignmentReader implements Alig
         return hasAmbiguity;
     }
 
+    private static int nextPosition(final int position) {
+        return position == Integer.MAX_VALUE ? position : position + 1;
+    }
+
     @Override
     public long getEndByteOffset(final int startReferenceIndex, final int startPosition, final int endReferenceIndex, final int endPosition) {
         final long startByteOffset = getByteOffset(startReferenceIndex, startPosition, 0);
         long endByteOffset = startByteOffset;
         int i = 1;
         while (endByteOffset == startByteOffset) {
-            endByteOffset = getByteOffset(endReferenceIndex, endPosition + 1, i);
+            endByteOffset = getByteOffset(endReferenceIndex, nextPosition(endPosition), i);
             //    System.out.println("i="+i);
             ++i;
         }
@@ -23,6 +23,7 @@ package edu.cornell.med.icb.goby.alignments;
 import edu.cornell.med.icb.goby.alignments.perms.NoOpPermutation;
 import edu.cornell.med.icb.goby.alignments.perms.QueryIndexPermutation;
 import edu.cornell.med.icb.goby.alignments.perms.QueryIndexPermutationInterface;
+import edu.cornell.med.icb.goby.compression.ChunkCodec;
 import edu.cornell.med.icb.goby.compression.MessageChunksWriter;
 import edu.cornell.med.icb.goby.modes.GobyDriver;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
@@ -122,7 +123,11 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private int firstTargetIndexInChunk;
     private boolean firstEntryInChunk = true;
     private int firstPositionInChunk;
-    private final LongArrayList indexOffsets = new LongArrayList();
+    /**
+     * Chunk numbers of the index entries. Converted to offsets in the entries file when the index is written, since
+     * chunk offsets are not known until compressed chunks have been written.
+     */
+    private final IntArrayList indexChunkNumbers = new IntArrayList();
     private final LongArrayList indexAbsolutePositions = new LongArrayList();
     private boolean indexWritten;
     private long[] targetPositionOffsets;
@@ -237,6 +242,25 @@ public class AlignmentWriterImpl implements AlignmentWriter {
         entriesChunkWriter.setNumEntriesPerChunk(numEntriesPerChunk);
     }
 
+    /**
+     * Set the codec used to compress chunks of alignment entries. Must be called before entries are appended.
+     *
+     * @param codec the chunk codec to use for the entries file.
+     */
+    public void setEntriesChunkCodec(final ChunkCodec codec) {
+        entriesChunkWriter.setCodec(codec);
+    }
+
+    /**
+     * Set the number of threads used to compress chunks of alignment entries. Must be called before entries
+     * are appended.
+     *
+     * @param numThreads number of compression threads, zero to compress in the thread that appends entries.
+     */
+    public void setNumCompressionThreads(final int numThreads) {
+        entriesChunkWriter.setNumCompressionThreads(numThreads);
+    }
+
     /**
      * Set fields for the next alignment extry.
      *
@@ -318,13 +342,11 @@ public class AlignmentWriterImpl implements AlignmentWriter {
             firstPositionInChunk = builtEntry.getPosition();
             firstEntryInChunk = false;
         }
-        final long currentChunkOffset = entriesChunkWriter.writeAsNeeded(collectionBuilder,
+        entriesChunkWriter.writeAsNeeded(collectionBuilder,
                 builtEntry.hasMultiplicity() ? builtEntry.getMultiplicity() : 1);
-        // LOG.warn(String.format("#entriesWritten: %d currentChunkOffset: %d previousChunkOffset: %d",
-        //        entriesChunkWriter.getTotalEntriesWritten(), currentChunkOffset, previousChunkOffset));
         if (sortedState && entriesChunkWriter.getAppendedInChunk() == 0) {
             // we have just written a new chunk.
-            pushIndex(currentChunkOffset, firstTargetIndexInChunk, firstPositionInChunk);
+            pushIndex(entriesChunkWriter.getCurrentChunkNumber(), firstTargetIndexInChunk, firstPositionInChunk);
             firstEntryInChunk = true;
 
 
@@ -335,8 +357,8 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
     }
 
-    private void pushIndex(final long startOfChunkOffset, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
-        final long newOffset = Math.max(startOfChunkOffset, 0);
+    private void pushIndex(final int chunkNumber, final int firstTargetIndexInChunk, final int firstPositionInChunk) {
+        final int newChunkNumber = Math.max(chunkNumber, 0);
         final int size = indexAbsolutePositions.size();
         // remove duplicates because the behavior of binary search is undefined for duplicates:
         /**
@@ -350,13 +372,13 @@ public class AlignmentWriterImpl implements AlignmentWriter {
 
         if (size == 0 || codedPosition != indexAbsolutePositions.get(size - 1)) {
 
-            indexOffsets.add(newOffset);
+            indexChunkNumbers.add(newChunkNumber);
             indexAbsolutePositions.add(codedPosition);
             if (LOG.isTraceEnabled()) {
-                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d offset-in-file= %d absolutePosition= %d",
+                LOG.trace(String.format("INDEX Pushing targetIndex= %d position= %d chunk= %d absolutePosition= %d",
                         firstTargetIndexInChunk,
                         firstPositionInChunk,
-                        newOffset, codedPosition));
+                        newChunkNumber, codedPosition));
             }
         }
     }
@@ -426,13 +448,17 @@ public class AlignmentWriterImpl implements AlignmentWriter {
     private void writeIndex() throws IOException {
         if (!indexWritten) {
             // Push the last chunkoffset:
-            pushIndex(entriesChunkWriter.getCurrentChunkStartOffset(),
+            pushIndex(entriesChunkWriter.getCurrentChunkNumber(),
                     firstTargetIndexInChunk, firstPositionInChunk);
             GZIPOutputStream indexOutput = null;
             try {
                 indexOutput = new GZIPOutputStream(new FileOutputStream(basename + ".index"));
                 final Alignments.AlignmentIndex.Builder indexBuilder = Alignments.AlignmentIndex.newBuilder();
-                assert (indexOffsets.size() == indexAbsolutePositions.size()) : "index sizes must be consistent.";
+                assert (indexChunkNumbers.size() == indexAbsolutePositions.size()) : "index sizes must be consistent.";
+                final LongArrayList indexOffsets = new LongArrayList(indexChunkNumbers.size());
+                for (int i = 0; i < indexChunkNumbers.size(); i++) {
+                    indexOffsets.add(entriesChunkWriter.getChunkStartOffset(indexChunkNumbers.getInt(i)));
+                }
                 indexBuilder.addAllOffsets(indexOffsets);
                 indexBuilder.addAllAbsolutePositions(indexAbsolutePositions);
                 indexBuilder.build().writeTo(indexOutput);
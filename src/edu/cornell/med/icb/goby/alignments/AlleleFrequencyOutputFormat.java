@@ -85,7 +85,7 @@ public class AlleleFrequencyOutputFormat implements SequenceVariationOutputForma
 
     public void defineColumns(OutputInfo outputInfo, DiscoverSequenceVariantsMode mode) {
         samples = mode.getSamples();
-        statsWriter = new VCFWriter(outputInfo.getPrintWriter());
+        statsWriter = new VCFWriter(outputInfo);
         statsWriter.setWriteFieldGroupAssociations(writeFieldGroupAssociations);
         biomartFieldIndex = statsWriter.defineField("INFO", "BIOMART_COORDS", 1, ColumnType.String, "Coordinates for use with Biomart.");
         genotypeFormatter.defineInfoFields(statsWriter);
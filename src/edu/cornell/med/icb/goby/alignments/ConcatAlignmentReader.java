@@ -347,6 +347,16 @@ public class ConcatAlignmentReader extends AbstractConcatAlignmentReader {
     }
 
 
+    /**
+     * Return true when query indices are combined through a global permutation. Permuted indices are assigned
+     * in the order entries are returned, so they must be obtained from the thread that returns entries.
+     *
+     * @return True when mergedQueryIndex uses the global query index permutation.
+     */
+    protected boolean isQueryIndexPermutationNeeded() {
+        return needsPermutation;
+    }
+
     protected int mergedQueryIndex(final int readerIndex, final int queryIndex) {
         if (needsPermutation) {
             try {
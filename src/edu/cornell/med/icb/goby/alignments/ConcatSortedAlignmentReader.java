@@ -20,8 +20,12 @@
 
 package edu.cornell.med.icb.goby.alignments;
 
-import edu.cornell.med.icb.goby.alignments.perms.ConcatenatePermutations;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
+import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
+import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
 import it.unimi.dsi.fastutil.AbstractPriorityQueue;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayPriorityQueue;
 import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import org.apache.commons.logging.Log;
@@ -30,6 +34,10 @@ import org.apache.commons.logging.LogFactory;
 import java.io.IOException;
 import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Concatenates sorted alignments while preserving entry sort order across inputs. The result is a sorted
@@ -51,6 +59,35 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
      */
     private static final Log LOG = LogFactory.getLog(ConcatSortedAlignmentReader.class);
 
+    @RegisterThis
+    public static final DynamicOptionClient doc = new DynamicOptionClient(ConcatSortedAlignmentReader.class,
+            "prefetch-batches:integer, the number of batches of entries that each input alignment decodes ahead on its own thread. Zero reads all the inputs in the thread that merges entries.:0");
+
+    public static DynamicOptionClient doc() {
+        return doc;
+    }
+
+    /**
+     * Number of entries in a batch transferred from a prefetch thread to the merge.
+     */
+    private static final int PREFETCH_BATCH_SIZE = 1000;
+    /**
+     * Marks the end of the entries of an input alignment in a prefetch queue.
+     */
+    private static final ObjectArrayList<Alignments.AlignmentEntry> END_OF_ENTRIES =
+            new ObjectArrayList<Alignments.AlignmentEntry>();
+
+    private int numPrefetchBatches = doc().getInteger("prefetch-batches");
+    /**
+     * One element per reader, created when the first entry is requested if prefetching is enabled.
+     */
+    private ReaderPrefetcher[] prefetchers;
+    private ExecutorService prefetchExecutor;
+    /**
+     * True when prefetch threads adjust indices of the entries they decode.
+     */
+    private boolean adjustedByPrefetchers;
+
 
     public ConcatSortedAlignmentReader(final String... basenames) throws IOException {
         this(new DefaultAlignmentReaderFactory(), basenames);
@@ -187,13 +224,7 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
                 // the reader at position readerIndex was used in the previous next
                 activeIndex = readerIndex;
                 //     System.out.println("Setting activeIndex to "+readerIndex + " "+ readersWithMoreEntries);
-                final AlignmentReader reader = readers[activeIndex];
-                Alignments.AlignmentEntry alignmentEntry;
-                do {
-                    alignmentEntry = reader.skipTo(targetIndex, position);
-                } while (alignmentEntry != null && genomicRange != null &&
-                        genomicRange.positionIsBeforeStart(alignmentEntry.getTargetIndex(),
-                                alignmentEntry.getPosition()));
+                final Alignments.AlignmentEntry alignmentEntry = skipEntries(activeIndex, targetIndex, position);
 
                 if (alignmentEntry == null) {
                     // reader has no more entries. Remove from further consideration
@@ -242,21 +273,284 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
         activeIndex = bucket.readerIndex;
         //             System.out.println("Setting activeIndex to "+activeIndex + " "+ readersWithMoreEntries);
 
+        return adjustedByPrefetchers ? alignmentEntry : adjust(activeIndex, alignmentEntry);
+    }
 
-        final int newQueryIndex = mergedQueryIndex(activeIndex, alignmentEntry.getQueryIndex());
-        final int queryIndex = alignmentEntry.getQueryIndex();
-        Alignments.AlignmentEntry.Builder builder = alignmentEntry.newBuilderForType().mergeFrom(alignmentEntry);
-        if (adjustQueryIndices && newQueryIndex != queryIndex) {
+    /**
+     * Obtain the next entry of an input alignment, at or after the start of the genomic range.
+     *
+     * @return the next entry, or null if the reader has no more entries.
+     */
+    private Alignments.AlignmentEntry readEntry(final int readerIndex) throws IOException {
+        if (isPrefetching()) {
+            return prefetchers[readerIndex].next();
+        }
+        final AlignmentReader reader = readers[readerIndex];
+        if (genomicRange != null) {
+            return reader.skipTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
+        } else {
+            return reader.hasNext() ? reader.next() : null;
+        }
+    }
+
+    /**
+     * Obtain the next entry of an input alignment at or after (targetIndex, position).
+     *
+     * @return the next entry, or null if the reader has no more entries.
+     */
+    private Alignments.AlignmentEntry skipEntries(final int readerIndex, final int targetIndex,
+                                                  final int position) throws IOException {
+        if (isPrefetching()) {
+            return prefetchers[readerIndex].skipTo(targetIndex, position);
+        }
+        return skipReader(readers[readerIndex], targetIndex, position);
+    }
+
+    private Alignments.AlignmentEntry skipReader(final AlignmentReader reader, final int targetIndex,
+                                                 final int position) throws IOException {
+        Alignments.AlignmentEntry alignmentEntry;
+        do {
+            alignmentEntry = reader.skipTo(targetIndex, position);
+        } while (alignmentEntry != null && genomicRange != null &&
+                genomicRange.positionIsBeforeStart(alignmentEntry.getTargetIndex(),
+                        alignmentEntry.getPosition()));
+        return alignmentEntry;
+    }
 
+    /**
+     * Renumber the query index, sample index and read origin index of an entry read from an input alignment.
+     * The entry is copied only when one of these indices changes.
+     *
+     * @param readerIndex    index of the reader the entry was read from.
+     * @param alignmentEntry entry as read from the reader.
+     * @return the entry with indices adjusted for the concatenated alignment.
+     */
+    private Alignments.AlignmentEntry adjust(final int readerIndex, final Alignments.AlignmentEntry alignmentEntry) {
+        final int queryIndex = alignmentEntry.getQueryIndex();
+        final int newQueryIndex = mergedQueryIndex(readerIndex, queryIndex);
+        final boolean changeQueryIndex = adjustQueryIndices && newQueryIndex != queryIndex;
+        final boolean changeSampleIndex = adjustSampleIndices &&
+                (!alignmentEntry.hasSampleIndex() || alignmentEntry.getSampleIndex() != readerIndex);
+        final boolean changeReadOrigin = alignmentEntry.hasReadOriginIndex() && hasReadOrigin[readerIndex] &&
+                readOriginPermutations[readerIndex][alignmentEntry.getReadOriginIndex()] != alignmentEntry.getReadOriginIndex();
+        if (!changeQueryIndex && !changeSampleIndex && !changeReadOrigin) {
+            return alignmentEntry;
+        }
+        Alignments.AlignmentEntry.Builder builder = alignmentEntry.toBuilder();
+        if (changeQueryIndex) {
             builder = builder.setQueryIndex(newQueryIndex);
         }
-        if (adjustSampleIndices) {
-            builder = builder.setSampleIndex(activeIndex);
+        if (changeSampleIndex) {
+            builder = builder.setSampleIndex(readerIndex);
         }
-        builder=processReadGroups(alignmentEntry,builder, activeIndex);
+        builder = processReadGroups(alignmentEntry, builder, readerIndex);
         return builder.build();
+    }
 
+    /**
+     * Set the number of batches of entries that each input alignment decodes ahead on its own thread.
+     * Must be called before the first entry is requested.
+     *
+     * @param numPrefetchBatches number of batches to prefetch per reader. Zero disables prefetching.
+     */
+    public void setPrefetchBatches(final int numPrefetchBatches) {
+        if (prefetchers != null) {
+            throw new IllegalStateException("prefetch must be configured before entries are read.");
+        }
+        this.numPrefetchBatches = numPrefetchBatches;
+    }
 
+    /**
+     * Start one prefetch thread per reader the first time this method is called with prefetching enabled.
+     *
+     * @return True when entries are obtained from prefetch threads.
+     */
+    private boolean isPrefetching() {
+        if (numPrefetchBatches <= 0) {
+            return false;
+        }
+        if (prefetchers == null) {
+            // permuted query indices must be assigned in merge order, on this thread:
+            adjustedByPrefetchers = !isQueryIndexPermutationNeeded();
+            prefetchers = new ReaderPrefetcher[readers.length];
+            prefetchExecutor = OrderedExecutor.newDaemonThreadPool("concat-sorted-prefetch", readers.length);
+            for (int readerIndex = 0; readerIndex < readers.length; readerIndex++) {
+                prefetchers[readerIndex] = new ReaderPrefetcher(readerIndex);
+                prefetchExecutor.submit(prefetchers[readerIndex]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the prefetch threads, then close the underlying readers.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            try {
+                prefetchExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Reads the entries of one input alignment on a dedicated thread, in batches transferred to the merge through
+     * a bounded queue. skipTo requests are forwarded to the producer, which repositions its reader with the index
+     * instead of decoding the entries that the merge would discard.
+     */
+    private final class ReaderPrefetcher implements Runnable {
+        private final int readerIndex;
+        private final BlockingQueue<ObjectArrayList<Alignments.AlignmentEntry>> batches;
+        /**
+         * Batch being consumed by the merge.
+         */
+        private ObjectArrayList<Alignments.AlignmentEntry> batch = new ObjectArrayList<Alignments.AlignmentEntry>();
+        private int indexInBatch;
+        private boolean finished;
+        private volatile Throwable failure;
+        // location of the last skipTo request not yet seen by the producer, guarded by this:
+        private boolean skipRequested;
+        private int skipTargetIndex;
+        private int skipPosition;
+
+        private ReaderPrefetcher(final int readerIndex) {
+            this.readerIndex = readerIndex;
+            batches = new ArrayBlockingQueue<ObjectArrayList<Alignments.AlignmentEntry>>(numPrefetchBatches);
+        }
+
+        @Override
+        public void run() {
+            try {
+                final AlignmentReader reader = readers[readerIndex];
+                boolean first = true;
+                boolean done = false;
+                while (!done) {
+                    final ObjectArrayList<Alignments.AlignmentEntry> produced =
+                            new ObjectArrayList<Alignments.AlignmentEntry>(PREFETCH_BATCH_SIZE);
+                    while (produced.size() < PREFETCH_BATCH_SIZE) {
+                        final Alignments.AlignmentEntry alignmentEntry = produce(reader, first);
+                        first = false;
+                        if (alignmentEntry == null || (genomicRange != null &&
+                                genomicRange.positionIsPastEnd(alignmentEntry.getTargetIndex(),
+                                        alignmentEntry.getPosition()))) {
+                            done = true;
+                            break;
+                        }
+                        produced.add(adjustedByPrefetchers ? adjust(readerIndex, alignmentEntry) : alignmentEntry);
+                        if (hasSkipRequest()) {
+                            // deliver what we have, the merge may be waiting for entries at the skip location:
+                            break;
+                        }
+                    }
+                    if (!produced.isEmpty()) {
+                        batches.put(produced);
+                    }
+                }
+                batches.put(END_OF_ENTRIES);
+            } catch (InterruptedException e) {
+                // the concat reader is being closed.
+            } catch (Throwable t) {
+                failure = t;
+                try {
+                    batches.put(END_OF_ENTRIES);
+                } catch (InterruptedException e) {
+                    // the concat reader is being closed.
+                }
+            }
+        }
+
+        private Alignments.AlignmentEntry produce(final AlignmentReader reader, final boolean first) throws IOException {
+            int targetIndex = -1;
+            int position = -1;
+            synchronized (this) {
+                if (skipRequested) {
+                    skipRequested = false;
+                    targetIndex = skipTargetIndex;
+                    position = skipPosition;
+                }
+            }
+            if (targetIndex == -1 && first && genomicRange != null) {
+                targetIndex = genomicRange.startReferenceIndex;
+                position = genomicRange.startPosition;
+            }
+            if (targetIndex == -1) {
+                return reader.hasNext() ? reader.next() : null;
+            }
+            return skipReader(reader, targetIndex, position);
+        }
+
+        private synchronized boolean hasSkipRequest() {
+            return skipRequested;
+        }
+
+        private synchronized void requestSkip(final int targetIndex, final int position) {
+            skipRequested = true;
+            skipTargetIndex = targetIndex;
+            skipPosition = position;
+        }
+
+        /**
+         * Return the next entry of the reader, waiting for the producer if necessary.
+         */
+        Alignments.AlignmentEntry next() {
+            return fillBatch() ? batch.get(indexInBatch++) : null;
+        }
+
+        /**
+         * Return the next entry of the reader at or after (targetIndex, position).
+         */
+        Alignments.AlignmentEntry skipTo(final int targetIndex, final int position) {
+            while (true) {
+                while (indexInBatch < batch.size()) {
+                    final Alignments.AlignmentEntry alignmentEntry = batch.get(indexInBatch++);
+                    final int entryTargetIndex = alignmentEntry.getTargetIndex();
+                    if (entryTargetIndex > targetIndex ||
+                            (entryTargetIndex == targetIndex && alignmentEntry.getPosition() >= position)) {
+                        return alignmentEntry;
+                    }
+                }
+                if (finished) {
+                    return null;
+                }
+                // every entry of the batch was before the location, the producer can skip there directly:
+                requestSkip(targetIndex, position);
+                if (!fillBatch()) {
+                    return null;
+                }
+            }
+        }
+
+        private boolean fillBatch() {
+            while (indexInBatch >= batch.size()) {
+                if (finished) {
+                    return false;
+                }
+                final ObjectArrayList<Alignments.AlignmentEntry> nextBatch;
+                try {
+                    nextBatch = batches.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new GobyRuntimeException(e);
+                }
+                if (nextBatch == END_OF_ENTRIES) {
+                    finished = true;
+                    if (failure != null) {
+                        throw new GobyRuntimeException(failure);
+                    }
+                    return false;
+                }
+                batch = nextBatch;
+                indexInBatch = 0;
+            }
+            return true;
+        }
     }
 
 
@@ -294,14 +588,8 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(String.format("Obtaining entry from reader=%d", activeIndex));
                 }
-                final AlignmentReader reader = readers[activeIndex];
                 try {
-                    final Alignments.AlignmentEntry alignmentEntry;
-                    if (genomicRange != null) {
-                        alignmentEntry = reader.skipTo(genomicRange.startReferenceIndex, genomicRange.startPosition);
-                    } else {
-                        alignmentEntry = reader.hasNext() ? reader.next() : null;
-                    }
+                    final Alignments.AlignmentEntry alignmentEntry = readEntry(activeIndex);
                     final boolean hasNext = alignmentEntry != null;
                     if (!hasNext) {
                         // reader has no more entries. Remove from further consideration
@@ -367,28 +655,14 @@ public class ConcatSortedAlignmentReader extends ConcatAlignmentReader {
         } else {
 
             final Bucket bucket = entryHeap.dequeue();
-           final int readerIndex = bucket.readerIndex;
+            final int readerIndex = bucket.readerIndex;
             nextLoadedForReader[readerIndex] = false;
+            activeIndex = readerIndex;
 
             //   minEntry = null;
             hasNext = false;
             final Alignments.AlignmentEntry alignmentEntry = bucket.entry;
-
-            final int newQueryIndex = mergedQueryIndex(readerIndex, alignmentEntry.getQueryIndex());
-            final int queryIndex = alignmentEntry.getQueryIndex();
-            Alignments.AlignmentEntry.Builder builder = alignmentEntry.newBuilderForType().mergeFrom(alignmentEntry);
-            if (adjustQueryIndices && newQueryIndex != queryIndex) {
-
-                builder = builder.setQueryIndex(newQueryIndex);
-            }
-            if (adjustSampleIndices) {
-                builder = builder.setSampleIndex(activeIndex);
-            }
-
-            builder=processReadGroups(alignmentEntry,builder, readerIndex);
-
-            return builder.build();
-
+            return adjustedByPrefetchers ? alignmentEntry : adjust(readerIndex, alignmentEntry);
         }
     }
 
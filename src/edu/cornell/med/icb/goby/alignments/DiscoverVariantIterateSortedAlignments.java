@@ -74,6 +74,8 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
 
     public DiscoverVariantIterateSortedAlignments(SequenceVariationOutputFormat format) {
         this.format = format;
+        // output formats and genotype filters do not keep the bases of a position once it has been processed:
+        setRecyclePositions(true);
     }
 
 
@@ -94,6 +96,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
 
     public void finish() {
         format.close();
+        LOG.info(getAllocationStatistics());
 
     }
 
@@ -118,6 +121,18 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
         return genome;
     }
 
+    /**
+     * Window iterators only observe bases and indels. Positions are processed, filtered and written by this iterator.
+     */
+    @Override
+    protected IterateSortedAlignments<DiscoverVariantPositionData> createWindowIterator() {
+        final DiscoverVariantIterateSortedAlignments windowIterator = new DiscoverVariantIterateSortedAlignments(format);
+        windowIterator.setGenome(genome);
+        windowIterator.setCallIndels(callIndels);
+        windowIterator.setOverrideReferenceWithGenome(overrideReferenceWithGenome);
+        return windowIterator;
+    }
+
     public void setOverrideReferenceWithGenome(boolean overrideReferenceWithGenome) {
         this.overrideReferenceWithGenome = overrideReferenceWithGenome;
     }
@@ -189,7 +204,7 @@ public class DiscoverVariantIterateSortedAlignments extends IterateSortedAlignme
             DiscoverVariantPositionData positionBaseInfos = positionToBases.get(keyPos);
             //   System.out.printf("Observing indel at position %d %n", keyPos);
             if (positionBaseInfos == null) {
-                positionBaseInfos = new DiscoverVariantPositionData(keyPos);
+                positionBaseInfos = newPositionData(keyPos);
                 positionToBases.put(keyPos, positionBaseInfos);
             }
 
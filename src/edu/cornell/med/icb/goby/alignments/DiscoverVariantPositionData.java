@@ -21,6 +21,7 @@ package edu.cornell.med.icb.goby.alignments;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import edu.cornell.med.icb.goby.algorithmic.data.EquivalentIndelRegion;
+import edu.cornell.med.icb.goby.util.pool.Resettable;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 
@@ -34,12 +35,17 @@ import java.util.Collections;
  *         Date: 6/6/11
  *         Time: 3:27 PM
  */
-public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInfo> {
+public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInfo> implements Resettable {
     private static final long serialVersionUID = 9212001398502402859L;
     private ObjectArraySet<EquivalentIndelRegion> candidateIndels;
     private int position;
     private ObjectArraySet<EquivalentIndelRegion> failedIndels;
     private static final ObjectArraySet<EquivalentIndelRegion> EMPTY_SET = new ObjectArraySet<EquivalentIndelRegion>();
+    /**
+     * Largest number of bases kept allocated when an instance is reset. Positions with very deep coverage
+     * should not keep large arrays in the pool.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
 
     public int getZeroBasedPosition() {
         return position;
@@ -69,6 +75,33 @@ public class DiscoverVariantPositionData extends ObjectArrayList<PositionBaseInf
         this.position = position;
     }
 
+    /**
+     * Set the position of an instance obtained from a pool.
+     *
+     * @param position zero-based position.
+     */
+    public void setZeroBasedPosition(final int position) {
+        this.position = position;
+    }
+
+    /**
+     * Remove the bases and indels observed at this position, so that the instance can be reused from a pool.
+     * The bases are not reset: they are returned to their own pool by the caller.
+     */
+    @Override
+    public void reset() {
+        clear();
+        trim(MAX_RETAINED_CAPACITY);
+        position = -1;
+        candidateIndels = null;
+        failedIndels = null;
+        for (final ObjectArraySet<PositionBaseInfo> set : filtered) {
+            if (set != null) {
+                set.clear();
+            }
+        }
+    }
+
     /**
      * This method is called if a candidate indel is observed whose start position overlaps with position.
      *
@@ -78,7 +78,7 @@ public class GenotypesOutputFormat implements SequenceVariationOutputFormat {
 
     public void defineColumns(OutputInfo writer, DiscoverSequenceVariantsMode mode) {
         samples = mode.getSamples();
-        this.statsWriter = new VCFWriter(writer.getPrintWriter());
+        this.statsWriter = new VCFWriter(writer);
         biomartFieldIndex = statsWriter.defineField("INFO", "BIOMART_COORDS", 1, ColumnType.String, "Coordinates for use with Biomart.","biomart");
         defineInfoFields(statsWriter);
         defineGenotypeField(statsWriter);
@@ -25,10 +25,14 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.alignments.processors.AlignmentProcessorFactory;
 import edu.cornell.med.icb.goby.alignments.processors.AlignmentProcessorInterface;
 import edu.cornell.med.icb.goby.alignments.processors.DefaultAlignmentProcessorFactory;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.lang.MutableString;
@@ -36,10 +40,16 @@ import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A helper class to iterate through a set of sorted alignments in position order. The class supports processing
@@ -61,7 +71,29 @@ public abstract class IterateSortedAlignments<T> {
     private int numAlignmentEntries;
     private String startOffsetArgument;
     private String endOffsetArgument;
+    /**
+     * Start and end of the slice iterated by the iterator of a window, or null when the slice is given by
+     * startOffsetArgument and endOffsetArgument.
+     */
+    private ReferenceLocation sliceStart;
+    private ReferenceLocation sliceEnd;
     private int startFlapLength;
+    private int numThreads = 1;
+    /**
+     * Number of windows created per thread in a parallel iteration. More windows balance the load better, but each
+     * window reads the alignment headers and the start flap again.
+     */
+    private static final int WINDOWS_PER_THREAD = 8;
+    /**
+     * Maximum number of positions a window iterator can hand over before the parent iterator processes them.
+     * A window iterator that gets this far ahead waits, which bounds the memory used by a parallel iteration to
+     * this many positions for each window in flight (twice the number of threads).
+     */
+    private static final int MAX_QUEUED_POSITIONS_PER_WINDOW = 10000;
+    /**
+     * Positions handed over when this iterator processes one window of a parallel iteration, null otherwise.
+     */
+    private WindowPositions<T> windowPositions;
 
     /**
      * Set the maximum number of variants that will be analyzed at a given position. When a site
@@ -113,6 +145,19 @@ public abstract class IterateSortedAlignments<T> {
         this.startFlapLength = length;
     }
 
+    /**
+     * Set the number of threads used to iterate. When numThreads is larger than one, and the subclass supports it
+     * (see {@link #createWindowIterator()}), the alignment is split into genomic windows balanced by the number of
+     * compressed bytes recorded in the alignment index. Each window is iterated by its own iterator, with a start
+     * flap of startFlapLength, and positions are delivered to processPositions on the calling thread, in genomic order.
+     * Window iterators that get too far ahead of the calling thread wait for their positions to be processed.
+     *
+     * @param numThreads Number of threads to use.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Parse the string of reference sequences to process during the iteration. The JSAP
      * argument include-reference-names must be defined.
@@ -220,6 +265,14 @@ public abstract class IterateSortedAlignments<T> {
      * @throws java.io.IOException If an error occured reading the input alignment.
      */
     public void iterate(final String... basenames) throws IOException {
+        if (numThreads > 1 && windowPositions == null) {
+            final IterateSortedAlignments<T> firstWindowIterator = createWindowIterator();
+            if (firstWindowIterator != null) {
+                iterateWindows(firstWindowIterator, basenames);
+                return;
+            }
+            LOG.warn(getClass().getName() + " does not support parallel iteration, iterating with one thread.");
+        }
         ConcatSortedAlignmentReader sortedReaders = new ConcatSortedAlignmentReader(
                 false, basenames);
 
@@ -260,25 +313,32 @@ public abstract class IterateSortedAlignments<T> {
         }
 
         try {
-            if (StringUtils.isEmpty(startOffsetArgument) && StringUtils.isEmpty(endOffsetArgument)) {
+            if (sliceStart == null && StringUtils.isEmpty(startOffsetArgument) && StringUtils.isEmpty(endOffsetArgument)) {
                 sortedReaders = new ConcatSortedAlignmentReader(alignmentReaderFactory, false, basenames);
             } else {
-                assert  isValidOffsetArgument(startOffsetArgument) : "start offset must contain a coma or colon delimiter.";
-                assert  isValidOffsetArgument(endOffsetArgument) : "end offset must contain a coma delimiter.";
-
-                final String[] startTokens = startOffsetArgument.split("[:,]");
-                final String[] endTokens = endOffsetArgument.split("[:,]");
-                startPosition = Integer.parseInt(startTokens[1]);
-                endPosition = Integer.parseInt(endTokens[1]);
-
-                startReferenceIndex = referenceIds.getIndex(startTokens[0]);
-                endReferenceIndex = referenceIds.getIndex(endTokens[0]);
-
-                if (startReferenceIndex == -1 || endReferenceIndex == -1) {
-                    String message = String.format("One of the reference identifier specified for start and end limits does not exist %s %s. ",
-                            startTokens[0], endTokens[0]);
-                    LOG.error(message);
-                    throw new IllegalArgumentException(message);
+                if (sliceStart != null) {
+                    startReferenceIndex = sliceStart.targetIndex;
+                    startPosition = sliceStart.position;
+                    endReferenceIndex = sliceEnd.targetIndex;
+                    endPosition = sliceEnd.position;
+                } else {
+                    assert isValidOffsetArgument(startOffsetArgument) : "start offset must contain a coma or colon delimiter.";
+                    assert isValidOffsetArgument(endOffsetArgument) : "end offset must contain a coma delimiter.";
+
+                    final String[] startTokens = startOffsetArgument.split("[:,]");
+                    final String[] endTokens = endOffsetArgument.split("[:,]");
+                    startPosition = Integer.parseInt(startTokens[1]);
+                    endPosition = Integer.parseInt(endTokens[1]);
+
+                    startReferenceIndex = referenceIds.getIndex(startTokens[0]);
+                    endReferenceIndex = referenceIds.getIndex(endTokens[0]);
+
+                    if (startReferenceIndex == -1 || endReferenceIndex == -1) {
+                        String message = String.format("One of the reference identifier specified for start and end limits does not exist %s %s. ",
+                                startTokens[0], endTokens[0]);
+                        LOG.error(message);
+                        throw new IllegalArgumentException(message);
+                    }
                 }
                 useWindow = true;
                 sortedReaders = new ConcatSortedAlignmentReader(alignmentReaderFactory,
@@ -524,16 +584,8 @@ public abstract class IterateSortedAlignments<T> {
                 currentMinTargetIndex = referencesToProcess.firstInt();
             }
         }
-        int minPos = Integer.MAX_VALUE;
-        int maxPos = Integer.MIN_VALUE;
-
-        for (int pos : positionToBases.keySet()) {
-            minPos = Math.min(pos, minPos);
-            maxPos = Math.max(pos, maxPos);
-        }
-
-        for (int position = minPos; position <= maxPos; position++) {
-            processAndCleanup(lastTarget, position, positionToBases);
+        if (!positionToBases.isEmpty()) {
+            processAndCleanup(lastTarget, positionToBases.lastPosition(), positionToBases);
         }
 
         sortedReaders.close();
@@ -616,15 +668,17 @@ public abstract class IterateSortedAlignments<T> {
         while ((!positionToBases.isEmpty())
                 && positionToBases.firstPosition() < lastPosition) {
             int intermediatePosition = positionToBases.firstPosition();
-            processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
+            emitPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
             positionToBases.remove(intermediatePosition);
         }
-        for (int intermediatePosition = lastRemovedPosition + 1;
+        // no need to visit positions before the first position left in the map:
+        final int firstPosition = positionToBases.isEmpty() ? lastPosition + 1 : positionToBases.firstPosition();
+        for (int intermediatePosition = Math.max(lastRemovedPosition + 1, firstPosition);
              intermediatePosition <= lastPosition; intermediatePosition++) {
 
             if (positionToBases.containsKey(intermediatePosition)) {
 
-                processPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
+                emitPositions(lastReferenceIndex, intermediatePosition, positionToBases.get(intermediatePosition));
                 positionToBases.remove(intermediatePosition);
             }
 
@@ -633,10 +687,252 @@ public abstract class IterateSortedAlignments<T> {
         lastRemovedPosition = lastPosition;
     }
 
+    private void emitPositions(final int referenceIndex, final int position, final T positionBaseInfos) {
+        if (windowPositions == null) {
+            processPositions(referenceIndex, position, positionBaseInfos);
+            releasePositions(positionBaseInfos);
+        } else if (windowPositions.owns(referenceIndex, position)) {
+            // this iterator processes a window: positions are processed in genomic order by the parent iterator.
+            windowPositions.put(referenceIndex, position, positionBaseInfos);
+        }
+    }
+
+    /**
+     * Called after processPositions has processed the information accumulated at a position. Subclasses can
+     * override this method to recycle positionBaseInfos, which is never used again by this class. Positions of a
+     * parallel iteration are created by window iterators on other threads and are not released.
+     *
+     * @param positionBaseInfos information accumulated at the position that was just processed.
+     */
+    protected void releasePositions(final T positionBaseInfos) {
+    }
+
+    /**
+     * Create an iterator to process one window of a parallel iteration. The window iterator must observe bases
+     * exactly like this iterator does. It does not need to process positions: positions it collects are processed
+     * by this iterator. Subclasses that support parallel iteration must override this method. Alignment reader factory,
+     * alignment processor factory, max threshold and reference name filters are copied by the caller.
+     *
+     * @return a new iterator, or null when parallel iteration is not supported.
+     */
+    protected IterateSortedAlignments<T> createWindowIterator() {
+        return null;
+    }
+
+    /**
+     * Iterate through genomic windows in parallel. Windows are balanced by the amount of compressed data
+     * indexed between window boundaries. Positions are processed while the windows are iterated: the oldest
+     * window streams its positions to this thread, later windows fill a bounded queue and then wait.
+     *
+     * @param firstWindowIterator iterator for the first window.
+     */
+    private void iterateWindows(final IterateSortedAlignments<T> firstWindowIterator,
+                                final String... basenames) throws IOException {
+        final ConcatSortedAlignmentReader sortedReaders = new ConcatSortedAlignmentReader(false, basenames);
+        checkGenomeMatchAlignment(sortedReaders, getGenome());
+        final int numberOfReferences = sortedReaders.getNumberOfTargets();
+        referenceIds = new DoubleIndexedIdentifier(sortedReaders.getTargetIdentifiers());
+        processNumberOfReferences(numberOfReferences);
+
+        long totalBytes = 0;
+        for (final String basename : AlignmentReaderImpl.getBasenames(basenames)) {
+            totalBytes += new File(basename + ".entries").length();
+        }
+        final long numBytesPerWindow = Math.max(1, totalBytes / (numThreads * WINDOWS_PER_THREAD));
+        final ObjectList<ReferenceLocation> boundaries =
+                sortedReaders.getLocationsByBytes((int) Math.min(Integer.MAX_VALUE, numBytesPerWindow));
+        sortedReaders.close();
+        if (boundaries.size() > 1) {
+            // the last location is the start of the last entry, the last window extends to the end of the alignment:
+            boundaries.remove(boundaries.size() - 1);
+        }
+        ReferenceLocation first = null;
+        ReferenceLocation last = null;
+        if (!StringUtils.isEmpty(startOffsetArgument) && !StringUtils.isEmpty(endOffsetArgument)) {
+            // split the window requested on the command line:
+            final String[] startTokens = startOffsetArgument.split("[:,]");
+            final String[] endTokens = endOffsetArgument.split("[:,]");
+            first = new ReferenceLocation(referenceIds.getIndex(startTokens[0]), Integer.parseInt(startTokens[1]));
+            last = new ReferenceLocation(referenceIds.getIndex(endTokens[0]), Integer.parseInt(endTokens[1]) + 1);
+            if (first.targetIndex == -1 || last.targetIndex == -1) {
+                final String message = String.format("One of the reference identifier specified for start and end limits does not exist %s %s. ",
+                        startTokens[0], endTokens[0]);
+                LOG.error(message);
+                throw new IllegalArgumentException(message);
+            }
+            final ObjectList<ReferenceLocation> inside = new ObjectArrayList<ReferenceLocation>();
+            inside.add(first);
+            for (final ReferenceLocation boundary : boundaries) {
+                if (boundary.compareTo(first) > 0 && boundary.compareTo(last) < 0) {
+                    inside.add(boundary);
+                }
+            }
+            boundaries.clear();
+            boundaries.addAll(inside);
+        } else if (!boundaries.isEmpty()) {
+            boundaries.get(0).position = 0;
+        }
+        final int numWindows = boundaries.size();
+        LOG.info(String.format("Iterating over %d windows with %d threads.", numWindows, numThreads));
+
+        final ExecutorService executor = OrderedExecutor.newDaemonThreadPool("iterate-window", numThreads);
+        try {
+            // windows are submitted ahead of the window being processed, but no further than needed to keep all
+            // the threads busy. The window being processed was submitted before the others, so it is never starved
+            // of a thread by windows that wait for their positions to be processed.
+            final ObjectList<WindowPositions<T>> windows = new ObjectArrayList<WindowPositions<T>>();
+            final ObjectList<Future<?>> pending = new ObjectArrayList<Future<?>>();
+            int nextWindow = 0;
+            for (int windowIndex = 0; windowIndex < numWindows; windowIndex++) {
+                while (nextWindow < numWindows && nextWindow - windowIndex < numThreads * 2) {
+                    final ReferenceLocation start = boundaries.get(nextWindow);
+                    final ReferenceLocation end = nextWindow + 1 < numWindows ? boundaries.get(nextWindow + 1) : last;
+                    final IterateSortedAlignments<T> windowIterator =
+                            nextWindow == 0 ? firstWindowIterator : createWindowIterator();
+                    final WindowPositions<T> window = new WindowPositions<T>(start, end);
+                    windows.add(window);
+                    pending.add(executor.submit(newWindowTask(windowIterator, window, basenames, end, numberOfReferences)));
+                    nextWindow++;
+                }
+                windows.get(windowIndex).replay(this);
+                pending.get(windowIndex).get();
+                numAlignmentEntries += windows.get(windowIndex).numAlignmentEntries;
+                windows.set(windowIndex, null);
+                pending.set(windowIndex, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while iterating over windows.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
-     * Temporary position used for sorting in method processAllPreviousPositions.
+     * Create a task that iterates over the positions owned by a window and hands them over to the window.
+     *
+     * @param end Location after the window, or null if the window extends to the end of the alignment.
      */
-    IntArrayList tmpPositions = new IntArrayList();
+    private Callable<Void> newWindowTask(final IterateSortedAlignments<T> windowIterator,
+                                         final WindowPositions<T> window,
+                                         final String[] basenames,
+                                         final ReferenceLocation end,
+                                         final int numberOfReferences) {
+        windowIterator.alignmentReaderFactory = alignmentReaderFactory;
+        windowIterator.alignmentProcessorFactory = alignmentProcessorFactory;
+        windowIterator.maxThreshold = maxThreshold;
+        windowIterator.filterByReferenceNames = filterByReferenceNames;
+        windowIterator.includeReferenceNames = includeReferenceNames;
+        windowIterator.startFlapLength = startFlapLength;
+        windowIterator.windowPositions = window;
+        // pass indices rather than reference identifiers, which may be missing or contain the delimiters:
+        windowIterator.sliceStart = new ReferenceLocation(window.startReferenceIndex, window.startPosition);
+        windowIterator.sliceEnd = end == null ? new ReferenceLocation(numberOfReferences - 1, Integer.MAX_VALUE)
+                : new ReferenceLocation(end.targetIndex, end.position);
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    windowIterator.iterate(basenames);
+                    window.numAlignmentEntries = windowIterator.getNumAlignmentEntries();
+                } finally {
+                    // also on failure, so that the parent iterator stops waiting for positions and sees the exception:
+                    window.finish();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Positions handed over by the iterator of one window of a parallel iteration. The window owns positions from
+     * start (inclusive) to end (exclusive). Positions observed in the start flap or past the end of the window belong
+     * to neighboring windows and are not handed over. At most MAX_QUEUED_POSITIONS_PER_WINDOW positions wait to be
+     * processed: the window iterator blocks when it gets further ahead.
+     */
+    private static final class WindowPositions<T> {
+        /**
+         * Marks the end of the positions of the window.
+         */
+        private static final WindowPosition<?> END_OF_WINDOW = new WindowPosition<Object>(-1, -1, null);
+
+        private final int startReferenceIndex;
+        private final int startPosition;
+        private final int endReferenceIndex;
+        private final int endPosition;
+        private final BlockingQueue<WindowPosition<T>> queue =
+                new ArrayBlockingQueue<WindowPosition<T>>(MAX_QUEUED_POSITIONS_PER_WINDOW);
+        private volatile int numAlignmentEntries;
+
+        private WindowPositions(final ReferenceLocation start, final ReferenceLocation end) {
+            startReferenceIndex = start.targetIndex;
+            startPosition = start.position;
+            endReferenceIndex = end == null ? Integer.MAX_VALUE : end.targetIndex;
+            endPosition = end == null ? Integer.MAX_VALUE : end.position;
+        }
+
+        private boolean owns(final int referenceIndex, final int position) {
+            if (referenceIndex < startReferenceIndex ||
+                    referenceIndex == startReferenceIndex && position < startPosition) {
+                return false;
+            }
+            return referenceIndex < endReferenceIndex ||
+                    referenceIndex == endReferenceIndex && position < endPosition;
+        }
+
+        private void put(final int referenceIndex, final int position, final T value) {
+            try {
+                queue.put(new WindowPosition<T>(referenceIndex, position, value));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GobyRuntimeException("Interrupted while waiting for positions to be processed.");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void finish() {
+            try {
+                queue.put((WindowPosition<T>) END_OF_WINDOW);
+            } catch (InterruptedException e) {
+                // the parallel iteration was aborted, nobody waits for this window.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Process the positions of the window as they are handed over, until the window iterator finishes.
+         */
+        private void replay(final IterateSortedAlignments<T> target) throws InterruptedException {
+            while (true) {
+                final WindowPosition<T> next = queue.take();
+                if (next == END_OF_WINDOW) {
+                    return;
+                }
+                target.processPositions(next.referenceIndex, next.position, next.value);
+            }
+        }
+    }
+
+    private static final class WindowPosition<T> {
+        private final int referenceIndex;
+        private final int position;
+        private final T value;
+
+        private WindowPosition(final int referenceIndex, final int position, final T value) {
+            this.referenceIndex = referenceIndex;
+            this.position = position;
+            this.value = value;
+        }
+    }
 
     /**
      * Process positions on the previous target, which may still be in positionToBases. Note that this method is not
@@ -647,15 +943,12 @@ public abstract class IterateSortedAlignments<T> {
      */
     private void processAllPreviousPositions(final int lastReferenceIndex, final PositionToBasesMap positionToBases) {
 
-        tmpPositions.clear();
-        tmpPositions.addAll(positionToBases.keySet());
-        Collections.sort(tmpPositions);
-
-
-        for (final int intermediatePosition : tmpPositions) {
+        final int lastPosition = positionToBases.isEmpty() ? -1 : positionToBases.lastPosition();
+        for (int intermediatePosition = positionToBases.isEmpty() ? 0 : positionToBases.firstPosition();
+             intermediatePosition <= lastPosition; intermediatePosition++) {
             if (positionToBases.containsKey(intermediatePosition)) {
                 // TODO remove positionToBases from method signature:
-                processPositions(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
+                emitPositions(lastReferenceIndex, intermediatePosition, (T) positionToBases.get(intermediatePosition));
                 positionToBases.remove(intermediatePosition);
                 lastRemovedPosition = intermediatePosition;
             }
@@ -23,6 +23,7 @@ package edu.cornell.med.icb.goby.alignments;
 import edu.cornell.med.icb.goby.util.WarningCounter;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
+import edu.cornell.med.icb.goby.util.pool.QueueResettableObjectPool;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import org.apache.log4j.Logger;
 
@@ -40,6 +41,97 @@ public abstract class IterateSortedAlignmentsListImpl
 
     }
 
+    /**
+     * When true, positions and bases are returned to pools after processPositions and reused for the
+     * next positions.
+     */
+    private boolean recyclePositions;
+
+    private long numBasesObserved;
+    private long numBasesAllocated;
+    private long numPositionsObserved;
+    private long numPositionsAllocated;
+
+    private final QueueResettableObjectPool<PositionBaseInfo> basePool = new QueueResettableObjectPool<PositionBaseInfo>() {
+        @Override
+        public PositionBaseInfo makeObject() {
+            numBasesAllocated++;
+            return new PositionBaseInfo();
+        }
+    };
+
+    private final QueueResettableObjectPool<DiscoverVariantPositionData> positionPool =
+            new QueueResettableObjectPool<DiscoverVariantPositionData>() {
+                @Override
+                public DiscoverVariantPositionData makeObject() {
+                    numPositionsAllocated++;
+                    return new DiscoverVariantPositionData();
+                }
+            };
+
+    /**
+     * Recycle the positions and bases passed to processPositions. Only enable recycling when processPositions
+     * (and anything it calls) does not keep references to the list or to its elements after it returns.
+     *
+     * @param recyclePositions True to recycle positions and bases.
+     */
+    protected void setRecyclePositions(final boolean recyclePositions) {
+        this.recyclePositions = recyclePositions;
+    }
+
+    /**
+     * Obtain an empty list to accumulate the bases observed at a position.
+     *
+     * @param position zero-based position.
+     * @return an empty list for position.
+     */
+    protected DiscoverVariantPositionData newPositionData(final int position) {
+        numPositionsObserved++;
+        if (recyclePositions) {
+            final DiscoverVariantPositionData list = positionPool.borrowObject();
+            list.setZeroBasedPosition(position);
+            return list;
+        } else {
+            numPositionsAllocated++;
+            return new DiscoverVariantPositionData(position);
+        }
+    }
+
+    private PositionBaseInfo newPositionBaseInfo() {
+        numBasesObserved++;
+        if (recyclePositions) {
+            return basePool.borrowObject();
+        } else {
+            numBasesAllocated++;
+            return new PositionBaseInfo();
+        }
+    }
+
+    @Override
+    protected void releasePositions(final DiscoverVariantPositionData positionBaseInfos) {
+        if (recyclePositions && positionBaseInfos != null) {
+            for (final PositionBaseInfo info : positionBaseInfos) {
+                basePool.returnObject(info);
+            }
+            positionPool.returnObject(positionBaseInfos);
+        }
+    }
+
+    /**
+     * Describe how many bases and positions were observed, and how many objects were allocated to store them.
+     *
+     * @return a one line summary.
+     */
+    public String getAllocationStatistics() {
+        return String.format("Observed %,d bases (%,d allocated, %.1f%%) at %,d positions (%,d allocated, %.1f%%).",
+                numBasesObserved, numBasesAllocated, percent(numBasesAllocated, numBasesObserved),
+                numPositionsObserved, numPositionsAllocated, percent(numPositionsAllocated, numPositionsObserved));
+    }
+
+    private static double percent(final long part, final long total) {
+        return total == 0 ? 0 : 100d * part / total;
+    }
+
     public static final DynamicOptionClient doc() {
         return doc;
     }
@@ -81,7 +173,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex));
         } */
 
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = newPositionBaseInfo();
 
         info.readerIndex = alignmentEntry.getSampleIndex();
         //     System.out.printf("observing ref readerIndex=%d%n",info.readerIndex);
@@ -115,7 +207,7 @@ public abstract class IterateSortedAlignmentsListImpl
                     alignmentEntry.getQueryIndex(), currentRefPosition, currentReadIndex, fromChar, toChar));
         }
         */
-        final PositionBaseInfo info = new PositionBaseInfo();
+        final PositionBaseInfo info = newPositionBaseInfo();
         info.readerIndex = alignmentEntry.getSampleIndex();
         //    System.out.printf("observing var readerIndex=%d%n",info.readerIndex);
 
@@ -138,7 +230,7 @@ public abstract class IterateSortedAlignmentsListImpl
         final int position = info.position;
         DiscoverVariantPositionData list = positionToBases.get(position);
         if (list == null) {
-            list = new DiscoverVariantPositionData(position);
+            list = newPositionData(position);
             positionToBases.put(position, list);
         } else {
             assert list.getZeroBasedPosition() == position : "info position must match list position.";
@@ -160,7 +252,10 @@ public abstract class IterateSortedAlignmentsListImpl
                 list.subSample(SUB_SAMPLE_SIZE);
             }
             positionToBases.markIgnoredPosition(position);
-
+            if (recyclePositions) {
+                // this base is not recorded:
+                basePool.returnObject(info);
+            }
             return;
         }
 
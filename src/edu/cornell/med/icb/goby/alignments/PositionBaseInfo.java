@@ -18,6 +18,8 @@
 
 package edu.cornell.med.icb.goby.alignments;
 
+import edu.cornell.med.icb.goby.util.pool.Resettable;
+
 /**
  * Base info for class IterateSortedAlignmentsListImpl.
  *
@@ -25,7 +27,7 @@ package edu.cornell.med.icb.goby.alignments;
  *         Date: Mar 21, 2011
  *         Time: 1:53:47 PM
  */
-public class PositionBaseInfo {
+public class PositionBaseInfo implements Resettable {
     public int readIndex;
     public int readerIndex;
     public byte qualityScore=Byte.MIN_VALUE;
@@ -47,4 +49,19 @@ public class PositionBaseInfo {
         return from=='-' || to=='-';
     }
 
+    /**
+     * Restore the state of a new instance, so that the instance can be reused from a pool.
+     */
+    @Override
+    public void reset() {
+        readIndex = 0;
+        readerIndex = 0;
+        qualityScore = Byte.MIN_VALUE;
+        matchesReference = false;
+        from = ' ';
+        to = ' ';
+        position = 0;
+        matchesForwardStrand = false;
+    }
+
 }
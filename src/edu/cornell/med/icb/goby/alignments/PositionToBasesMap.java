@@ -1,85 +1,227 @@
 package edu.cornell.med.icb.goby.alignments;
 
-import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.ints.AbstractInt2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectLinkedOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
+ * Map from positions to the information accumulated at each position. Sorted iteration only keeps a sliding
+ * window of positions in the map, so positions are stored in a circular array indexed by position modulo the
+ * capacity of the array. The array grows when the span between the first and last position exceeds its
+ * capacity (e.g., for long deletions).
+ *
  * @author Fabien Campagne
  *         Date: 1/26/13
  *         Time: 12:37 PM
  */
 public class PositionToBasesMap<T> {
-    private Int2ObjectAVLTreeMap<T> delegate = new Int2ObjectAVLTreeMap<T>();
-    private IntSortedSet sortedKeys = new IntAVLTreeSet();
-    private Int2BooleanAVLTreeMap ignoredPositions = new Int2BooleanAVLTreeMap();
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private Object[] values;
+    private boolean[] present;
+    private boolean[] ignored;
+    /**
+     * Capacity - 1. The capacity is always a power of two.
+     */
+    private int mask;
+    private int size;
+    /**
+     * Smallest position in the map, valid when size>0.
+     */
+    private int first;
+    /**
+     * Largest position in the map, valid when size>0.
+     */
+    private int last;
+
+    public PositionToBasesMap() {
+        allocate(INITIAL_CAPACITY);
+    }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        IntSortedSet sorted = new IntAVLTreeSet();
-        sorted.addAll(delegate.keySet());
-
-        builder.append(String.format("key span: [%d-%d]%n", sorted.firstInt(), sorted.lastInt()));
-        for (T value : delegate.values()) {
-            builder.append(value.toString());
-            builder.append("\n");
+        builder.append(String.format("key span: [%d-%d]%n", size == 0 ? 0 : first, size == 0 ? 0 : last));
+        for (int position = first; size > 0 && position <= last; position++) {
+            if (containsKey(position)) {
+                builder.append(get(position).toString());
+                builder.append("\n");
+            }
         }
         return builder.toString();
     }
 
+    /**
+     * Return the positions in the map. Positions are iterated in increasing order.
+     *
+     * @return a copy of the positions in the map.
+     */
     public IntSet keySet() {
-        return sortedKeys;
+        final IntLinkedOpenHashSet keys = new IntLinkedOpenHashSet(size);
+        for (int position = first; size > 0 && position <= last; position++) {
+            if (containsKey(position)) {
+                keys.add(position);
+            }
+        }
+        return keys;
     }
 
     public boolean containsKey(int k) {
-        return delegate.containsKey(k);
+        return size > 0 && k >= first && k <= last && present[k & mask];
     }
 
     public int size() {
-        return delegate.size();
+        return size;
     }
 
     public boolean isEmpty() {
-        return delegate.isEmpty();
+        return size == 0;
     }
 
     public void clear() {
-        sortedKeys.clear();
-        delegate.clear();
-        ignoredPositions.clear();
+        if (size > 0) {
+            Arrays.fill(values, null);
+            Arrays.fill(present, false);
+            Arrays.fill(ignored, false);
+        }
+        size = 0;
     }
 
     public T remove(int k) {
-        sortedKeys.remove(k);
-        ignoredPositions.remove(k);
-        return delegate.remove(k);
-
+        if (!containsKey(k)) {
+            return null;
+        }
+        final int slot = k & mask;
+        final T value = valueAt(slot);
+        values[slot] = null;
+        present[slot] = false;
+        ignored[slot] = false;
+        size--;
+        if (size > 0) {
+            // positions are mostly removed in increasing order, so these loops are short:
+            if (k == first) {
+                while (!present[first & mask]) {
+                    first++;
+                }
+            } else if (k == last) {
+                while (!present[last & mask]) {
+                    last--;
+                }
+            }
+        }
+        return value;
     }
 
     public T get(int ok) {
-        return delegate.get(ok);
+        return containsKey(ok) ? valueAt(ok & mask) : null;
     }
 
     public void put(int keyPos, T positionBaseInfos) {
-        sortedKeys.add(keyPos);
-        delegate.put(keyPos, positionBaseInfos);
+        if (size == 0) {
+            first = keyPos;
+            last = keyPos;
+        } else if (keyPos < first) {
+            ensureSpan(keyPos, last);
+            first = keyPos;
+        } else if (keyPos > last) {
+            ensureSpan(first, keyPos);
+            last = keyPos;
+        }
+        final int slot = keyPos & mask;
+        if (!present[slot]) {
+            present[slot] = true;
+            ignored[slot] = false;
+            size++;
+        }
+        values[slot] = positionBaseInfos;
     }
 
     public ObjectSet<Map.Entry<Integer, T>> entrySet() {
-        return delegate.entrySet();
+        final ObjectSet<Map.Entry<Integer, T>> entries = new ObjectLinkedOpenHashSet<Map.Entry<Integer, T>>(size);
+        for (int position = first; size > 0 && position <= last; position++) {
+            if (containsKey(position)) {
+                entries.add(new AbstractInt2ObjectMap.BasicEntry<T>(position, get(position)));
+            }
+        }
+        return entries;
     }
 
     public int firstPosition() {
-        return sortedKeys.firstInt();
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return first;
     }
 
+    public int lastPosition() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return last;
+    }
+
+    /**
+     * Mark a position as ignored. Only positions in the map can be marked. The mark is cleared when the
+     * position is removed.
+     *
+     * @param position position to mark.
+     */
     public void markIgnoredPosition(int position) {
-        ignoredPositions.put(position,true);
+        if (containsKey(position)) {
+            ignored[position & mask] = true;
+        }
     }
+
     public boolean isIgnoredPosition(int position) {
-        return ignoredPositions.get(position);
+        return containsKey(position) && ignored[position & mask];
+    }
+
+    /**
+     * Grow the circular array, if needed, to hold positions from start to end (inclusive).
+     */
+    private void ensureSpan(final int start, final int end) {
+        final long span = (long) end - start + 1;
+        if (span <= values.length) {
+            return;
+        }
+        int capacity = values.length;
+        while (capacity < span) {
+            if (capacity >= 1 << 30) {
+                throw new IllegalArgumentException(String.format("Positions span too large: [%d-%d]", start, end));
+            }
+            capacity <<= 1;
+        }
+        final Object[] previousValues = values;
+        final boolean[] previousPresent = present;
+        final boolean[] previousIgnored = ignored;
+        final int previousMask = mask;
+        allocate(capacity);
+        for (int position = first; position <= last; position++) {
+            final int previousSlot = position & previousMask;
+            if (previousPresent[previousSlot]) {
+                final int slot = position & mask;
+                values[slot] = previousValues[previousSlot];
+                present[slot] = true;
+                ignored[slot] = previousIgnored[previousSlot];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T valueAt(final int slot) {
+        return (T) values[slot];
+    }
+
+    private void allocate(final int capacity) {
+        values = new Object[capacity];
+        present = new boolean[capacity];
+        ignored = new boolean[capacity];
+        mask = capacity - 1;
     }
 }
@@ -18,14 +18,13 @@
 
 package edu.cornell.med.icb.goby.alignments;
 
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Comparator;
 
 public class SortIterateAlignments extends IterateAlignments {
     /**
@@ -39,9 +38,6 @@ public class SortIterateAlignments extends IterateAlignments {
     String basename;
 
 
-    private static final Comparator<Alignments.AlignmentEntry> POSITION_ENTRY_COMPARATOR =
-            new AlignmentPositionComparator();
-
     public SortIterateAlignments() {
         entries = new ObjectArrayList<Alignments.AlignmentEntry>();
     }
@@ -77,8 +73,36 @@ public class SortIterateAlignments extends IterateAlignments {
 
     AlignmentReader alignmentReader = null;
 
+    /**
+     * Sort entries by target index and position. Entries with the same target index and position keep the
+     * order in which they were read, as with {@link AlignmentPositionComparator} and a stable sort. Sort keys
+     * are packed in a primitive array and radix sorted together with the index of each entry, so that
+     * protobuf entries are not dereferenced during the sort.
+     */
     public void sort() {
-        Collections.sort(entries, POSITION_ENTRY_COMPARATOR);
+        final int size = entries.size();
+        final long[] keys = new long[size];
+        final long[] indices = new long[size];
+        for (int i = 0; i < size; i++) {
+            final Alignments.AlignmentEntry entry = entries.get(i);
+            keys[i] = sortKey(entry.getTargetIndex(), entry.getPosition());
+            indices[i] = i;
+        }
+        // sorts pairs (key, index) in lexicographic order:
+        LongArrays.radixSort(keys, indices);
+        final ObjectArrayList<Alignments.AlignmentEntry> sorted = new ObjectArrayList<Alignments.AlignmentEntry>(size);
+        for (int i = 0; i < size; i++) {
+            sorted.add(entries.get((int) indices[i]));
+        }
+        entries = sorted;
+    }
+
+    /**
+     * Pack target index and position in a long that sorts like the pair (targetIndex, position). The sign bit
+     * of the position is flipped so that negative positions sort before positive ones.
+     */
+    static long sortKey(final int targetIndex, final int position) {
+        return ((long) targetIndex << 32) | ((position ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
     }
 
     public void writeTmh() throws IOException {
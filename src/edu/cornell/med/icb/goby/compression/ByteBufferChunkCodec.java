@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A codec that decodes chunks directly from a byte buffer, such as a slice of a memory-mapped file
+ * (see {@link MappedMessageChunksReader#getCompressedBuffer()}), without first copying the chunk to an array.
+ */
+public interface ByteBufferChunkCodec extends ChunkCodec {
+    /**
+     * Decode the remaining bytes of a buffer to a collection. The position of the buffer is not changed.
+     *
+     * @param buffer bytes for codec compressed stream.
+     * @return Decoded PB collection, or null if the chunk content does not validate.
+     * @throws IOException if the chunk cannot be read.
+     */
+    Message decode(ByteBuffer buffer) throws IOException;
+}
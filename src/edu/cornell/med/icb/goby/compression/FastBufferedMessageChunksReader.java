@@ -38,7 +38,7 @@ import java.io.IOException;
  *         Date: Apr 30, 2009
  *         Time: 5:06:55 PM
  */
-public class FastBufferedMessageChunksReader extends MessageChunksReader {
+public class FastBufferedMessageChunksReader extends SeekableMessageChunksReader {
     private static final Log LOG = LogFactory.getLog(FastBufferedMessageChunksReader.class);
 
     private final FastBufferedInputStream input;
@@ -193,6 +193,7 @@ public class FastBufferedMessageChunksReader extends MessageChunksReader {
      * @param position Position where to seek to.
      * @throws IOException If an error occurs reading this file.
      */
+    @Override
     public void seek(final long position) throws IOException {
         input.flush();
         reposition(position, Long.MAX_VALUE);
@@ -240,6 +241,7 @@ public class FastBufferedMessageChunksReader extends MessageChunksReader {
         IOUtils.closeQuietly(input);
     }
 
+    @Override
     public long position() throws IOException {
         return input.position();
     }
@@ -248,6 +250,7 @@ public class FastBufferedMessageChunksReader extends MessageChunksReader {
     /**
      * Flush buffer so that content will be read from the input again.
      */
+    @Override
     public void flush() {
 
         input.flush();
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import java.util.zip.Deflater;
+
+/**
+ * A gzip chunk codec that favors speed over compression ratio. Chunks are standard gzip streams written with
+ * the gzip registration code, so they are decoded by {@link GZipChunkCodec}. Useful for temporary files that
+ * are read back once, such as the sorted runs produced by the sort mode.
+ */
+public class FastGZipChunkCodec extends GZipChunkCodec {
+
+    @Override
+    public String name() {
+        return "gzip-fast";
+    }
+
+    @Override
+    protected int getCompressionLevel() {
+        return Deflater.BEST_SPEED;
+    }
+}
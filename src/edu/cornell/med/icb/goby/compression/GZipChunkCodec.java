@@ -19,9 +19,11 @@
 package edu.cornell.med.icb.goby.compression;
 
 import com.google.protobuf.Message;
+import edu.cornell.med.icb.goby.counts.ByteBufferInputStream;
 import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
@@ -32,7 +34,7 @@ import java.util.zip.GZIPInputStream;
  *         Date: 3/3/12
  *         Time: 10:30 AM
  */
-public class GZipChunkCodec implements ChunkCodec {
+public class GZipChunkCodec implements ByteBufferChunkCodec {
 
     private ProtobuffCollectionHandler parser;
 
@@ -73,7 +75,7 @@ public class GZipChunkCodec implements ChunkCodec {
     public ByteArrayOutputStream encode(final Message readCollection) throws IOException {
         final ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream(10000);
 
-        final OutputStream gzipOutputStream = new GzipOutputStreamWithCustomLevel(Deflater.DEFAULT_COMPRESSION,
+        final OutputStream gzipOutputStream = new GzipOutputStreamWithCustomLevel(getCompressionLevel(),
                 byteBuffer);
         readCollection.writeTo(gzipOutputStream);
         gzipOutputStream.flush();
@@ -84,14 +86,21 @@ public class GZipChunkCodec implements ChunkCodec {
 
     @Override
     public Message decode(final byte[] bytes) throws IOException {
-        final GZIPInputStream uncompressStream = new GZIPInputStream(new FastByteArrayInputStream(bytes));
+        return decode(new FastByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        return decode(new ByteBufferInputStream(buffer.duplicate()));
+    }
+
+    private Message decode(final InputStream compressedStream) throws IOException {
+        final GZIPInputStream uncompressStream = new GZIPInputStream(compressedStream);
         try {
             return parser.parse(uncompressStream);
         } finally {
             uncompressStream.close();
         }
-
-
     }
 
     @Override
@@ -99,4 +108,13 @@ public class GZipChunkCodec implements ChunkCodec {
         return 10000;
     }
 
+    /**
+     * Return the deflater compression level used to encode chunks.
+     *
+     * @return a compression level between 0 and 9, or Deflater.DEFAULT_COMPRESSION.
+     */
+    protected int getCompressionLevel() {
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A codec that stores a chunk as highly compressed bits, decoded by a {@link ProtobuffCollectionHandler},
+ * and a reduced protobuf collection for the fields that could not be compressed. Exposing the two parts of
+ * a chunk lets handlers decode the compressed bits to other representations than protobuf messages.
+ */
+public interface HybridChunkCodec extends ByteBufferChunkCodec {
+    /**
+     * Split the bytes of a chunk into its reduced collection and compressed bits. The compressed bits are
+     * checked against the chunk checksum and made available through {@link #getCompressedBits()}.
+     *
+     * @param bytes bytes for codec compressed stream.
+     * @return the reduced collection, or null if the chunk content does not validate.
+     * @throws IOException if the chunk cannot be read.
+     */
+    Message decodeReduced(byte[] bytes) throws IOException;
+
+    /**
+     * Split the remaining bytes of a buffer into the reduced collection and compressed bits of a chunk, as
+     * {@link #decodeReduced(byte[])} does. The position of the buffer is not changed.
+     *
+     * @param buffer bytes for codec compressed stream.
+     * @return the reduced collection, or null if the chunk content does not validate.
+     * @throws IOException if the chunk cannot be read.
+     */
+    Message decodeReduced(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Return the compressed bits of the chunk last split with {@link #decodeReduced(byte[])}.
+     *
+     * @return compressed bits, to be decoded by the handler.
+     */
+    byte[] getCompressedBits();
+}
@@ -23,6 +23,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 /**
@@ -33,7 +34,7 @@ import java.util.zip.CRC32;
  *         Date: 3/3/12
  *         Time: 2:35 PM
  */
-public class HybridChunkCodec2 implements ChunkCodec {
+public class HybridChunkCodec2 implements HybridChunkCodec {
 
     private boolean debug = false;
 
@@ -58,6 +59,7 @@ public class HybridChunkCodec2 implements ChunkCodec {
     private int chunkIndex = 0;
 
     private CRC32 crc32 = new CRC32();
+    private byte[] compressedBits;
 
     @Override
     public ByteArrayOutputStream encode(final Message readCollection) throws IOException {
@@ -103,13 +105,32 @@ public class HybridChunkCodec2 implements ChunkCodec {
 
     @Override
     public Message decode(final byte[] bytes) throws IOException {
-        final DataInputStream completeChunkData = new DataInputStream(new ByteArrayInputStream(bytes));
-        final int compressedSize = completeChunkData.readInt();
-        final int storedChecksum = completeChunkData.readInt();
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public Message decode(final ByteBuffer buffer) throws IOException {
+        final Message reducedProtoBuff = decodeReduced(buffer);
+        if (reducedProtoBuff == null) {
+            return null;
+        }
+        return handler.decompressCollection(reducedProtoBuff, compressedBits);
+    }
+
+    @Override
+    public Message decodeReduced(final byte[] bytes) throws IOException {
+        return decodeReduced(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public Message decodeReduced(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer completeChunkData = buffer.duplicate();
+        final int compressedSize = completeChunkData.getInt();
+        final int storedChecksum = completeChunkData.getInt();
 
+        // the handler decodes the compressed bits from an array:
         final byte[] compressedBytes = new byte[compressedSize];
-        final int read = completeChunkData.read(compressedBytes, 0, compressedSize);
-        assert read == compressedSize : "read size must match recorded size.";
+        completeChunkData.get(compressedBytes);
         crc32.reset();
 
         crc32.update(compressedBytes);
@@ -117,16 +138,16 @@ public class HybridChunkCodec2 implements ChunkCodec {
         if (computedChecksum != storedChecksum) {
             throw new InvalidChecksumException();
         }
-        final int bytesLeft = bytes.length - 4 - compressedSize - 4;
-        final byte[] leftOver = new byte[bytesLeft];
-        // 8 is the number of bytes to encode the length of the compressed chunk, plus
-        // the number of bytes to encode the checksum.
-        System.arraycopy(bytes, 8 + compressedSize, leftOver, 0, bytesLeft);
-        final Message reducedProtoBuff = bzip2Codec.decode(leftOver);
-        if (reducedProtoBuff==null) {
-            return null;
-        }
-        return handler.decompressCollection(reducedProtoBuff, compressedBytes);
+        // the bzip2 codec decodes from an array:
+        final byte[] leftOver = new byte[completeChunkData.remaining()];
+        completeChunkData.get(leftOver);
+        compressedBits = compressedBytes;
+        return bzip2Codec.decode(leftOver);
+    }
+
+    @Override
+    public byte[] getCompressedBits() {
+        return compressedBits;
     }
 
     @Override
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.GeneratedMessage;
+import edu.cornell.med.icb.goby.exception.GobyRuntimeException;
+import it.unimi.dsi.fastutil.bytes.ByteSet;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads from a file produced with {@link MessageChunksWriter} through memory-mapped buffers. Compressed chunks
+ * are exposed as read-only slices of the mapped file (see {@link #getCompressedBuffer()}), which codecs that
+ * implement {@link ByteBufferChunkCodec} decode without copying. {@link #seek(long)} to a chunk start offset
+ * (such as the offsets stored in an alignment index) validates the chunk there instead of searching for it.
+ * Many readers of the same file share the operating system page cache instead of each holding its own buffers.
+ * <p/>
+ * Like {@link FastBufferedMessageChunksReader}, this reader supports slices: it starts at the first chunk
+ * found after the start offset and stops returning chunks that start past the end offset. Only the slice is
+ * mapped, in segments of at most segmentSize bytes that are mapped when first read. The last chunk of a slice
+ * usually ends past the end offset, and is mapped on its own.
+ */
+public class MappedMessageChunksReader extends SeekableMessageChunksReader {
+    private static final Log LOG = LogFactory.getLog(MappedMessageChunksReader.class);
+
+    /**
+     * Default size of the mapped segments, in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * Number of bytes that precede the compressed content of a chunk: codec registration code, delimiter and size.
+     */
+    private static final int CHUNK_HEADER_LENGTH = 1 + MessageChunksWriter.DELIMITER_LENGTH +
+            MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    /**
+     * Mapped segments, in file order from the start offset. A segment is null until it is first read.
+     */
+    private MappedByteBuffer[] segments = new MappedByteBuffer[1];
+    private final long segmentSize;
+    private final long length;
+
+    /**
+     * Start offset of the slice in the file, in bytes.
+     */
+    private final long startOffset;
+    /**
+     * End offset of the slice in the file, in bytes.
+     */
+    private final long endOffset;
+    /**
+     * Position of the next chunk in the file, in bytes.
+     */
+    private long position;
+    private boolean withinSlice = true;
+    private ByteBuffer compressedBuffer;
+    private final ByteSet supportedCodecRegistrationCodes;
+
+    /**
+     * Map a file for reading between two byte offsets.
+     *
+     * @param filename Name of the file to read.
+     * @param start    The start offset of the slice.
+     * @param end      The end offset of the slice.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public MappedMessageChunksReader(final String filename, final long start, final long end) throws IOException {
+        this(filename, start, end, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Map a file for reading between two byte offsets.
+     *
+     * @param filename    Name of the file to read.
+     * @param start       The start offset of the slice.
+     * @param end         The end offset of the slice.
+     * @param segmentSize Maximum size of the mapped segments, in bytes. At most Integer.MAX_VALUE.
+     * @throws IOException if the file cannot be mapped.
+     */
+    public MappedMessageChunksReader(final String filename, final long start, long end,
+                                     final long segmentSize) throws IOException {
+        super();
+        if (start < 0L) {
+            throw new IllegalArgumentException("Start position ("
+                    + start + ") must not be less than zero");
+        }
+        if (end != Long.MAX_VALUE && end < 0L) {
+            throw new IllegalArgumentException("End position ("
+                    + end + ") must not be less than zero");
+        }
+        if (start > end) {
+            throw new IllegalArgumentException("Start position ("
+                    + start + ") must not be greater than the end position (" + end + ")");
+        }
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + Integer.MAX_VALUE);
+        }
+        if (end != Long.MAX_VALUE && start != end) {
+            end += MessageChunksWriter.DELIMITER_LENGTH + 4;
+        }
+        startOffset = start;
+        endOffset = end;
+        file = new RandomAccessFile(filename.replaceFirst("file://", ""), "r");
+        channel = file.getChannel();
+        length = channel.size();
+        // chunks that start in the slice are read, so the slice extends to the header of its last chunk:
+        final long sliceLength = Math.min(end, length) + CHUNK_HEADER_LENGTH - start;
+        this.segmentSize = Math.max(1, Math.min(segmentSize, sliceLength));
+        supportedCodecRegistrationCodes = ChunkCodecHelper.registrationCodes();
+        try {
+            if (start == 0) {
+                position = 0;
+            } else {
+                reposition(start);
+            }
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the input has more entries.
+     *
+     * @param collection     The current collection, or null if no collection has been read yet.
+     * @param collectionSize The size of the current collection (can be zero).
+     * @return True if the input has more entries, False otherwise.
+     */
+    @Override
+    public boolean hasNext(final GeneratedMessage collection, final int collectionSize) {
+        compressedBytes = null;
+        compressedBuffer = null;
+        if (collection == null || entryIndex >= collectionSize) {
+            // do not read a new collection if we are before the start or past the end of the file split allocated to us
+            if (!withinSlice || position < startOffset || position >= endOffset) {
+                withinSlice = false;
+                return false;
+            }
+            if (!hasDelimiter(position)) {
+                return false;
+            }
+            final byte codecRegistrationCode = getByte(position);
+            if (chunkCodec == null || codecRegistrationCode != chunkCodec.registrationCode()) {
+                installCodec(codecRegistrationCode);
+            }
+            assert chunkCodec != null : "chunkCodec code must not be null";
+            // read the number of compressed bytes to follow:
+            final int numBytes = getInt(position + CHUNK_HEADER_LENGTH - MessageChunksWriter.SIZE_OF_MESSAGE_LENGTH);
+            if (numBytes < 0) {
+                LOG.error(String.format("Negative number of bytes at position %d was size=%X %n", position, numBytes));
+                return false;
+            }
+            if (numBytes == 0) {
+                return false;
+            }
+            final long contentStart = position + CHUNK_HEADER_LENGTH;
+            if (contentStart + numBytes > length) {
+                LOG.warn("Expected " + numBytes + " but got " + (length - contentStart));
+                return false;
+            }
+            compressedBuffer = slice(contentStart, numBytes);
+            position = contentStart + numBytes;
+            entryIndex = 0;
+            return true;
+        }
+        return entryIndex < collectionSize;
+    }
+
+    /**
+     * Return the compressed content of the current chunk as a read-only slice of the mapped file.
+     *
+     * @return compressed content of the current chunk, or null when no chunk was read.
+     */
+    @Override
+    public ByteBuffer getCompressedBuffer() {
+        return compressedBuffer == null ? null : compressedBuffer.duplicate();
+    }
+
+    /**
+     * Return the compressed content of the current chunk. This method copies the chunk out of the mapped file
+     * on first call, for codecs that only decode byte arrays. Prefer {@link #getCompressedBuffer()}.
+     *
+     * @return compressed content of the current chunk, or null when no chunk was read.
+     */
+    @Override
+    public byte[] getCompressedBytes() {
+        if (compressedBytes == null && compressedBuffer != null) {
+            final ByteBuffer buffer = compressedBuffer.duplicate();
+            compressedBytes = new byte[buffer.remaining()];
+            buffer.get(compressedBytes);
+        }
+        return compressedBytes;
+    }
+
+    /**
+     * Seek to the given position in the file. When position is the start of a chunk, as is the case for
+     * offsets stored in an alignment index, the next chunk is read directly from position. Otherwise, the
+     * file is searched for the first chunk after position.
+     *
+     * @param position Position where to seek to.
+     * @throws IOException If an error occurs reading this file.
+     */
+    @Override
+    public void seek(final long position) throws IOException {
+        compressedBytes = null;
+        compressedBuffer = null;
+        if (position < startOffset) {
+            // before the slice, no chunk will be returned and nothing was mapped there:
+            this.position = position;
+            return;
+        }
+        if (isChunkStart(position)) {
+            this.position = position;
+            withinSlice = true;
+        } else {
+            reposition(position);
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return position;
+    }
+
+    /**
+     * Does nothing, this reader does not buffer the content of the file.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        // mapped segments are released when garbage collected.
+        IOUtils.closeQuietly(file);
+    }
+
+    /**
+     * Search the file for the first valid chunk at or after start.
+     */
+    private void reposition(final long start) {
+        withinSlice = true;
+        for (long candidate = start; candidate < endOffset && candidate + CHUNK_HEADER_LENGTH <= length; candidate++) {
+            if (isChunkStart(candidate)) {
+                position = candidate;
+                return;
+            }
+        }
+        position = length;
+        withinSlice = false;
+    }
+
+    /**
+     * Determine if a valid chunk starts at offset, as the stream readers do: a supported codec registration
+     * code, the chunk delimiter, and a size and content that the codec validates. Installs the codec of the
+     * chunk when it is valid.
+     */
+    private boolean isChunkStart(final long offset) {
+        if (!hasDelimiter(offset)) {
+            return false;
+        }
+        final byte code = getByte(offset);
+        if (!supportedCodecRegistrationCodes.contains(code)) {
+            return false;
+        }
+        if (chunkCodec == null || code != chunkCodec.registrationCode()) {
+            installCodec(code);
+        }
+        // position exactly after the 7th 0xFF byte, past the first byte of the size:
+        final long firstSizeByte = offset + 1 + MessageChunksWriter.DELIMITER_LENGTH;
+        final DataInputStream validationInput = new DataInputStream(new MappedInputStream(firstSizeByte + 1));
+        if (!chunkCodec.validate(getByte(firstSizeByte), validationInput)) {
+            LOG.warn(String.format("Found spurious boundary around position %d ", offset));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determine if a codec registration code and a chunk delimiter start at offset.
+     */
+    private boolean hasDelimiter(final long offset) {
+        if (offset + CHUNK_HEADER_LENGTH > length) {
+            return false;
+        }
+        for (int i = 1; i <= MessageChunksWriter.DELIMITER_LENGTH; i++) {
+            if (getByte(offset + i) != MessageChunksWriter.DELIMITER_CONTENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte getByte(final long offset) {
+        final long offsetInSlice = offset - startOffset;
+        return segment((int) (offsetInSlice / segmentSize)).get((int) (offsetInSlice % segmentSize));
+    }
+
+    /**
+     * Return a mapped segment, mapping it on first use.
+     */
+    private MappedByteBuffer segment(final int segmentIndex) {
+        if (segmentIndex >= segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(segmentIndex + 1, segments.length * 2));
+        }
+        MappedByteBuffer segment = segments[segmentIndex];
+        if (segment == null) {
+            final long segmentStart = startOffset + segmentIndex * segmentSize;
+            segment = map(segmentStart, Math.min(segmentSize, length - segmentStart));
+            segments[segmentIndex] = segment;
+        }
+        return segment;
+    }
+
+    private MappedByteBuffer map(final long offset, final long size) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        } catch (IOException e) {
+            throw new GobyRuntimeException(e);
+        }
+    }
+
+    private int getInt(final long offset) {
+        return (getByte(offset) & 0xFF) << 24 | (getByte(offset + 1) & 0xFF) << 16 |
+                (getByte(offset + 2) & 0xFF) << 8 | (getByte(offset + 3) & 0xFF);
+    }
+
+    /**
+     * Return a read-only view of length bytes starting at offset. The view shares the content of the
+     * mapped segment. Bytes that span two segments, such as the end of the last chunk of a slice, are
+     * mapped on their own.
+     */
+    private ByteBuffer slice(final long offset, final int length) {
+        final long offsetInSlice = offset - startOffset;
+        final int segmentIndex = (int) (offsetInSlice / segmentSize);
+        final int offsetInSegment = (int) (offsetInSlice % segmentSize);
+        final MappedByteBuffer segment = segment(segmentIndex);
+        if (offsetInSegment + (long) length <= segment.capacity()) {
+            final ByteBuffer view = segment.duplicate();
+            view.position(offsetInSegment);
+            view.limit(offsetInSegment + length);
+            return view.slice();
+        } else {
+            return map(offset, length);
+        }
+    }
+
+    /**
+     * Sequential view of the mapped file, used to validate chunk boundaries.
+     */
+    private final class MappedInputStream extends InputStream {
+        private long offset;
+
+        private MappedInputStream(final long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() {
+            if (offset >= length) {
+                return -1;
+            }
+            return getByte(offset++) & 0xFF;
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Read from a stream produced with {@link MessageChunksWriter}.
@@ -52,6 +53,16 @@ public class MessageChunksReader implements Closeable {
         return compressedBytes;
     }
 
+    /**
+     * Return the compressed content of the current chunk as a read-only buffer. Codecs that implement
+     * {@link ByteBufferChunkCodec} decode the buffer without copying it.
+     *
+     * @return compressed content of the current chunk, or null when no chunk was read.
+     */
+    public ByteBuffer getCompressedBuffer() {
+        return compressedBytes == null ? null : ByteBuffer.wrap(compressedBytes).asReadOnlyBuffer();
+    }
+
     protected byte[] compressedBytes;
     private ProtobuffCollectionHandler handler;
 
@@ -159,7 +170,7 @@ public class MessageChunksReader implements Closeable {
         return true;
     }
 
-    private boolean installCodec(final byte registrationCode) {
+    protected boolean installCodec(final byte registrationCode) {
         chunkCodec = ChunkCodecHelper.withRegistrationCodeSilent(registrationCode);
         if (chunkCodec != null) {
             chunkCodec.setHandler(handler);
@@ -178,6 +189,14 @@ public class MessageChunksReader implements Closeable {
         return entryIndex++;
     }
 
+    /**
+     * Reset the entry index to the first entry of a collection. Used by clients that decode collections
+     * ahead of the entries they iterate over.
+     */
+    public void resetEntryIndex() {
+        entryIndex = 0;
+    }
+
     /**
      * Returns the current entry index.
      *
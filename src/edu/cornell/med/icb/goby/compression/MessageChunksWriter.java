@@ -21,20 +21,31 @@
 package edu.cornell.med.icb.goby.compression;
 
 import edu.cornell.med.icb.goby.alignments.AlignmentCollectionHandler;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import edu.cornell.med.icb.goby.util.WarningCounter;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionClient;
 import edu.cornell.med.icb.goby.util.dynoptions.DynamicOptionRegistry;
 import edu.cornell.med.icb.goby.util.dynoptions.RegisterThis;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Callable;
 
 /**
  * Helper class to write many messages concatenated to a large output file. This helper
  * compresses each message before it is written to the output stream, and interleaves
  * messages with boundaries and size information. Boundaries make
  * it possible to split the file efficiently (e.g., see Hadoop FileSplit mechanism).
+ * <p/>
+ * When compression threads are configured (option compression-threads, or
+ * {@link #setNumCompressionThreads(int)}), chunks are encoded by a bounded pool of threads and written
+ * to the output in the order they were flushed. The bytes written are identical to those produced
+ * by sequential compression. Since the start offset of a chunk is only known once all previous chunks
+ * have been written, clients that need chunk offsets must obtain them with
+ * {@link #getChunkStartOffset(int)}.
  *
  * @author Fabien Campagne
  *         Date: Apr 24, 2009
@@ -74,7 +85,8 @@ public class MessageChunksWriter {
             "compressing-codec:boolean, when true compress protocol buffers with new chunk codec.:false",
             "template-compression:boolean, when true use template compression.:true",
             "codec:string, name of the chunk codec to use.:gzip",
-            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET));
+            String.format("chunk-size:integer, the number of entries per chunk.:%d", OPTION_NOT_SET),
+            "compression-threads:integer, the number of threads used to compress chunks in parallel. Zero compresses chunks in the thread that writes entries.:0");
 
     public static DynamicOptionClient doc() {
         DynamicOptionRegistry.register(AlignmentCollectionHandler.doc());
@@ -84,6 +96,37 @@ public class MessageChunksWriter {
 
     private boolean useTemplateCompression;
 
+    /**
+     * The handler installed on the chunk codec, if any. Compression threads use their own instance.
+     */
+    private ProtobuffCollectionHandler handler;
+
+    /**
+     * The number of chunks flushed so far (written or pending compression).
+     */
+    private int numChunksFlushed;
+
+    /**
+     * Start offset of each chunk written to the output, indexed by chunk number.
+     */
+    private final LongArrayList chunkStartOffsets = new LongArrayList();
+
+    /**
+     * Compresses chunks when compression threads are used, null otherwise. Chunks that have not been
+     * written yet are pending in this executor, in flush order.
+     */
+    private OrderedExecutor<ByteArrayOutputStream> compressionExecutor;
+
+    /**
+     * Codec used by each compression thread. Codecs and handlers keep state and cannot be shared.
+     */
+    private final ThreadLocal<ChunkCodec> threadCodec = new ThreadLocal<ChunkCodec>() {
+        @Override
+        protected ChunkCodec initialValue() {
+            return newCodecInstance();
+        }
+    };
+
 
     /**
      * Specify the maximum number of entries to store in any given chunk.
@@ -112,8 +155,47 @@ public class MessageChunksWriter {
             numEntriesPerChunk = chunkCodec.getSuggestedChunkSize();
         }
         chunkSizeWarning.warn(LOG, "Using chunk-size=" + numEntriesPerChunk);
+        setNumCompressionThreads(doc.getInteger("compression-threads"));
+    }
+
+    /**
+     * Set the codec used to compress chunks, overriding the codec configured with the codec option. Must be
+     * called before the first chunk is flushed.
+     *
+     * @param codec the chunk codec to use.
+     */
+    public void setCodec(final ChunkCodec codec) {
+        if (numChunksFlushed > 0) {
+            throw new IllegalStateException("The codec must be set before chunks are written.");
+        }
+        chunkCodec = codec;
+        if (handler != null) {
+            chunkCodec.setHandler(handler);
+        }
+    }
+
+    /**
+     * Set the number of threads used to compress chunks. Must be called before the first chunk is
+     * flushed.
+     *
+     * @param numThreads number of compression threads, zero to compress in the calling thread.
+     */
+    public void setNumCompressionThreads(final int numThreads) {
+        if (numChunksFlushed > 0) {
+            throw new IllegalStateException("The number of compression threads must be set before chunks are written.");
+        }
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+            compressionExecutor = null;
+        }
+        if (numThreads > 0) {
+            compressionExecutor = new OrderedExecutor<ByteArrayOutputStream>("chunk-compression", numThreads);
+            compressionThreadsWarning.warn(LOG, "Compressing chunks with " + numThreads + " threads.");
+        }
     }
 
+    private static WarningCounter compressionThreadsWarning = new WarningCounter(1);
+
     private static WarningCounter chunkSizeWarning = new WarningCounter(1);
 
     /**
@@ -138,6 +220,10 @@ public class MessageChunksWriter {
      * @param collectionBuilder The builder prepared with the growing collection of entries.
      * @param multiplicity      Indicates how many logical entries are included in the message that
      *                          was just appended.
+     * @return the offset of the beginning of the current chunk, see {@link #getCurrentChunkStartOffset()}. When
+     *         chunks are compressed in parallel, a chunk flushed by this call is written later, so the offset is not
+     *         known yet and -1 is returned. Use {@link #getCurrentChunkNumber()} and
+     *         {@link #getChunkStartOffset(int)} to obtain chunk offsets in this case.
      * @throws IOException if there was an error writing the entries
      */
     public long writeAsNeeded(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder,
@@ -146,11 +232,13 @@ public class MessageChunksWriter {
         if (++numAppended >= numEntriesPerChunk) {
             flush(collectionBuilder);
         }
-        return currentChunkStartOffset;
+        return compressionExecutor == null ? currentChunkStartOffset : -1;
     }
 
     /**
      * Return the offset of the beginning of the current chunk (in byte, from position zero in the file).
+     * When chunks are compressed in parallel, this is the offset of the last chunk written to the output,
+     * which may precede the last chunk flushed. Use {@link #getChunkStartOffset(int)} in this case.
      *
      * @return offset of the beginning of the current chunk
      */
@@ -158,6 +246,32 @@ public class MessageChunksWriter {
         return currentChunkStartOffset;
     }
 
+    /**
+     * Return the number of the last chunk flushed, or -1 if no chunk was flushed yet. Chunks are numbered from zero
+     * in the order they appear in the output.
+     *
+     * @return number of the last chunk flushed.
+     */
+    public int getCurrentChunkNumber() {
+        return numChunksFlushed - 1;
+    }
+
+    /**
+     * Return the offset of the beginning of a chunk (in byte, from position zero in the file). When chunks are
+     * compressed in parallel, this method waits until the chunk has been written to the output.
+     *
+     * @param chunkNumber number of a chunk already flushed, see {@link #getCurrentChunkNumber()}.
+     * @return offset of the beginning of the chunk.
+     * @throws IOException if there was an error writing the chunks that precede the chunk.
+     */
+    public long getChunkStartOffset(final int chunkNumber) throws IOException {
+        assert chunkNumber < numChunksFlushed : "chunk must have been flushed.";
+        while (chunkStartOffsets.size() <= chunkNumber) {
+            writeChunk(compressionExecutor.take());
+        }
+        return chunkStartOffsets.getLong(chunkNumber);
+    }
+
     /**
      * Force the writing of the collection to the output stream.
      *
@@ -166,52 +280,100 @@ public class MessageChunksWriter {
      */
     public void flush(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
             throws IOException {
-        // Write the separation between two chunks: eight bytes with value 0xFF.
 
         // If we are flushing a completely empty file, that's OK, the flush() should occur.
         // Otherwise, only flush if we've appended entries.
         if (totalEntriesWritten == 0 || numAppended > 0) {
-            // the position just before this chunk is written is recorded:
-            currentChunkStartOffset = writtenBytes;
+            final com.google.protobuf.Message protobuffCollection = collectionBuilder.clone().build();
+            ++numChunksFlushed;
+            if (compressionExecutor == null) {
+                // compress the collection in this thread:
+                writeChunk(chunkCodec.encode(protobuffCollection));
+            } else {
+                compressionExecutor.submit(new Callable<ByteArrayOutputStream>() {
+                    @Override
+                    public ByteArrayOutputStream call() throws IOException {
+                        return threadCodec.get().encode(protobuffCollection);
+                    }
+                });
+                while (compressionExecutor.hasReadyResult()) {
+                    writeChunk(compressionExecutor.take());
+                }
+            }
+            numAppended = 0;
+            collectionBuilder.clear();
+        }
+    }
+
+    /**
+     * Write a compressed chunk to the output stream, preceded by the codec registration code, the delimiter
+     * and the compressed size.
+     *
+     * @param compressedBytes the compressed collection.
+     * @throws IOException if there was an error writing the chunk
+     */
+    private void writeChunk(final ByteArrayOutputStream compressedBytes) throws IOException {
+        // the position just before this chunk is written is recorded:
+        currentChunkStartOffset = writtenBytes;
+        chunkStartOffsets.add(currentChunkStartOffset);
 
-            assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
+        assert out.size() == Integer.MAX_VALUE || out.size() == writtenBytes;
 
-            //     System.out.println("Writting new chunk at position "+currentChunkStartOffset);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
-            }
+        // Write the separation between two chunks: eight bytes with value 0xFF.
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("writing zero bytes length=" + DELIMITER_LENGTH);
+        }
 
-            out.writeByte(chunkCodec.registrationCode());
+        out.writeByte(chunkCodec.registrationCode());
+        writtenBytes += 1;
+        for (int i = 0; i < DELIMITER_LENGTH; i++) {
+            out.writeByte(DELIMITER_CONTENT);
             writtenBytes += 1;
-            for (int i = 0; i < DELIMITER_LENGTH; i++) {
-                out.writeByte(DELIMITER_CONTENT);
-                writtenBytes += 1;
-            }
-            final com.google.protobuf.Message protobuffCollection = collectionBuilder.clone().build();
-            // compress the read collection:
+        }
+        final int serializedSize = compressedBytes.size();
 
-            final ByteArrayOutputStream compressedBytes = chunkCodec.encode(protobuffCollection);
-            final int serializedSize = compressedBytes.size();
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("serialized compressed size: " + serializedSize);
+        }
 
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("serialized compressed size: " + serializedSize);
-            }
+        // write the compressed size followed by the compressed stream:
+        out.writeInt(serializedSize);
+        writtenBytes += 4;
+        final byte[] bytes = compressedBytes.toByteArray();
+        out.write(bytes);
+        writtenBytes += bytes.length;
+        compressedBytes.close();
+        totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("current offset: " + totalBytesWritten);
 
-            // write the compressed size followed by the compressed stream:
-            out.writeInt(serializedSize);
-            writtenBytes += 4;
-            final byte[] bytes = compressedBytes.toByteArray();
-            out.write(bytes);
-            writtenBytes += bytes.length;
-            compressedBytes.close();
-            totalBytesWritten += serializedSize + 4 + DELIMITER_LENGTH;
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("current offset: " + totalBytesWritten);
+        }
+        out.flush();
+    }
 
-            }
-            out.flush();
-            numAppended = 0;
-            collectionBuilder.clear();
+    private ChunkCodec newCodecInstance() {
+        // codecs are loaded as services and handlers are created by their writers, both with a public
+        // no-argument constructor:
+        final ChunkCodec codec = newInstance(chunkCodec.getClass());
+        if (handler != null) {
+            final ProtobuffCollectionHandler threadHandler = newInstance(handler.getClass());
+            threadHandler.setUseTemplateCompression(useTemplateCompression);
+            codec.setHandler(threadHandler);
+        }
+        return codec;
+    }
+
+    private static <C> C newInstance(final Class<C> type) {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Unable to create " + type.getName() + " for compression thread.", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to create " + type.getName() + " for compression thread.", e);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Unable to create " + type.getName() + " for compression thread.", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create " + type.getName() + " for compression thread.", e);
         }
     }
 
@@ -224,6 +386,15 @@ public class MessageChunksWriter {
     public void close(final com.google.protobuf.GeneratedMessage.Builder collectionBuilder)
             throws IOException {
         flush(collectionBuilder);
+        if (compressionExecutor != null) {
+            try {
+                while (!compressionExecutor.isEmpty()) {
+                    writeChunk(compressionExecutor.take());
+                }
+            } finally {
+                compressionExecutor.shutdown();
+            }
+        }
         out.writeByte(0xFF);  // termination codec is always GZIP
         writtenBytes += 1;
         for (int i = 0; i < DELIMITER_LENGTH; i++) {
@@ -296,6 +467,7 @@ public class MessageChunksWriter {
         }
         protobuffCollectionHandler.setUseTemplateCompression(useTemplateCompression);
         chunkCodec.setHandler(protobuffCollectionHandler);
+        handler = protobuffCollectionHandler;
 
         //     chunkCodec = new GZipChunkCodec();
 
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import java.io.IOException;
+
+/**
+ * A reader over a repositionable input, such as a file, that can seek to chunks anywhere in the input.
+ * Readers over plain streams can only read chunks in order, and extend {@link MessageChunksReader} directly.
+ */
+public abstract class SeekableMessageChunksReader extends MessageChunksReader {
+
+    protected SeekableMessageChunksReader() {
+        super();
+    }
+
+    /**
+     * Seek to the given position in the input. The next chunk read is the first chunk found at or after position.
+     *
+     * @param position Position where to seek to.
+     * @throws IOException If an error occurs reading the input.
+     */
+    public abstract void seek(long position) throws IOException;
+
+    /**
+     * Flush buffers so that content will be read from the input again.
+     */
+    public abstract void flush();
+}
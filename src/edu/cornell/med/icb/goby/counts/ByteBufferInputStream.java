@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.counts;
+
+import it.unimi.dsi.fastutil.io.RepositionableStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A repositionable input stream over a byte buffer. The stream reads directly from the buffer, which is
+ * typically a read-only slice of a memory-mapped file, so that no copy of the data is made.
+ * Positions are relative to the position of the buffer when the stream is created.
+ */
+public class ByteBufferInputStream extends InputStream implements RepositionableStream {
+    private final ByteBuffer buffer;
+    private final int start;
+    private int mark;
+
+    /**
+     * Create a stream over the remaining bytes of buffer. The stream changes the position of the buffer,
+     * pass a duplicate to share a buffer among several streams.
+     *
+     * @param buffer the buffer to read from.
+     */
+    public ByteBufferInputStream(final ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.mark = start;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) {
+        if (length == 0) {
+            return 0;
+        }
+        final int remaining = buffer.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+        final int n = Math.min(length, remaining);
+        buffer.get(bytes, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        final int skipped = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(final int readLimit) {
+        mark = buffer.position();
+    }
+
+    @Override
+    public void reset() {
+        buffer.position(mark);
+    }
+
+    @Override
+    public void position(final long newPosition) throws IOException {
+        if (newPosition < 0 || newPosition > buffer.limit() - start) {
+            throw new IOException("Position out of range: " + newPosition);
+        }
+        buffer.position(start + (int) newPosition);
+    }
+
+    @Override
+    public long position() {
+        return buffer.position() - start;
+    }
+}
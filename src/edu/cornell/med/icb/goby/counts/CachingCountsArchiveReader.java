@@ -19,16 +19,12 @@
 package edu.cornell.med.icb.goby.counts;
 
 
-import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
-import org.bdval.io.compound.CompoundDataInput;
-
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
- * A count archive reader that caches the last chromosome accessed.
+ * A count archive reader that caches the last chromosome accessed. Since {@link CountsArchiveReader} shares
+ * mapped data and indices among the readers of a sequence, this class only keeps track of whether the last
+ * reader returned has an index.
  *
  * @author Fabien Campagne
  *         Date: 6/12/11
@@ -36,17 +32,12 @@ import java.io.InputStream;
  */
 public class CachingCountsArchiveReader extends CountsArchiveReader {
 
-    private byte[] bytes;
-    private String previousId;
-    private byte[] indexBytes;
     private boolean hasIndex;
 
     public CachingCountsArchiveReader(final String basename) throws IOException {
         super(basename);
     }
 
-    int previousIndex = -1;
-
     /**
      * Determine if the previous counts reader  returned supports position().
      * @return
@@ -64,34 +55,8 @@ public class CachingCountsArchiveReader extends CountsArchiveReader {
      */
     @Override
     public CountsReader getCountReader(final String identifier) throws IOException {
-        if (identifier == null || previousId == null || !identifier.equals(previousId)) {
-            String name = makeFileIdentifier(identifier);
-            final CompoundDataInput input = compoundReader.readFile(name);
-            bytes = new byte[(int) input.length()];
-            input.readFully(bytes);
-            String indexName = "#index:" + name;
-            if (compoundReader.containsFile(indexName)) {
-
-                final CompoundDataInput indexInput = compoundReader.readFile(indexName);
-                indexBytes = new byte[(int) indexInput.length()];
-                indexInput.readFully(indexBytes);
-                hasIndex = true;
-            }
-
-            previousId = identifier;
-        }
-        final InputStream stream = new FastByteArrayInputStream(bytes);
-        if (hasIndex) {
-
-
-            final DataInputStream indexDataInput = new DataInputStream(new FastByteArrayInputStream(indexBytes));
-            return new CountsReader(stream, indexDataInput);
-
-        } else {
-
-            return new CountsReader(stream);
-
-        }
-
+        final CountsReader reader = super.getCountReader(identifier);
+        hasIndex = reader.positions != null;
+        return reader;
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.counts;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.BinIO;
+import it.unimi.dsi.io.InputBitStream;
+import it.unimi.dsi.io.OutputBitStream;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The index of a counts stream. Indices are either written to a separate file by {@link CountIndexBuilder},
+ * or embedded at the start of version 2 counts streams by {@link CountsWriter}. In both cases, the last entry
+ * marks the end of the counts data. Indices are never modified after they are loaded, so one index can be
+ * shared by all the readers of the same counts.
+ */
+final class CountIndex {
+    final int[] positions;
+    final int[] offsets;
+    final int[] counts;
+
+    CountIndex(final int[] positions, final int[] offsets, final int[] counts) {
+        this.positions = positions;
+        this.offsets = offsets;
+        this.counts = counts;
+    }
+
+    /**
+     * Load an index from a buffer that contains the index data (length, then positions, offsets and
+     * counts arrays, big-endian).
+     *
+     * @param buffer buffer positioned at the start of the index data. The position of the buffer is not changed.
+     * @return the index.
+     */
+    static CountIndex load(final ByteBuffer buffer) {
+        final ByteBuffer input = buffer.duplicate();
+        final int length = input.getInt();
+        final int[] positions = new int[length];
+        final int[] offsets = new int[length];
+        final int[] counts = new int[length];
+        input.asIntBuffer().get(positions);
+        input.position(input.position() + length * 4);
+        input.asIntBuffer().get(offsets);
+        input.position(input.position() + length * 4);
+        input.asIntBuffer().get(counts);
+        return new CountIndex(positions, offsets, counts);
+    }
+
+    /**
+     * Load an index written by {@link CountIndexBuilder}.
+     *
+     * @param input where to read the index data from.
+     * @return the index.
+     * @throws IOException If an error occurs reading the index.
+     */
+    static CountIndex load(final DataInput input) throws IOException {
+        final int length = input.readInt();
+        final int[] positions = new int[length];
+        BinIO.loadInts(input, positions);
+        final int[] offsets = new int[length];
+        BinIO.loadInts(input, offsets);
+        final int[] counts = new int[length];
+        BinIO.loadInts(input, counts);
+        return new CountIndex(positions, offsets, counts);
+    }
+
+    /**
+     * Read the index embedded in a version 2 counts stream. Offsets are relative to the first transition of
+     * the stream in the embedded format, they are returned as bit positions in the stream.
+     *
+     * @param input a stream positioned just after the initial count.
+     * @return the index.
+     * @throws IOException If an error occurs reading the index.
+     */
+    static CountIndex readEmbedded(final InputBitStream input) throws IOException {
+        final int length = input.readGamma();
+        final int[] positions = new int[length];
+        final int[] offsets = new int[length];
+        final int[] counts = new int[length];
+        int position = 0;
+        int offset = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            position += input.readGamma();
+            offset += input.readGamma();
+            count += CountsReader.decodeDeltaCount(input.readGamma());
+            positions[i] = position;
+            offsets[i] = offset;
+            counts[i] = count;
+        }
+        final int firstTransitionOffset = (int) input.readBits();
+        for (int i = 0; i < length; i++) {
+            offsets[i] += firstTransitionOffset;
+        }
+        return new CountIndex(positions, offsets, counts);
+    }
+
+    /**
+     * Skip the index embedded in a version 2 counts stream without decoding it.
+     *
+     * @param input a stream positioned just after the initial count.
+     * @throws IOException If an error occurs reading the stream.
+     */
+    static void skipEmbedded(final InputBitStream input) throws IOException {
+        final int length = input.readGamma();
+        input.skipGammas(length * 3);
+    }
+
+    /**
+     * Read the index embedded in counts data.
+     *
+     * @param buffer buffer positioned at the start of the counts data. The position of the buffer is not changed.
+     * @return the index, or null if the counts data has no embedded index (version 1 counts).
+     * @throws IOException If an error occurs reading the counts data.
+     */
+    static CountIndex readEmbedded(final ByteBuffer buffer) throws IOException {
+        final InputBitStream input = new InputBitStream(new ByteBufferInputStream(buffer.duplicate()));
+        if (input.readDelta() != CountsReader.VERSION_2_MARKER) {
+            return null;
+        }
+        input.readDelta(); // initial count
+        return readEmbedded(input);
+    }
+
+    /**
+     * Write an index in the format embedded in version 2 counts streams: the number of entries, then the gaps
+     * between the positions, offsets and counts of consecutive entries, gamma coded.
+     *
+     * @param positions positions of the entries, in increasing order.
+     * @param offsets   offsets of the entries, in bits from the first transition, in increasing order.
+     * @param counts    counts of the entries.
+     * @param output    where to write the index.
+     * @return the number of bits written.
+     * @throws IOException If an error occurs writing the index.
+     */
+    static int writeEmbedded(final IntArrayList positions, final IntArrayList offsets, final IntArrayList counts,
+                             final OutputBitStream output) throws IOException {
+        final int length = positions.size();
+        int bitsWritten = output.writeGamma(length);
+        int position = 0;
+        int offset = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            bitsWritten += output.writeGamma(positions.getInt(i) - position);
+            bitsWritten += output.writeGamma(offsets.getInt(i) - offset);
+            bitsWritten += output.writeGamma(CountsWriter.encodeDeltaCount(counts.getInt(i) - count));
+            position = positions.getInt(i);
+            offset = offsets.getInt(i);
+            count = counts.getInt(i);
+        }
+        return bitsWritten;
+    }
+}
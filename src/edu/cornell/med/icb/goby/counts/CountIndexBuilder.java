@@ -68,7 +68,8 @@ public class CountIndexBuilder {
         InputBitStream inputBitStream = new InputBitStream(stream);
         final CountsReaderI reader = new CountsReader(inputBitStream);
         int transitionNum = 0;
-        long bitsWritten = 0;
+        // offset of the first transition, after the initial count (and the embedded index of version 2 counts):
+        long bitsWritten = inputBitStream.readBits();
         int maxPosition = 0;
         assert positions.isEmpty() : "we start a new sequence and must not have positions from other sequences.";
         assert offsets.isEmpty() : "we start a new sequence and must not have offsets from other sequences.";
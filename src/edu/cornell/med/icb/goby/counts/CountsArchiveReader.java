@@ -24,22 +24,32 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
 import it.unimi.dsi.fastutil.ints.IntSet;
-import it.unimi.dsi.fastutil.io.FastByteArrayInputStream;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.bdval.io.compound.CompoundDataInput;
 import org.bdval.io.compound.CompoundDirectoryEntry;
 import org.bdval.io.compound.CompoundFileReader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 
 /**
  * Read an archive of count information. Multiple sequences are typically stored in an archive.
  * This reader provides support to obtain count information for each sequence.
+ * <p/>
+ * Count information is read from the archive file, memory-mapped read-only once, in segments of at most
+ * 2GB. Each count reader reads a duplicate of the segment that contains its sequence, with its own position
+ * and limit, and readers of a sequence share its index, which is loaded the first time the sequence is
+ * accessed. Count readers can be obtained concurrently from several threads. Each count reader must be used
+ * by one thread at a time.
  *
  * @author Fabien Campagne
  *         Date: May 14, 2009
@@ -49,6 +59,23 @@ public class CountsArchiveReader implements Closeable {
     protected final CompoundFileReader compoundReader;
     private final Int2ObjectMap<String> indexToIdentifierMap;
     private Object2IntMap<String> identifierToIndexMap;
+    /**
+     * Distance between the starts of two consecutive mapped segments. Segments are mapped with a length of up
+     * to twice this stride, so that any count file of at most this size lies entirely within one segment.
+     */
+    private static final long SEGMENT_STRIDE = 1L << 30;
+    /**
+     * Channel used to map the archive file.
+     */
+    private final FileChannel channel;
+    /**
+     * Mapped segments of the archive file. A segment is null until it is first accessed.
+     */
+    private final ByteBuffer[] segments;
+    /**
+     * Index of each count file, by name in the compound file. Null when the count file has no index.
+     */
+    private final Object2ObjectMap<String, CountIndex> loadedIndices = new Object2ObjectOpenHashMap<String, CountIndex>();
 
     /**
      * The total number of bases seen in the counts data stored in this archive.
@@ -109,10 +136,24 @@ public class CountsArchiveReader implements Closeable {
      * @throws IOException if the file cannot be accessed
      */
     public CountsArchiveReader(final String basename, final String alternativeCountArchiveExtension) throws IOException {
-        compoundReader = new CompoundFileReader(basename + "." + alternativeCountArchiveExtension);
-        indexToIdentifierMap = new Int2ObjectOpenHashMap<String>();
-        identifierToIndexMap = new Object2IntOpenHashMap<String>();
-        scanDirectory();
+        final String filename = basename + "." + alternativeCountArchiveExtension;
+        compoundReader = new CompoundFileReader(filename);
+        FileChannel fileChannel = null;
+        boolean opened = false;
+        try {
+            fileChannel = new RandomAccessFile(filename, "r").getChannel();
+            channel = fileChannel;
+            segments = new ByteBuffer[(int) Math.max(1, (channel.size() + SEGMENT_STRIDE - 1) / SEGMENT_STRIDE)];
+            indexToIdentifierMap = new Int2ObjectOpenHashMap<String>();
+            identifierToIndexMap = new Object2IntOpenHashMap<String>();
+            scanDirectory();
+            opened = true;
+        } finally {
+            if (!opened) {
+                IOUtils.closeQuietly(fileChannel);
+                compoundReader.close();
+            }
+        }
     }
 
 
@@ -125,22 +166,74 @@ public class CountsArchiveReader implements Closeable {
      */
     public CountsReader getCountReader(final String identifier) throws IOException {
 
-        String name = makeFileIdentifier(identifier);
-        final CompoundDataInput input = compoundReader.readFile(name);
-        final byte[] bytes = new byte[(int) input.length()];
-        input.readFully(bytes);
+        final String name = makeFileIdentifier(identifier);
         // warning: the countStream implementation has to support RepositionableStream
-        final InputStream countStream = new FastByteArrayInputStream(bytes);
-        final String indexName = "#index:" + name;
-        if (compoundReader.containsFile(indexName)) {
-
-            final CompoundDataInput indexInput = compoundReader.readFile(indexName);
+        final InputStream countStream = new ByteBufferInputStream(getData(name));
+        final CountIndex index = getIndex(name);
+        if (index != null) {
             // this archive contained an index:
-            return new CountsReader(countStream, indexInput);
+            return new CountsReader(countStream, index);
         } else {
             return new CountsReader(countStream);
         }
+    }
+
+    /**
+     * Return the data of a file of the compound archive, as a buffer over the mapped segment that contains it.
+     *
+     * @param name name of the file in the compound archive.
+     * @return a read-only buffer positioned at the start of the file data, whose limit is the end of the file data.
+     * @throws IOException If the file does not exist or cannot be mapped.
+     */
+    private ByteBuffer getData(final String name) throws IOException {
+        final CompoundDirectoryEntry entry = compoundReader.getDirectoryEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException("The counts archive does not contain the file " + name);
+        }
+        final long dataPosition = entry.getDataPosition();
+        final int segmentIndex = (int) (dataPosition / SEGMENT_STRIDE);
+        final long offset = dataPosition - segmentIndex * SEGMENT_STRIDE;
+        final ByteBuffer buffer = getSegment(segmentIndex).duplicate();
+        if (offset + entry.getFileSize() > buffer.capacity()) {
+            throw new IOException(String.format("The file %s of the counts archive is too large to be mapped (%d bytes).",
+                    name, entry.getFileSize()));
+        }
+        buffer.limit((int) (offset + entry.getFileSize()));
+        buffer.position((int) offset);
+        return buffer.slice();
+    }
 
+    /**
+     * Return a segment of the archive file, mapping it the first time it is accessed.
+     */
+    private synchronized ByteBuffer getSegment(final int segmentIndex) throws IOException {
+        ByteBuffer segment = segments[segmentIndex];
+        if (segment == null) {
+            final long start = segmentIndex * SEGMENT_STRIDE;
+            final long length = Math.min(Integer.MAX_VALUE, channel.size() - start);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            segments[segmentIndex] = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * Return the index of a count file, loading it the first time it is accessed. Archives written before
+     * counts embedded their index store it in a separate "#index:" file.
+     *
+     * @param name name of the count file in the compound archive.
+     * @return the index, or null if the count file has no index.
+     * @throws IOException If the index cannot be read.
+     */
+    private synchronized CountIndex getIndex(final String name) throws IOException {
+        if (loadedIndices.containsKey(name)) {
+            return loadedIndices.get(name);
+        }
+        final String indexName = "#index:" + name;
+        final CountIndex index = compoundReader.containsFile(indexName) ? CountIndex.load(getData(indexName)) :
+                CountIndex.readEmbedded(getData(name));
+        loadedIndices.put(name, index);
+        return index;
     }
 
     /**
@@ -285,5 +378,6 @@ public class CountsArchiveReader implements Closeable {
      */
     public void close() throws IOException {
         compoundReader.close();
+        channel.close();
     }
 }
@@ -32,7 +32,9 @@ import java.io.IOException;
 
 /**
  * Writes archives of counts information  for several sequences. CountsArchiveWriter leverages
- * the {@link org.bdval.io.compound.CompoundFileWriter}.
+ * the {@link org.bdval.io.compound.CompoundFileWriter}. Each counts writer writes to its own buffer, so
+ * counts for different sequences can be produced concurrently by several threads. Buffers are appended to
+ * the archive when writers are returned.
  *
  * @author Fabien Campagne
  *         Date: May 13, 2009
@@ -40,15 +42,10 @@ import java.io.IOException;
  */
 public class CountsArchiveWriter implements Closeable {
     private final CompoundFileWriter compoundWriter;
-    private CountsWriterI currentCountsWriterI;
-    private String currentId;
-
-    private ByteArrayOutputStream stream;
     private long totalBitsWritten;
     private int totalTransitions;
     private long totalBasesSeen;
     private long totalSitesSeen;
-    private CountIndexBuilder indexBuilder = new CountIndexBuilder();
     private boolean verbose = false;
 
     /**
@@ -87,10 +84,8 @@ public class CountsArchiveWriter implements Closeable {
      * @throws IOException If an error occurs.
      */
     public CountsWriterI newCountWriter(final int referenceIndex, final String identifier) throws IOException {
-        stream = new ByteArrayOutputStream(100000);
-        currentCountsWriterI = new CountsWriter(stream,1);
-        currentId = Integer.toString(referenceIndex) + "," + identifier;
-        return currentCountsWriterI;
+        return new BufferedCountsWriter(new ByteArrayOutputStream(100000),
+                Integer.toString(referenceIndex) + "," + identifier);
     }
 
     /**
@@ -107,31 +102,28 @@ public class CountsArchiveWriter implements Closeable {
 
     /**
      * Return a count Writer to the counts archive. Count writers must be returned to the
-     * archive after they have been populated with count information.
+     * archive after they have been populated with count information. Writers can be returned
+     * in any order, from any thread.
      *
      * @param writerI The countWriter being returned.
      * @throws IOException If an error occurs packaging the count information in the archive.
      */
-    public void returnWriter(final CountsWriterI writerI) throws IOException {
-        assert writerI == currentCountsWriterI : "You must return the current counts writer.";
+    public synchronized void returnWriter(final CountsWriterI writerI) throws IOException {
+        assert writerI instanceof BufferedCountsWriter : "You must return a counts writer obtained from this archive.";
+        final BufferedCountsWriter bufferedWriter = (BufferedCountsWriter) writerI;
+        final String currentId = bufferedWriter.id;
         writerI.close();
         totalBitsWritten += writerI.getNumberOfBitsWritten();
         totalTransitions += writerI.getNumberOfTransitions();
         totalBasesSeen += writerI.getNumberOfBasesSeen();
         totalSitesSeen += writerI.getNumberOfSitesSeen();
-        final byte[] bytes = stream.toByteArray();
+        final byte[] bytes = bufferedWriter.buffer.toByteArray();
 
         final org.bdval.io.compound.CompoundDataOutput part = compoundWriter.addFile(currentId);
         part.write(bytes);
         part.close();
         compoundWriter.finishAddFile();
-
-        final org.bdval.io.compound.CompoundDataOutput indexPart = compoundWriter.addFile("#index:" + currentId);
-        indexBuilder.buildIndex(bytes, indexPart);
-        indexPart.close();
-        compoundWriter.finishAddFile();
-        currentId = null;
-        currentCountsWriterI = null;
+        // counts embed their own index, no "#index:" file is written.
     }
 
     /**
@@ -168,4 +160,18 @@ public class CountsArchiveWriter implements Closeable {
     public void setVerbose(final boolean verbose) {
         this.verbose = verbose;
     }
+
+    /**
+     * A counts writer that keeps the counts of one sequence in memory until it is returned to the archive.
+     */
+    private static final class BufferedCountsWriter extends CountsWriter {
+        private final ByteArrayOutputStream buffer;
+        private final String id;
+
+        private BufferedCountsWriter(final ByteArrayOutputStream buffer, final String id) throws IOException {
+            super(buffer, 1);
+            this.buffer = buffer;
+            this.id = id;
+        }
+    }
 }
@@ -21,12 +21,12 @@
 package edu.cornell.med.icb.goby.counts;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.io.BinIO;
 import it.unimi.dsi.fastutil.io.RepositionableStream;
 import it.unimi.dsi.io.InputBitStream;
 import org.bdval.io.compound.CompoundDataInput;
 
 import java.io.DataInput;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -41,6 +41,11 @@ import java.util.Arrays;
 public class CountsReader implements CountsReaderI {
     private final InputBitStream input;
     protected static final int END_OF_DATA_MARKER = 277492431;
+    /**
+     * Value that starts version 2 counts streams, in place of the initial count. Version 2 streams
+     * embed a skip index before the transitions.
+     */
+    static final int VERSION_2_MARKER = 277492432;
     private boolean endOfStream;
     private int deltaCount;
     private int currentCount;
@@ -63,6 +68,14 @@ public class CountsReader implements CountsReaderI {
      * This boolean is true if the reader has an index.
      */
     private boolean hasIndex;
+    /**
+     * Count at position zero.
+     */
+    private int initialCount;
+    /**
+     * Offset of the first transition in the stream, in bits.
+     */
+    private long firstTransitionOffset;
 
 
     /**
@@ -75,41 +88,81 @@ public class CountsReader implements CountsReaderI {
     }
 
     public CountsReader(final InputStream inputStream) throws IOException {
-        input = new InputBitStream(inputStream);
-        currentCount = input.readDelta() - 1;
-        count = currentCount;
-        counts = offsets = positions = null;
-
+        this(new InputBitStream(inputStream), null, isRepositionable(inputStream));
     }
 
     public CountsReader(final InputBitStream inputBitStream) throws IOException {
-        input = inputBitStream;
-        currentCount = input.readDelta() - 1;
-        count = currentCount;
-        counts = offsets = positions = null;
+        this(inputBitStream, null, false);
     }
 
+    /**
+     * Create a reader that uses an index written by {@link CountIndexBuilder}.
+     *
+     * @param inputStream       the counts stream, must implement RepositionableStream.
+     * @param indexInputStream  index of the counts stream. When null, the index embedded in version 2
+     *                          counts streams is used.
+     * @throws IOException If an error occurs reading the stream or the index.
+     */
+    public CountsReader(final InputStream inputStream, final DataInput indexInputStream) throws IOException {
+        this(new InputBitStream(inputStream), indexInputStream == null ? null : CountIndex.load(indexInputStream),
+                isRepositionable(inputStream));
+    }
 
-    public CountsReader(InputStream inputStream, DataInput indexInputStream) throws IOException {
-        assert inputStream instanceof RepositionableStream : "inputStream must be repositionable.";
-        input = new InputBitStream(inputStream);
-        currentCount = input.readDelta() - 1;
-        count = currentCount;
-        if (indexInputStream != null) {
-            final int length = indexInputStream.readInt();
-
-            positions = new int[length];
-            BinIO.loadInts(indexInputStream, positions);
-            offsets = new int[length];
-            BinIO.loadInts(indexInputStream, offsets);
-            counts = new int[length];
-            BinIO.loadInts(indexInputStream, counts);
+    /**
+     * Create a reader that uses an index already loaded in memory. The index arrays are shared, not copied.
+     *
+     * @param inputStream the counts stream, must implement RepositionableStream.
+     * @param index       index of the counts stream.
+     * @throws IOException If an error occurs reading the stream.
+     */
+    CountsReader(final InputStream inputStream, final CountIndex index) throws IOException {
+        this(new InputBitStream(inputStream), index, isRepositionable(inputStream));
+    }
+
+    private CountsReader(final InputBitStream inputBitStream, final CountIndex index,
+                         final boolean repositionable) throws IOException {
+        assert index == null || repositionable : "inputStream must be repositionable.";
+        input = inputBitStream;
+        final CountIndex streamIndex = readHeader(index);
+        if (streamIndex != null && repositionable) {
+            positions = streamIndex.positions;
+            offsets = streamIndex.offsets;
+            counts = streamIndex.counts;
             hasIndex = true;
         } else {
             counts = offsets = positions = null;
         }
     }
 
+    private static boolean isRepositionable(final InputStream inputStream) {
+        return inputStream instanceof RepositionableStream || inputStream instanceof FileInputStream;
+    }
+
+    /**
+     * Read the initial count and, for version 2 streams, the embedded index.
+     *
+     * @param index index provided by the caller, used instead of the embedded index when not null.
+     * @return the index of the stream, or null if the stream has no index.
+     * @throws IOException If an error occurs reading the stream.
+     */
+    private CountIndex readHeader(final CountIndex index) throws IOException {
+        int value = input.readDelta();
+        CountIndex streamIndex = index;
+        if (value == VERSION_2_MARKER) {
+            value = input.readDelta();
+            if (index == null) {
+                streamIndex = CountIndex.readEmbedded(input);
+            } else {
+                CountIndex.skipEmbedded(input);
+            }
+        }
+        initialCount = value - 1;
+        currentCount = initialCount;
+        count = initialCount;
+        firstTransitionOffset = input.readBits();
+        return streamIndex;
+    }
+
     /**
      * Determines if the reader has data about another transition.
      *
@@ -268,64 +321,34 @@ public class CountsReader implements CountsReaderI {
         if (!hasIndex) {
             throw new IllegalStateException("The Counts must have an index to use the reposition method.");
         }
-        final int r = Arrays.binarySearch(positions, position);
-        // position at the position if found, or immediately before if the position was not found in the index
-        //   System.out.println("CountsReader.reposition " + position);
-        final int ip = r >= 0 ? r : -(r + 1);
-        final int index = r >= 0 ? r : Math.max(0, ip);
-        int priorIndex = index - 1;
-
-        if (index==positions.length)
-        {
-            endOfStream=true;
-            return;
-        }
-        if (priorIndex < 0 || index >= positions.length) {
-            // the index does not contain the position, go back to the beginning of the file.
-            this.position = position;
-            this.count = 0;
-            deltaCount = 0;
-            nextTransitionLoaded = false;
-            input.position(0);
-            endOfStream = false;
-            return;
-            //    throw new IllegalStateException(String.format("Positions array (length=%d) is too small for index %d.",
-            //          positions.length, index));
-        }
-        if (positions[index] == position) {
-            this.position = position;
-            this.count = counts[index];
-            deltaCount = 0;
-            nextTransitionLoaded = false;
-
-            input.position(offsets[index]);
-            endOfStream = false;
-            input.readGamma(); // advance delta count, ignore the value, we know the count already from the index.
-            length = input.readGamma();
-            return;
-
+        // the last index entry marks the end of the data, look for the entry at or immediately before position:
+        final int r = Arrays.binarySearch(positions, 0, positions.length - 1, position);
+        final int index = r >= 0 ? r : -(r + 1) - 1;
+        nextTransitionLoaded = false;
+        endOfStream = false;
+        deltaCount = 0;
+        if (index < 0) {
+            // the index does not contain the position, go back to the beginning of the stream.
+            input.position(firstTransitionOffset);
+            this.position = -1;
+            length = -1;
+            count = initialCount;
+            currentCount = count;
+            if (hasNextTransition()) {
+                nextTransition();
+            }
         } else {
             // initialize read data structure at the position of the index
-            this.position = positions[priorIndex];
-            count = priorIndex < 0 ? 0 : counts[priorIndex];
-            input.position(offsets[priorIndex]);
-            endOfStream = false;
-            nextTransitionLoaded = false;
+            this.position = positions[index];
+            count = counts[index];
             currentCount = count;
-            deltaCount = 0;
-            length = 0;
+            input.position(offsets[index]);
             input.readGamma(); // advance delta count, ignore the value, we know the count already from the index.
             length = input.readGamma();
-
-
-            // now iterate until we meet the skipTo position condition:
-            while (hasNextTransition()) {
-                nextTransition();
-                //   System.out.printf("CountsReader.reposition seeking %d currentPosition=%d %n", position,  getPosition());
-                if (getPosition() >= position) {
-                    break;
-                }
-            }
+        }
+        // now iterate until we meet the skipTo position condition:
+        while (getPosition() < position && hasNextTransition()) {
+            nextTransition();
         }
     }
 
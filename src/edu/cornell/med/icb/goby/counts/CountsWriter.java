@@ -20,6 +20,8 @@
 
 package edu.cornell.med.icb.goby.counts;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastByteArrayOutputStream;
 import it.unimi.dsi.io.OutputBitStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,7 +31,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * Writes counts in a compressed format.
+ * Writes counts in a compressed format. Counts are written in the version 2 format: a marker, the initial
+ * count, a skip index with one entry every {@link #DEFAULT_SKIP_INTERVAL} transitions (position, offset of
+ * the transition in bits and count after the transition), then the transitions. The skip index lets
+ * {@link CountsReader} reposition without a separate index file. Transitions are kept in memory until the
+ * writer is closed, since the skip index must be written before them.
  *
  * @author Fabien Campagne
  *         Date: May 6, 2009
@@ -37,7 +43,17 @@ import java.io.OutputStream;
  */
 public class CountsWriter implements CountsWriterI {
     private static final Log LOG = LogFactory.getLog(CountsWriter.class);
+    /**
+     * Number of transitions between two entries of the skip index.
+     */
+    public static final int DEFAULT_SKIP_INTERVAL = 1000;
+    private final OutputStream output;
+    private final FastByteArrayOutputStream transitions = new FastByteArrayOutputStream();
     private OutputBitStream out;
+    private final int skipInterval;
+    private final IntArrayList skipPositions = new IntArrayList();
+    private final IntArrayList skipOffsets = new IntArrayList();
+    private final IntArrayList skipCounts = new IntArrayList();
     private int previousCount;
     private boolean dataAlreadyWritten;
     private int numberOfCountsWritten;
@@ -54,7 +70,21 @@ public class CountsWriter implements CountsWriterI {
      * @throws IOException
      */
     public CountsWriter(final OutputStream output, final int initialCount) throws IOException {
-        out = new OutputBitStream(output);
+        this(output, initialCount, DEFAULT_SKIP_INTERVAL);
+    }
+
+    /**
+     * Initialize a CountsWriter with a specific initialCount and skip interval.
+     * @param output Where to write the compressed counts.
+     * @param initialCount Value of count at position zero.
+     * @param skipInterval Number of transitions between two entries of the skip index.
+     * @throws IOException
+     */
+    public CountsWriter(final OutputStream output, final int initialCount, final int skipInterval) throws IOException {
+        assert skipInterval > 0 : "skip interval must be greater than zero.";
+        this.output = output;
+        this.skipInterval = skipInterval;
+        out = new OutputBitStream(transitions);
         setInitialCount(initialCount);
     }
 
@@ -76,7 +106,6 @@ public class CountsWriter implements CountsWriterI {
         }
         this.initialCount=count;
         previousCount = count;
-        bitsWritten += out.writeDelta(previousCount + 1);  // Delta cannot be zero, so add 1.
     }
 
     @Override
@@ -99,6 +128,9 @@ public class CountsWriter implements CountsWriterI {
         deltaCountEncoded = encodeDeltaCount(deltaCount);
 
         assert deltaCountEncoded > 0 : " delta count integer must not be zero";
+        if (numberOfCountsWritten % skipInterval == 0) {
+            addSkipEntry(position, count);
+        }
         bitsWritten += out.writeGamma(deltaCountEncoded);
         bitsWritten += out.writeGamma(lengthConstant);
         dataAlreadyWritten = true;
@@ -115,6 +147,12 @@ public class CountsWriter implements CountsWriterI {
         }
     }
 
+    private void addSkipEntry(final int position, final int count) {
+        skipPositions.add(position);
+        skipOffsets.add((int) out.writtenBits());
+        skipCounts.add(count);
+    }
+
     protected static int encodeDeltaCount(final int deltaCount) {
         final int deltaCountEncoded;
         if (deltaCount < 0) {
@@ -133,11 +171,20 @@ public class CountsWriter implements CountsWriterI {
     @Override
     public void close() throws IOException {
         if (out != null) {
+            // the last entry of the skip index marks the end of the data:
+            addSkipEntry(position, 0);
             bitsWritten += out.writeGamma(CountsReader.END_OF_DATA_MARKER);
-
+            final long transitionBits = out.writtenBits();
             out.flush();
-            out.close();
             out = null;
+
+            final OutputBitStream header = new OutputBitStream(output);
+            bitsWritten += header.writeDelta(CountsReader.VERSION_2_MARKER);
+            bitsWritten += header.writeDelta(initialCount + 1);  // Delta cannot be zero, so add 1.
+            bitsWritten += CountIndex.writeEmbedded(skipPositions, skipOffsets, skipCounts, header);
+            header.write(transitions.array, transitionBits);
+            header.flush();
+            header.close();
             if (LOG.isDebugEnabled()) {
                 LOG.debug("bits written: " + bitsWritten);
                 LOG.debug("bytes written: " + bitsWritten / 8);
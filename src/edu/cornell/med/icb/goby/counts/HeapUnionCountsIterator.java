@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This file is part of the Goby IO API.
+ *
+ *     The Goby IO API is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     The Goby IO API is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with the Goby IO API.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.counts;
+
+import it.unimi.dsi.fastutil.ints.IntHeapIndirectPriorityQueue;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates through a set of count readers, returning a transition whenever one of the
+ * underlying readers would report a transition at the position. This iterator returns the same
+ * transitions as {@link AnyTransitionCountsIterator}, but keeps the readers in a min-heap keyed
+ * by the position where each reader next changes. Advancing to the next transition only touches
+ * the readers that change at this position, so the cost of a transition is O(log N) in the
+ * number of readers, rather than O(N).
+ * <p/>
+ * Counts of the current transition are available as an array shared with the iterator
+ * (see {@link #getCounts()}), and {@link #nextRuns(int[], int[], int[])} fills caller-provided
+ * arrays with several transitions at once.
+ */
+public class HeapUnionCountsIterator implements CountsAggregatorI {
+    private final int numReaders;
+    private final CountsReaderI[] readers;
+    /**
+     * Start of the current run of each reader.
+     */
+    private final int[] startPositions;
+    /**
+     * End (exclusive) of the current run of each reader.
+     */
+    private final int[] endPositions;
+    /**
+     * Count of the current run of each reader.
+     */
+    private final int[] runCounts;
+    /**
+     * Position where each reader next changes, the key of the heap.
+     */
+    private final int[] nextChange;
+    /**
+     * Count of each reader at the current position.
+     */
+    private final int[] counts;
+    private final IntHeapIndirectPriorityQueue heap;
+    private int sumOfCounts;
+    private boolean hasNextTransition;
+    private int position;
+    private int length;
+
+    public HeapUnionCountsIterator(final CountsReaderI... readers) throws IOException {
+        numReaders = readers.length;
+        this.readers = readers;
+        startPositions = new int[numReaders];
+        endPositions = new int[numReaders];
+        runCounts = new int[numReaders];
+        nextChange = new int[numReaders];
+        counts = new int[numReaders];
+        heap = new IntHeapIndirectPriorityQueue(nextChange, Math.max(1, numReaders));
+        for (int readerIndex = 0; readerIndex < numReaders; ++readerIndex) {
+            if (loadNextRun(readerIndex)) {
+                heap.enqueue(readerIndex);
+            }
+        }
+    }
+
+    /**
+     * Load the next run of a reader. The reader next changes where the run starts.
+     *
+     * @param readerIndex Index of the reader.
+     * @return False if the reader has no more transitions.
+     * @throws IOException If an error occurs reading counts.
+     */
+    private boolean loadNextRun(final int readerIndex) throws IOException {
+        final CountsReaderI reader = readers[readerIndex];
+        if (!reader.hasNextTransition()) {
+            return false;
+        }
+        reader.nextTransition();
+        final int startPosition = reader.getPosition();
+        startPositions[readerIndex] = startPosition;
+        endPositions[readerIndex] = startPosition + reader.getLength();
+        runCounts[readerIndex] = reader.getCount();
+        nextChange[readerIndex] = startPosition;
+        return true;
+    }
+
+    private void setCount(final int readerIndex, final int count) {
+        sumOfCounts += count - counts[readerIndex];
+        counts[readerIndex] = count;
+    }
+
+    public boolean hasNextTransition() throws IOException {
+        if (hasNextTransition) {
+            return true;
+        }
+        if (heap.isEmpty()) {
+            length = 0;
+            return false;
+        }
+        position = nextChange[heap.first()];
+        // update the readers that change at this position:
+        while (!heap.isEmpty() && nextChange[heap.first()] == position) {
+            final int readerIndex = heap.first();
+            if (position == startPositions[readerIndex] && position < endPositions[readerIndex]) {
+                // the reader enters its current run:
+                setCount(readerIndex, runCounts[readerIndex]);
+                nextChange[readerIndex] = endPositions[readerIndex];
+                heap.changed();
+            } else {
+                // the reader leaves its current run, its count is zero until the next run starts:
+                setCount(readerIndex, 0);
+                if (loadNextRun(readerIndex)) {
+                    heap.changed();
+                } else {
+                    heap.dequeue();
+                }
+            }
+        }
+        if (heap.isEmpty()) {
+            // position is the end of the last run:
+            length = 0;
+            return false;
+        }
+        length = nextChange[heap.first()] - position;
+        hasNextTransition = true;
+        return true;
+    }
+
+    public void nextTransition() throws IOException {
+        if (!hasNextTransition()) {
+            throw new NoSuchElementException("no elements left in reader.");
+        }
+        hasNextTransition = false;
+    }
+
+    /**
+     * Advance over several transitions at once. Transition i is written to positions[i], lengths[i] and
+     * counts[i*N..(i+1)*N[, where N is the number of readers.
+     *
+     * @param positions Where to write the position of each transition.
+     * @param lengths   Where to write the length of each transition.
+     * @param counts    Where to write the counts of the readers at each transition.
+     * @return The number of transitions written, zero when the iterator has no more transitions.
+     * @throws IOException If an error occurs reading counts.
+     */
+    public int nextRuns(final int[] positions, final int[] lengths, final int[] counts) throws IOException {
+        final int maxRuns = Math.min(Math.min(positions.length, lengths.length),
+                numReaders == 0 ? Integer.MAX_VALUE : counts.length / numReaders);
+        int numRuns = 0;
+        while (numRuns < maxRuns && hasNextTransition()) {
+            nextTransition();
+            positions[numRuns] = position;
+            lengths[numRuns] = length;
+            System.arraycopy(this.counts, 0, counts, numRuns * numReaders, numReaders);
+            ++numRuns;
+        }
+        return numRuns;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Return the sum of counts over the readers at the current position.
+     */
+    public int getCount() {
+        return sumOfCounts;
+    }
+
+    /**
+     * Return the count for a specific reader.
+     *
+     * @param readerIndex Index ((zero-based) of the reader when provided as parameter to the constructor
+     * @return count for the reader identified by readerIndex.
+     */
+    public final int getCount(final int readerIndex) {
+        return counts[readerIndex];
+    }
+
+    /**
+     * Return the counts of the readers at the current position. The array is owned by this iterator and
+     * updated in place when the iterator advances: copy it to keep the counts of a transition.
+     *
+     * @return counts indexed by reader index.
+     */
+    public final int[] getCounts() {
+        return counts;
+    }
+
+    public final CountsReaderI[] getReaders() {
+        return readers;
+    }
+
+    public void skipTo(final int position) throws IOException {
+        // skip to the specified position
+        while (hasNextTransition()) {
+            nextTransition();
+            if (getPosition() >= position) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void reposition(final int position) throws IOException {
+        throw new UnsupportedOperationException("this implementation does not support this method.");
+    }
+
+    public void close() throws IOException {
+        for (final CountsReaderI reader : readers) {
+            reader.close();
+        }
+        heap.clear();
+    }
+}
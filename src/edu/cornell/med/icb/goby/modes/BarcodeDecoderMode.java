@@ -23,6 +23,7 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.readers.FastXEntry;
 import edu.cornell.med.icb.goby.readers.FastXReader;
 import edu.cornell.med.icb.goby.reads.*;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import edu.cornell.med.icb.goby.util.barcode.BarcodeMatcher;
 import edu.cornell.med.icb.goby.util.barcode.BarcodeMatcherResult;
 import edu.cornell.med.icb.goby.util.barcode.PostBarcodeMatcher;
@@ -40,6 +41,7 @@ import org.apache.log4j.Logger;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.Callable;
 
 /**
  * @author Fabien Campagne
@@ -121,6 +123,30 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
      */
     private boolean includeIdentifiers = false;
 
+    /**
+     * Number of reads matched together by one thread.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * Number of threads that match barcodes, -1 for one per available processor.
+     */
+    private int numThreads = 1;
+
+    /**
+     * Matches the barcodes of batches and returns the batches in the order they were read.
+     */
+    private OrderedExecutor<ReadBatch> matchingExecutor;
+
+    private BarcodeMatcher matcher;
+    private ReadsWriter singleWriter;
+    private ReadsWriterImpl[] writers;
+    private final ByteList qualitiesNoBarcode = new ByteArrayList();
+    private int countMatched;
+    private int countNoMatch;
+    private int countAmbiguous;
+    private boolean retainReadIndex;
+
     /**
      * Configure.
      *
@@ -153,6 +179,7 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         }
         minimalMatchLength = jsapResult.getInt("minimal-match-length");
         maxMismatches = jsapResult.getInt("max-mismatches");
+        numThreads = jsapResult.getInt("num-threads", 1);
 
         return this;
     }
@@ -163,8 +190,8 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         loadBarcodeInfo(barcodeInfoFilename);
 
 
-        ReadsWriter singleWriter = null;
-        final ReadsWriterImpl[] writers = new ReadsWriterImpl[barcodeIndexToSampleId.size()];
+        singleWriter = null;
+        writers = new ReadsWriterImpl[barcodeIndexToSampleId.size()];
         if (outputFilename == null) {
             for (int i = 0; i < writers.length; i++) {
                 writers[i] = new ReadsWriterImpl(new FileOutputStream(barcodeIndexToSampleId.get(i).trim() + ".compact-reads"));
@@ -173,103 +200,57 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
             singleWriter = new ReadsWriterImpl(new FileOutputStream(outputFilename));
         }
 
-        final BarcodeMatcher matcher = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
+        matcher = is3Prime ? new PostBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches) :
                 new PreBarcodeMatcher(barcodes, minimalMatchLength, maxMismatches);
 
-        final MutableString sequence = new MutableString();
-        final ByteList qualitiesNoBarcode = new ByteArrayList();
+        final int numMatchingThreads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads;
+        matchingExecutor = new OrderedExecutor<ReadBatch>("barcode-matching",
+                numMatchingThreads > 1 ? numMatchingThreads : 0);
         try {
-            int countMatched = 0;
-            int countNoMatch = 0;
-            int countAmbiguous = 0;
-            final boolean retainReadIndex = inputFilenames.length == 1;
+            countMatched = 0;
+            countNoMatch = 0;
+            countAmbiguous = 0;
+            retainReadIndex = inputFilenames.length == 1;
             progress.displayFreeMemory = true;
             for (final String inputReadsFilename : inputFilenames) {
+                ReadBatch batch = new ReadBatch();
                 if (inputReadsFilename.toLowerCase().endsWith(".compact-reads")) {
                     progress.start("Progressing .compact-reads file " + inputReadsFilename);
                     for (final Reads.ReadEntry readEntry : new ReadsReader(inputReadsFilename)) {
+                        final MutableString sequence = new MutableString();
                         ReadsReader.decodeSequence(readEntry, sequence);
-                        final BarcodeMatcherResult match = matcher.matchSequence(sequence);
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            writer.setSequence(match.sequenceOf(sequence));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (readEntry.hasDescription()) {
-                                writer.setDescription(readEntry.getDescription());
-                            }
-                            if (readEntry.hasReadIdentifier()) {
-                                writer.setIdentifier(readEntry.getReadIdentifier());
-                            }
-                            if (readEntry.hasQualityScores()) {
-                                qualitiesNoBarcode.clear();
-                                qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
-                                        match.getSequenceStartPosition(),
-                                        match.getSequenceStartPosition() + match.getSequenceLength());
-                                writer.setQualityScores(qualitiesNoBarcode.toByteArray());
-                            }
-                            if (retainReadIndex) {
-                                writer.appendEntry(readEntry.getReadIndex());
-                            } else {
-                                writer.appendEntry();
-                            }
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
+                        batch.add(readEntry, sequence, null, null);
+                        if (batch.size == BATCH_SIZE) {
+                            submit(batch);
+                            batch = new ReadBatch();
                         }
-                        progress.lightUpdate();
                     }
-                    progress.stop();
                 } else {
                     final FastXReader fastxReader = new FastXReader(inputReadsFilename);
                     fastxReader.setUseCasavaQualityFilter(true);
                     progress.start("Progressing fasta/fastq file " + inputReadsFilename);
                     for (final FastXEntry readEntry : new FastXReader(inputReadsFilename)) {
-                        final BarcodeMatcherResult match = matcher.matchSequence(readEntry.getSequence());
-                        if (match != null) {
-                            // remove the barcode from the sequence:
-                            final int barcodeIndex = match.getBarcodeIndex();
-                            if (match.isAmbiguous()) {
-                                ++countAmbiguous;
-                            }
-                            final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
-                            writer.setSequence(match.sequenceOf(readEntry.getSequence()));
-                            writer.setBarcodeIndex(barcodeIndex);
-
-                            if (includeDescriptions) {
-                                writer.setDescription(readEntry.getEntryHeader());
-                            }
-                            if (includeIdentifiers) {
-                                final MutableString description = readEntry.getEntryHeader();
-                                final String identifier = description.toString().split("[\\s]")[0];
-                                writer.setIdentifier(identifier);
-                            }
-                            if (readEntry.getQuality().length() > 0) {
-                                writer.setQualityScores(FastaToCompactMode.convertQualityScores(qualityEncoding,
-                                        readEntry.getQuality().subSequence(
-                                                match.getSequenceStartPosition(),
-                                                match.getSequenceStartPosition() + match.getSequenceLength()),
-                                        false, apiMode));
-                            }
-                            writer.appendEntry();
-                            ++countMatched;
-                        } else {
-                            ++countNoMatch;
+                        batch.add(null, readEntry.getSequence().copy(), readEntry.getEntryHeader().copy(),
+                                readEntry.getQuality().copy());
+                        if (batch.size == BATCH_SIZE) {
+                            submit(batch);
+                            batch = new ReadBatch();
                         }
-                        progress.lightUpdate();
                     }
-                    progress.stop();
                 }
+                if (batch.size > 0) {
+                    submit(batch);
+                }
+                while (!matchingExecutor.isEmpty()) {
+                    write(matchingExecutor.take());
+                }
+                progress.stop();
             }
             System.out.format("barcode found in %g %% of the reads %n", percent(countMatched, countMatched + countNoMatch));
             System.out.format("Found %g %% ambiguous matches %n", percent(countAmbiguous, countMatched));
         }
         finally {
+            matchingExecutor.shutdown();
             for (int i = 0; i < writers.length; i++) {
                 if (writers[i] != null) {
                     writers[i].close();
@@ -283,6 +264,115 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
 
     }
 
+    /**
+     * Reads of a batch, with the sequences to match. Reads come either from a .compact-reads file
+     * (readEntries) or from a fasta/fastq file (headers and qualities).
+     */
+    private static final class ReadBatch {
+        private final Reads.ReadEntry[] readEntries = new Reads.ReadEntry[BATCH_SIZE];
+        private final MutableString[] sequences = new MutableString[BATCH_SIZE];
+        private final MutableString[] headers = new MutableString[BATCH_SIZE];
+        private final MutableString[] qualities = new MutableString[BATCH_SIZE];
+        private BarcodeMatcherResult[] matches;
+        private int size;
+
+        private void add(final Reads.ReadEntry readEntry, final MutableString sequence,
+                         final MutableString header, final MutableString quality) {
+            readEntries[size] = readEntry;
+            sequences[size] = sequence;
+            headers[size] = header;
+            qualities[size] = quality;
+            size++;
+        }
+
+        private ReadBatch match(final BarcodeMatcher matcher) {
+            matches = new BarcodeMatcherResult[size];
+            for (int i = 0; i < size; i++) {
+                matches[i] = matcher.matchSequence(sequences[i]);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Match the reads of a batch, on a matching thread if threads are used, and write the batches whose
+     * matches are available, in the order of the input.
+     */
+    private void submit(final ReadBatch batch) throws IOException {
+        matchingExecutor.submit(new Callable<ReadBatch>() {
+            @Override
+            public ReadBatch call() {
+                return batch.match(matcher);
+            }
+        });
+        while (matchingExecutor.hasReadyResult()) {
+            write(matchingExecutor.take());
+        }
+    }
+
+    /**
+     * Write the reads of a batch that matched a barcode to the writer of the barcode, or to the single writer.
+     */
+    private void write(final ReadBatch batch) throws IOException {
+        for (int i = 0; i < batch.size; i++) {
+            final BarcodeMatcherResult match = batch.matches[i];
+            if (match != null) {
+                // remove the barcode from the sequence:
+                final int barcodeIndex = match.getBarcodeIndex();
+                if (match.isAmbiguous()) {
+                    ++countAmbiguous;
+                }
+                final ReadsWriter writer = outputFilename == null ? writers[barcodeIndex] : singleWriter;
+                final MutableString sequence = batch.sequences[i];
+                writer.setSequence(match.sequenceOf(sequence));
+                writer.setBarcodeIndex(barcodeIndex);
+                final Reads.ReadEntry readEntry = batch.readEntries[i];
+                if (readEntry != null) {
+                    if (readEntry.hasDescription()) {
+                        writer.setDescription(readEntry.getDescription());
+                    }
+                    if (readEntry.hasReadIdentifier()) {
+                        writer.setIdentifier(readEntry.getReadIdentifier());
+                    }
+                    if (readEntry.hasQualityScores()) {
+                        qualitiesNoBarcode.clear();
+                        qualitiesNoBarcode.addElements(0, readEntry.getQualityScores().toByteArray(),
+                                match.getSequenceStartPosition(),
+                                match.getSequenceStartPosition() + match.getSequenceLength());
+                        writer.setQualityScores(qualitiesNoBarcode.toByteArray());
+                    }
+                    if (retainReadIndex) {
+                        writer.appendEntry(readEntry.getReadIndex());
+                    } else {
+                        writer.appendEntry();
+                    }
+                } else {
+                    if (includeDescriptions) {
+                        writer.setDescription(batch.headers[i]);
+                    }
+                    if (includeIdentifiers) {
+                        final MutableString description = batch.headers[i];
+                        final String identifier = description.toString().split("[\\s]")[0];
+                        writer.setIdentifier(identifier);
+                    }
+                    final MutableString quality = batch.qualities[i];
+                    if (quality.length() > 0) {
+                        writer.setQualityScores(FastaToCompactMode.convertQualityScores(qualityEncoding,
+                                quality.subSequence(
+                                        match.getSequenceStartPosition(),
+                                        match.getSequenceStartPosition() + match.getSequenceLength()),
+                                false, apiMode));
+                    }
+                    writer.appendEntry();
+                }
+                ++countMatched;
+            } else {
+                ++countNoMatch;
+            }
+            progress.lightUpdate();
+        }
+    }
+
     private double percent(final int countMatched, final int total) {
         return (double) countMatched / (double) total * 100d;
     }
@@ -338,6 +428,16 @@ public class BarcodeDecoderMode extends AbstractGobyMode {
         this.qualityEncoding = QualityEncoding.valueOf(qualityEncoding.toUpperCase());
     }
 
+    /**
+     * Set the number of threads that match barcodes.
+     *
+     * @param numThreads number of threads, -1 for one thread per available processor. With one thread,
+     * barcodes are matched in the thread that reads the input.
+     */
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     /**
      * Main method.
      *
@@ -18,7 +18,6 @@
 
 package edu.cornell.med.icb.goby.modes;
 
-import edu.cornell.med.icb.goby.R.GobyRengine;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
@@ -33,7 +32,6 @@ import it.unimi.dsi.fastutil.objects.*;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.rosuda.JRI.Rengine;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -57,7 +55,6 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
     private int refIdColumnIndex;
     private int positionColumnIndex;
 
-    private boolean fisherRInstalled;
     private String[] groups;
     private String[] samples;
     private ObjectArrayList<ReadIndexStats> readIndexStats;
@@ -91,12 +88,6 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
         ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
         this.statWriter = new TSVWriter(outputInfo.getPrintWriter());
 
-        if (deAnalyzer.eval("within-groups") || deAnalyzer.eval("between-groups")) {
-            //activate R only if we need it:
-            final Rengine rEngine = GobyRengine.getInstance().getRengine();
-            fisherRInstalled = rEngine != null && rEngine.isAlive();
-
-        }
         if (deAnalyzer.eval("between-groups") && groups.length != 2) {
             System.err.println("--eval between-groups requires exactly two groups.");
             System.exit(1);
@@ -237,9 +228,9 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
 
             boolean ok = checkCounts();
             if (ok) {
-                fisherP = fisherRInstalled ? FisherExactRCalculator.getFisherPValue(
+                fisherP = FisherExactRCalculator.getFisherPValue(
                         refCountsPerGroup[groupIndexB], variantsCountPerGroup[groupIndexB],
-                        refCountsPerGroup[groupIndexA], variantsCountPerGroup[groupIndexA]) : Double.NaN;
+                        refCountsPerGroup[groupIndexA], variantsCountPerGroup[groupIndexA]);
             } else {
                 System.err.printf("An exception was caught evaluating the Fisher Exact test P-value. Details are provided below%n" +
                         "referenceId=%s referenceIndex=%d position=%d %n" +
@@ -441,10 +432,9 @@ public class BetweenGroupSequenceVariationOutputFormat implements SequenceVariat
                     expectedVariationCount, observedVariationCount,
                     expectedReferenceCount, observedReferenceCount));
         }
-        pValue = fisherRInstalled ? FisherExactRCalculator.getFisherOneTailedLesserPValue(
+        pValue = FisherExactRCalculator.getFisherOneTailedLesserPValue(
                 expectedVariationCount, observedVariationCount,
-                expectedReferenceCount, observedReferenceCount
-        ) : Double.NaN;
+                expectedReferenceCount, observedReferenceCount);
         //  System.out.printf("position=%d P-Value=%f%n", position, pValue);
         return pValue;
 
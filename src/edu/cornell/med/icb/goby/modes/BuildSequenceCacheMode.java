@@ -20,6 +20,7 @@ package edu.cornell.med.icb.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.goby.reads.MappedSequenceCacheWriter;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -46,7 +47,8 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
      * The mode description help text.
      */
     private static final String MODE_DESCRIPTION =
-            "Converts a fasta input file to a random access cache.";
+            "Converts a fasta input file to a random access cache. With --format mapped, writes a "
+                    + "memory-mapped genome instead (the input may then also be an existing cache basename).";
 
     /**
      * The Fasta input file.
@@ -59,6 +61,11 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
     private String basename;
 
+    /**
+     * The format of the cache: serialized or mapped.
+     */
+    private String format;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -83,6 +90,11 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
 
         inputFile = jsapResult.getString("input");
         basename = jsapResult.getString("basename");
+        format = jsapResult.getString("format");
+        if (!"serialized".equals(format) && !"mapped".equals(format)) {
+            System.err.println("--format must be serialized or mapped, found: " + format);
+            System.exit(1);
+        }
         if (basename==null) {
             String filename=inputFile;
             if (filename.endsWith(".gz")) {
@@ -104,6 +116,10 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
      */
     @Override
     public void execute() throws IOException {
+        if ("mapped".equals(format)) {
+            writeMapped();
+            return;
+        }
         final RandomAccessSequenceCache cacheBuilder = new RandomAccessSequenceCache();
 
         InputStream input = null;
@@ -131,6 +147,41 @@ public class BuildSequenceCacheMode extends AbstractGobyMode {
         System.out.println("Sequence cacheBuilder written to disk with basename " + basename);
     }
 
+    /**
+     * Write a memory-mapped genome. The input is streamed to disk, unless it is an existing serialized
+     * cache, which is loaded and converted.
+     *
+     * @throws IOException error reading / writing
+     */
+    private void writeMapped() throws IOException {
+        final MappedSequenceCacheWriter writer = new MappedSequenceCacheWriter(basename);
+        final RandomAccessSequenceCache serializedCache = new RandomAccessSequenceCache();
+        InputStream input = null;
+        try {
+            System.out.println("Writing mapped genome..");
+            if (serializedCache.canLoad(inputFile)) {
+                serializedCache.load(inputFile);
+                writer.append(serializedCache);
+            } else if (inputFile.endsWith(".compact-reads")) {
+                input = new FileInputStream(inputFile);
+                writer.appendCompact(input);
+            } else {
+                if (inputFile.endsWith(".gz")) {
+                    input = new GZIPInputStream(new FileInputStream(inputFile));
+                } else {
+                    input = new FileInputStream(inputFile);
+                }
+                writer.appendFasta(new InputStreamReader(input));
+            }
+            writer.close();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to load sequence cache " + inputFile, e);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        System.out.println("Mapped genome written to disk with basename " + basename);
+    }
+
     /**
      * Main method.
      *
@@ -531,6 +531,8 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
         }
         final AnnotationCountIterateAlignments iterateAlignment = new AnnotationCountIterateAlignments();
         iterateAlignment.setWeightInfo(weightParams, weights);
+        // count sorted alignments as they are read, without keeping the reads in memory:
+        iterateAlignment.setAnnotations(allAnnots);
         iterateAlignment.parseIncludeReferenceArgument(includeReferenceNameCommas);
 
         // Iterate through the alignment and retrieve algs:
@@ -683,7 +685,6 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                     final int geneStart = annot.getStart();
                     final int geneEnd = annot.getEnd();
                     final int geneLength = geneEnd - geneStart + 1;
-                    final float geneDepth = algs[referenceIndex].averageReadsPerPosition(geneStart, geneEnd);
                     final double geneOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(geneStart, geneEnd);
                     final double geneInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(geneStart, geneEnd);
                     final double geneExpression = algs[referenceIndex].geneExpressionCount(annot);
@@ -728,7 +729,6 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                         final String exonStrand = segment.getStrand();
                         final int exonLength = segment.getLength();
                         final String exonID = segment.getId();
-                        final float exonDepth = algs[referenceIndex].averageReadsPerPosition(exonStart, exonEnd);
                         final double exonOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(exonStart, exonEnd);
                         final double exonInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(exonStart, exonEnd);
                         final double exonRPKM = deCalculator.calculateNormalized(exonOverlapReads, segment.getLength(), deCalculator.getNumAlignedInSample(sampleId));
@@ -760,7 +760,6 @@ public class CompactAlignmentToAnnotationCountsMode extends AbstractGobyMode {
                             final int intronEnd = intronSegment.getStart() - 1;
                             final int intronLength = intronEnd - intronStart + 1;
                             final String intronID = segment.getId() + "-" + intronSegment.getId();
-                            final float intronDepth = algs[referenceIndex].averageReadsPerPosition(intronStart, intronEnd);
                             final double intronOverlapReads = algs[referenceIndex].countReadsPartiallyOverlappingWithInterval(intronStart, intronEnd);
                             final double intronInsideReads = algs[referenceIndex].countReadsStriclyWithinInterval(intronStart, intronEnd);
                             final double intronRPKM = deCalculator.calculateNormalized(intronOverlapReads, intronSegment.getLength(), deCalculator.getNumAlignedInSample(sampleId));
@@ -23,14 +23,16 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.algorithmic.algorithm.*;
 import edu.cornell.med.icb.goby.algorithmic.data.WeightsInfo;
 import edu.cornell.med.icb.goby.alignments.*;
-import edu.cornell.med.icb.goby.counts.CountWriterHelper2;
 import edu.cornell.med.icb.goby.counts.CountsArchiveWriter;
-import edu.cornell.med.icb.goby.counts.CountsWriterHelperI;
 import edu.cornell.med.icb.goby.counts.CountsWriterI;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import edu.cornell.med.icb.goby.util.Timer;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.logging.ProgressLogger;
@@ -39,6 +41,7 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 /**
  * Converts a compact alignment to a compressed count archive.
@@ -87,6 +90,10 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
     private static final Logger LOG = Logger.getLogger(CompactAlignmentToCountsMode.class);
     private boolean verbose;
     private boolean filterAmbiguousReads;
+    /**
+     * Number of threads used to compute counts, each thread processes one reference sequence at a time.
+     */
+    private int numThreads = 1;
 
     @Override
     public String getModeName() {
@@ -162,6 +169,10 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         if (filterAmbiguousReads) {
             System.out.println("Ambiguous reads will not be considered when estimating count statistics.");
         }
+        numThreads = jsapResult.getInt("num-threads", 1);
+        if (numThreads == -1) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
         return this;
     }
 
@@ -201,14 +212,12 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
         AlignmentReader reader = new AlignmentReaderImpl(basename);
 
         reader.readHeader();
-        /*if (reader.isSorted() && reader.getNumberOfAlignedReads() > 50000000) {
-
-            // if the alignment is sorted and has more than 50 million aligned reads, we switch to the more scalable
-            // count production method. The method scales to any size alignment, but is about 3-4 times slower than
-            // directly loading the entire alignment in memory..
-            processSortedAlignmentFullGenome(basename, reader,factory);
+        if (reader.isSorted() && accumulatePeakHistogram && !weightParams.useWeights) {
+            // sorted alignments are converted to counts in one pass over the entries, with memory
+            // proportional to the depth of coverage:
+            processSortedAlignmentFullGenome(basename, reader, factory);
             return;
-        }   */
+        }
 
         final int numberOfReferences = reader.getNumberOfTargets();
 
@@ -256,102 +265,209 @@ public class CompactAlignmentToCountsMode extends AbstractGobyMode {
             }
         }
 
-        final AlignmentReader referenceReader = new AlignmentReaderImpl(basename);
-        referenceReader.readHeader();
+        // read the entries through the factory, as the sorted path does, so that ambiguous reads are filtered
+        // whether or not the alignment is sorted:
+        final AlignmentReader referenceReader = factory.createReader(basename);
+        try {
+            referenceReader.readHeader();
 
-        // read the alignment:
-        //   System.out.println("Loading the alignment..");
-        for (final Alignments.AlignmentEntry alignmentEntry : referenceReader) {
-            final int referenceIndex = alignmentEntry.getTargetIndex();
-            if (referencesToProcess.contains(referenceIndex)) {
-                final int startPosition = alignmentEntry.getPosition();
+            // read the alignment:
+            //   System.out.println("Loading the alignment..");
+            for (final Alignments.AlignmentEntry alignmentEntry : referenceReader) {
+                final int referenceIndex = alignmentEntry.getTargetIndex();
+                if (referencesToProcess.contains(referenceIndex)) {
+                    final int startPosition = alignmentEntry.getPosition();
 
-                final int alignmentLength = alignmentEntry.getTargetAlignedLength();
-                for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
+                    final int alignmentLength = alignmentEntry.getTargetAlignedLength();
+                    for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
 
-                    algs[referenceIndex].populate(startPosition, startPosition + alignmentLength,
-                            !alignmentEntry.getMatchingReverseStrand(), alignmentEntry.getQueryIndex());
+                        algs[referenceIndex].populate(startPosition, startPosition + alignmentLength,
+                                !alignmentEntry.getMatchingReverseStrand(), alignmentEntry.getQueryIndex());
+                    }
                 }
             }
+        } finally {
+            referenceReader.close();
         }
-
-        reader.close();
         final Timer timer = new Timer();
         timer.start();
-        for (final int referenceIndex : referencesToProcess) {
-            final String chromosomeName = referenceIds.getId(referenceIndex).toString();
-
-            if (verbose) {
-                System.out.println("Writing counts for reference " + chromosomeName);
-            }
-
-            algs[referenceIndex].accumulate();
-            final CountsWriterI countsWriterI = countArchive.newCountWriter(referenceIndex, chromosomeName);
-            algs[referenceIndex].baseCount(countsWriterI);
-            countArchive.returnWriter(countsWriterI);
-            algs[referenceIndex] = null;
-            // Runtime.getRuntime().gc();
+        final int[] sortedReferences = referencesToProcess.toIntArray();
+        IntArrays.quickSort(sortedReferences);
+        final ObjectList<Callable<CountsWriterI>> tasks = new ObjectArrayList<Callable<CountsWriterI>>();
+        for (final int referenceIndex : sortedReferences) {
+            tasks.add(new Callable<CountsWriterI>() {
+                @Override
+                public CountsWriterI call() throws IOException {
+                    final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+
+                    if (verbose) {
+                        System.out.println("Writing counts for reference " + chromosomeName);
+                    }
 
+                    algs[referenceIndex].accumulate();
+                    final CountsWriterI countsWriterI = countArchive.newCountWriter(referenceIndex, chromosomeName);
+                    algs[referenceIndex].baseCount(countsWriterI);
+                    algs[referenceIndex] = null;
+                    return countsWriterI;
+                }
+            });
         }
+        writeCounts(countArchive, tasks);
         countArchive.close();
         timer.stop();
         System.out.println(timer);
     }
 
-    private void processSortedAlignmentFullGenome(final String basename, AlignmentReader reader, AlignmentReaderFactory factory) throws IOException {
+    private void processSortedAlignmentFullGenome(final String basename, final AlignmentReader reader,
+                                                  final AlignmentReaderFactory factory) throws IOException {
+        final int numberOfReferences = reader.getNumberOfTargets();
+        final DoubleIndexedIdentifier referenceIds = new DoubleIndexedIdentifier(reader.getTargetIdentifiers());
         reader.close();
-        System.out.println("Processing in large alignment mode: " + basename);
+        final boolean[] referencesToProcess = new boolean[numberOfReferences];
+        for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+            referencesToProcess[referenceIndex] = !filterByReferenceNames ||
+                    includeReferenceNames.contains(referenceIds.getId(referenceIndex).toString());
+        }
         final CountsArchiveWriter countArchive = new CountsArchiveWriter(basename, countArchiveModifier);
-        final IterateForCounts sortedPositionIterator = new IterateForCounts(countArchive, LOG);
-        sortedPositionIterator.setAlignmentReaderFactory(factory);
-        sortedPositionIterator.iterate(basename);
-        sortedPositionIterator.finishWriter();
-    }
-
-    private class IterateForCounts extends IterateSortedAlignmentsListImpl {
-        CountsWriterI writerI;
-        CountsArchiveWriter archiveWriter;
-        CountsWriterHelperI helperI;
-
-
-        private IterateForCounts(CountsArchiveWriter archiveWriter, Logger LOG) {
-            this.archiveWriter = archiveWriter;
-
+        countArchive.setVerbose(verbose);
+        final Timer timer = new Timer();
+        timer.start();
+        if (numThreads > 1) {
+            // each reference is read from its own slice of the alignment, in parallel:
+            final ObjectList<Callable<CountsWriterI>> tasks = new ObjectArrayList<Callable<CountsWriterI>>();
+            for (int referenceIndex = 0; referenceIndex < numberOfReferences; referenceIndex++) {
+                if (referencesToProcess[referenceIndex]) {
+                    tasks.add(newSortedReferenceTask(basename, factory, countArchive, referenceIds, referenceIndex));
+                }
+            }
+            writeCounts(countArchive, tasks);
+            countArchive.close();
+            timer.stop();
+            System.out.println(timer);
+            return;
         }
-
-        int lastReferenceIndex = -1;
-        int lastPosition=-1;
-        @Override
-        public void processPositions(int referenceIndex, int position, DiscoverVariantPositionData positionBaseInfos) {
-            try {
-                if (referenceIndex != lastReferenceIndex) {
-                   // System.out.println("Switching reference, last position was "+lastPosition);
-                    if (writerI != null) {
-                        finishWriter();
+        final AlignmentReader sortedReader = factory.createReader(basename);
+        sortedReader.readHeader();
+        // references before nextReferenceIndex have been written:
+        int nextReferenceIndex = 0;
+        int currentReferenceIndex = -1;
+        CountsWriterI countsWriter = null;
+        SweepLineCount sweep = null;
+        try {
+            for (final Alignments.AlignmentEntry alignmentEntry : sortedReader) {
+                final int referenceIndex = alignmentEntry.getTargetIndex();
+                if (!referencesToProcess[referenceIndex]) {
+                    continue;
+                }
+                if (referenceIndex != currentReferenceIndex) {
+                    if (sweep != null) {
+                        sweep.close();
+                        countArchive.returnWriter(countsWriter);
+                    }
+                    // references without alignments get empty counts:
+                    for (; nextReferenceIndex < referenceIndex; nextReferenceIndex++) {
+                        writeEmptyCounts(countArchive, referenceIds, referencesToProcess, nextReferenceIndex);
                     }
-                    writerI = archiveWriter.newCountWriter(referenceIndex, getReferenceId(referenceIndex).toString());
-                    helperI = new CountWriterHelper2(writerI);
-                    lastReferenceIndex = referenceIndex;
-                    lastPosition=-1;
+                    nextReferenceIndex = referenceIndex + 1;
+                    currentReferenceIndex = referenceIndex;
+                    final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+                    if (verbose) {
+                        System.out.println("Writing counts for reference " + chromosomeName);
+                    }
+                    countsWriter = countArchive.newCountWriter(referenceIndex, chromosomeName);
+                    sweep = new SweepLineCount(countsWriter);
                 }
-                if (position>lastPosition) {
-                    helperI.appendCountAtPosition(positionBaseInfos.size(), position);
-                    lastPosition=position;
+                final int startPosition = alignmentEntry.getPosition();
+                final int alignmentLength = alignmentEntry.getTargetAlignedLength();
+                for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
+                    sweep.populate(startPosition, startPosition + alignmentLength);
                 }
-            } catch (IOException e) {
-                LOG.error("cannot return counts writer to archive", e);
-
             }
+            if (sweep != null) {
+                sweep.close();
+                countArchive.returnWriter(countsWriter);
+            }
+            for (; nextReferenceIndex < numberOfReferences; nextReferenceIndex++) {
+                writeEmptyCounts(countArchive, referenceIds, referencesToProcess, nextReferenceIndex);
+            }
+        } finally {
+            sortedReader.close();
         }
+        countArchive.close();
+        timer.stop();
+        System.out.println(timer);
+    }
 
-        public void finishWriter() throws IOException {
-            helperI.close();
-            archiveWriter.returnWriter(writerI);
-
-            writerI = null;
+    /**
+     * Create a task that writes the counts of one reference of a sorted alignment.
+     */
+    private Callable<CountsWriterI> newSortedReferenceTask(final String basename, final AlignmentReaderFactory factory,
+                                                          final CountsArchiveWriter countArchive,
+                                                          final DoubleIndexedIdentifier referenceIds,
+                                                          final int referenceIndex) {
+        return new Callable<CountsWriterI>() {
+            @Override
+            public CountsWriterI call() throws IOException {
+                final String chromosomeName = referenceIds.getId(referenceIndex).toString();
+                if (verbose) {
+                    System.out.println("Writing counts for reference " + chromosomeName);
+                }
+                final CountsWriterI countsWriter = countArchive.newCountWriter(referenceIndex, chromosomeName);
+                final SweepLineCount sweep = new SweepLineCount(countsWriter);
+                final AlignmentReader referenceReader =
+                        factory.createReader(basename, referenceIndex, 0, referenceIndex, Integer.MAX_VALUE);
+                try {
+                    for (final Alignments.AlignmentEntry alignmentEntry : referenceReader) {
+                        if (alignmentEntry.getTargetIndex() != referenceIndex) {
+                            continue;
+                        }
+                        final int startPosition = alignmentEntry.getPosition();
+                        final int alignmentLength = alignmentEntry.getTargetAlignedLength();
+                        for (int i = 0; i < alignmentEntry.getMultiplicity(); ++i) {
+                            sweep.populate(startPosition, startPosition + alignmentLength);
+                        }
+                    }
+                } finally {
+                    referenceReader.close();
+                }
+                sweep.close();
+                return countsWriter;
+            }
+        };
+    }
 
+    /**
+     * Run tasks that each produce the counts of one reference sequence, with numThreads threads. Writers
+     * are returned to the archive in the order of the tasks, so that the archive is the same as the one
+     * written with one thread. Tasks are submitted ahead of the writer being returned, but no further than
+     * needed to keep all the threads busy, which bounds the number of counts buffered in memory.
+     */
+    private void writeCounts(final CountsArchiveWriter countArchive,
+                             final ObjectList<Callable<CountsWriterI>> tasks) throws IOException {
+        final OrderedExecutor<CountsWriterI> executor =
+                new OrderedExecutor<CountsWriterI>("reference-counts", numThreads > 1 ? numThreads : 0);
+        try {
+            for (final Callable<CountsWriterI> task : tasks) {
+                executor.submit(task);
+                while (executor.hasReadyResult()) {
+                    countArchive.returnWriter(executor.take());
+                }
+            }
+            while (!executor.isEmpty()) {
+                countArchive.returnWriter(executor.take());
+            }
+        } finally {
+            executor.shutdown();
         }
+    }
 
+    private void writeEmptyCounts(final CountsArchiveWriter countArchive, final DoubleIndexedIdentifier referenceIds,
+                                  final boolean[] referencesToProcess, final int referenceIndex) throws IOException {
+        if (referencesToProcess[referenceIndex]) {
+            final CountsWriterI countsWriter =
+                    countArchive.newCountWriter(referenceIndex, referenceIds.getId(referenceIndex).toString());
+            countArchive.returnWriter(countsWriter);
+        }
     }
 
     private ComputeCountInterface chooseAlgorithm(final WeightParameters weightParams, final WeightsInfo weights, ComputeCountInterface algo) {
@@ -19,7 +19,6 @@
 package edu.cornell.med.icb.goby.modes;
 
 import edu.cornell.med.icb.goby.R.FisherExact;
-import edu.cornell.med.icb.goby.R.GobyRengine;
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
@@ -27,6 +26,7 @@ import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
 import edu.cornell.med.icb.goby.stats.AbstractOutputFormat;
 import edu.cornell.med.icb.goby.stats.DifferentialExpressionAnalysis;
 import edu.cornell.med.icb.goby.stats.DifferentialExpressionCalculator;
+import edu.cornell.med.icb.goby.stats.FisherExactTest;
 import edu.cornell.med.icb.goby.stats.VCFWriter;
 import edu.cornell.med.icb.goby.util.OutputInfo;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
@@ -35,7 +35,6 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.rosuda.JRI.Rengine;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -70,7 +69,10 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat  implemen
     private int refIdColumnIndex;
     private int positionColumnIndex;
 
-    private boolean fisherRInstalled;
+    /**
+     * Calculates Fisher exact test p-values without R, caching recently seen count tables.
+     */
+    private final FisherExactTest fisherTest = new FisherExactTest();
     private String[] groups;
     private String[] samples;
     private ObjectArrayList<ReadIndexStats> readIndexStats;
@@ -154,11 +156,7 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat  implemen
         samples = mode.getSamples();
         readerIndexToGroupIndex = mode.getReaderIndexToGroupIndex();
         final ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
-        this.statWriter = new VCFWriter(outputInfo.getPrintWriter());
-
-        //activate R only if we need it:
-        final Rengine rEngine = GobyRengine.getInstance().getRengine();
-        fisherRInstalled = rEngine != null && rEngine.isAlive();
+        this.statWriter = new VCFWriter(outputInfo);
 
         if (groups.length < 1) {
             System.err.println("CompareGroupsVCFOutputFormat requires at least one group.");
@@ -362,28 +360,22 @@ public class CompareGroupsVCFOutputFormat extends AbstractOutputFormat  implemen
 
             double fisherP = Double.NaN;
 
-            if (fisherRInstalled) {
-
-
-                updateFisherVector(maxGenotypeIndexAcrossSamples, comparison);
-                if (checkCounts()) {
-                    final FisherExact.Result result = FisherExact.fexact(fisherVector, maxGenotypeIndexAcrossSamples,
-                            2,
-                            FisherExact.AlternativeHypothesis.twosided, true);
-                    fisherP = result.getPValue();
-
-                    /*
-                    // print the counts and p-value:
-
-                    final IntArrayList wrap = IntArrayList.wrap(fisherVector);
-                    System.out.printf("fisherVector %s/%s%n" +
-                            "[0-%d]   %s%n" +
-                            "[%d-%d]  %s%n" +
-                            "p-value= %g%n%n", comparison.nameGroup1, comparison.nameGroup2,
-                            maxGenotypeIndexAcrossSamples, wrap.subList(0, maxGenotypeIndexAcrossSamples),
-                            maxGenotypeIndexAcrossSamples + 1, fisherVector.length, wrap.subList(maxGenotypeIndexAcrossSamples, wrap.size()),
-                            fisherP);*/
-                }
+            updateFisherVector(maxGenotypeIndexAcrossSamples, comparison);
+            if (checkCounts()) {
+                fisherP = fisherTest.pValue(fisherVector, maxGenotypeIndexAcrossSamples, 2,
+                        FisherExact.AlternativeHypothesis.twosided);
+
+                /*
+                // print the counts and p-value:
+
+                final IntArrayList wrap = IntArrayList.wrap(fisherVector);
+                System.out.printf("fisherVector %s/%s%n" +
+                        "[0-%d]   %s%n" +
+                        "[%d-%d]  %s%n" +
+                        "p-value= %g%n%n", comparison.nameGroup1, comparison.nameGroup2,
+                        maxGenotypeIndexAcrossSamples, wrap.subList(0, maxGenotypeIndexAcrossSamples),
+                        maxGenotypeIndexAcrossSamples + 1, fisherVector.length, wrap.subList(maxGenotypeIndexAcrossSamples, wrap.size()),
+                        fisherP);*/
             }
 
             statWriter.setInfo(log2OddsRatioColumnIndex[comparison.index], log2OddsRatio);
@@ -24,9 +24,9 @@ import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.Segment;
 import edu.cornell.med.icb.goby.alignments.ConcatAlignmentReader;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
-import edu.cornell.med.icb.goby.counts.AnyTransitionCountsIterator;
 import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
 import edu.cornell.med.icb.goby.counts.CountsReaderI;
+import edu.cornell.med.icb.goby.counts.HeapUnionCountsIterator;
 import edu.cornell.med.icb.goby.counts.Peak;
 import edu.cornell.med.icb.goby.counts.PeakAggregator;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
@@ -172,7 +172,7 @@ public class CountArchiveToPeakAnnotationsMode extends AbstractGobyMode {
                             }
                         }
                     }
-                    final AnyTransitionCountsIterator iterator = new AnyTransitionCountsIterator(readers);
+                    final HeapUnionCountsIterator iterator = new HeapUnionCountsIterator(Arrays.copyOf(readers, readerIndex));
 
                     final PeakAggregator peakAggregator = new PeakAggregator(iterator);
                     peakAggregator.setPeakDetectionThreshold(detectionThreshold);
@@ -24,9 +24,9 @@ import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
 import edu.cornell.med.icb.goby.algorithmic.data.Segment;
 import edu.cornell.med.icb.goby.alignments.ConcatAlignmentReader;
 import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
-import edu.cornell.med.icb.goby.counts.AnyTransitionCountsIterator;
 import edu.cornell.med.icb.goby.counts.CountsArchiveReader;
 import edu.cornell.med.icb.goby.counts.CountsReaderI;
+import edu.cornell.med.icb.goby.counts.HeapUnionCountsIterator;
 import edu.cornell.med.icb.goby.counts.Peak;
 import edu.cornell.med.icb.goby.counts.PeakAggregator;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
@@ -176,7 +176,7 @@ public class CountsArchiveToUnionPeaksAnnotationMode extends AbstractGobyMode {
                 }
 
                 // Reads in all the files and defines one sortedPositionIterator over all input files
-                final AnyTransitionCountsIterator iterator = new AnyTransitionCountsIterator(readers);
+                final HeapUnionCountsIterator iterator = new HeapUnionCountsIterator(Arrays.copyOf(readers, readerIndex));
                 // Given all input files and one sortedPositionIterator over them, start collecting (possibly overlapping)
                 // peaks across all input files
                 final PeakAggregator peakAggregator = new PeakAggregator(iterator);
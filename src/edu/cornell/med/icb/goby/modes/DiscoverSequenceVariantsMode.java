@@ -25,6 +25,7 @@ import edu.cornell.med.icb.goby.algorithmic.data.CovariateInfo;
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
 import edu.cornell.med.icb.goby.alignments.*;
 import edu.cornell.med.icb.goby.alignments.processors.*;
+import edu.cornell.med.icb.goby.reads.MappedSequenceCache;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceCache;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceInterface;
 import edu.cornell.med.icb.goby.reads.RandomAccessSequenceTestSupport;
@@ -361,6 +362,8 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
         sortedPositionIterator.setCallIndels(callIndels);
         sortedPositionIterator.setGenome(genome);
         sortedPositionIterator.setStartFlapLength(startFlapSize);
+        final int numThreads = jsapResult.getInt("num-threads", 1);
+        sortedPositionIterator.setNumThreads(numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads);
         sortedPositionIterator.parseIncludeReferenceArgument(jsapResult);
         sortedPositionIterator.setMinimumVariationSupport(minimumVariationSupport);
         sortedPositionIterator.setThresholdDistinctReadIndices(thresholdDistinctReadIndices);
@@ -465,6 +468,12 @@ public class DiscoverSequenceVariantsMode extends AbstractGobyMode {
 
         final String genome = jsapResult.getString("genome");
         RandomAccessSequenceCache cache = null;
+        if (genome != null && MappedSequenceCache.canLoad(genome)) {
+            System.err.println("Mapping genome " + genome);
+            final MappedSequenceCache mappedGenome = new MappedSequenceCache();
+            mappedGenome.load(genome);
+            return mappedGenome;
+        }
         if (genome != null) {
             try {
                 System.err.println("Loading genome cache " + genome);
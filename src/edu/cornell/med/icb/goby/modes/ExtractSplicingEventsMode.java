@@ -49,6 +49,7 @@ public class ExtractSplicingEventsMode extends AbstractGobyMode {
     private String[] inputFilenames;
     private String outputFilename;
     private int qualThreshold;
+    private int numThreads = 1;
 
     @Override
     public String getModeName() {
@@ -67,6 +68,10 @@ public class ExtractSplicingEventsMode extends AbstractGobyMode {
         inputFilenames = jsapResult.getStringArray("input");
         outputFilename = jsapResult.getString("output");
         qualThreshold = jsapResult.getInt("min-mapping-quality");
+        numThreads = jsapResult.getInt("num-threads", 1);
+        if (numThreads == -1) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+        }
 
         return this;
     }
@@ -84,6 +89,7 @@ public class ExtractSplicingEventsMode extends AbstractGobyMode {
         for (String filename : inputFilenames) {
             ExportSplicingEvents processor = new ExportSplicingEvents(output);
             processor.setMinMappingQuality(qualThreshold);
+            processor.setNumThreads(numThreads);
             processor.process(filename);
 
         }
@@ -23,30 +23,35 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.readers.vcf.*;
 import edu.cornell.med.icb.goby.stats.*;
 import edu.cornell.med.icb.io.TSVReader;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.*;
-import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * Combines tab delimited or VCF formatted datasets and performs FDR adjustment on a set of P-value columns. Lines will always be ordered
  * in the output in the same order that the lines are read from the input. However, since each line is independent, this
  * mode garantees that sorting the output by a  identifier column (unique for each line) will yield the same output
- * irrespective of the order in which the input files are presented to the mode. The FDR adjustment is done with a subset of
- * P-value kept in memory, and only the P-values. The data files are scanned a second time to read other columns and
- * produce the combined output.  The fdr mode also has an option to keep the top lines (ranked by p-values), so that it is
- * also possible to examine the top hundred hits, even in cases when the adjusted q-value does not reach the pre-specified
- * threshold.
+ * irrespective of the order in which the input files are presented to the mode. The FDR adjustment only reads the P-values
+ * of the lines that pass the q-value threshold (any line with a P-value above the threshold cannot have a q-value below
+ * it). These P-values are sorted on disk with {@link ExternalBenjaminiHochbergAdjustment}, so that the memory used does
+ * not grow with the number of lines: each P-value column buffers at most
+ * {@link ExternalBenjaminiHochbergAdjustment#DEFAULT_RUN_SIZE} P-values (about 12MB), and the P-values, q-values and
+ * indices of the lines kept are stored in temporary files. The default threshold of 1.0 keeps almost every line, which
+ * then needs about 12 bytes of temporary disk space per line and P-value column. The data files are scanned a second
+ * time to read other columns and produce the combined output.  The fdr mode also has an option to keep the top lines
+ * (ranked by p-values), so that it is also possible to examine the top hundred hits, even in cases when the adjusted
+ * q-value does not reach the pre-specified threshold.
  *
  * @author Fabien Campagne
  * @since Goby 1.9
@@ -80,14 +85,31 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
     private int topHitNum;
     private int numIgnoredObservations;
     /**
-     * Store a map between the element index in the input files, and the index of the element in the set we keep in memory.
+     * Temporary file that holds the indices of the elements kept, in the order of the input files. The position of
+     * an element in this file is its row in the P-value columns.
      */
-    private Int2IntMap elementPermutation = new Int2IntOpenHashMap();
+    private File keptElementsFile;
+    private DataOutputStream keptElements;
+    private int numKeptElements;
+    /**
+     * Lower-case identifiers of the P-value columns loaded.
+     */
+    private final ObjectArrayList<String> pValueColumnIds = new ObjectArrayList<String>();
+    /**
+     * P-values of the elements kept, one adjustment per P-value column.
+     */
+    private final ObjectArrayList<ExternalBenjaminiHochbergAdjustment> pValues =
+            new ObjectArrayList<ExternalBenjaminiHochbergAdjustment>();
+    /**
+     * Adjusted P-values of the elements kept, in the order of adjustedColumnIds.
+     */
+    private final ObjectArrayList<ExternalBenjaminiHochbergAdjustment> adjustedPValues =
+            new ObjectArrayList<ExternalBenjaminiHochbergAdjustment>();
 
     /**
-     * The list of element indices to report as top hits.
+     * The rows of the elements to report as top hits.
      */
-    private IntArraySet topHitsElementIndices;
+    private IntArraySet topHitRows = new IntArraySet();
     private String[] columnSelectionFilter;
 
 
@@ -143,9 +165,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     : outputFilename.endsWith(".gz") ?
                     new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(outputFilename))) :
                     new FileWriter(outputFilename);
-            // start with an array of size 1M. This improves loading time for large datasets.
-            DifferentialExpressionResults data = new DifferentialExpressionResults(10000000);
-
             ObjectList<String> columnIdList = vcf ? getVCFColumns(inputFiles) : getTSVColumns(inputFiles);
             // supplement selectedPValueColumns with the columns that match the selection filters:
             ObjectSet<String> selection = new ObjectOpenHashSet<String>();
@@ -164,35 +183,41 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             if (vcf) appendPValueColumns(inputFiles, selection);
 
             selectedPValueColumns = selection.toArray(new String[selection.size()]);
-            DifferentialExpressionCalculator deCalculator = new DifferentialExpressionCalculator();
-
-            if (vcf) {
-                loadVCF(inputFiles, data, deCalculator, columnIdList);
-            } else {
-                loadTSV(inputFiles, data, deCalculator, columnIdList);
+            keptElementsFile = File.createTempFile("fdr-kept-elements-", ".bin");
+            keptElementsFile.deleteOnExit();
+            keptElements = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keptElementsFile)));
+            try {
+                if (vcf) {
+                    loadVCF(inputFiles);
+                } else {
+                    loadTSV(inputFiles, columnIdList);
+                }
+            } finally {
+                keptElements.close();
             }
-            //    data.write(new PrintWriter(System.out), '\t', deCalculator);
-            BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
-            fdr.setNumberAboveThreshold(numIgnoredObservations);
             for (String column : selectedPValueColumns) {
-                System.out.println("adjusting column: " + column);
-                fdr.adjust(data, column.toLowerCase());
-            }
-            recordTopHits(data);
-            for (int i = 0; i < data.getNumberOfStatistics(); i++) {
-                MutableString statisticId = data.getStatisticIdForIndex(i);
-                final String statId = statisticId.toString();
-                if (!contains(selectedPValueColumns, statId)) {
-                    adjustedColumnIds.add(statId);
+                final String statName = column.toLowerCase();
+                final int columnIndex = pValueColumnIds.indexOf(statName);
+                if (columnIndex == -1 || !adjustedColumnIds.add(statName + "-BH-FDR-q-value")) {
+                    continue;
                 }
+                adjustedPValues.add(pValues.get(columnIndex));
+            }
+            int adjustedColumnIndex = 0;
+            for (String adjustedColumnId : adjustedColumnIds) {
+                System.out.println("adjusting column: " + adjustedColumnId);
+                final ExternalBenjaminiHochbergAdjustment fdr = adjustedPValues.get(adjustedColumnIndex++);
+                fdr.setNumberAboveThreshold(numIgnoredObservations);
+                // top hits are ranked by the P-values of the last column adjusted:
+                final int numTopHits = topHitNum != 0 && adjustedColumnIndex == adjustedPValues.size() ? topHitNum + 2 : 0;
+                topHitRows = new IntArraySet(fdr.adjust(numTopHits));
             }
 
-            Collections.sort(data, new ElementIndexComparator());
             if (vcf) {
-                combineVCF(inputFiles, data, deCalculator, columnIdList, stream);
+                combineVCF(inputFiles, stream);
 
             } else {
-                combineTSV(inputFiles, data, deCalculator, columnIdList, stream);
+                combineTSV(inputFiles, columnIdList, stream);
             }
 
 
@@ -200,6 +225,12 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
             if (outputFilename != null) {
                 IOUtils.closeQuietly(stream);
             }
+            for (final ExternalBenjaminiHochbergAdjustment columnPValues : pValues) {
+                columnPValues.close();
+            }
+            if (keptElementsFile != null) {
+                keptElementsFile.delete();
+            }
         }
     }
 
@@ -229,32 +260,56 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void recordTopHits(final DifferentialExpressionResults data) {
-        topHitsElementIndices = new IntArraySet();
-        int num = 0;
-        for (final DifferentialExpressionInfo info : data) {
-            topHitsElementIndices.add(Integer.parseInt(info.getElementId().toString()));
-            if (num++ > topHitNum) {
-                break;
+    /**
+     * Return the index of a P-value column, creating the column if needed.
+     */
+    private int definePValueColumn(final String statName) throws IOException {
+        int columnIndex = pValueColumnIds.indexOf(statName);
+        if (columnIndex == -1) {
+            columnIndex = pValueColumnIds.size();
+            pValueColumnIds.add(statName);
+            final ExternalBenjaminiHochbergAdjustment columnPValues = new ExternalBenjaminiHochbergAdjustment();
+            pValues.add(columnPValues);
+            // elements kept before this column was defined have a zero P-value in this column:
+            for (int row = 0; row < numKeptElements; row++) {
+                columnPValues.add(0);
             }
         }
+        return columnIndex;
     }
 
+    /**
+     * Keep the P-values of an element.
+     *
+     * @param elementIndex   index of the element in the input files.
+     * @param elementPValues P-values of the element, indexed by P-value column.
+     */
+    private void keepElement(final int elementIndex, final double[] elementPValues) throws IOException {
+        keptElements.writeInt(elementIndex);
+        numKeptElements++;
+        for (int columnIndex = 0; columnIndex < pValues.size(); columnIndex++) {
+            pValues.get(columnIndex).add(elementPValues[columnIndex]);
+        }
+    }
 
-    private ObjectList<String> getVCFColumns(String[] inputFiles) {
-        return new ObjectArrayList<String>();
+    /**
+     * Read the index of the element kept at a row.
+     *
+     * @param input Stream over the indices of the elements kept.
+     * @param row   Row of the element.
+     * @return the index of the element in the input files, or -1 when all the elements kept have been read.
+     */
+    private int readKeptElementIndex(final DataInputStream input, final int row) throws IOException {
+        return row < numKeptElements ? input.readInt() : -1;
     }
 
 
-    private boolean contains(String[] selectedPValueColumns, String statId) {
-        for (String s : selectedPValueColumns) {
-            if (s.equalsIgnoreCase(statId)) return true;
-        }
-        return false;
+    private ObjectList<String> getVCFColumns(String[] inputFiles) {
+        return new ObjectArrayList<String>();
     }
 
-    private void loadVCF(String[] inputFiles, DifferentialExpressionResults data,
-                         DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList) throws IOException {
+
+    private void loadVCF(String[] inputFiles) throws IOException {
 
         int elementIndex = 0;
         for (String filename : inputFiles) {
@@ -264,6 +319,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 parser.readHeader();
                 GroupAssociations groupAssociations = parser.getGroupAssociations();
                 IntSet selectedInfoFieldGlobalIndices = new IntArraySet();
+                // the P-value column of each selected field:
+                IntList selectedInfoFieldColumnIndices = new IntArrayList();
                 // find the global field indices for the INFO fields we need to load:
 
                 for (String selectedFieldName : selectedPValueColumns) {
@@ -280,10 +337,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                         System.exit(1);
                     }
                     final String statName = selectedFieldName.toLowerCase();
-                    if (!data.isStatisticDefined(new MutableString(statName))) {
-                        data.declareStatistic(statName);
+                    final int columnIndex = definePValueColumn(statName);
+                    if (selectedInfoFieldGlobalIndices.add(selectedField.globalFieldIndex)) {
+                        selectedInfoFieldColumnIndices.add(columnIndex);
                     }
-                    selectedInfoFieldGlobalIndices.add(selectedField.globalFieldIndex);
                 }
                 ProgressLogger pg = new ProgressLogger(LOG);
 
@@ -291,14 +348,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 pg.itemsName = "line";
                 pg.displayFreeMemory = true;
                 pg.start();
+                final double[] elementPValues = new double[pValues.size()];
                 while (parser.hasNextDataLine()) {
-
-                    // prepare elementId and stat info:
                     int index = 0;
-                    final String elementId = Integer.toString(elementIndex);
-                    final DifferentialExpressionInfo info = createInfo(deCalculator,
-                            selectedInfoFieldGlobalIndices.size(),
-                            elementId);
+                    Arrays.fill(elementPValues, 0);
                     // keep all lines if we don't adjust any column:
 
                     boolean keepLine = selectedInfoFieldGlobalIndices.isEmpty();
@@ -309,11 +362,10 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                         if (pValue < qValueThreshold) {
                             keepLine = true;
                         }
-                        info.statistics().set(index++, pValue);
+                        elementPValues[selectedInfoFieldColumnIndices.getInt(index++)] = pValue;
                     }
                     if (keepLine) {
-                        data.add(info);
-                        elementPermutation.put(elementIndex, data.size() - 1);
+                        keepElement(elementIndex, elementPValues);
                     } else {
                         numIgnoredObservations++;
                     }
@@ -333,21 +385,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private DifferentialExpressionInfo createInfo(DifferentialExpressionCalculator deCalculator, int numPValueColumns, String elementId) {
-        deCalculator.defineElement(elementId);
-
-        // determine capacity to be twice the number of selected columns, since we need one column for the p-value
-        // and one for the q-value.
-        final int capacity = numPValueColumns * 2;
-        final DifferentialExpressionInfo info = new DifferentialExpressionInfo(elementId, capacity);
-        // we set the size to load only the p-values:
-        info.statistics().size(numPValueColumns);
-        // the fdr will create the columns it needs (within capacity) to store corresponding q-values.
-        return info;
-    }
-
-    private void loadTSV(String[] inputFiles, DifferentialExpressionResults data, DifferentialExpressionCalculator deCalculator,
-                         ObjectList<String> columnIdList) throws IOException {
+    private void loadTSV(String[] inputFiles, ObjectList<String> columnIdList) throws IOException {
         int elementIndex = 0;
         for (String filename : inputFiles) {
             System.out.println("Loading P-values from " + filename);
@@ -357,47 +395,42 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 reader.setCommentPrefix(firstColumn);
 
                 int columnIndex = 0;
-                IntSet doubleColumnIndices = new IntArraySet();
+                // the P-value column of each selected column of the file:
+                Int2IntMap doubleColumnIndices = new Int2IntOpenHashMap();
 
                 for (String column : columnIdList) {
                     for (String selectedColumn : selectedPValueColumns) {
                         if (column.equalsIgnoreCase(selectedColumn)) {
 
                             final String statName = column.toLowerCase();
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
-                                data.declareStatistic(statName);
-                            }
-                            doubleColumnIndices.add(columnIndex);
+                            doubleColumnIndices.put(columnIndex, definePValueColumn(statName));
                         }
                     }
                     columnIndex++;
                 }
 
+                final double[] elementPValues = new double[pValues.size()];
                 while (reader.hasNext()) {
 
 
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
-                        int index = 0;
-
-                        final DifferentialExpressionInfo info = createInfo(deCalculator, selectedPValueColumns.length, elementId);
+                        Arrays.fill(elementPValues, 0);
                         boolean keepLine = doubleColumnIndices.isEmpty();
                         for (int j = 0; j < reader.numTokens(); j++) {
-                            if (doubleColumnIndices.contains(j)) {
+                            if (doubleColumnIndices.containsKey(j)) {
                                 final double pValue = reader.getDouble();
                                 if (pValue < qValueThreshold) {
                                     keepLine = true;
                                 }
-                                info.statistics().set(index++, pValue);
+                                elementPValues[doubleColumnIndices.get(j)] = pValue;
                             } else {
                                 reader.getString();
                             }
 
                         }
                         if (keepLine) {
-                            data.add(info);
-                            elementPermutation.put(elementIndex, data.size() - 1);
+                            keepElement(elementIndex, elementPValues);
                         } else {
                             ++numIgnoredObservations;
                         }
@@ -416,9 +449,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
     }
 
-    private void combineVCF(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator,
-                            ObjectList<String> columnIdList, Writer writer) throws IOException {
+    private void combineVCF(String[] inputFiles, Writer writer) throws IOException {
 
         Columns columns = new Columns();
         ObjectArrayList<String> sampleIdList = new ObjectArrayList();
@@ -474,6 +505,11 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
         vcfWriter.writeHeader();
         int elementIndex = 0;
+        // row of the next kept element:
+        int row = 0;
+        final DataInputStream keptElementIndices =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(keptElementsFile)));
+        int keptElementIndex = readKeptElementIndex(keptElementIndices, row);
         for (String filename : inputFiles) {
             System.out.printf("Combining %s%n", filename);
             VCFParser parser = new VCFParser(filename);
@@ -518,26 +554,19 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
                 while (parser.hasNextDataLine()) {
 
-                    final String elementId = Integer.toString(elementIndex);
                     boolean keepThisLine = false;
-                    if (elementPermutation.containsKey(elementIndex)) {
-                        final int permutedIndex = elementPermutation.get(elementIndex);
-                        final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                        assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
-                        for (final String adjustedColumn : adjustedColumnIds) {
-                            final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                            final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                            final double adjustedPValue = list.get(adjustedColumnIndex);
+                    if (keptElementIndex == elementIndex) {
+                        for (int adjustedColumnIndex = 0; adjustedColumnIndex < adjustedPValues.size(); adjustedColumnIndex++) {
+                            final double adjustedPValue = adjustedPValues.get(adjustedColumnIndex).getAdjustedPValue(row);
                             keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
-                            if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
+                            if (topHitNum != 0 && topHitRows.isEmpty()) {
                                 // early stop: there are no q-values below the threshold and we have seen enough top hits already.
                                 break;
                             }
-                            if (topHitNum != 0 && topHitsElementIndices.contains(elementIndex)) {
+                            if (topHitNum != 0 && topHitRows.contains(row)) {
                                 // the q-value is not good enough for the threshold, but we want to include up to top hits in the results:
                                 keepThisLine = true;
-                                topHitsElementIndices.remove(elementIndex);
+                                topHitRows.remove(row);
                             }
 
                         }
@@ -546,8 +575,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                             keepThisLine = true;
                         }
                         if (keepThisLine) {
-                            final DifferentialExpressionInfo info = differentialExpressionInfo;
-                            assert info.getElementId().equals(elementId) : " elementId must match";
                             // transfer previous columsn and fields:
                             infoFieldIndex = 0;
                             sampleIndex = 0;
@@ -607,16 +634,9 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                 }
                             }
                             // add new INFO field values (the adjusted p-values):
-                            statIndex = 0;
-                            for (String adjustedColumn : adjustedColumnIds) {
-
-                                int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                                double newColValue = list.get(adjustedColumnIndex);
+                            for (statIndex = 0; statIndex < adjustedPValues.size(); statIndex++) {
+                                double newColValue = adjustedPValues.get(statIndex).getAdjustedPValue(row);
                                 vcfWriter.setInfo(statIndexToInfoFieldIndex.get(statIndex), Double.toString(newColValue));
-                                statIndex++;
-
                             }
 
                             // This is a line we keep, write it:
@@ -624,6 +644,8 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
 
 
                         }
+                        row++;
+                        keptElementIndex = readKeptElementIndex(keptElementIndices, row);
                     }
                     elementIndex++;
                     parser.next();
@@ -632,6 +654,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 parser.close();
             }
         }
+        keptElementIndices.close();
     }
 
     private boolean determineKeepThisLine(boolean keepThisLine, double adjustedPValue) {
@@ -642,12 +665,16 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
         return keepThisLine;
     }
 
-    private void combineTSV(String[] inputFiles, DifferentialExpressionResults data,
-                            DifferentialExpressionCalculator deCalculator, ObjectList<String> columnIdList,
+    private void combineTSV(String[] inputFiles, ObjectList<String> columnIdList,
                             Writer out) throws IOException {
 
         PrintWriter printer = new PrintWriter(out);
         int elementIndex = 0;
+        // row of the next kept element:
+        int row = 0;
+        final DataInputStream keptElementIndices =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(keptElementsFile)));
+        int keptElementIndex = readKeptElementIndex(keptElementIndices, row);
         // write the TSV header first:
 
         boolean first = true;
@@ -685,12 +712,6 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 for (String column : columnIdList) {
                     for (String selectedColumn : selectedPValueColumns) {
                         if (column.equalsIgnoreCase(selectedColumn)) {
-
-                            final String statName = column.toLowerCase();
-
-                            if (!data.isStatisticDefined(new MutableString(statName))) {
-                                data.declareStatistic(statName);
-                            }
                             doubleColumnIndices.add(columnIndex);
                         }
                     }
@@ -701,48 +722,35 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                     first = true;
                     if (!reader.isCommentLine()) {
                         reader.next();
-                        final String elementId = Integer.toString(elementIndex);
                         boolean keepThisLine = doubleColumnIndices.isEmpty();
-                        if (elementPermutation.containsKey(elementIndex)) {
-                            final int permutedIndex = elementPermutation.get(elementIndex);
-                            final DifferentialExpressionInfo differentialExpressionInfo = data.get(permutedIndex);
-                            assert Integer.parseInt(differentialExpressionInfo.getElementId().toString()) == elementIndex : " element index must match with data element retrived";
+                        if (keptElementIndex == elementIndex) {
                             {
-                                final DoubleArrayList list = differentialExpressionInfo.statistics();
-
-                                for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-
-                                    final double adjustedPValue = list.get(adjustedColumnIndex);
+                                for (int adjustedColumnIndex = 0; adjustedColumnIndex < adjustedPValues.size(); adjustedColumnIndex++) {
+                                    final double adjustedPValue = adjustedPValues.get(adjustedColumnIndex).getAdjustedPValue(row);
                                     keepThisLine = determineKeepThisLine(keepThisLine, adjustedPValue);
                                 }
-                                if (topHitNum != 0 && topHitsElementIndices.isEmpty()) {
+                                if (topHitNum != 0 && topHitRows.isEmpty()) {
                                     // early stop: there are no q-values below the threshold and we have seen enough top hits already.
                                     break;
                                 }
-                                if (topHitNum != 0 && topHitsElementIndices.contains(elementIndex)) {
+                                if (topHitNum != 0 && topHitRows.contains(row)) {
                                     // the q-value is not good enough for the threshold, but we want to include up to top hits in the results:
                                     keepThisLine = true;
-                                    topHitsElementIndices.remove(elementIndex);
+                                    topHitRows.remove(row);
                                 }
                             }
                             if (!keepThisLine) {
                                 //     System.out.println("skipping elementId since the adjusted P-values do not make the q-value threshold." + elementId);
                             }
                             if (keepThisLine) {
-                                int index = 0;
-                                final DifferentialExpressionInfo info = differentialExpressionInfo;
-                                assert info.getElementId().equals(elementId) : " elementId must match";
                                 first = true;
                                 for (int j = 0; j < reader.numTokens(); j++) {
                                     if (doubleColumnIndices.contains(j)) {
-                                        reader.getString();
                                         if (!first) {
                                             printer.write('\t');
                                         }
-                                        printer.print(info.statistics().get(index));
+                                        printer.print(reader.getDouble());
                                         first = false;
-                                        index++;
                                     } else {
                                         if (!first) {
                                             printer.write('\t');
@@ -752,17 +760,17 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                                     }
                                 }
                                 first = false;
-                                for (final String adjustedColumn : adjustedColumnIds) {
-                                    final int adjustedColumnIndex = data.getStatisticIndex(adjustedColumn);
-                                    final DoubleArrayList list = differentialExpressionInfo.statistics();
+                                for (final ExternalBenjaminiHochbergAdjustment columnAdjustedPValues : adjustedPValues) {
                                     if (!first) {
                                         printer.write('\t');
                                     }
-                                    printer.print(list.get(adjustedColumnIndex));
+                                    printer.print(columnAdjustedPValues.getAdjustedPValue(row));
                                     first = false;
                                 }
                                 printer.printf("%n");
                             }
+                            row++;
+                            keptElementIndex = readKeptElementIndex(keptElementIndices, row);
                         }
                         elementIndex++;
 
@@ -778,6 +786,7 @@ public class FalseDiscoveryRateMode extends AbstractGobyMode {
                 reader.close();
             }
         }
+        keptElementIndices.close();
 
         printer.flush();
     }
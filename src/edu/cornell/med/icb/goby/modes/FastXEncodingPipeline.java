@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.readers.FastXEntry;
+import edu.cornell.med.icb.goby.readers.FastXReader;
+import edu.cornell.med.icb.goby.reads.QualityEncoding;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Converts one FASTA/FASTQ input (or a pair of inputs) to compact reads with a staged pipeline. A reader
+ * thread parses (and inflates) the input and groups records in batches. Worker threads convert quality
+ * scores and encode the entries of each batch. The calling thread appends the encoded entries to the writer
+ * in the order of the input, so read indices, meta data, the read codec and chunk boundaries are exactly
+ * those of the sequential conversion in {@link FastaToCompactMode}.
+ */
+class FastXEncodingPipeline {
+    /**
+     * Default number of records in a batch.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    private final int numThreads;
+    private final boolean includeDescriptions;
+    private final boolean includeIdentifiers;
+    private final boolean excludeSequences;
+    private final boolean excludeQuality;
+    private final boolean verboseQualityScores;
+    private final boolean apiMode;
+    private final QualityEncoding qualityEncoding;
+    private int batchSize = BATCH_SIZE;
+
+    FastXEncodingPipeline(final int numThreads, final boolean includeDescriptions, final boolean includeIdentifiers,
+                          final boolean excludeSequences, final boolean excludeQuality,
+                          final boolean verboseQualityScores, final boolean apiMode,
+                          final QualityEncoding qualityEncoding) {
+        super();
+        this.numThreads = numThreads;
+        this.includeDescriptions = includeDescriptions;
+        this.includeIdentifiers = includeIdentifiers;
+        this.excludeSequences = excludeSequences;
+        this.excludeQuality = excludeQuality;
+        this.verboseQualityScores = verboseQualityScores;
+        this.apiMode = apiMode;
+        this.qualityEncoding = qualityEncoding;
+    }
+
+    /**
+     * Set the number of records encoded together by one thread.
+     *
+     * @param batchSize number of records in a batch.
+     */
+    void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Records of a batch, copied from the reader.
+     */
+    private static final class Batch {
+        private final MutableString[] headers;
+        private final MutableString[] sequences;
+        private final MutableString[] qualities;
+        private final MutableString[] pairSequences;
+        private final MutableString[] pairQualities;
+        private int size;
+
+        private Batch(final int capacity) {
+            headers = new MutableString[capacity];
+            sequences = new MutableString[capacity];
+            qualities = new MutableString[capacity];
+            pairSequences = new MutableString[capacity];
+            pairQualities = new MutableString[capacity];
+        }
+
+        private void add(final FastXEntry entry, final FastXEntry pairEntry) {
+            headers[size] = entry.getEntryHeader().copy();
+            sequences[size] = entry.getSequence().copy();
+            qualities[size] = entry.getQuality().copy();
+            if (pairEntry != null) {
+                pairSequences[size] = pairEntry.getSequence().copy();
+                pairQualities[size] = pairEntry.getQuality().copy();
+            }
+            size++;
+        }
+    }
+
+    /**
+     * Convert an input and append its entries to the writer.
+     *
+     * @param writer        Where to append the entries.
+     * @param reader        Reader over the input.
+     * @param pairReader    Reader over the second input of a pair, or null.
+     * @throws IOException If an error occurs reading the input or writing the entries.
+     */
+    void convert(final ReadsWriterImpl writer, final FastXReader reader, final FastXReader pairReader)
+            throws IOException {
+        final OrderedExecutor<Reads.ReadEntry.Builder[]> encoders =
+                new OrderedExecutor<Reads.ReadEntry.Builder[]>("fastx-encoding", numThreads);
+        final OrderedExecutor<Void> readerExecutor = new OrderedExecutor<Void>("fastx-reading", 1);
+        try {
+            readerExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try {
+                        Batch batch = new Batch(batchSize);
+                        for (final FastXEntry entry : reader) {
+                            FastXEntry pairEntry = null;
+                            if (pairReader != null) {
+                                pairEntry = pairReader.next();
+                                if (pairEntry == null) {
+                                    System.err.println("Cannot find matching sequence for " + entry.getEntryHeader());
+                                }
+                            }
+                            batch.add(entry, pairEntry);
+                            if (batch.size == batchSize) {
+                                submit(encoders, batch);
+                                batch = new Batch(batchSize);
+                            }
+                        }
+                        if (batch.size > 0) {
+                            submit(encoders, batch);
+                        }
+                    } finally {
+                        // let the calling thread stop, it reports errors of this thread:
+                        encoders.finish();
+                    }
+                    return null;
+                }
+            });
+            Reads.ReadEntry.Builder[] entries;
+            while ((entries = encoders.take()) != null) {
+                for (final Reads.ReadEntry.Builder entryBuilder : entries) {
+                    writer.appendEncodedEntry(entryBuilder);
+                }
+            }
+            // report errors of the reader thread:
+            readerExecutor.take();
+        } finally {
+            readerExecutor.shutdown();
+            encoders.shutdown();
+        }
+    }
+
+    private void submit(final OrderedExecutor<Reads.ReadEntry.Builder[]> encoders, final Batch batch)
+            throws IOException {
+        encoders.submit(new Callable<Reads.ReadEntry.Builder[]>() {
+            @Override
+            public Reads.ReadEntry.Builder[] call() {
+                return encode(batch);
+            }
+        });
+    }
+
+    /**
+     * Encode the entries of a batch, as FastaToCompactMode and ReadsWriterImpl.appendEntry do for one entry.
+     */
+    private Reads.ReadEntry.Builder[] encode(final Batch batch) {
+        final Reads.ReadEntry.Builder[] entries = new Reads.ReadEntry.Builder[batch.size];
+        final byte[] byteBuffer = new byte[1000];
+        for (int i = 0; i < batch.size; i++) {
+            final Reads.ReadEntry.Builder entryBuilder = Reads.ReadEntry.newBuilder();
+            final MutableString header = batch.headers[i];
+            if (includeDescriptions) {
+                entryBuilder.setDescription(header.toString());
+            }
+            if (includeIdentifiers) {
+                entryBuilder.setReadIdentifier(header.toString().split("[\\s]")[0]);
+            }
+            final MutableString pairSequence = batch.pairSequences[i];
+            if (!excludeSequences) {
+                entryBuilder.setSequence(ReadsWriterImpl.encodeSequence(batch.sequences[i], byteBuffer));
+                entryBuilder.setReadLength(batch.sequences[i].length());
+                if (pairSequence != null) {
+                    entryBuilder.setSequencePair(ReadsWriterImpl.encodeSequence(pairSequence, byteBuffer));
+                    entryBuilder.setReadLengthPair(pairSequence.length());
+                }
+            } else {
+                entryBuilder.setSequence(ByteString.EMPTY);
+                entryBuilder.setReadLength(0);
+            }
+            if (!excludeQuality) {
+                entryBuilder.setQualityScores(ByteString.copyFrom(FastaToCompactMode.convertQualityScores(
+                        qualityEncoding, batch.qualities[i], verboseQualityScores, apiMode)));
+                if (pairSequence != null) {
+                    entryBuilder.setQualityScoresPair(ByteString.copyFrom(FastaToCompactMode.convertQualityScores(
+                            qualityEncoding, batch.pairQualities[i], verboseQualityScores, apiMode)));
+                }
+            }
+            // the read index is set when the entry is appended:
+            entryBuilder.setReadIndex(0);
+            entries[i] = entryBuilder;
+        }
+        return entries;
+    }
+}
@@ -25,7 +25,6 @@ import edu.cornell.med.icb.goby.readers.FastXEntry;
 import edu.cornell.med.icb.goby.readers.FastXReader;
 import edu.cornell.med.icb.goby.reads.QualityEncoding;
 import edu.cornell.med.icb.goby.reads.ReadCodec;
-import edu.cornell.med.icb.goby.reads.ReadsWriter;
 import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
 import edu.cornell.med.icb.goby.util.DoInParallel;
 import edu.cornell.med.icb.goby.util.FileExtensionHelper;
@@ -129,6 +128,10 @@ public class FastaToCompactMode extends AbstractGobyMode {
 
     private boolean apiMode = true;
     private int numThreads;
+    /**
+     * Number of threads that encode the reads of one input, zero to encode them in the thread that reads the input.
+     */
+    private int numEncodingThreads;
 
     private ReadCodec codec;
     private boolean forceOverwrite;
@@ -277,6 +280,17 @@ public class FastaToCompactMode extends AbstractGobyMode {
         this.reqOutputFilename = outputFilename;
     }
 
+    /**
+     * Set the number of threads that encode the reads of each input file. The reads of an input are then read,
+     * encoded and written by different threads, and written with the same read indices as when they are
+     * encoded sequentially.
+     *
+     * @param numEncodingThreads number of encoding threads, zero to encode reads in the thread that reads them.
+     */
+    public void setNumEncodingThreads(final int numEncodingThreads) {
+        this.numEncodingThreads = numEncodingThreads;
+    }
+
     /**
      * Get the quality encoding scale used for the input fastq file.
      *
@@ -331,6 +345,7 @@ public class FastaToCompactMode extends AbstractGobyMode {
         forceQualityEncoding = jsapResult.userSpecified("force-quality-encoding");
         qualityEncoding.setForce(forceQualityEncoding);
         numThreads = jsapResult.getInt("num-threads");
+        numEncodingThreads = jsapResult.getInt("encoding-threads");
         reqOutputFilename = jsapResult.getString("output");
         sequencePerChunk = jsapResult.getInt("sequence-per-chunk");
         processPairs = jsapResult.getBoolean("paired-end");
@@ -549,7 +564,7 @@ public class FastaToCompactMode extends AbstractGobyMode {
         }
     }
 
-    private void convert(ReadsWriter writer, String inputFilename) throws IOException {
+    private void convert(ReadsWriterImpl writer, String inputFilename) throws IOException {
         FastXReader pairReader = null;
         if (processPairs) {
             final String pairInputFilename = pairFilename(inputFilename);
@@ -560,6 +575,12 @@ public class FastaToCompactMode extends AbstractGobyMode {
         FastXEntry pairEntry = null;
         int entryIndex = 0;
         writer.setMetaData(keyValueProps);
+        if (numEncodingThreads > 0) {
+            new FastXEncodingPipeline(numEncodingThreads, includeDescriptions, includeIdentifiers,
+                    excludeSequences, excludeQuality, verboseQualityScores, apiMode, qualityEncoding)
+                    .convert(writer, new FastXReader(inputFilename), pairReader);
+            return;
+        }
 
         for (final FastXEntry entry : new FastXReader(inputFilename)) {
             if (pairReader != null) {
@@ -607,7 +628,7 @@ public class FastaToCompactMode extends AbstractGobyMode {
         if (StringUtils.isNotBlank(outputPath)) {
             FileUtils.forceMkdir(new File(outputPath));
         }
-        final ReadsWriter writer = new ReadsWriterImpl(new FastBufferedOutputStream(new FileOutputStream(outputFilename)));
+        final ReadsWriterImpl writer = new ReadsWriterImpl(new FastBufferedOutputStream(new FileOutputStream(outputFilename)));
         if (codec != null) {
             writer.setCodec(codec);
         }
@@ -632,7 +653,7 @@ public class FastaToCompactMode extends AbstractGobyMode {
         if (StringUtils.isNotBlank(outputPath)) {
             FileUtils.forceMkdir(new File(outputPath));
         }
-        final ReadsWriter writer = new ReadsWriterImpl(new FastBufferedOutputStream(new FileOutputStream(outputFilename)));
+        final ReadsWriterImpl writer = new ReadsWriterImpl(new FastBufferedOutputStream(new FileOutputStream(outputFilename)));
         if (codec != null) {
             writer.setCodec(codec);
         }
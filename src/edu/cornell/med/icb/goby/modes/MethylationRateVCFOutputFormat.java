@@ -143,7 +143,7 @@ public class MethylationRateVCFOutputFormat extends AbstractOutputFormat impleme
 
         readerIndexToGroupIndex = mode.getReaderIndexToGroupIndex();
         final ObjectArrayList<ReadIndexStats> readIndexStats = mode.getReadIndexStats();
-        final VCFWriter vcfWriter = new VCFWriter(estimateIntraGroupDifferences ? new NullWriter() : outputInfo.getPrintWriter());
+        final VCFWriter vcfWriter = estimateIntraGroupDifferences ? new VCFWriter(new NullWriter()) : new VCFWriter(outputInfo);
         this.statWriter = vcfWriter;
         groupComparisons = mode.getGroupComparisons();
         int maxComparisonIndex = -1;
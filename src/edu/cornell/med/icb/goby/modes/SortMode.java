@@ -21,6 +21,7 @@ package edu.cornell.med.icb.goby.modes;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.goby.alignments.*;
+import edu.cornell.med.icb.goby.compression.FastGZipChunkCodec;
 import edu.cornell.med.icb.goby.util.HeaderUtil;
 import edu.cornell.med.icb.util.ICBStringUtils;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
@@ -70,6 +71,11 @@ public class SortMode extends AbstractGobyMode {
      */
     private String basename;
 
+    /**
+     * Number of batches of entries decoded ahead for each input of the final merge.
+     */
+    private static final int FINAL_MERGE_PREFETCH_BATCHES = 4;
+
     private int numThreads = -1;
     private int filesPerMerge = 30;
     private long splitSize = -1;
@@ -442,7 +448,12 @@ public class SortMode extends AbstractGobyMode {
                 // Just one thing to sort, but it's not then complete merge yet. Wait.
                 numSplitsForMerge = 0;
             } else if (splitsToMergeSizeLocal > filesPerMerge) {
-                numSplitsForMerge = filesPerMerge;
+                if (numSortMergesRunning.get() == 0) {
+                    // merge just enough runs that the final merge can read all the remaining runs at once:
+                    numSplitsForMerge = Math.min(filesPerMerge, splitsToMergeSizeLocal - filesPerMerge + 1);
+                } else {
+                    numSplitsForMerge = filesPerMerge;
+                }
             } else {
                 // Equal to or less than filesPerMerge. Perhaps the last merge?
                 final List<SortMergeSplitFileRange> ranges = mergeMultiSplitRangeLists(splitsToMerge);
@@ -555,6 +566,8 @@ public class SortMode extends AbstractGobyMode {
                     LOG.debug(String.format("[%s] Sorting %s to %s",
                             threadId, toSort.toString(), subOutputFilename));
                     writer = new AlignmentWriterImpl(subOutputFilename);
+                    // sorted runs are read back once, favor speed over compression ratio:
+                    writer.setEntriesChunkCodec(new FastGZipChunkCodec());
                     alignmentIterator.setOutputFilename(subOutputFilename);
                     alignmentIterator.setBasename(subBasename);
 
@@ -656,6 +669,10 @@ public class SortMode extends AbstractGobyMode {
                     }
                     if (!dryRun) {
                         concatReader = new ConcatSortedAlignmentReader(         false, mergeFromBasenamesArray);
+                        if (lastMerge && numThreads > 0) {
+                            // the final merge runs alone: decode each input on its own thread.
+                            concatReader.setPrefetchBatches(FINAL_MERGE_PREFETCH_BATCHES);
+                        }
                         concatReader.readHeader();
                     }
                     // We've used merged's tag as input. Let's get a new tag for it's output
@@ -669,7 +686,13 @@ public class SortMode extends AbstractGobyMode {
                         subOutputFilename = tempDir + "/" + subBasename;
                     }
                     if (!dryRun) {
-                        writer = new AlignmentWriterImpl(subOutputFilename);
+                        final AlignmentWriterImpl writerImpl = new AlignmentWriterImpl(subOutputFilename);
+                        if (lastMerge) {
+                            writerImpl.setNumCompressionThreads(numThreads);
+                        } else {
+                            writerImpl.setEntriesChunkCodec(new FastGZipChunkCodec());
+                        }
+                        writer = writerImpl;
                         HeaderUtil.copyHeader(concatReader,writer);
                         writer.setSorted(true);
 
@@ -20,20 +20,24 @@ package edu.cornell.med.icb.goby.modes;
 
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
-import edu.cornell.med.icb.goby.reads.*;
-import it.unimi.dsi.bits.BitVector;
-import it.unimi.dsi.bits.LongArrayBitVector;
-import it.unimi.dsi.fastutil.ints.*;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import edu.cornell.med.icb.goby.reads.ReadSet;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.SequenceTallyTable;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import it.unimi.dsi.io.OutputBitStream;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collections;
+import java.util.concurrent.Callable;
 
 /**
  * Tally the number of times sequences appear in a set of read files. Exact sequence comparison
@@ -61,6 +65,23 @@ public class TallyReadsMode extends AbstractGobyMode {
     private boolean colorSpace;
     private final int MAX_PROCESS_READS = Integer.MAX_VALUE;
 
+    /**
+     * Number of reads packed and tallied together by one thread.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * Number of threads that tally reads, -1 for one per available processor.
+     */
+    private int numThreads = 1;
+
+    /**
+     * Memory available to tally tables, in megabytes. When the table needed to tally every read would exceed
+     * this budget, reads are partitioned on disk and partitions are tallied one at a time. -1 for half of the
+     * maximum heap size.
+     */
+    private long memoryBudgetInMegabytes = -1;
+
     @Override
     public String getModeName() {
         return MODE_NAME;
@@ -87,39 +108,24 @@ public class TallyReadsMode extends AbstractGobyMode {
         inputFilename = jsapResult.getString("input");
         outputBasename = jsapResult.getString("output");
         colorSpace = jsapResult.getBoolean("color-space");
+        numThreads = jsapResult.getInt("num-threads", 1);
+        memoryBudgetInMegabytes = jsapResult.getInt("memory-budget");
         return this;
     }
 
 
     @Override
     public void execute() throws IOException {
-        final MutableString sequence = new MutableString();
-
         final ProgressLogger progress = new ProgressLogger();
-        progress.start("first pass: starting to collect inspect hash");
+        progress.start("first pass: counting reads");
         progress.displayFreeMemory = true;
 
-
-        int readLength = 0;
-        Int2ByteMap readRedundant = new Int2ByteOpenHashMap();
+        int maxReadLength = 0;
         int numReads = 0;
-        SequenceDigests sd = null;
         {
-
-
             final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
             for (final Reads.ReadEntry readEntry : readsReader) {
-                readLength = readEntry.getReadLength();
-                if (sd == null) {
-                    sd = new SequenceDigests(readLength, true);
-                }
-
-                final int hashCode = sd.digest(readEntry.getSequence(), 0, readLength);
-                byte occ = readRedundant.get(hashCode);
-                if (occ < Byte.MAX_VALUE - 1) {
-                    occ += 1;
-                }
-                readRedundant.put(hashCode, occ);
+                maxReadLength = Math.max(maxReadLength, readEntry.getReadLength());
                 numReads++;
                 progress.lightUpdate();
 
@@ -128,117 +134,277 @@ public class TallyReadsMode extends AbstractGobyMode {
                 }
             }
             readsReader.close();
-            System.gc();
         }
         progress.stop("first pass finished.");
-        assert sd != null : "at least one read must have been processed.";
-
-        int redundantHash = 0;
-        final IntSet inspectHashcodes = new IntOpenHashSet();
-        for (final int key : readRedundant.keySet()) {
-            if (readRedundant.get(key) >= 2) {
-                inspectHashcodes.add(key);
-                redundantHash++;
+        final int numberOfReads = numReads;
+        final long memoryBudget = memoryBudgetInMegabytes == -1 ? Runtime.getRuntime().maxMemory() / 2 :
+                memoryBudgetInMegabytes * 1024L * 1024L;
+        // there are at most as many distinct sequences as reads:
+        final double numBytes = SequenceTallyTable.numBytes(maxReadLength, numberOfReads);
+        // one table holds at most Integer.MAX_VALUE words, leave room for partitions of uneven sizes:
+        final int numPartitions = (int) Math.max(1, Math.max(Math.ceil(numBytes / memoryBudget),
+                Math.ceil(numBytes / 8 * 2 / Integer.MAX_VALUE)));
+        final int numTallyThreads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads;
+        System.out.printf("Tallying %d reads in %d partition(s) with %d thread(s). %n",
+                numberOfReads, numPartitions, numTallyThreads);
+
+        final OrderedExecutor<KeyBatch> tallyExecutor =
+                new OrderedExecutor<KeyBatch>("tally-reads", numTallyThreads > 1 ? numTallyThreads : 0);
+        final Tallies tallies = new Tallies();
+        try {
+            progress.expectedUpdates = numberOfReads;
+            if (numPartitions == 1) {
+                progress.start("second pass: actual read redundancy evaluation.");
+                final SequenceTallyTable table = new SequenceTallyTable(maxReadLength, numberOfReads);
+                tallyReads(tallyExecutor, table, maxReadLength, progress);
+                table.visit(tallies);
+                progress.stop("second pass");
+            } else {
+                progress.start("second pass: partitioning reads.");
+                final File[] partitions = partitionReads(tallyExecutor, numPartitions, maxReadLength, progress);
+                progress.stop("second pass");
+                progress.start("third pass: actual read redundancy evaluation.");
+                for (final File partition : partitions) {
+                    tallyPartition(tallyExecutor, partition, maxReadLength, tallies, progress);
+                }
+                progress.stop("third pass");
             }
+        } finally {
+            tallyExecutor.shutdown();
+        }
+        printStats(tallies, numberOfReads);
+        System.exit(0);
+    }
 
+    /**
+     * Packed sequences and read indices of a batch of reads.
+     */
+    private static final class KeyBatch {
+        private final int[] readIndices;
+        private final long[] keys;
+        private final int numKeyWords;
+        private int size;
+
+        private KeyBatch(final int capacity, final int maxReadLength) {
+            numKeyWords = SequenceTallyTable.numKeyWords(maxReadLength);
+            readIndices = new int[capacity];
+            keys = new long[capacity * numKeyWords];
         }
 
-        System.out.printf("Found %d redundant hashCodes. %n", redundantHash);
-        readRedundant = null;
-        progress.expectedUpdates = numReads;
-        progress.start("second pass: actual read redundancy evaluation.");
-        final int numberOfReads = numReads;
-        numReads = 0;
-        // readRedundant contains a lower bound on the number of times the read has been seen. Since we keyed
-        // on hashcode, hashcode collisions make the set of redundant reads somewhat unreliable. This is not too bad because
-        // we will now calculate redundancy exactly for those reads that passed the initial screen.
+        private void tally(final SequenceTallyTable table) {
+            final long[] key = new long[numKeyWords];
+            for (int i = 0; i < size; i++) {
+                System.arraycopy(keys, i * numKeyWords, key, 0, numKeyWords);
+                table.increment(key, readIndices[i]);
+            }
+        }
+    }
 
-        {
-            byte[] byteBuffer = new byte[readLength];
-            // set initial capacity according to first pass:
-            final Object2IntMap<CompressedRead> tallies = new Object2IntOpenHashMap<CompressedRead>(redundantHash + 1);
-            tallies.defaultReturnValue(0);
-            //   IntSet otherReadIndices = new IntOpenHashSet(numReads+1);
-            final BitVector otherReadIndices = LongArrayBitVector.ofLength(numberOfReads);
+    /**
+     * Pack the sequences of a batch of reads.
+     */
+    private KeyBatch encode(final Reads.ReadEntry[] batch, final int batchSize, final int maxReadLength) {
+        final KeyBatch keys = new KeyBatch(batchSize, maxReadLength);
+        final MutableString sequence = new MutableString();
+        final long[] key = new long[keys.numKeyWords];
+        for (int i = 0; i < batchSize; i++) {
+            ReadsReader.decodeSequence(batch[i], sequence);
+            SequenceTallyTable.encode(sequence, colorSpace, key);
+            System.arraycopy(key, 0, keys.keys, i * keys.numKeyWords, keys.numKeyWords);
+            keys.readIndices[i] = batch[i].getReadIndex();
+        }
+        keys.size = batchSize;
+        return keys;
+    }
 
-            final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
+    /**
+     * Tally every read of the input in one table. Reads are packed and tallied by the tally threads.
+     */
+    private void tallyReads(final OrderedExecutor<KeyBatch> tallyExecutor, final SequenceTallyTable table,
+                            final int maxReadLength, final ProgressLogger progress) throws IOException {
+        final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
+        try {
+            int numReads = 0;
+            Reads.ReadEntry[] batch = new Reads.ReadEntry[BATCH_SIZE];
+            int batchSize = 0;
             for (final Reads.ReadEntry readEntry : readsReader) {
-                readLength = readEntry.getReadLength();
-                byteBuffer = toByteBuffer(sequence, byteBuffer, readEntry);
-
-                final CompressedRead read = new CompressedRead(byteBuffer.clone());
-
-
-                read.readIndex = readEntry.getReadIndex();
-                // we keep track of all the read indices. The ones that go into otherReadIndices
-                // will be given a multiplicity of 1.
-                otherReadIndices.set(read.readIndex, true);
-
-                if (inspectHashcodes.contains(sd.digest(readEntry.getSequence(), 0, readLength))) {
-                    final int count = tallies.getInt(read) + 1;
-                    tallies.put(read, count);
-                    if (count > 1) {
-                        // We have seen this sequence already.
-                        // Remove the read from the filter. The first read with the sequence will be searched and
-                        // results adjusted according to multiplicity (count)
-                        otherReadIndices.set(read.readIndex, false);
-                    }
+                batch[batchSize++] = readEntry;
+                numReads++;
+                final boolean lastRead = numReads > MAX_PROCESS_READS;
+                if (batchSize == BATCH_SIZE || lastRead) {
+                    submit(tallyExecutor, batch, batchSize, maxReadLength, table);
+                    takeBatches(tallyExecutor, false, null, progress);
+                    batch = new Reads.ReadEntry[BATCH_SIZE];
+                    batchSize = 0;
                 }
+                if (lastRead) {
+                    break;
+                }
+            }
+            if (batchSize > 0) {
+                submit(tallyExecutor, batch, batchSize, maxReadLength, table);
+            }
+            takeBatches(tallyExecutor, true, null, progress);
+        } finally {
+            readsReader.close();
+        }
+    }
 
-                progress.lightUpdate();
-
+    /**
+     * Write the packed sequence and read index of every read to one of numPartitions temporary files. All the
+     * reads with the same sequence are written to the same partition, so partitions can be tallied one at a
+     * time in tables that fit the memory budget.
+     */
+    private File[] partitionReads(final OrderedExecutor<KeyBatch> tallyExecutor, final int numPartitions,
+                                  final int maxReadLength, final ProgressLogger progress) throws IOException {
+        final File[] partitions = new File[numPartitions];
+        final DataOutputStream[] outputs = new DataOutputStream[numPartitions];
+        final ReadsReader readsReader = new ReadsReader(new FileInputStream(inputFilename));
+        try {
+            for (int i = 0; i < numPartitions; i++) {
+                partitions[i] = File.createTempFile("tally-reads-" + i + "-", ".keys");
+                partitions[i].deleteOnExit();
+                outputs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partitions[i])));
+            }
+            int numReads = 0;
+            Reads.ReadEntry[] batch = new Reads.ReadEntry[BATCH_SIZE];
+            int batchSize = 0;
+            for (final Reads.ReadEntry readEntry : readsReader) {
+                batch[batchSize++] = readEntry;
                 numReads++;
-
-
-                //   if (numReads % reportEveryNReads == 1 && numReads != 1) {
-                //    printStats(tallies, numReads, false, otherReadIndices);
-                //    }
-
-                if (numReads > MAX_PROCESS_READS) {
+                final boolean lastRead = numReads > MAX_PROCESS_READS;
+                if (batchSize == BATCH_SIZE || lastRead) {
+                    submit(tallyExecutor, batch, batchSize, maxReadLength, null);
+                    takeBatches(tallyExecutor, false, outputs, progress);
+                    batch = new Reads.ReadEntry[BATCH_SIZE];
+                    batchSize = 0;
+                }
+                if (lastRead) {
                     break;
                 }
             }
+            if (batchSize > 0) {
+                submit(tallyExecutor, batch, batchSize, maxReadLength, null);
+            }
+            takeBatches(tallyExecutor, true, outputs, progress);
+        } finally {
             readsReader.close();
-            System.gc();
-            printStats(tallies, numReads, true, otherReadIndices);
-
+            for (final DataOutputStream output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
         }
+        return partitions;
+    }
 
-        progress.stop("second pass");
-        System.exit(0);
+    /**
+     * Pack the sequences of a batch of reads in a tally thread, and tally them when a table is given.
+     */
+    private void submit(final OrderedExecutor<KeyBatch> tallyExecutor, final Reads.ReadEntry[] batch,
+                        final int batchSize, final int maxReadLength, final SequenceTallyTable table)
+            throws IOException {
+        tallyExecutor.submit(new Callable<KeyBatch>() {
+            @Override
+            public KeyBatch call() {
+                final KeyBatch keys = encode(batch, batchSize, maxReadLength);
+                if (table != null) {
+                    keys.tally(table);
+                }
+                return keys;
+            }
+        });
     }
 
-    private byte[] toByteBuffer(final MutableString sequence, byte[] byteBuffer, final Reads.ReadEntry readEntry) throws IOException {
-        ReadsReader.decodeSequence(readEntry, sequence);
-        final int i = sequence.length();
-        if ((int) (i / 4) + 1 != byteBuffer.length) {
-            byteBuffer = new byte[((int) (i / 4)) + 1]; //2 bits per base require four times less space.
-        } else {
-            Arrays.fill(byteBuffer, (byte) 0);
+    /**
+     * Tally the reads of one partition, then delete the partition.
+     */
+    private void tallyPartition(final OrderedExecutor<KeyBatch> tallyExecutor, final File partition, final int maxReadLength,
+                                final Tallies tallies, final ProgressLogger progress) throws IOException {
+        final int numKeyWords = SequenceTallyTable.numKeyWords(maxReadLength);
+        final long numRecords = partition.length() / (4 + 8L * numKeyWords);
+        final SequenceTallyTable table = new SequenceTallyTable(maxReadLength, numRecords);
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(partition)));
+        try {
+            long numRead = 0;
+            while (numRead < numRecords) {
+                final KeyBatch keys = new KeyBatch((int) Math.min(BATCH_SIZE, numRecords - numRead), maxReadLength);
+                for (int i = 0; i < keys.readIndices.length; i++) {
+                    keys.readIndices[i] = input.readInt();
+                    for (int j = 0; j < numKeyWords; j++) {
+                        keys.keys[i * numKeyWords + j] = input.readLong();
+                    }
+                }
+                keys.size = keys.readIndices.length;
+                numRead += keys.size;
+                tallyExecutor.submit(new Callable<KeyBatch>() {
+                    @Override
+                    public KeyBatch call() {
+                        keys.tally(table);
+                        return keys;
+                    }
+                });
+                takeBatches(tallyExecutor, false, null, progress);
+            }
+            takeBatches(tallyExecutor, true, null, progress);
+        } finally {
+            input.close();
+            partition.delete();
         }
-        final OutputBitStream compressed = new OutputBitStream(byteBuffer);
-        int index = 0;
-        for (final char c : sequence.array()) {
-            if (colorSpace) {
+        table.visit(tallies);
+    }
 
-                if (index != 0) {
-                    // color space encoded as color space:
-                    encodeColorSpace(c, compressed);
-                } else {
-                    // first base encoded as ATCG:
-                    encode(c, compressed);
+    /**
+     * Take batches in the order they were submitted, either those that are ready or, when all is true, every
+     * pending batch. When partitions are given, write the keys of each batch to the partitions.
+     */
+    private void takeBatches(final OrderedExecutor<KeyBatch> tallyExecutor, final boolean all,
+                             final DataOutputStream[] partitions, final ProgressLogger progress)
+            throws IOException {
+        while (all ? !tallyExecutor.isEmpty() : tallyExecutor.hasReadyResult()) {
+            final KeyBatch keys = tallyExecutor.take();
+            if (partitions != null) {
+                final long[] key = new long[keys.numKeyWords];
+                for (int i = 0; i < keys.size; i++) {
+                    System.arraycopy(keys.keys, i * keys.numKeyWords, key, 0, keys.numKeyWords);
+                    final int partition = (int) ((SequenceTallyTable.hash(key) >>> 33) % partitions.length);
+                    partitions[partition].writeInt(keys.readIndices[i]);
+                    for (final long word : key) {
+                        partitions[partition].writeLong(word);
+                    }
                 }
-
-            } else {
-                encode(c, compressed);
             }
-            ++index;
-            if (index >= i) {
-                break;
+            progress.update(keys.size);
+        }
+    }
+
+    /**
+     * Collects the multiplicity of the first read of each distinct sequence, and redundancy statistics.
+     */
+    private static final class Tallies implements SequenceTallyTable.Visitor {
+        private final ReadSet set = new ReadSet();
+        /**
+         * Number of sequences seen more than once.
+         */
+        private int num;
+        /**
+         * Number of reads whose sequence was seen more than once.
+         */
+        private long sum;
+
+        private Tallies() {
+            super();
+            set.smallestStoredMultiplicity(1);
+        }
+
+        @Override
+        public void visit(final long[] key, final long count, final int firstReadIndex) {
+            set.add(firstReadIndex, (int) Math.min(count, Integer.MAX_VALUE));
+            if (count > 1) {
+                sum += count;
+                num++;
             }
         }
-        compressed.flush();
-        return byteBuffer;
     }
 
     public static void toByteBuffer(final CharSequence sequence,
@@ -273,52 +439,21 @@ public class TallyReadsMode extends AbstractGobyMode {
 
     }
 
-    private void printStats(final Object2IntMap<CompressedRead> tallies, final int numReads, final boolean writeTallies, final BitVector otherReadIndices) {
-        final IntList counts = new IntArrayList();
-        int sum = 0;
-        int num = 0;
-        for (final int count : tallies.values()) {
-            if (count > 1) {
-                counts.add(count);
-                sum += count;
-                num++;
-            }
-        }
-
-        Collections.sort(counts);
-
-        if (writeTallies) {
-            final ReadSet set = new ReadSet();
-            set.smallestStoredMultiplicity(1);
-            for (int readIndex = 0; readIndex < otherReadIndices.size(); ++readIndex) {
-                if (otherReadIndices.getBoolean(readIndex)) {
-                    set.add(readIndex, 1);
-                }
-
-            }
-            for (final CompressedRead read : tallies.keySet()) {
-
-                final int count = tallies.getInt(read);
-                if (count > 1 && otherReadIndices.get(read.readIndex)) {
-                    set.add(read.readIndex, count);
-
-                }
-            }
-
-
-            try {
-                set.save(outputBasename, "keep");
-                System.out.printf("Saved filter with %d elements %n", set.size());
-            } catch (IOException e) {
-                System.out.println("Error saving read set: " + e);
-                System.exit(1);
-            }
+    private void printStats(final Tallies tallies, final int numReads) {
+        try {
+            tallies.set.save(outputBasename, "keep");
+            System.out.printf("Saved filter with %d elements %n", tallies.set.size());
+        } catch (IOException e) {
+            System.out.println("Error saving read set: " + e);
+            System.exit(1);
         }
+        final int num = tallies.num;
+        final long sum = tallies.sum;
         System.out.println("Number of reads: " + numReads);
         System.out.printf("Number of unique reads: %d %n", num);
         System.out.printf("Redunduncy sum: %d %n", sum);
         // we still need to map the first redundant read:
-        final int avoidableMappings = sum - counts.size();
+        final long avoidableMappings = sum - num;
         System.out.printf("Could avoid: %d alignments %n", avoidableMappings);
         System.out.printf("Fraction of redundant reads: %3.3g %% %n", (100d * ((double) num) / (double) numReads));
         System.out.printf("Fraction of time saved: %3.3g %% %n", (100d * ((double) avoidableMappings) / (double) numReads));
@@ -21,10 +21,12 @@ package edu.cornell.med.icb.goby.modes;
 import com.google.protobuf.ByteString;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import edu.cornell.med.icb.goby.reads.PackedSequence;
 import edu.cornell.med.icb.goby.reads.Reads;
 import edu.cornell.med.icb.goby.reads.ReadsReader;
 import edu.cornell.med.icb.goby.reads.ReadsWriter;
 import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
+import edu.cornell.med.icb.goby.util.OrderedExecutor;
 import it.unimi.dsi.bits.BitVector;
 import it.unimi.dsi.bits.LongArrayBitVector;
 import it.unimi.dsi.fastutil.bytes.ByteArrayList;
@@ -38,6 +40,8 @@ import org.apache.log4j.Logger;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Trims adapter sequences from reads.
@@ -59,14 +63,13 @@ public class TrimMode extends AbstractGobyMode {
     private String inputFilename;
     private String outputFilename;
     private static final Logger LOG = Logger.getLogger(TrimMode.class);
-    private byte[] buffer = new byte[10000];
     private String adapterFilename;
     private boolean complementAdapters;
-    private int numTrimmedLeft;
-    private int numTrimmedRight;
-    private int numContained;
+    private final AtomicInteger numTrimmedLeft = new AtomicInteger();
+    private final AtomicInteger numTrimmedRight = new AtomicInteger();
+    private final AtomicInteger numContained = new AtomicInteger();
     private double numSequencesInInput;
-    private int numTrimmed;
+    private final AtomicInteger numTrimmed = new AtomicInteger();
     private int minRightLength = 0;
     private int minLeftLength = 0;
 
@@ -74,6 +77,27 @@ public class TrimMode extends AbstractGobyMode {
     private boolean trimRight = true;
     private boolean verbose;
 
+    /**
+     * Maximum number of mismatches between a sequence and an adapter.
+     */
+    private int maxMismatches;
+
+    /**
+     * Overlaps between a sequence and an adapter tolerate one mismatch per this many bases, up to
+     * maxMismatches, so that short overlaps must match exactly.
+     */
+    private static final int MIN_BASES_PER_MISMATCH = 8;
+
+    /**
+     * Number of reads trimmed together by one thread.
+     */
+    private static final int BATCH_SIZE = 10000;
+
+    /**
+     * Number of threads that trim reads, -1 for one per available processor.
+     */
+    private int numThreads = 1;
+
 
     /**
      * {@inheritDoc}
@@ -121,6 +145,8 @@ public class TrimMode extends AbstractGobyMode {
         trimLeft = jsapResult.getBoolean("trim-left");
         trimRight = jsapResult.getBoolean("trim-right");
         verbose = jsapResult.getBoolean("verbose");
+        maxMismatches = jsapResult.getInt("max-mismatches");
+        numThreads = jsapResult.getInt("num-threads", 1);
         return this;
     }
 
@@ -148,77 +174,53 @@ public class TrimMode extends AbstractGobyMode {
             } else {
                 adapters = adapterList.toArray(new MutableString[adapterList.size()]);
             }
+            final PackedSequence[] packedAdapters = pack(adapters);
             progress.start();
             writer = new ReadsWriterImpl(new FileOutputStream(outputFilename));
 
-            final ByteArrayList newQualScores = new ByteArrayList();
-            final ByteArrayList newPairQualScores = new ByteArrayList();
-            final MutableString sequence = new MutableString();
-            final MutableString sequencePair = new MutableString();
-
-            for (final Reads.ReadEntry entry : reader) {
-                //      observe(counters, entry.getSequence(), entry.getReadIndex());
-                ReadsReader.decodeSequence(entry, sequence);
-
-                final ByteString qualityScores = entry.getQualityScores();
-                newQualScores.clear();
-                final MutableString seq1 = trim(adapters, newQualScores, sequence, qualityScores);
-                MutableString pairSeq = null;
-
-                numSequencesInInput++;
-                if (entry.hasSequencePair()) {
-                    newPairQualScores.clear();
-
-                    ReadsReader.decodeSequence(entry, sequencePair, true);
-
-                    final ByteString pairQualityScores = entry.getQualityScoresPair();
-                    pairSeq = trim(adapters, newPairQualScores, sequencePair, pairQualityScores);
-                    numSequencesInInput++;
-                }
-
-                //    System.out.printf(">seq%n%s%n", c);
-                Reads.ReadEntry.Builder builder = Reads.ReadEntry.newBuilder();
-                builder = builder.mergeFrom(entry).setSequence(ReadsWriterImpl.encodeSequence(seq1, buffer)).setReadLength(seq1.length());
-                if (sequence.length() != seq1.length()) {
-                    numTrimmed++;
-                    final byte[] bytes1 = newQualScores.toByteArray();
-                    builder = builder.setQualityScores(ByteString.copyFrom(bytes1));
-                    assert builder.getQualityScores().size() == builder.getSequence().size() : "sequence length and quality scores must match.";
-                }
-
-                if (entry.hasSequencePair()) {
-                    builder = builder.mergeFrom(entry)
-                            .setSequencePair(ReadsWriterImpl.encodeSequence(pairSeq, buffer))
-                            .setReadLengthPair(pairSeq.length());
-
-                    if (sequencePair.length() != pairSeq.length()) {
-                        numTrimmed++;
-                        builder = builder.setQualityScoresPair(ByteString.copyFrom(newPairQualScores.toByteArray()));
-                        assert builder.getQualityScoresPair().size() == builder.getSequencePair().size() : "sequence length and quality scores must match.";
-
+            final int numTrimmingThreads = numThreads == -1 ? Runtime.getRuntime().availableProcessors() : numThreads;
+            final OrderedExecutor<Reads.ReadEntry.Builder[]> trimmingExecutor =
+                    new OrderedExecutor<Reads.ReadEntry.Builder[]>("adapter-trimming",
+                            numTrimmingThreads > 1 ? numTrimmingThreads : 0);
+            try {
+                Reads.ReadEntry[] batch = new Reads.ReadEntry[BATCH_SIZE];
+                int batchSize = 0;
+                for (final Reads.ReadEntry entry : reader) {
+                    numSequencesInInput += entry.hasSequencePair() ? 2 : 1;
+                    batch[batchSize++] = entry;
+                    if (batchSize == BATCH_SIZE) {
+                        trim(trimmingExecutor, packedAdapters, batch, batchSize);
+                        while (trimmingExecutor.hasReadyResult()) {
+                            write(writer, trimmingExecutor.take(), progress);
+                        }
+                        batch = new Reads.ReadEntry[BATCH_SIZE];
+                        batchSize = 0;
                     }
                 }
-                if (seq1.length() > 0 || sequencePair.length() > 0) {
-                    // some sequence must remain to append to the output:
-                    writer.appendEntry(builder);
+                if (batchSize > 0) {
+                    trim(trimmingExecutor, packedAdapters, batch, batchSize);
                 }
-                progress.lightUpdate();
+                while (!trimmingExecutor.isEmpty()) {
+                    write(writer, trimmingExecutor.take(), progress);
+                }
+            } finally {
+                trimmingExecutor.shutdown();
             }
             progress.stop();
 
-            final int numSequencesTrimmed = numTrimmed;
+            final int numSequencesTrimmed = numTrimmed.get();
             double percent = 100d * numSequencesTrimmed;
             percent /= numSequencesInInput;
             System.out.printf("Number of reads trimmed %d (%g %% of input sequences), including: %n" +
                     "left: %d (%g%%)%n" +
                     "right: %d (%g%%), %n" +
                     "fully contained: %d (%g%%)%n",
-                    numSequencesTrimmed, percent, numTrimmedLeft,
-                    percent(numTrimmedLeft, numSequencesTrimmed),
-                    numTrimmedRight,
-                    percent(numTrimmedRight, numSequencesTrimmed),
-                    numContained,
-                    percent(numContained, numSequencesTrimmed));
+                    numSequencesTrimmed, percent, numTrimmedLeft.get(),
+                    percent(numTrimmedLeft.get(), numSequencesTrimmed),
+                    numTrimmedRight.get(),
+                    percent(numTrimmedRight.get(), numSequencesTrimmed),
+                    numContained.get(),
+                    percent(numContained.get(), numSequencesTrimmed));
             System.out.flush();
         } finally {
             if (writer != null) {
@@ -230,15 +232,138 @@ public class TrimMode extends AbstractGobyMode {
         progress.stop();
     }
 
+    /**
+     * Trim the entries of a batch, in a trimming thread when threads are used, or in the calling thread otherwise.
+     */
+    private void trim(final OrderedExecutor<Reads.ReadEntry.Builder[]> trimmingExecutor,
+                      final PackedSequence[] adapters,
+                      final Reads.ReadEntry[] batch, final int batchSize) throws IOException {
+        trimmingExecutor.submit(new Callable<Reads.ReadEntry.Builder[]>() {
+            @Override
+            public Reads.ReadEntry.Builder[] call() {
+                return trim(adapters, batch, batchSize);
+            }
+        });
+    }
+
+    /**
+     * Write the trimmed entries of a batch.
+     */
+    private void write(final ReadsWriter writer, final Reads.ReadEntry.Builder[] builders,
+                       final ProgressLogger progress) throws IOException {
+        for (final Reads.ReadEntry.Builder builder : builders) {
+            if (builder != null) {
+                writer.appendEntry(builder);
+            }
+            progress.lightUpdate();
+        }
+    }
+
+    /**
+     * Trim the entries of a batch.
+     *
+     * @return the trimmed entries, null for entries where no sequence remains.
+     */
+    private Reads.ReadEntry.Builder[] trim(final PackedSequence[] adapters, final Reads.ReadEntry[] batch,
+                                           final int batchSize) {
+        final Reads.ReadEntry.Builder[] builders = new Reads.ReadEntry.Builder[batchSize];
+        final byte[] buffer = new byte[10000];
+        final ByteArrayList newQualScores = new ByteArrayList();
+        final ByteArrayList newPairQualScores = new ByteArrayList();
+        final MutableString sequence = new MutableString();
+        final MutableString sequencePair = new MutableString();
+        final PackedSequence packedSequence = new PackedSequence();
+        for (int i = 0; i < batchSize; i++) {
+            final Reads.ReadEntry entry = batch[i];
+            //      observe(counters, entry.getSequence(), entry.getReadIndex());
+            ReadsReader.decodeSequence(entry, sequence);
+
+            final ByteString qualityScores = entry.getQualityScores();
+            newQualScores.clear();
+            final MutableString seq1 = trim(adapters, newQualScores, sequence, packedSequence, qualityScores);
+            MutableString pairSeq = null;
+
+            if (entry.hasSequencePair()) {
+                newPairQualScores.clear();
+
+                ReadsReader.decodeSequence(entry, sequencePair, true);
+
+                final ByteString pairQualityScores = entry.getQualityScoresPair();
+                pairSeq = trim(adapters, newPairQualScores, sequencePair, packedSequence, pairQualityScores);
+            }
+
+            //    System.out.printf(">seq%n%s%n", c);
+            Reads.ReadEntry.Builder builder = Reads.ReadEntry.newBuilder();
+            builder = builder.mergeFrom(entry).setSequence(ReadsWriterImpl.encodeSequence(seq1, buffer)).setReadLength(seq1.length());
+            if (sequence.length() != seq1.length()) {
+                numTrimmed.incrementAndGet();
+                final byte[] bytes1 = newQualScores.toByteArray();
+                builder = builder.setQualityScores(ByteString.copyFrom(bytes1));
+                assert builder.getQualityScores().size() == builder.getSequence().size() : "sequence length and quality scores must match.";
+            }
+
+            if (entry.hasSequencePair()) {
+                builder = builder.mergeFrom(entry)
+                        .setSequencePair(ReadsWriterImpl.encodeSequence(pairSeq, buffer))
+                        .setReadLengthPair(pairSeq.length());
+
+                if (sequencePair.length() != pairSeq.length()) {
+                    numTrimmed.incrementAndGet();
+                    builder = builder.setQualityScoresPair(ByteString.copyFrom(newPairQualScores.toByteArray()));
+                    assert builder.getQualityScoresPair().size() == builder.getSequencePair().size() : "sequence length and quality scores must match.";
+
+                }
+            }
+            if (seq1.length() > 0 || sequencePair.length() > 0) {
+                // some sequence must remain to append to the output:
+                builders[i] = builder;
+            }
+        }
+        return builders;
+    }
+
     private double percent(final double a, final double b) {
         return a / b * 100;
     }
 
     protected MutableString trim(final MutableString[] adapters, final ByteArrayList newQualScores, final MutableString sequence, final ByteString qualityScores) {
+        return trim(pack(adapters), newQualScores, sequence, new PackedSequence(), qualityScores);
+    }
+
+    /**
+     * Trim adapters from a sequence.
+     *
+     * @param packedSequence packed again with each trimmed version of the sequence.
+     */
+    private MutableString trim(final PackedSequence[] adapters, final ByteArrayList newQualScores,
+                               final MutableString sequence, final PackedSequence packedSequence,
+                               final ByteString qualityScores) {
         final int length = sequence.length();
-        final MutableString a = contains(length, sequence, qualityScores, newQualScores, adapters);
-        final MutableString b = trimLeft(length, a, qualityScores, newQualScores, adapters);
-        return trimRight(length, b, qualityScores, newQualScores, adapters);
+        packedSequence.pack(sequence);
+        final MutableString a = contains(length, sequence, packedSequence, qualityScores, newQualScores, adapters);
+        if (a.length() != length) {
+            packedSequence.pack(a);
+        }
+        final MutableString b = trimLeft(length, a, packedSequence, qualityScores, newQualScores, adapters);
+        if (b != a) {
+            packedSequence.pack(b);
+        }
+        return trimRight(length, b, packedSequence, qualityScores, newQualScores, adapters);
+    }
+
+    /**
+     * The number of mismatches allowed when a sequence overlaps an adapter over overlapLength bases.
+     */
+    private int allowedMismatches(final int overlapLength) {
+        return Math.min(maxMismatches, overlapLength / MIN_BASES_PER_MISMATCH);
+    }
+
+    private static PackedSequence[] pack(final MutableString[] adapters) {
+        final PackedSequence[] packedAdapters = new PackedSequence[adapters.length];
+        for (int i = 0; i < adapters.length; i++) {
+            packedAdapters[i] = new PackedSequence(adapters[i]);
+        }
+        return packedAdapters;
     }
 
     protected void convert(final ByteString bytes, final MutableString sequence) {
@@ -290,15 +415,27 @@ public class TrimMode extends AbstractGobyMode {
                                       final ByteString qualityScores,
                                       final ByteArrayList newQualScores,
                                       final MutableString[] adapters) {
+        return trimRight(length, sequence, new PackedSequence(sequence), qualityScores, newQualScores,
+                pack(adapters));
+    }
+
+    private MutableString trimRight(final int length, final MutableString sequence,
+                                    final PackedSequence packedSequence,
+                                    final ByteString qualityScores,
+                                    final ByteArrayList newQualScores,
+                                    final PackedSequence[] adapters) {
         if (!trimRight) {
             return sequence;
         }
         final int currentLength = sequence.length();
-        for (final MutableString adapter : adapters) {
+        for (final PackedSequence adapter : adapters) {
             final int adaptLength = adapter.length();
 
             for (int j = minRightLength; j < adaptLength; j++) {
-                if (sequence.endsWith(adapter.subSequence(j, adaptLength))) {
+                // does the sequence end with the adapter from position j?
+                final int overlapLength = adaptLength - j;
+                if (packedSequence.regionMatches(currentLength - overlapLength, adapter, j, overlapLength,
+                        allowedMismatches(overlapLength))) {
                     final int trimedLength = adaptLength - j;
                     if (verbose && trimedLength > 10) {
                         System.out.printf("%d bases matching right %s %s %n", trimedLength, sequence, adapter);
@@ -311,7 +448,7 @@ public class TrimMode extends AbstractGobyMode {
                     if (!qualityScores.isEmpty()) {
                         newQualScores.removeElements(currentLength - trimedLength, Math.min(currentLength + 1, newQualScores.size()));
                     }
-                    numTrimmedRight++;
+                    numTrimmedRight.incrementAndGet();
                     return sequence.substring(0, currentLength - trimedLength);
                 }
 
@@ -321,14 +458,22 @@ public class TrimMode extends AbstractGobyMode {
     }
 
     protected MutableString trimLeft(final int length, final MutableString sequence, final ByteString qualityScores, final ByteArrayList newQualScores, final MutableString[] adapters) {
+        return trimLeft(length, sequence, new PackedSequence(sequence), qualityScores, newQualScores,
+                pack(adapters));
+    }
+
+    private MutableString trimLeft(final int length, final MutableString sequence,
+                                   final PackedSequence packedSequence, final ByteString qualityScores,
+                                   final ByteArrayList newQualScores, final PackedSequence[] adapters) {
         final int currentLength = sequence.length();
         if (!trimLeft) {
             return sequence;
         }
-        for (final MutableString adapter : adapters) {
+        for (final PackedSequence adapter : adapters) {
             final int adaptLength = adapter.length();
             for (int j = adaptLength; j >= minLeftLength; --j) {
-                if (sequence.startsWith(adapter.subSequence(0, j))) {
+                // does the sequence start with the first j bases of the adapter?
+                if (packedSequence.regionMatches(0, adapter, 0, j, allowedMismatches(j))) {
                     final int trimedLength = j;
                     if (verbose && trimedLength > 10) {
                         System.out.printf("%d bases matching left %s %s %n", trimedLength, sequence, adapter);
@@ -341,7 +486,7 @@ public class TrimMode extends AbstractGobyMode {
                     if (!qualityScores.isEmpty()) {
                         newQualScores.removeElements(0, trimedLength);
                     }
-                    numTrimmedLeft++;
+                    numTrimmedLeft.incrementAndGet();
                     return sequence.substring(trimedLength, currentLength);
 
 
@@ -352,11 +497,18 @@ public class TrimMode extends AbstractGobyMode {
     }
 
     protected MutableString contains(final int length, final MutableString sequence, final ByteString qualityScores, final ByteArrayList newQualScores, final MutableString[] adapters) {
+        return contains(length, sequence, new PackedSequence(sequence), qualityScores, newQualScores,
+                pack(adapters));
+    }
+
+    private MutableString contains(final int length, final MutableString sequence,
+                                   final PackedSequence packedSequence, final ByteString qualityScores,
+                                   final ByteArrayList newQualScores, final PackedSequence[] adapters) {
         int midPoint = sequence.length() / 2;
-        for (final MutableString adapter : adapters) {
+        for (final PackedSequence adapter : adapters) {
 
 
-            final int index = sequence.indexOf(adapter);
+            final int index = packedSequence.indexOf(adapter, allowedMismatches(adapter.length()));
             if (index >= 0) {
                 if (verbose) {
                     System.out.printf("adapter %s contained entirely in sequence %s%n", adapter, sequence);
@@ -374,7 +526,7 @@ public class TrimMode extends AbstractGobyMode {
                     start = 0;
                 }
                 newQualScores.removeElements(start, end);
-                numContained++;
+                numContained.incrementAndGet();
                 return sequence.delete(start, end);
             }
 
@@ -402,4 +554,12 @@ public class TrimMode extends AbstractGobyMode {
     public void setMinLengthRight(final int i) {
         this.minRightLength = i;
     }
+
+    public void setMaxMismatches(final int maxMismatches) {
+        this.maxMismatches = maxMismatches;
+    }
+
+    public void setNumThreads(final int numThreads) {
+        this.numThreads = numThreads;
+    }
 }
@@ -35,7 +35,8 @@ public class DualRandomAccessSequenceCache implements RandomAccessSequenceInterf
      * genome, you must provide a filename ending in .fa or .fasta. The fasta file must be indexed
      * with samtools faidx and the fasta index file must be named filename.fasta.idx or filename.fa.idx
      * To load a Goby random access cache, you need to create the cache with the goby build-sequence-cache
-     * mode and provide a basename as filename.
+     * mode and provide a basename as filename. Mapped genomes are preferred over serialized caches with the
+     * same basename.
      *
      * @param filename
      * @throws IOException
@@ -44,6 +45,10 @@ public class DualRandomAccessSequenceCache implements RandomAccessSequenceInterf
         if (filename.endsWith(".fa") || filename.endsWith(".fasta")) {
 
             delegate = new PicardFastaIndexedSequence(filename);
+        } else if (MappedSequenceCache.canLoad(filename)) {
+            final MappedSequenceCache mappedGenome = new MappedSequenceCache();
+            mappedGenome.load(filename);
+            delegate = mappedGenome;
         } else {
 
             final RandomAccessSequenceCache gobyCache = new RandomAccessSequenceCache();
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A genome stored as 2-bit packed bases and an index of runs of N bases. The bases are memory-mapped
+ * read-only rather than loaded on the heap, so opening a genome is nearly instantaneous and concurrent
+ * processes on the same machine share one copy of the genome in the page cache. Instances are safe to use
+ * from several threads once loaded. Use {@link MappedSequenceCacheWriter} (or the goby build-sequence-cache
+ * mode with --format mapped) to create the files.
+ */
+public class MappedSequenceCache implements RandomAccessSequenceInterface {
+    static final int MAGIC = 0x47424753;
+    static final int VERSION = 1;
+    static final String INDEX_EXTENSION = ".mapped-index";
+    static final String BASES_EXTENSION = ".mapped-bases";
+
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+    private String[] names;
+    private Object2IntMap<String> nameToIndex;
+    private int[] lengths;
+    private MappedByteBuffer[] bases;
+    /**
+     * Start (inclusive) of each run of N bases, in increasing order, per reference.
+     */
+    private int[][] nRunStarts;
+    /**
+     * End (exclusive) of each run of N bases, per reference.
+     */
+    private int[][] nRunEnds;
+
+    /**
+     * Determine if a mapped genome exists with the given basename.
+     *
+     * @param basename basename of the genome.
+     * @return True when both the index and the bases files exist.
+     */
+    public static boolean canLoad(final String basename) {
+        return new File(basename + INDEX_EXTENSION).exists() && new File(basename + BASES_EXTENSION).exists();
+    }
+
+    /**
+     * Load the index of the genome and map its bases into memory.
+     *
+     * @param basename basename of the genome.
+     * @throws IOException if the genome cannot be read.
+     */
+    public void load(final String basename) throws IOException {
+        DataInputStream index = null;
+        RandomAccessFile basesFile = null;
+        try {
+            index = new DataInputStream(new BufferedInputStream(new FileInputStream(basename + INDEX_EXTENSION)));
+            if (index.readInt() != MAGIC) {
+                throw new IOException("Not a mapped genome index: " + basename + INDEX_EXTENSION);
+            }
+            final int version = index.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported mapped genome version %d in %s", version,
+                        basename + INDEX_EXTENSION));
+            }
+            final int numReferences = index.readInt();
+            names = new String[numReferences];
+            lengths = new int[numReferences];
+            bases = new MappedByteBuffer[numReferences];
+            nRunStarts = new int[numReferences][];
+            nRunEnds = new int[numReferences][];
+            nameToIndex = new Object2IntOpenHashMap<String>(numReferences);
+            nameToIndex.defaultReturnValue(-1);
+
+            basesFile = new RandomAccessFile(basename + BASES_EXTENSION, "r");
+            final FileChannel channel = basesFile.getChannel();
+            for (int referenceIndex = 0; referenceIndex < numReferences; referenceIndex++) {
+                names[referenceIndex] = index.readUTF();
+                nameToIndex.put(names[referenceIndex], referenceIndex);
+                lengths[referenceIndex] = index.readInt();
+                final long offset = index.readLong();
+                final int numRuns = index.readInt();
+                final int[] starts = new int[numRuns];
+                final int[] ends = new int[numRuns];
+                for (int run = 0; run < numRuns; run++) {
+                    starts[run] = index.readInt();
+                    ends[run] = index.readInt();
+                }
+                nRunStarts[referenceIndex] = starts;
+                nRunEnds[referenceIndex] = ends;
+                // each reference is mapped on its own, since one mapping cannot exceed 2GB:
+                bases[referenceIndex] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        packedLength(lengths[referenceIndex]));
+            }
+        } finally {
+            IOUtils.closeQuietly(index);
+            // mappings remain valid after the file is closed:
+            IOUtils.closeQuietly(basesFile);
+        }
+    }
+
+    /**
+     * Return the number of bytes needed to store length packed bases.
+     */
+    static long packedLength(final int length) {
+        return (length + 3L) / 4;
+    }
+
+    @Override
+    public char get(final int referenceIndex, final int position) {
+        if (position < 0 || position >= lengths[referenceIndex] || isN(referenceIndex, position)) {
+            return 'N';
+        }
+        final int packed = bases[referenceIndex].get(position >> 2);
+        return BASES[(packed >> (6 - ((position & 3) << 1))) & 0x3];
+    }
+
+    private boolean isN(final int referenceIndex, final int position) {
+        final int[] starts = nRunStarts[referenceIndex];
+        if (starts.length == 0) {
+            return false;
+        }
+        final int run = Arrays.binarySearch(starts, position);
+        if (run >= 0) {
+            return true;
+        }
+        final int previousRun = -run - 2;
+        return previousRun >= 0 && position < nRunEnds[referenceIndex][previousRun];
+    }
+
+    @Override
+    public int getLength(final int targetIndex) {
+        return lengths[targetIndex];
+    }
+
+    @Override
+    public void getRange(final int referenceIndex, final int position, final int length, final MutableString bases) {
+        bases.setLength(0);
+        for (int i = position; i < position + length; i++) {
+            bases.append(get(referenceIndex, i));
+        }
+    }
+
+    @Override
+    public int getReferenceIndex(final String referenceId) {
+        return nameToIndex.getInt(referenceId);
+    }
+
+    @Override
+    public String getReferenceName(final int index) {
+        return names[index];
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.parsers.ReaderFastaParser;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Writes a genome in the format read by {@link MappedSequenceCache}. Sequences are streamed to disk as they
+ * are appended, so converting a genome does not require holding it in memory.
+ */
+public class MappedSequenceCacheWriter implements Closeable {
+    private final String basename;
+    private final OutputStream basesOutput;
+    private final ObjectArrayList<String> names = new ObjectArrayList<String>();
+    private final IntArrayList lengths = new IntArrayList();
+    private final LongArrayList offsets = new LongArrayList();
+    private final ObjectArrayList<IntArrayList> nRuns = new ObjectArrayList<IntArrayList>();
+
+    private boolean inSequence;
+    private long offset;
+    private int length;
+    private int packed;
+    private int basesInByte;
+    /**
+     * Start and end positions of the runs of N found in the current sequence.
+     */
+    private IntArrayList runs;
+    private int runStart = -1;
+
+    public MappedSequenceCacheWriter(final String basename) throws IOException {
+        this.basename = basename;
+        basesOutput = new BufferedOutputStream(new FileOutputStream(basename + MappedSequenceCache.BASES_EXTENSION),
+                1 << 20);
+    }
+
+    /**
+     * Start a new sequence. Bases appended after this call belong to the sequence.
+     *
+     * @param name name of the new sequence.
+     * @throws IOException if the previous sequence cannot be written.
+     */
+    public void startSequence(final String name) throws IOException {
+        finishSequence();
+        names.add(name);
+        offsets.add(offset);
+        runs = new IntArrayList();
+        length = 0;
+        inSequence = true;
+    }
+
+    /**
+     * Append a base to the current sequence. Bases other than A, C, T or G are stored as N.
+     *
+     * @param base the base to append.
+     * @throws IOException if the base cannot be written.
+     */
+    public void appendBase(final int base) throws IOException {
+        final int code;
+        switch (Character.toUpperCase(base)) {
+            case 'A':
+                code = 0;
+                break;
+            case 'C':
+                code = 1;
+                break;
+            case 'G':
+                code = 2;
+                break;
+            case 'T':
+                code = 3;
+                break;
+            default:
+                code = -1;
+                break;
+        }
+        if (code < 0) {
+            if (runStart == -1) {
+                runStart = length;
+            }
+        } else {
+            closeRun();
+            packed |= code << (6 - (basesInByte << 1));
+        }
+        length++;
+        if (++basesInByte == 4) {
+            flushByte();
+        }
+    }
+
+    /**
+     * Append the sequences of a fasta file.
+     *
+     * @param reader reader over fasta content.
+     * @throws IOException if the sequences cannot be read or written.
+     */
+    public void appendFasta(final Reader reader) throws IOException {
+        final ReaderFastaParser parser = new ReaderFastaParser(reader);
+        final MutableString description = new MutableString();
+        while (parser.hasNextSequence()) {
+            parser.nextSequence(description);
+            startSequence(description.toString().split(" ")[0]);
+            final Reader baseReader = parser.getBaseReader();
+            int c;
+            while ((c = baseReader.read()) != -1) {
+                appendBase(c);
+            }
+            baseReader.close();
+        }
+    }
+
+    /**
+     * Append the sequences of a compact reads file.
+     *
+     * @param compactInput input stream over a compact reads file.
+     * @throws IOException if the sequences cannot be read or written.
+     */
+    public void appendCompact(final InputStream compactInput) throws IOException {
+        final ReadsReader parser = new ReadsReader(compactInput);
+        while (parser.hasNext()) {
+            final Reads.ReadEntry entry = parser.next();
+            startSequence(entry.getReadIdentifier());
+            final ByteString sequence = entry.getSequence();
+            for (int position = 0; position < sequence.size(); ++position) {
+                appendBase(sequence.byteAt(position));
+            }
+        }
+    }
+
+    /**
+     * Append all the sequences of another genome, for instance to convert a
+     * {@link RandomAccessSequenceCache}.
+     *
+     * @param genome genome to convert.
+     * @throws IOException if the sequences cannot be written.
+     */
+    public void append(final RandomAccessSequenceInterface genome) throws IOException {
+        for (int referenceIndex = 0; referenceIndex < genome.size(); referenceIndex++) {
+            startSequence(genome.getReferenceName(referenceIndex));
+            final int referenceLength = genome.getLength(referenceIndex);
+            for (int position = 0; position < referenceLength; position++) {
+                appendBase(genome.get(referenceIndex, position));
+            }
+        }
+    }
+
+    /**
+     * Write the last sequence and the index of the genome.
+     *
+     * @throws IOException if the genome cannot be written.
+     */
+    public void close() throws IOException {
+        finishSequence();
+        basesOutput.close();
+        final DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(basename + MappedSequenceCache.INDEX_EXTENSION)));
+        try {
+            index.writeInt(MappedSequenceCache.MAGIC);
+            index.writeInt(MappedSequenceCache.VERSION);
+            index.writeInt(names.size());
+            for (int referenceIndex = 0; referenceIndex < names.size(); referenceIndex++) {
+                index.writeUTF(names.get(referenceIndex));
+                index.writeInt(lengths.getInt(referenceIndex));
+                index.writeLong(offsets.getLong(referenceIndex));
+                final IntArrayList referenceRuns = nRuns.get(referenceIndex);
+                index.writeInt(referenceRuns.size() / 2);
+                for (int i = 0; i < referenceRuns.size(); i++) {
+                    index.writeInt(referenceRuns.getInt(i));
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+    }
+
+    private void finishSequence() throws IOException {
+        if (!inSequence) {
+            return;
+        }
+        closeRun();
+        if (basesInByte > 0) {
+            flushByte();
+        }
+        lengths.add(length);
+        nRuns.add(runs);
+        inSequence = false;
+    }
+
+    private void closeRun() {
+        if (runStart != -1) {
+            runs.add(runStart);
+            runs.add(length);
+            runStart = -1;
+        }
+    }
+
+    private void flushByte() throws IOException {
+        basesOutput.write(packed);
+        offset++;
+        packed = 0;
+        basesInByte = 0;
+    }
+}
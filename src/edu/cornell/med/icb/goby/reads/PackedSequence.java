@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+/**
+ * A sequence packed with two bits per base in long words, 32 bases per word. Mismatches between two packed
+ * regions are counted 32 bases at a time with XOR and bit counts. Sequences that contain other characters
+ * than A, C, G and T are compared character by character. An instance can be packed again with another
+ * sequence to avoid allocation; it must be packed again after its sequence changes.
+ */
+public final class PackedSequence {
+    /**
+     * The low bit of each 2-bit base.
+     */
+    private static final long LOW_BITS = 0x5555555555555555L;
+
+    private long[] words = new long[1];
+    private int length;
+    /**
+     * True when every base is one of A, C, G or T.
+     */
+    private boolean packed;
+    private CharSequence sequence;
+
+    public PackedSequence() {
+        super();
+    }
+
+    public PackedSequence(final CharSequence sequence) {
+        super();
+        pack(sequence);
+    }
+
+    /**
+     * Pack a sequence.
+     *
+     * @param sequence the sequence to pack.
+     */
+    public void pack(final CharSequence sequence) {
+        this.sequence = sequence;
+        length = sequence.length();
+        final int numWords = (length + 31) >>> 5;
+        if (words.length < numWords) {
+            words = new long[numWords];
+        }
+        packed = true;
+        long word = 0;
+        for (int i = 0; i < length; i++) {
+            final long code;
+            switch (sequence.charAt(i)) {
+                case 'A':
+                    code = 0;
+                    break;
+                case 'C':
+                    code = 1;
+                    break;
+                case 'G':
+                    code = 2;
+                    break;
+                case 'T':
+                    code = 3;
+                    break;
+                default:
+                    packed = false;
+                    return;
+            }
+            word |= code << ((i & 31) << 1);
+            if ((i & 31) == 31) {
+                words[i >>> 5] = word;
+                word = 0;
+            }
+        }
+        if ((length & 31) != 0) {
+            words[length >>> 5] = word;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Count the mismatches between a region of this sequence and a region of another sequence. Counting stops
+     * as soon as more than maxMismatches mismatches are found.
+     *
+     * @param start         start of the region in this sequence.
+     * @param other         the other sequence.
+     * @param otherStart    start of the region in the other sequence.
+     * @param regionLength  number of bases to compare.
+     * @param maxMismatches maximum number of mismatches of interest.
+     * @return the number of mismatches, or a number larger than maxMismatches.
+     */
+    public int mismatches(final int start, final PackedSequence other, final int otherStart,
+                          final int regionLength, final int maxMismatches) {
+        int count = 0;
+        if (!packed || !other.packed) {
+            for (int i = 0; i < regionLength; i++) {
+                if (sequence.charAt(start + i) != other.sequence.charAt(otherStart + i)) {
+                    if (++count > maxMismatches) {
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+        for (int offset = 0; offset < regionLength; offset += 32) {
+            long difference = word(start + offset) ^ other.word(otherStart + offset);
+            // a base differs when either of its two bits differs:
+            difference = (difference | (difference >>> 1)) & LOW_BITS;
+            final int numBases = regionLength - offset;
+            if (numBases < 32) {
+                difference &= (1L << (numBases << 1)) - 1;
+            }
+            count += Long.bitCount(difference);
+            if (count > maxMismatches) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Determine if a region of this sequence matches a region of another sequence with at most maxMismatches
+     * mismatches.
+     *
+     * @param start         start of the region in this sequence.
+     * @param other         the other sequence.
+     * @param otherStart    start of the region in the other sequence.
+     * @param regionLength  number of bases to compare.
+     * @param maxMismatches maximum number of mismatches.
+     * @return True if both regions are within the sequences and match.
+     */
+    public boolean regionMatches(final int start, final PackedSequence other, final int otherStart,
+                                 final int regionLength, final int maxMismatches) {
+        return start >= 0 && otherStart >= 0 && start + regionLength <= length
+                && otherStart + regionLength <= other.length
+                && mismatches(start, other, otherStart, regionLength, maxMismatches) <= maxMismatches;
+    }
+
+    /**
+     * Find the first occurrence of a pattern in this sequence, with at most maxMismatches mismatches.
+     *
+     * @param pattern       the sequence to find.
+     * @param maxMismatches maximum number of mismatches.
+     * @return the start of the first occurrence, or -1 if the pattern does not occur in this sequence.
+     */
+    public int indexOf(final PackedSequence pattern, final int maxMismatches) {
+        final int patternLength = pattern.length;
+        for (int start = 0; start + patternLength <= length; start++) {
+            if (mismatches(start, pattern, 0, patternLength, maxMismatches) <= maxMismatches) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return sequence == null ? "" : sequence.toString();
+    }
+
+    /**
+     * Get the 32 bases that start at a position. Bases past the end of the sequence are undefined.
+     */
+    private long word(final int position) {
+        final int index = position >>> 5;
+        final int shift = (position & 31) << 1;
+        long word = words[index] >>> shift;
+        if (shift != 0 && index + 1 < words.length) {
+            word |= words[index + 1] << (64 - shift);
+        }
+        return word;
+    }
+}
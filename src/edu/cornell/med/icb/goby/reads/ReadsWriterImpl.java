@@ -184,7 +184,30 @@ public class ReadsWriterImpl implements ReadsWriter {
             entryBuilder.setQualityScoresPair(ByteString.copyFrom(qualityScoresPair));
             qualityScoresPair = null;
         }
+        addEntry(entryBuilder);
+    }
+
+    /**
+     * Append an entry whose sequences and quality scores were already encoded, for instance by another
+     * thread, with the next available read index. Meta data and the read codec are applied as with
+     * {@link #appendEntry()}, so that entries appended with either method are written identically.
+     *
+     * @param entryBuilder Entry to append. The read index of the entry is set by this method.
+     * @throws IOException If an error occurs while writing the file.
+     */
+    public synchronized void appendEncodedEntry(final Reads.ReadEntry.Builder entryBuilder) throws IOException {
+        entryBuilder.setReadIndex(readIndex);
+        if (entryBuilder.hasSequence()) {
+            sequenceBasesWritten += entryBuilder.getSequence().size();
+        }
+        if (entryBuilder.hasSequencePair()) {
+            sequenceBasesWritten += entryBuilder.getSequencePair().size();
+        }
+        addEntry(entryBuilder);
+        readIndex++;
+    }
 
+    private void addEntry(Reads.ReadEntry.Builder entryBuilder) throws IOException {
         if (firstRead == true && keyValuePairs != null) {
             // Append meta data on the very first read of each file. This is used instead of a separate header file. 
             for (Object keyObject : keyValuePairs.keySet()) {
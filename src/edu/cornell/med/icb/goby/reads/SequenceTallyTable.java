@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many times each sequence (a read or a k-mer) occurs, and remembers the smallest read index
+ * where it occurs. Sequences are packed with two bits per base into keys of a fixed number of long words
+ * (see {@link #encode}). The table is an open addressing hash table stored in one array of longs, without
+ * one object per sequence, and several threads can tally sequences concurrently: new sequences are claimed
+ * and counts are incremented with compare-and-set operations.
+ * <p/>
+ * Each slot holds a state word (empty, being written, or a fingerprint of the hash code), the count, the
+ * smallest read index, and the key words.
+ */
+public final class SequenceTallyTable {
+    private static final long EMPTY = 0;
+    private static final long BEING_WRITTEN = 1;
+    private static final int STATE = 0;
+    private static final int COUNT = 1;
+    private static final int FIRST_READ_INDEX = 2;
+    private static final int KEY = 3;
+
+    /**
+     * Maximum fraction of slots that may be used.
+     */
+    public static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final int numKeyWords;
+    private final int slotLength;
+    private final int mask;
+    private final long maxSize;
+    private final AtomicLongArray table;
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Visits the sequences of a table.
+     */
+    public interface Visitor {
+        /**
+         * Visit one distinct sequence.
+         *
+         * @param key            the packed sequence.
+         * @param count          number of times the sequence was tallied.
+         * @param firstReadIndex smallest read index tallied with the sequence.
+         */
+        void visit(long[] key, long count, int firstReadIndex);
+    }
+
+    /**
+     * Create a table.
+     *
+     * @param maxSequenceLength length of the longest sequence to tally.
+     * @param maxSize           maximum number of distinct sequences.
+     */
+    public SequenceTallyTable(final int maxSequenceLength, final long maxSize) {
+        super();
+        numKeyWords = numKeyWords(maxSequenceLength);
+        slotLength = KEY + numKeyWords;
+        final long numSlots = numSlots(maxSize);
+        if (numSlots * slotLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many sequences for one table: " + maxSize);
+        }
+        mask = (int) numSlots - 1;
+        this.maxSize = maxSize;
+        table = new AtomicLongArray((int) numSlots * slotLength);
+    }
+
+    /**
+     * Number of long words in the key of a sequence. The last word holds the length of the sequence, so that
+     * sequences of different lengths have different keys.
+     *
+     * @param maxSequenceLength length of the longest sequence to tally.
+     * @return number of words.
+     */
+    public static int numKeyWords(final int maxSequenceLength) {
+        return (maxSequenceLength + 31) / 32 + 1;
+    }
+
+    /**
+     * Estimate the memory used by a table.
+     *
+     * @param maxSequenceLength length of the longest sequence to tally.
+     * @param maxSize           maximum number of distinct sequences.
+     * @return number of bytes.
+     */
+    public static long numBytes(final int maxSequenceLength, final long maxSize) {
+        return numSlots(maxSize) * (KEY + numKeyWords(maxSequenceLength)) * 8L;
+    }
+
+    private static long numSlots(final long maxSize) {
+        long numSlots = 2;
+        while (numSlots * MAX_LOAD_FACTOR < maxSize) {
+            numSlots <<= 1;
+        }
+        return numSlots;
+    }
+
+    /**
+     * Pack a sequence into a key. Bases other than A, C, G and T are packed as G, as TallyReadsMode has
+     * always done for N. In color space, the first base is a nucleotide and the others are colors 0 to 3,
+     * other characters being packed as color 3.
+     *
+     * @param sequence   the sequence to pack.
+     * @param colorSpace whether the sequence is in color space.
+     * @param key        where to pack the sequence, an array of {@link #numKeyWords} words.
+     */
+    public static void encode(final CharSequence sequence, final boolean colorSpace, final long[] key) {
+        final int length = sequence.length();
+        if (numKeyWords(length) > key.length) {
+            throw new IllegalArgumentException("Sequence is longer than the keys of this table: " + length);
+        }
+        for (int i = 0; i < key.length; i++) {
+            key[i] = 0;
+        }
+        for (int i = 0; i < length; i++) {
+            final char base = sequence.charAt(i);
+            final long code;
+            if (colorSpace && i > 0) {
+                code = base >= '0' && base <= '3' ? base - '0' : 3;
+            } else {
+                switch (base) {
+                    case 'A':
+                        code = 0;
+                        break;
+                    case 'C':
+                        code = 1;
+                        break;
+                    case 'T':
+                        code = 3;
+                        break;
+                    default:
+                        code = 2;
+                        break;
+                }
+            }
+            key[i >>> 5] |= code << ((i & 31) << 1);
+        }
+        key[key.length - 1] = length;
+    }
+
+    /**
+     * Hash code of a key. The low bits select the slot of the key in a table, the high bits may be used to
+     * partition keys between tables.
+     *
+     * @param key a packed sequence.
+     * @return the hash code.
+     */
+    public static long hash(final long[] key) {
+        long hash = 0x9E3779B97F4A7C15L;
+        for (final long word : key) {
+            hash = (hash ^ word) * 0xC6A4A7935BD1E995L;
+            hash ^= hash >>> 47;
+        }
+        hash *= 0xC6A4A7935BD1E995L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Tally one occurrence of a sequence. This method may be called by several threads.
+     *
+     * @param key       the packed sequence, of {@link #numKeyWords} words.
+     * @param readIndex index of the read where the sequence occurs.
+     * @return the number of occurrences of the sequence so far.
+     * @throws IllegalStateException if the table already holds maxSize distinct sequences.
+     */
+    public long increment(final long[] key, final int readIndex) {
+        final long hash = hash(key);
+        // never EMPTY or BEING_WRITTEN:
+        final long fingerprint = (hash & ~3L) | 2;
+        int slot = (int) hash & mask;
+        while (true) {
+            final int start = slot * slotLength;
+            long state = table.get(start + STATE);
+            if (state == EMPTY) {
+                if (size.get() >= maxSize) {
+                    throw new IllegalStateException("More than " + maxSize + " distinct sequences.");
+                }
+                if (table.compareAndSet(start + STATE, EMPTY, BEING_WRITTEN)) {
+                    for (int i = 0; i < numKeyWords; i++) {
+                        table.lazySet(start + KEY + i, key[i]);
+                    }
+                    table.lazySet(start + COUNT, 1);
+                    table.lazySet(start + FIRST_READ_INDEX, readIndex);
+                    // publishes the key to the threads that read the state:
+                    table.set(start + STATE, fingerprint);
+                    size.incrementAndGet();
+                    return 1;
+                }
+                state = table.get(start + STATE);
+            }
+            while (state == BEING_WRITTEN) {
+                Thread.yield();
+                state = table.get(start + STATE);
+            }
+            if (state == fingerprint && keyEquals(start, key)) {
+                long firstReadIndex = table.get(start + FIRST_READ_INDEX);
+                while (readIndex < firstReadIndex
+                        && !table.compareAndSet(start + FIRST_READ_INDEX, firstReadIndex, readIndex)) {
+                    firstReadIndex = table.get(start + FIRST_READ_INDEX);
+                }
+                return table.incrementAndGet(start + COUNT);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(final int start, final long[] key) {
+        for (int i = 0; i < numKeyWords; i++) {
+            if (table.get(start + KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of times a sequence was tallied.
+     *
+     * @param key the packed sequence.
+     * @return the count, zero if the sequence was never tallied.
+     */
+    public long getCount(final long[] key) {
+        final long hash = hash(key);
+        final long fingerprint = (hash & ~3L) | 2;
+        int slot = (int) hash & mask;
+        while (true) {
+            final int start = slot * slotLength;
+            final long state = table.get(start + STATE);
+            if (state == EMPTY) {
+                return 0;
+            }
+            if (state == fingerprint && keyEquals(start, key)) {
+                return table.get(start + COUNT);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Number of distinct sequences in the table.
+     *
+     * @return the number of distinct sequences.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Visit every distinct sequence. Must not be called while sequences are tallied.
+     *
+     * @param visitor the visitor.
+     */
+    public void visit(final Visitor visitor) {
+        final long[] key = new long[numKeyWords];
+        for (int start = 0; start < table.length(); start += slotLength) {
+            if (table.get(start + STATE) != EMPTY) {
+                for (int i = 0; i < numKeyWords; i++) {
+                    key[i] = table.get(start + KEY + i);
+                }
+                visitor.visit(key, table.get(start + COUNT), (int) table.get(start + FIRST_READ_INDEX));
+            }
+        }
+    }
+}
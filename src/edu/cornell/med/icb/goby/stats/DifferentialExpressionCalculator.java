@@ -20,6 +20,7 @@ package edu.cornell.med.icb.goby.stats;
 
 import edu.cornell.med.icb.goby.algorithmic.data.GroupComparison;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import edu.rit.pj.ParallelTeam;
 import it.unimi.dsi.fastutil.ints.Int2IntAVLTreeMap;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
@@ -29,6 +30,7 @@ import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -43,21 +45,59 @@ public class DifferentialExpressionCalculator {
     private final IndexedIdentifier elementLabels;
     private int elementsPerSample;
     private int numberOfSamples;
-    private final Map<String, IntArrayList> sampleToCounts;
+    /**
+     * Index of each sample in the counts matrix. The map is replaced by a copy when a sample is defined, so that
+     * it can be read without locking.
+     */
+    private volatile Object2IntMap<String> sampleIndices;
+    /**
+     * Sample ids by sample index. Replaced by a copy when a sample is defined, like sampleIndices.
+     */
+    private volatile String[] sampleIds = new String[0];
+    /**
+     * Counts indexed by sample index, then element index. The outer array is replaced when a sample is defined,
+     * while the rows of samples already defined never change, so observations for a sample can be written
+     * without locking.
+     */
+    private volatile int[][] counts = new int[0][];
+    /**
+     * Sum of counts in each sample, or -1 when the sum has not been calculated yet.
+     */
+    private volatile int[] sumCounts = new int[0];
     private Object2DoubleMap<String> sampleProportions;
     private final IntArrayList lengths;
     private final Int2IntMap elementLabelToElementType;
-    private Object2IntMap<String> sampleToSumCount;
     private boolean runInParallel;
+    /**
+     * Threads that evaluate statistics over the elements of this calculator, created on first use.
+     */
+    private ParallelTeam team;
 
     public boolean isRunInParallel() {
         return runInParallel;
     }
 
-    public void setRunInParallel(boolean runInParallel) {
+    public synchronized void setRunInParallel(boolean runInParallel) {
+        if (this.runInParallel != runInParallel) {
+            team = null;
+        }
         this.runInParallel = runInParallel;
     }
 
+    /**
+     * Return the team of threads used to evaluate statistics. The team is created on first use and reused by
+     * every evaluation.
+     *
+     * @return a team with one thread, or as many threads as configured with -Dpj.nt when running in parallel.
+     */
+    protected synchronized ParallelTeam getParallelTeam() {
+        if (team == null) {
+            // as many threads as configured with -Dpj.nt or default, 1 thread only is sequential:
+            team = runInParallel ? new ParallelTeam() : new ParallelTeam(1);
+        }
+        return team;
+    }
+
     /**
      * Used to log debug and informational messages.
      */
@@ -85,7 +125,7 @@ public class DifferentialExpressionCalculator {
      * Force the recalculation of SumOverlapCounts. This is useful to ensure that all the elements are counted for each sample.
      */
     public void resetSumOverlapCounts() {
-        sampleToSumCount.clear();
+        Arrays.fill(sumCounts, -1);
     }
 
     /**
@@ -93,7 +133,7 @@ public class DifferentialExpressionCalculator {
      */
     public void createDefaultGroup() {
 
-        for (final String sampleId : sampleToCounts.keySet()) {
+        for (final String sampleId : sampleIds) {
             associateSampleToGroup(sampleId, "all-samples/all-samples");
         }
     }
@@ -116,12 +156,11 @@ public class DifferentialExpressionCalculator {
         elementLabels = new IndexedIdentifier(100000);
         sampleToGroupMap = new Object2ObjectOpenHashMap<String, String>();
         numAlignedInSample = new Object2LongOpenHashMap<String>();
-        sampleToCounts = new Object2ObjectOpenHashMap<String, IntArrayList>();
+        sampleIndices = new Object2IntOpenHashMap<String>();
+        sampleIndices.defaultReturnValue(-1);
         lengths = new IntArrayList();
         elementLabelToElementType = new Int2IntAVLTreeMap();
         elementLabelToElementType.defaultReturnValue(-1);
-        sampleToSumCount = new Object2IntRBTreeMap<String>();
-        sampleToSumCount.defaultReturnValue(-1);
     }
 
     public double calculateNormalized(final int readCountInt, final int annotLength, final double normalizationFactor) {
@@ -226,26 +265,64 @@ public class DifferentialExpressionCalculator {
      * @param count     Number of reads that can be assigned to the element.
      */
     public void observe(final String sample, final String elementId, final int count) {
+        observe(defineSample(sample), getElementIndex(elementId), count);
+    }
 
+    /**
+     * Observe counts for a sample. This method does not synchronize: threads that observe different samples,
+     * or different elements of the same sample, can call it concurrently.
+     *
+     * @param sampleIndex  index of the sample, as returned by {@link #defineSample(String)}.
+     * @param elementIndex index of the element, as returned by {@link #defineElement(String, ElementType)}.
+     * @param count        Number of reads that can be assigned to the element.
+     */
+    public void observe(final int sampleIndex, final int elementIndex, final int count) {
+        counts[sampleIndex][elementIndex] = count;
+    }
 
-        IntArrayList counts = sampleToCounts.get(sample);
-        // the following looks a bit complicated. We are trying to avoid synchronizing every time observe is called.
-        // This would slow the whole process too much. Instead, we synchronize only when we need to create a counts
-        // data structure for a new sample, which should not happen too often.
-        if (counts == null) {
+    /**
+     * Define a sample, if it was not defined before. Storage for the counts of the sample is allocated for the
+     * number of elements given to {@link #reserve(int, int)}.
+     *
+     * @param sample sample id.
+     * @return the index of the sample.
+     */
+    public int defineSample(final String sample) {
+        int sampleIndex = getSampleIndex(sample);
+        // we synchronize only when we need to create a counts data structure for a new sample,
+        // which should not happen too often:
+        if (sampleIndex == -1) {
             synchronized (this) {
-                counts = sampleToCounts.get(sample);
-                if (counts == null) {
-                    counts = new IntArrayList(elementsPerSample);
-                    counts.size(elementsPerSample);
-                    sampleToCounts.put(sample, counts);
+                sampleIndex = sampleIndices.getInt(sample);
+                if (sampleIndex == -1) {
+                    final Object2IntMap<String> newSampleIndices = new Object2IntOpenHashMap<String>(sampleIndices);
+                    newSampleIndices.defaultReturnValue(-1);
+                    sampleIndex = sampleIds.length;
+                    final int[][] newCounts = Arrays.copyOf(counts, sampleIndex + 1);
+                    newCounts[sampleIndex] = new int[elementsPerSample];
+                    final int[] newSumCounts = Arrays.copyOf(sumCounts, sampleIndex + 1);
+                    newSumCounts[sampleIndex] = -1;
+                    sumCounts = newSumCounts;
+                    counts = newCounts;
+                    final String[] newSampleIds = Arrays.copyOf(sampleIds, sampleIndex + 1);
+                    newSampleIds[sampleIndex] = sample;
+                    sampleIds = newSampleIds;
+                    newSampleIndices.put(sample, sampleIndex);
+                    sampleIndices = newSampleIndices;
                 }
             }
         }
+        return sampleIndex;
+    }
 
-
-        final int elementIndex = elementLabels.getInt(new MutableString(elementId));
-        counts.set(elementIndex, count);
+    /**
+     * Return the index of a sample.
+     *
+     * @param sample sample id.
+     * @return the index of the sample, or -1 if no counts were observed for the sample.
+     */
+    public int getSampleIndex(final String sample) {
+        return sampleIndices.getInt(sample);
     }
 
     /**
@@ -395,17 +472,23 @@ public class DifferentialExpressionCalculator {
      * @return
      */
     public int getOverlapCount(final String sample, final MutableString elementId) {
-        final IntArrayList counts = sampleToCounts.get(sample);
-        if (counts == null) {
+        final int sampleIndex = getSampleIndex(sample);
+        if (sampleIndex == -1) {
             return 0;
         }
-        final int elementIndex = elementLabels.get(elementId);
+        return getOverlapCount(sampleIndex, elementLabels.get(elementId));
+    }
 
-        if (elementIndex < counts.size()) {
-            return counts.get(elementIndex);
-        } else {
-            return 0;
-        }
+    /**
+     * Get the stored overlap count for an element in a given sample.
+     *
+     * @param sampleIndex  index of the sample.
+     * @param elementIndex index of the element.
+     * @return the count, or zero if the element was not defined when the sample was.
+     */
+    public int getOverlapCount(final int sampleIndex, final int elementIndex) {
+        final int[] sampleCounts = counts[sampleIndex];
+        return elementIndex < sampleCounts.length ? sampleCounts[elementIndex] : 0;
     }
 
     /**
@@ -414,23 +497,33 @@ public class DifferentialExpressionCalculator {
      * @param sample
      * @return Returns the sum of counts in a given sample.
      */
-    public synchronized int getSumOverlapCounts(final String sample) {
-
+    public int getSumOverlapCounts(final String sample) {
+        final int sampleIndex = getSampleIndex(sample);
+        if (sampleIndex == -1) {
+            return 0;
+        }
+        return getSumOverlapCounts(sampleIndex);
+    }
 
-        final int sumCountsCached = sampleToSumCount.getInt(sample);
+    /**
+     * Returns the sum of counts in a given sample. The sum is calculated once, and concurrent callers may
+     * calculate it at the same time, with the same result.
+     *
+     * @param sampleIndex index of the sample.
+     * @return Returns the sum of counts in a given sample.
+     */
+    public int getSumOverlapCounts(final int sampleIndex) {
+        final int[] sums = sumCounts;
+        final int sumCountsCached = sums[sampleIndex];
         if (sumCountsCached != -1) {
             return sumCountsCached;
         }
-        int sumCounts = 0;
-        final IntArrayList counts = sampleToCounts.get(sample);
-        if (counts == null) {
-            return 0;
-        }
-        for (final int count : counts) {
-            sumCounts += count;
+        int sum = 0;
+        for (final int count : counts[sampleIndex]) {
+            sum += count;
         }
-        sampleToSumCount.put(sample, sumCounts);
-        return sumCounts;
+        sums[sampleIndex] = sum;
+        return sum;
     }
 
     public String[] samples() {
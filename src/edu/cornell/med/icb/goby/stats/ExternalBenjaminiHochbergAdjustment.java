@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2009-2010 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+
+/**
+ * Compute Benjamini Hochberg adjusted q-values for more P-values than fit in memory. P-values are added in
+ * row order and buffered. Each time the buffer is full, it is sorted and written to a temporary file
+ * (a run). The runs are merged from the largest P-value to the smallest to compute the adjusted values,
+ * which are written to a temporary file mapped in memory and indexed by row. The heap holds at most
+ * runSize P-values (12 bytes each) and one input buffer per run, whatever the number of rows.
+ * Adjusted values are the same as those of
+ * {@link BenjaminiHochbergAdjustment#adjust(DifferentialExpressionResults, String)}.
+ */
+public class ExternalBenjaminiHochbergAdjustment implements Closeable {
+    /**
+     * Default number of P-values buffered before a run is written, about 12MB.
+     */
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+    /**
+     * Number of adjusted values in a segment of the mapped file, 1GB per segment.
+     */
+    private static final int SEGMENT_SIZE = 1 << 27;
+    private static final int SEGMENT_SHIFT = 27;
+
+    private final File directory;
+    private final double[] bufferedPValues;
+    private final int[] bufferedRows;
+    private int numBuffered;
+    private int size;
+    private int ignoredElementsAboveThreshold;
+    private final ObjectArrayList<File> runs = new ObjectArrayList<File>();
+    private File adjustedFile;
+    private RandomAccessFile adjustedRandomAccessFile;
+    private DoubleBuffer[] adjustedSegments;
+
+    /**
+     * Create an adjustment that writes temporary files to the default temporary directory.
+     */
+    public ExternalBenjaminiHochbergAdjustment() {
+        this(null, DEFAULT_RUN_SIZE);
+    }
+
+    /**
+     * Create an adjustment.
+     *
+     * @param directory Directory where temporary files are written, or null for the default temporary directory.
+     * @param runSize   Number of P-values buffered in memory before a run is written.
+     */
+    public ExternalBenjaminiHochbergAdjustment(final File directory, final int runSize) {
+        super();
+        this.directory = directory;
+        bufferedPValues = new double[runSize];
+        bufferedRows = new int[runSize];
+    }
+
+    /**
+     * Set the number of elements that were not added because their P-value is above the threshold of interest.
+     * They count in the total number of comparisons.
+     *
+     * @param ignoredElementsAboveThreshold Number of P-values not added.
+     */
+    public void setNumberAboveThreshold(final int ignoredElementsAboveThreshold) {
+        this.ignoredElementsAboveThreshold = ignoredElementsAboveThreshold;
+    }
+
+    /**
+     * Add the P-value of the next row.
+     *
+     * @param pValue P-value of row {@link #size()}.
+     * @throws IOException If a run cannot be written.
+     */
+    public void add(final double pValue) throws IOException {
+        if (numBuffered == bufferedPValues.length) {
+            writeRun();
+        }
+        bufferedPValues[numBuffered] = pValue;
+        bufferedRows[numBuffered] = size++;
+        numBuffered++;
+    }
+
+    /**
+     * Return the number of P-values added.
+     *
+     * @return the number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adjust the P-values added so far. The adjusted value of a row is then available with
+     * {@link #getAdjustedPValue(int)}.
+     *
+     * @param numSmallest Number of rows with the smallest P-values to return.
+     * @return The rows with the numSmallest smallest P-values, by decreasing P-value. Rows with equal P-values
+     *         are returned by decreasing row.
+     * @throws IOException If the runs cannot be read, or the adjusted values cannot be written.
+     */
+    public IntArrayList adjust(final int numSmallest) throws IOException {
+        sortBuffer();
+        final ObjectHeapPriorityQueue<RunCursor> cursors =
+                new ObjectHeapPriorityQueue<RunCursor>(runs.size() + 1, new Comparator<RunCursor>() {
+                    public int compare(final RunCursor cursor1, final RunCursor cursor2) {
+                        return compareDecreasing(cursor1.pValue, cursor1.row, cursor2.pValue, cursor2.row);
+                    }
+                });
+        final int[] smallestRows = new int[Math.min(numSmallest, size)];
+        try {
+            for (final File run : runs) {
+                final RunCursor cursor = new FileRunCursor(run);
+                if (cursor.next()) {
+                    cursors.enqueue(cursor);
+                }
+            }
+            final RunCursor bufferCursor = new BufferRunCursor();
+            if (bufferCursor.next()) {
+                cursors.enqueue(bufferCursor);
+            }
+            mapAdjustedFile();
+
+            double cummin = 1;
+            final int completeSize = size + ignoredElementsAboveThreshold;
+            for (int rank = size; rank >= 1; --rank) {
+                final RunCursor cursor = cursors.first();
+                final double pValue = cursor.pValue;
+                final int row = cursor.row;
+                double adjustedPValue = 1;
+                if (pValue == pValue) {
+                    adjustedPValue = pValue * (completeSize / (double) rank);
+                    if (adjustedPValue < cummin) {
+                        cummin = adjustedPValue;
+                    } else {
+                        adjustedPValue = cummin;
+                    }
+                } else {
+                    cummin = 1;
+                }
+                adjustedSegments[row >>> SEGMENT_SHIFT].put(row & (SEGMENT_SIZE - 1),
+                        adjustedPValue > 1 ? 1 : adjustedPValue);
+                if (smallestRows.length > 0) {
+                    smallestRows[rank % smallestRows.length] = row;
+                }
+                if (cursor.next()) {
+                    cursors.changed();
+                } else {
+                    cursors.dequeue().close();
+                }
+            }
+        } finally {
+            while (!cursors.isEmpty()) {
+                cursors.dequeue().close();
+            }
+        }
+        final IntArrayList result = new IntArrayList(smallestRows.length);
+        for (int rank = smallestRows.length; rank >= 1; --rank) {
+            result.add(smallestRows[rank % smallestRows.length]);
+        }
+        return result;
+    }
+
+    /**
+     * Return the adjusted value of a row. Valid after {@link #adjust(int)}.
+     *
+     * @param row Row of the P-value.
+     * @return the adjusted P-value.
+     */
+    public double getAdjustedPValue(final int row) {
+        return adjustedSegments[row >>> SEGMENT_SHIFT].get(row & (SEGMENT_SIZE - 1));
+    }
+
+    /**
+     * Delete the temporary files.
+     */
+    public void close() {
+        adjustedSegments = null;
+        IOUtils.closeQuietly(adjustedRandomAccessFile);
+        adjustedRandomAccessFile = null;
+        if (adjustedFile != null) {
+            adjustedFile.delete();
+            adjustedFile = null;
+        }
+        for (final File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Order P-values decreasingly, NaN first as they are when traversing a sorted list from the end, then rows
+     * decreasingly.
+     */
+    private static int compareDecreasing(final double pValue1, final int row1,
+                                         final double pValue2, final int row2) {
+        final int result = Double.compare(pValue2, pValue1);
+        if (result != 0) {
+            return result;
+        }
+        return row2 < row1 ? -1 : row2 == row1 ? 0 : 1;
+    }
+
+    private void sortBuffer() {
+        Arrays.quickSort(0, numBuffered, new AbstractIntComparator() {
+            public int compare(final int index1, final int index2) {
+                return compareDecreasing(bufferedPValues[index1], bufferedRows[index1],
+                        bufferedPValues[index2], bufferedRows[index2]);
+            }
+        }, new Swapper() {
+            public void swap(final int index1, final int index2) {
+                final double pValue = bufferedPValues[index1];
+                bufferedPValues[index1] = bufferedPValues[index2];
+                bufferedPValues[index2] = pValue;
+                final int row = bufferedRows[index1];
+                bufferedRows[index1] = bufferedRows[index2];
+                bufferedRows[index2] = row;
+            }
+        });
+    }
+
+    private void writeRun() throws IOException {
+        sortBuffer();
+        final File run = File.createTempFile("bh-fdr-run-", ".bin", directory);
+        run.deleteOnExit();
+        runs.add(run);
+        final DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (int i = 0; i < numBuffered; i++) {
+                output.writeDouble(bufferedPValues[i]);
+                output.writeInt(bufferedRows[i]);
+            }
+        } finally {
+            output.close();
+        }
+        numBuffered = 0;
+    }
+
+    private void mapAdjustedFile() throws IOException {
+        adjustedFile = File.createTempFile("bh-fdr-adjusted-", ".bin", directory);
+        adjustedFile.deleteOnExit();
+        adjustedRandomAccessFile = new RandomAccessFile(adjustedFile, "rw");
+        final long length = size * 8L;
+        adjustedRandomAccessFile.setLength(length);
+        final FileChannel channel = adjustedRandomAccessFile.getChannel();
+        adjustedSegments = new DoubleBuffer[(size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT];
+        for (int i = 0; i < adjustedSegments.length; i++) {
+            final long start = (long) i * SEGMENT_SIZE * 8L;
+            adjustedSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                    Math.min(length - start, SEGMENT_SIZE * 8L)).asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Iterates over the P-values of a run, by decreasing P-value.
+     */
+    private abstract static class RunCursor implements Closeable {
+        double pValue;
+        int row;
+
+        /**
+         * Move to the next P-value of the run.
+         *
+         * @return False when the run is exhausted.
+         */
+        abstract boolean next() throws IOException;
+
+        public void close() {
+        }
+    }
+
+    private static final class FileRunCursor extends RunCursor {
+        private final DataInputStream input;
+
+        private FileRunCursor(final File run) throws IOException {
+            super();
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                pValue = input.readDouble();
+            } catch (EOFException e) {
+                return false;
+            }
+            row = input.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    private final class BufferRunCursor extends RunCursor {
+        private int index = -1;
+
+        @Override
+        boolean next() {
+            if (++index == numBuffered) {
+                return false;
+            }
+            pValue = bufferedPValues[index];
+            row = bufferedRows[index];
+            return true;
+        }
+    }
+}
@@ -18,16 +18,12 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import edu.cornell.med.icb.goby.R.FisherExact;
-import edu.cornell.med.icb.goby.R.GobyRengine;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.rosuda.JRI.Rengine;
 
 /**
  * Calculates Fisher exact test P-value for an observed count difference between comparison
- * groups (requires exactly two groups).
+ * groups (requires exactly two groups). P-values are identical to those of R fisher.test, but are calculated
+ * with {@link FisherExactTest}, which does not require R.
  *
  * @author Fabien Campagne
  *         Date: Jan 11, 2010
@@ -35,9 +31,14 @@ import org.rosuda.JRI.Rengine;
  */
 public class FisherExactRCalculator extends StatisticCalculator {
     /**
-     * Used to log debug and informational messages.
+     * One Fisher exact test engine per thread, since engines cache recently seen tables.
      */
-    private static final Log LOG = LogFactory.getLog(FisherExactRCalculator.class);
+    private static final ThreadLocal<FisherExactTest> FISHER_TEST = new ThreadLocal<FisherExactTest>() {
+        @Override
+        protected FisherExactTest initialValue() {
+            return new FisherExactTest();
+        }
+    };
 
     public FisherExactRCalculator(final DifferentialExpressionResults results) {
         this();
@@ -46,8 +47,6 @@ public class FisherExactRCalculator extends StatisticCalculator {
 
     public FisherExactRCalculator() {
         super();
-        rEngine = GobyRengine.getInstance().getRengine();
-        installed = rEngine != null && rEngine.isAlive();
     }
 
     @Override
@@ -55,73 +54,52 @@ public class FisherExactRCalculator extends StatisticCalculator {
         return group.length == 2;
     }
 
-    boolean installed;
-
-    @Override
-    public boolean installed() {
-
-        // we can only perform the evaluation if R is running and alive.
-
-        return installed;
-    }
-
-    Rengine rEngine;
-
     @Override
     public DifferentialExpressionInfo evaluate(final DifferentialExpressionCalculator differentialExpressionCalculator,
                                                final NormalizationMethod method, final DifferentialExpressionResults results,
                                                final DifferentialExpressionInfo info,
                                                final String... group) {
-        synchronized (this) {
-            if (installed) {
-                final String groupA = group[0];
-                final String groupB = group[1];
-
-                // TODO correct sumCountIn? with normalization method.
-                final int statIndex = defineStatisticId(results, "fisher-exact-R", method, group);
-
-                final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupA);
-                final ObjectArraySet<String> samplesB = differentialExpressionCalculator.getSamples(groupB);
-
-                int sumCountInA = 0;
-                int sumCountInB = 0;
-                // TODO correct sumCountIn? with normalization method.
-                for (final String sample : samplesA) {
-                    sumCountInA += differentialExpressionCalculator.getOverlapCount(sample, info.getElementId());
-                }
-                // TODO correct sumCountIn? with normalization method.
-                for (final String sample : samplesB) {
-                    sumCountInB += differentialExpressionCalculator.getOverlapCount(sample, info.getElementId());
-                }
-                int totalCountInA = 0;
-                int totalCountInB = 0;
-
-
-                for (final String sample : samplesA) {
-                    totalCountInA += differentialExpressionCalculator.getSumOverlapCounts(sample);
-                }
-                for (final String sample : samplesB) {
-                    totalCountInB += differentialExpressionCalculator.getSumOverlapCounts(sample);
-                }
-
-                final int sumCountNotInA = totalCountInA - sumCountInA;
-                final int sumCountNotInB = totalCountInB - sumCountInB;
-
-                // Build a contingency matrix as follows:
-                //                  groupA            groupB
-                // hasCounts    sumCountInA        sumCountInB
-                // noCounts     sumCountNotInA     sumCountNotInB
-                final FisherExact.Result result =
-                        FisherExact.fexact(sumCountInA, sumCountNotInA, sumCountInB, sumCountNotInB);
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(result);
-                }
-                final double pValue = result.getPValue();
-                info.statistics.size(results.getNumberOfStatistics());
-                info.statistics.set(statIndex, pValue);
-            }
+        final String groupA = group[0];
+        final String groupB = group[1];
+
+        // TODO correct sumCountIn? with normalization method.
+        final int statIndex = defineStatisticId(results, "fisher-exact-R", method, group);
+
+        final ObjectArraySet<String> samplesA = differentialExpressionCalculator.getSamples(groupA);
+        final ObjectArraySet<String> samplesB = differentialExpressionCalculator.getSamples(groupB);
+
+        int sumCountInA = 0;
+        int sumCountInB = 0;
+        // TODO correct sumCountIn? with normalization method.
+        for (final String sample : samplesA) {
+            sumCountInA += differentialExpressionCalculator.getOverlapCount(sample, info.getElementId());
+        }
+        // TODO correct sumCountIn? with normalization method.
+        for (final String sample : samplesB) {
+            sumCountInB += differentialExpressionCalculator.getOverlapCount(sample, info.getElementId());
+        }
+        int totalCountInA = 0;
+        int totalCountInB = 0;
+
+
+        for (final String sample : samplesA) {
+            totalCountInA += differentialExpressionCalculator.getSumOverlapCounts(sample);
+        }
+        for (final String sample : samplesB) {
+            totalCountInB += differentialExpressionCalculator.getSumOverlapCounts(sample);
         }
 
+        final int sumCountNotInA = totalCountInA - sumCountInA;
+        final int sumCountNotInB = totalCountInB - sumCountInB;
+
+        // Build a contingency matrix as follows:
+        //                  groupA            groupB
+        // hasCounts    sumCountInA        sumCountInB
+        // noCounts     sumCountNotInA     sumCountNotInB
+        final double pValue = getFisherPValue(sumCountInA, sumCountNotInA, sumCountInB, sumCountNotInB);
+        info.statistics.size(results.getNumberOfStatistics());
+        info.statistics.set(statIndex, pValue);
+
         return info;
     }
 
@@ -138,13 +116,7 @@ public class FisherExactRCalculator extends StatisticCalculator {
      * @return P-value of observing a contingency table that extreme by random distribution among the cells.
      */
     public static double getFisherPValue(int count00, int count10, int count01, int count11) {
-        final FisherExact.Result result =
-                FisherExact.fexact(count00, count10, count01, count11);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug(result);
-        }
-        final double pValue = result.getPValue();
-        return pValue;
+        return FISHER_TEST.get().twoTailed(count00, count10, count01, count11);
     }
 
     /**
@@ -160,13 +132,6 @@ public class FisherExactRCalculator extends StatisticCalculator {
      * @return P-value of observing a contingency table that extreme by random distribution among the cells.
      */
     public static double getFisherOneTailedLesserPValue(int count00, int count10, int count01, int count11) {
-        final FisherExact.Result result =
-                FisherExact.fexactLesser(count00, count10, count01, count11);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug(result);
-        }
-        final double pValue = result.getPValue();
-        return pValue;
-
+        return FISHER_TEST.get().lesser(count00, count10, count01, count11);
     }
 }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import edu.cornell.med.icb.goby.R.FisherExact;
+import edu.cornell.med.icb.goby.R.GobyRengine;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.special.Gamma;
+import org.apache.commons.math.stat.inference.ChiSquareTestImpl;
+import org.rosuda.JRI.Rengine;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Java implementation of the Fisher exact test. P-values match those of R fisher.test: 2x2 tables support
+ * the three alternative hypotheses, larger tables are tested two-sided by enumerating the tables with the
+ * same margins. Recently seen tables are kept in a LRU cache, since the same count tables are seen over and
+ * over again when testing many sites at low coverage. Tables too large to enumerate are sent to R when R is
+ * available, or approximated with a chi-square test otherwise.
+ * <p/>
+ * Instances are not thread-safe, use one instance per thread.
+ */
+public class FisherExactTest {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(FisherExactTest.class);
+    /**
+     * Relative tolerance used by R to decide that a table is as extreme as the observed one.
+     */
+    private static final double RELATIVE_ERROR = 1 + 1e-7;
+    private static final int LOG_FACTORIAL_TABLE_SIZE = 1 << 16;
+    private static final double[] LOG_FACTORIALS = new double[LOG_FACTORIAL_TABLE_SIZE];
+
+    static {
+        for (int i = 2; i < LOG_FACTORIAL_TABLE_SIZE; i++) {
+            LOG_FACTORIALS[i] = LOG_FACTORIALS[i - 1] + Math.log(i);
+        }
+    }
+
+    /**
+     * Tables with more than this number of tables with the same margins are not enumerated.
+     */
+    private int maxEnumeratedTables = 1000000;
+    private final Map<Table, Double> cache;
+    private int cacheHits;
+    private int cacheMisses;
+
+    public FisherExactTest() {
+        this(10000);
+    }
+
+    /**
+     * Create a Fisher exact test engine.
+     *
+     * @param cacheCapacity maximum number of p-values kept in the cache.
+     */
+    public FisherExactTest(final int cacheCapacity) {
+        super();
+        cache = new LinkedHashMap<Table, Double>(cacheCapacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Table, Double> eldest) {
+                return size() > cacheCapacity;
+            }
+        };
+    }
+
+    public void setMaxEnumeratedTables(final int maxEnumeratedTables) {
+        this.maxEnumeratedTables = maxEnumeratedTables;
+    }
+
+    /**
+     * Return the two-sided p-value of the 2x2 table. Arguments are in the order of
+     * {@link FisherExact#fexact(int, int, int, int)}.
+     */
+    public double twoTailed(final int r1c1, final int r2c1, final int r1c2, final int r2c2) {
+        return pValue(new int[]{r1c1, r2c1, r1c2, r2c2}, 2, 2, FisherExact.AlternativeHypothesis.twosided);
+    }
+
+    /**
+     * Return the one-sided (less) p-value of the 2x2 table. Arguments are in the order of
+     * {@link FisherExact#fexactLesser(int, int, int, int)}.
+     */
+    public double lesser(final int r1c1, final int r2c1, final int r1c2, final int r2c2) {
+        return pValue(new int[]{r1c1, r2c1, r1c2, r2c2}, 2, 2, FisherExact.AlternativeHypothesis.less);
+    }
+
+    /**
+     * Return the one-sided (greater) p-value of the 2x2 table.
+     */
+    public double greater(final int r1c1, final int r2c1, final int r1c2, final int r2c2) {
+        return pValue(new int[]{r1c1, r2c1, r1c2, r2c2}, 2, 2, FisherExact.AlternativeHypothesis.greater);
+    }
+
+    /**
+     * Return the p-value of a contingency table. As for {@link FisherExact#fexact(int[], int, int)}, the
+     * values of the table are given "by column". Only 2x2 tables support one-sided alternative hypotheses.
+     *
+     * @param vector                values of the table, by column.
+     * @param nrows                 number of rows in the table.
+     * @param ncols                 number of columns in the table.
+     * @param alternativeHypothesis the alternative hypothesis.
+     * @return the p-value, or NaN if it could not be calculated.
+     */
+    public double pValue(final int[] vector, final int nrows, final int ncols,
+                         final FisherExact.AlternativeHypothesis alternativeHypothesis) {
+        assert vector.length == nrows * ncols : "vector must contain nrows*ncols values";
+        assert nrows >= 2 && ncols >= 2 : "Must have at least 2 rows and columns";
+        final boolean is2x2 = nrows == 2 && ncols == 2;
+        if (!is2x2 && alternativeHypothesis != FisherExact.AlternativeHypothesis.twosided) {
+            throw new IllegalArgumentException("One-sided tests are only defined for 2x2 tables.");
+        }
+        final Table key = new Table(vector, nrows, alternativeHypothesis);
+        final Double cached = cache.get(key);
+        if (cached != null) {
+            cacheHits++;
+            return cached;
+        }
+        cacheMisses++;
+        final double pValue = is2x2 ? pValue2x2(vector, alternativeHypothesis) : pValueRxC(vector, nrows, ncols);
+        cache.put(key, pValue);
+        return pValue;
+    }
+
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
+    static double logFactorial(final int n) {
+        return n < LOG_FACTORIAL_TABLE_SIZE ? LOG_FACTORIALS[n] : Gamma.logGamma(n + 1.0);
+    }
+
+    /**
+     * Sum the hypergeometric probabilities of the tables with the same margins, as done by R fisher.test.
+     * Probabilities are relative to the probability of the most likely table, starting from the mode of the
+     * distribution and walking outward until the probabilities underflow.
+     */
+    private double pValue2x2(final int[] vector, final FisherExact.AlternativeHypothesis alternativeHypothesis) {
+        final int x = vector[0];
+        // m and n are the column totals, k the first row total:
+        final long m = vector[0] + vector[1];
+        final long n = vector[2] + vector[3];
+        final long k = vector[0] + vector[2];
+        final int lo = (int) Math.max(0, k - n);
+        final int hi = (int) Math.min(k, m);
+        final int mode = (int) Math.max(lo, Math.min(hi, (k + 1) * (m + 1) / (m + n + 2)));
+
+        // first pass: total probability and probability of the observed table.
+        double total = 1;
+        double observed = x == mode ? 1 : 0;
+        double d = 1;
+        for (int i = mode; i < hi && d > 0; i++) {
+            d *= (double) (m - i) * (k - i) / ((double) (i + 1) * (n - k + i + 1));
+            total += d;
+            if (i + 1 == x) {
+                observed = d;
+            }
+        }
+        d = 1;
+        for (int i = mode; i > lo && d > 0; i--) {
+            d *= (double) i * (n - k + i) / ((double) (m - i + 1) * (k - i + 1));
+            total += d;
+            if (i - 1 == x) {
+                observed = d;
+            }
+        }
+
+        // second pass: sum the probabilities of the tables at least as extreme as the observed one.
+        final double threshold = observed * RELATIVE_ERROR;
+        double sum = 0;
+        d = 1;
+        if (accept(mode, x, 1, threshold, alternativeHypothesis)) {
+            sum += 1;
+        }
+        for (int i = mode; i < hi && d > 0; i++) {
+            d *= (double) (m - i) * (k - i) / ((double) (i + 1) * (n - k + i + 1));
+            if (accept(i + 1, x, d, threshold, alternativeHypothesis)) {
+                sum += d;
+            }
+        }
+        d = 1;
+        for (int i = mode; i > lo && d > 0; i--) {
+            d *= (double) i * (n - k + i) / ((double) (m - i + 1) * (k - i + 1));
+            if (accept(i - 1, x, d, threshold, alternativeHypothesis)) {
+                sum += d;
+            }
+        }
+        return Math.min(1, sum / total);
+    }
+
+    private boolean accept(final int i, final int x, final double d, final double threshold,
+                           final FisherExact.AlternativeHypothesis alternativeHypothesis) {
+        switch (alternativeHypothesis) {
+            case less:
+                return i <= x;
+            case greater:
+                return i >= x;
+            default:
+                return d <= threshold;
+        }
+    }
+
+    /**
+     * Two-sided p-value of a RxC table, obtained by enumerating all the tables with the same margins.
+     */
+    private double pValueRxC(final int[] vector, final int nrows, final int ncols) {
+        final int[] rowSums = new int[nrows];
+        final int[] colSums = new int[ncols];
+        double sumLogFactorialCells = 0;
+        for (int col = 0; col < ncols; col++) {
+            for (int row = 0; row < nrows; row++) {
+                final int count = vector[col * nrows + row];
+                rowSums[row] += count;
+                colSums[col] += count;
+                sumLogFactorialCells += logFactorial(count);
+            }
+        }
+        int total = 0;
+        double logMargins = 0;
+        for (final int rowSum : rowSums) {
+            logMargins += logFactorial(rowSum);
+            total += rowSum;
+        }
+        for (final int colSum : colSums) {
+            logMargins += logFactorial(colSum);
+        }
+        logMargins -= logFactorial(total);
+
+        final Enumeration enumeration = new Enumeration(rowSums, colSums, logMargins,
+                Math.exp(logMargins - sumLogFactorialCells) * RELATIVE_ERROR, maxEnumeratedTables);
+        if (enumeration.run()) {
+            return Math.min(1, enumeration.extreme / enumeration.total);
+        }
+        return pValueTooLarge(vector, nrows, ncols, rowSums, colSums);
+    }
+
+    private double pValueTooLarge(final int[] vector, final int nrows, final int ncols,
+                                  final int[] rowSums, final int[] colSums) {
+        final Rengine rEngine = GobyRengine.getInstance().getRengine();
+        if (rEngine != null && rEngine.isAlive()) {
+            return FisherExact.fexact(vector, nrows, ncols, FisherExact.AlternativeHypothesis.twosided,
+                    true).getPValue();
+        }
+        // approximate with a chi-square test over the rows and columns that have counts:
+        int keptRows = 0;
+        int keptCols = 0;
+        for (final int rowSum : rowSums) {
+            keptRows += rowSum > 0 ? 1 : 0;
+        }
+        for (final int colSum : colSums) {
+            keptCols += colSum > 0 ? 1 : 0;
+        }
+        if (keptRows < 2 || keptCols < 2) {
+            return 1;
+        }
+        final long[][] counts = new long[keptRows][keptCols];
+        int i = 0;
+        for (int row = 0; row < nrows; row++) {
+            if (rowSums[row] == 0) {
+                continue;
+            }
+            int j = 0;
+            for (int col = 0; col < ncols; col++) {
+                if (colSums[col] > 0) {
+                    counts[i][j++] = vector[col * nrows + row];
+                }
+            }
+            i++;
+        }
+        try {
+            return new ChiSquareTestImpl().chiSquareTest(counts);
+        } catch (MathException e) {
+            LOG.warn("Unable to approximate Fisher exact test with a chi-square test.", e);
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Enumerates the tables with given margins, filling the table column by column. The last row of each
+     * column and the last column are determined by the margins.
+     */
+    private static final class Enumeration {
+        private final int nrows;
+        private final int ncols;
+        private final int[] rowRemaining;
+        private final int[] colSums;
+        /**
+         * Sum of the column totals after each column.
+         */
+        private final int[] colSumsAfter;
+        private final double logMargins;
+        private final double threshold;
+        private final int maxTables;
+        private int numTables;
+        private double total;
+        private double extreme;
+
+        private Enumeration(final int[] rowSums, final int[] colSums, final double logMargins,
+                            final double threshold, final int maxTables) {
+            this.nrows = rowSums.length;
+            this.ncols = colSums.length;
+            this.rowRemaining = rowSums.clone();
+            this.colSums = colSums;
+            this.colSumsAfter = new int[ncols];
+            for (int col = ncols - 2; col >= 0; col--) {
+                colSumsAfter[col] = colSumsAfter[col + 1] + colSums[col + 1];
+            }
+            this.logMargins = logMargins;
+            this.threshold = threshold;
+            this.maxTables = maxTables;
+        }
+
+        /**
+         * @return false if the number of tables exceeded the maximum.
+         */
+        private boolean run() {
+            return fill(0, 0, colSums[0], 0);
+        }
+
+        private boolean fill(final int col, final int row, final int colRemaining, final double sumLogFactorials) {
+            if (col == ncols - 1) {
+                // the last column takes what remains in each row:
+                double sum = sumLogFactorials;
+                for (int r = 0; r < nrows; r++) {
+                    sum += logFactorial(rowRemaining[r]);
+                }
+                if (++numTables > maxTables) {
+                    return false;
+                }
+                final double probability = Math.exp(logMargins - sum);
+                total += probability;
+                if (probability <= threshold) {
+                    extreme += probability;
+                }
+                return true;
+            }
+            if (row == nrows - 1) {
+                // the last row takes what remains in the column:
+                final int count = colRemaining;
+                if (count > rowRemaining[row]) {
+                    return true;
+                }
+                rowRemaining[row] -= count;
+                final boolean result = fill(col + 1, 0, colSums[col + 1], sumLogFactorials + logFactorial(count));
+                rowRemaining[row] += count;
+                return result;
+            }
+            int rowsAfter = 0;
+            for (int r = row + 1; r < nrows; r++) {
+                rowsAfter += rowRemaining[r];
+            }
+            final int min = Math.max(0, Math.max(colRemaining - rowsAfter, rowRemaining[row] - colSumsAfter[col]));
+            final int max = Math.min(colRemaining, rowRemaining[row]);
+            for (int count = min; count <= max; count++) {
+                rowRemaining[row] -= count;
+                final boolean completed = fill(col, row + 1, colRemaining - count,
+                        sumLogFactorials + logFactorial(count));
+                rowRemaining[row] += count;
+                if (!completed) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Key of the p-value cache.
+     */
+    private static final class Table {
+        private final int[] vector;
+        private final int nrows;
+        private final FisherExact.AlternativeHypothesis alternativeHypothesis;
+        private final int hashCode;
+
+        private Table(final int[] vector, final int nrows,
+                      final FisherExact.AlternativeHypothesis alternativeHypothesis) {
+            // callers may reuse their vector, keep a copy:
+            this.vector = vector.clone();
+            this.nrows = nrows;
+            this.alternativeHypothesis = alternativeHypothesis;
+            this.hashCode = (Arrays.hashCode(this.vector) * 31 + nrows) * 31 + alternativeHypothesis.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Table)) {
+                return false;
+            }
+            final Table other = (Table) o;
+            return nrows == other.nrows && alternativeHypothesis == other.alternativeHypothesis
+                    && Arrays.equals(vector, other.vector);
+        }
+    }
+}
@@ -22,9 +22,8 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.lang.MutableString;
-import edu.cornell.med.icb.goby.util.DoInParallel;
-
-import java.util.Arrays;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.ParallelRegion;
 
 /**
  * Calculate differential expression statistics for lists of elements under study
@@ -196,24 +195,25 @@ public abstract class StatisticCalculator {
             }
         } else results = inputList;
 
-        DoInParallel loop = new DoInParallel() {
-            @Override
-            public void action(DoInParallel forDataAccess, String inputBasename, int loopIndex) {
-                if (loopIndex >= results.size()) {
-                    System.out.printf("Error: loopIndex>=results.size() %d >=%d inputSize: %d", loopIndex, results.size(),
-                            inputList.size());
-                } else {
-                    evaluate(differentialExpressionCalculator, method, results, results.get(loopIndex), group);
-                }
-            }
-        };
+        final int numElements = results.size();
         try {
-            final String[] strings = new String[results.size()];
-            Arrays.fill(strings, "basename");
-            loop.execute(differentialExpressionCalculator.isRunInParallel(), strings);
+            differentialExpressionCalculator.getParallelTeam().execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, numElements - 1 /* end index must be inclusive. */, new IntegerForLoop() {
+                        @Override
+                        public void run(final int startIndex, final int endIndex) {
+                            for (int elementIndex = startIndex; elementIndex <= endIndex; ++elementIndex) {
+                                evaluate(differentialExpressionCalculator, method, results,
+                                        results.get(elementIndex), group);
+                            }
+                        }
+                    });
+                }
+            });
         } catch (Exception e) {
             throw new RuntimeException(String.format("Error executing parallel loop for statistic %s evaluation",
-                    this.statisticIds.toString()));
+                    this.statisticIds.toString()), e);
         }
         return results;
     }
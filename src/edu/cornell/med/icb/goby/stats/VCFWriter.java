@@ -20,6 +20,7 @@ package edu.cornell.med.icb.goby.stats;
 
 import edu.cornell.med.icb.goby.modes.GobyDriver;
 import edu.cornell.med.icb.goby.readers.vcf.*;
+import edu.cornell.med.icb.goby.util.OutputInfo;
 import edu.cornell.med.icb.util.VersionUtils;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
@@ -31,9 +32,12 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import net.sf.samtools.util.BlockCompressedOutputStream;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Collections;
 
@@ -46,6 +50,10 @@ import java.util.Collections;
  */
 public class VCFWriter {
     PrintWriter outWriter;
+    /**
+     * Stream the records are written to, or null when records are written to outWriter.
+     */
+    private final OutputStream outStream;
     private Int2ObjectMap<ColumnType> indexTypes;
     private boolean VCFmode;
     private Int2ObjectMap<String> indexDescriptions;
@@ -65,6 +73,10 @@ public class VCFWriter {
 
     private boolean[] formatFieldActive;
     private CharSequence[][] formatValues;
+    /**
+     * Buffers reused across records to format the numeric values of sample fields.
+     */
+    private MutableString[][] formatNumbers;
     private CharSequence[] infoIds;
     ObjectArrayList<String> refAlleles;
     private ObjectArrayList<String> altAlleles;
@@ -98,7 +110,28 @@ public class VCFWriter {
     }
 
     public VCFWriter(final BlockCompressedOutputStream stream) {
-        this(new PrintWriter(new OutputStreamWriter(stream)));
+        this((OutputStream) stream);
+    }
+
+    /**
+     * Contruct a VCFWriter that writes records to a stream. Records are encoded to bytes in a buffer
+     * reused across records and written to the stream directly, rather than through a Writer.
+     *
+     * @param stream Where the output will be written, for instance a ParallelBlockCompressedOutputStream.
+     */
+    public VCFWriter(final OutputStream stream) {
+        this(null, stream);
+    }
+
+    /**
+     * Contruct a VCFWriter for an output. Outputs whose filename ends in .gz are written in the block compressed
+     * format (BGZF), which tabix can index.
+     *
+     * @param outputInfo Where the output will be written.
+     */
+    public VCFWriter(final OutputInfo outputInfo) {
+        this(outputInfo.isBlockCompressed() ? null : outputInfo.getPrintWriter(),
+                outputInfo.isBlockCompressed() ? outputInfo.getBlockCompressedOutputStream() : null);
     }
 
     /**
@@ -166,7 +199,12 @@ public class VCFWriter {
      * @param outWriter Where the output will be written.
      */
     public VCFWriter(PrintWriter outWriter) {
-        this.outWriter = outWriter;
+        this(outWriter, null);
+    }
+
+    private VCFWriter(final PrintWriter outWriter, final OutputStream outStream) {
+        this.outWriter = outWriter != null ? outWriter : new PrintWriter(new OutputStreamWriter(outStream));
+        this.outStream = outStream;
         this.sampleIds = new String[0];
         columns.addAll(Arrays.asList(VCFParser.fixedColumn()));
         for (ColumnInfo c : columns) {
@@ -237,6 +275,7 @@ public class VCFWriter {
         outWriter.flush();
 
         infoValues = new CharSequence[columns.find("INFO").fields.size()];
+        infoNumbers = new MutableString[infoValues.length];
         final int numFormatTypes = columns.find("FORMAT").fields.size();
         formatFieldIds = new CharSequence[numFormatTypes];
         formatFieldActive = new boolean[numFormatTypes];
@@ -248,6 +287,7 @@ public class VCFWriter {
             numFormatFields++;
         }
         formatValues = new CharSequence[formatFieldActive.length][sampleIds.length];
+        formatNumbers = new MutableString[formatFieldActive.length][sampleIds.length];
         ref.setLength(0);
         alt.setLength(0);
         filter = ".";
@@ -323,85 +363,176 @@ public class VCFWriter {
      */
 
     public void writeRecord() {
-        outWriter.append(chrom);
-        outWriter.append('\t');
-        outWriter.append(position == -1 ? "" : Integer.toString(position));
-        outWriter.append('\t');
-        outWriter.append(id);
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(refAlleles));
-        outWriter.append('\t');
-        outWriter.append(constructAlleleString(altAlleles));
-        outWriter.append('\t');
-        outWriter.append(qual);
-        outWriter.append('\t');
-        outWriter.append(filter);
-        outWriter.append('\t');
-        int max;
-        int index = 0;
-        max = infoValues.length;
-
-        MutableString infoString = new MutableString();
-        for (CharSequence infoValue : infoValues) {
+        record.setLength(0);
+        append(chrom);
+        record.append('\t');
+        if (position != -1) {
+            appendInt(record, position);
+        }
+        record.append('\t');
+        append(id);
+        record.append('\t');
+        record.append(constructAlleleString(refAlleles));
+        record.append('\t');
+        record.append(constructAlleleString(altAlleles));
+        record.append('\t');
+        append(qual);
+        record.append('\t');
+        append(filter);
+        record.append('\t');
+
+        final int infoStart = record.length();
+        for (int index = 0; index < infoValues.length; index++) {
+            final CharSequence infoValue = infoValues[index];
             assert infoValue != null : "value cannot be null for INFO field " + infoIds[index];
             if (infoValue.length() != 0) {
-                if (infoFlag[index]) {
-                    infoString.append(infoIds[index]);
-                } else {
-
-
-                    infoString.append(infoIds[index]);
-                    infoString.append('=');
-                    infoString.append(infoValue);
+                if (record.length() != infoStart) {
+                    record.append(';');
+                }
+                append(infoIds[index]);
+                if (!infoFlag[index]) {
+                    record.append('=');
+                    append(infoValue);
                 }
-                infoString.append(';');
-
             }
-
-            index += 1;
-
         }
-        if (infoString.length() > 0) outWriter.append(infoString.subSequence(0, infoString.length() - 1));
-        outWriter.append('\t');
+        record.append('\t');
 
-        max = formatFieldIds.length;
-        index = 0;
-        MutableString formatString = new MutableString();
+        boolean first = true;
         for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
             if (formatFieldActive[formatIndex]) {
-                formatString.append(formatFieldIds[formatIndex]);
-                formatString.append(':');
+                if (!first) {
+                    record.append(':');
+                }
+                append(formatFieldIds[formatIndex]);
+                first = false;
             }
         }
-        if (formatString.length() > 0) outWriter.append(formatString.subSequence(0, formatString.length() - 1));
-
-        outWriter.append('\t');
-        int sampleIndex = 0;
-
-        max = sampleIds.length;
+        record.append('\t');
 
-        for (CharSequence value : sampleIds) {
-
-            MutableString sampleString = new MutableString();
+        final int max = sampleIds.length;
+        for (int sampleIndex = 0; sampleIndex < max; sampleIndex++) {
+            first = true;
             for (int formatIndex = 0; formatIndex < numFormatFields; formatIndex++) {
-                //  for (CharSequence formatType : formatFieldIds) {
                 if (formatFieldActive[formatIndex]) {
+                    if (!first) {
+                        record.append(':');
+                    }
                     final CharSequence v = formatValues[formatIndex][sampleIndex];
                     if (v != null) {
-                        sampleString.append(v);
+                        append(v);
                     }
-                    sampleString.append(':');
+                    first = false;
                 }
             }
-
-            sampleIndex++;
-            if (sampleString.length() > 0) outWriter.append(sampleString.subSequence(0, sampleString.length() - 1));
-            if (sampleIndex != max) outWriter.append('\t');
+            if (sampleIndex != max - 1) {
+                record.append('\t');
+            }
+        }
+        record.append(LINE_SEPARATOR);
+        if (outStream == null) {
+            outWriter.write(record.array(), 0, record.length());
+        } else {
+            writeRecordBytes();
         }
-        outWriter.println();
         clear();
     }
 
+    /**
+     * Text of the record being written, reused across records.
+     */
+    private final MutableString record = new MutableString();
+    /**
+     * Bytes of the record being written, reused across records when the writer writes to a stream.
+     */
+    private byte[] recordBytes = new byte[1024];
+    /**
+     * Digits of the number being formatted.
+     */
+    private final char[] digits = new char[11];
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private void append(final CharSequence value) {
+        // same as Writer.append(null):
+        record.append(value == null ? "null" : value);
+    }
+
+    /**
+     * Encode the record to bytes and write it to the stream. Records are ASCII, except for unusual names or
+     * values, which are encoded with the default charset, as outWriter does.
+     */
+    private void writeRecordBytes() {
+        final int length = record.length();
+        final char[] chars = record.array();
+        if (recordBytes.length < length) {
+            recordBytes = new byte[Math.max(length, recordBytes.length * 2)];
+        }
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            final char c = chars[i];
+            if (c >= 0x80) {
+                ascii = false;
+                break;
+            }
+            recordBytes[i] = (byte) c;
+        }
+        try {
+            if (ascii) {
+                outStream.write(recordBytes, 0, length);
+            } else {
+                outStream.write(record.toString().getBytes(Charset.defaultCharset()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write VCF record.", e);
+        }
+    }
+
+    /**
+     * Append the decimal representation of an int (the same as Integer.toString) without creating a String.
+     *
+     * @param destination where to append the number.
+     * @param value       the number.
+     */
+    private void appendInt(final MutableString destination, final int value) {
+        long remaining = value;
+        if (remaining < 0) {
+            destination.append('-');
+            remaining = -remaining;
+        }
+        int offset = digits.length;
+        do {
+            digits[--offset] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        destination.append(digits, offset, digits.length - offset);
+    }
+
+    /**
+     * Return the buffer that holds the value of a numeric INFO field, emptied.
+     */
+    private MutableString infoNumber(final int infoFieldIndex) {
+        MutableString number = infoNumbers[infoFieldIndex];
+        if (number == null) {
+            number = new MutableString();
+            infoNumbers[infoFieldIndex] = number;
+        }
+        number.setLength(0);
+        return number;
+    }
+
+    /**
+     * Return the buffer that holds the value of a numeric sample field, emptied.
+     */
+    private MutableString sampleNumber(final int formatFieldIndex, final int sampleIndex) {
+        MutableString number = formatNumbers[formatFieldIndex][sampleIndex];
+        if (number == null) {
+            number = new MutableString();
+            formatNumbers[formatFieldIndex][sampleIndex] = number;
+        }
+        number.setLength(0);
+        return number;
+    }
+
     /**
      * Clear the record without writing to the output and prepare for the next record.
      */
@@ -564,6 +695,10 @@ public class VCFWriter {
     }
 
     CharSequence[] infoValues;
+    /**
+     * Buffers reused across records to format the numeric values of INFO fields.
+     */
+    private MutableString[] infoNumbers;
 
 
     ColumnInfo infoColumn = new ColumnInfo("INFO");
@@ -628,7 +763,7 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, double value) {
-        infoValues[infoFieldIndex] = Double.toString(value);
+        infoValues[infoFieldIndex] = infoNumber(infoFieldIndex).append(value);
     }
 
     /**
@@ -638,7 +773,7 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, float value) {
-        infoValues[infoFieldIndex] = Float.toString(value);
+        infoValues[infoFieldIndex] = infoNumber(infoFieldIndex).append(value);
     }
 
     /**
@@ -648,7 +783,9 @@ public class VCFWriter {
      * @param value          Value of the field.
      */
     public void setInfo(int infoFieldIndex, int value) {
-        infoValues[infoFieldIndex] = Integer.toString(value);
+        final MutableString number = infoNumber(infoFieldIndex);
+        appendInt(number, value);
+        infoValues[infoFieldIndex] = number;
     }
 
     private String[] sampleIds;
@@ -672,6 +809,7 @@ public class VCFWriter {
     public void defineSamples(String[] samples) {
         sampleIds = samples;
         formatValues = new CharSequence[getNumFormatFields()][samples.length];
+        formatNumbers = new MutableString[getNumFormatFields()][samples.length];
     }
 
     /**
@@ -698,7 +836,7 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, double value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Double.toString(value));
+        setSampleValue(formatFieldIndex, sampleIndex, sampleNumber(formatFieldIndex, sampleIndex).append(value));
     }
 
     /**
@@ -732,7 +870,9 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, int value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Integer.toString(value));
+        final MutableString number = sampleNumber(formatFieldIndex, sampleIndex);
+        appendInt(number, value);
+        setSampleValue(formatFieldIndex, sampleIndex, number);
     }
 
     /**
@@ -743,7 +883,7 @@ public class VCFWriter {
      * @param value            Value to set the field to for the current record.
      */
     public void setSampleValue(int formatFieldIndex, int sampleIndex, float value) {
-        setSampleValue(formatFieldIndex, sampleIndex, Float.toString(value));
+        setSampleValue(formatFieldIndex, sampleIndex, sampleNumber(formatFieldIndex, sampleIndex).append(value));
     }
 
     public void setSampleValue(String formatToken, int sampleIndex, String value) {
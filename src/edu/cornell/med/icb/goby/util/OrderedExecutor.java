@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a pool of threads and returns their results in the order the tasks were submitted.
+ * At most maxPending tasks are pending at any time, which bounds the memory held by results that have
+ * not been taken yet. The default, twice the number of threads, keeps every thread busy while the
+ * results of earlier tasks are consumed.
+ * <p/>
+ * Typical use, where the thread that submits tasks also consumes the results:
+ * <pre>
+ * executor.submit(task);
+ * while (executor.hasReadyResult()) {
+ *     write(executor.take());
+ * }
+ * ...
+ * while (!executor.isEmpty()) {
+ *     write(executor.take());
+ * }
+ * executor.shutdown();
+ * </pre>
+ * Tasks may also be submitted by one thread and results taken by another. In this case submit blocks while
+ * maxPending tasks are pending, the producer calls {@link #finish()} after the last task, and the consumer
+ * calls {@link #take()} until it returns null.
+ *
+ * @param <T> type of the results of the tasks.
+ */
+public class OrderedExecutor<T> {
+    /**
+     * Marks the end of the tasks in the queue of pending tasks.
+     */
+    private static final Future<?> END_OF_TASKS = new FutureTask<Object>(new Callable<Object>() {
+        @Override
+        public Object call() {
+            return null;
+        }
+    });
+
+    private final String name;
+    /**
+     * Runs the tasks, or null when tasks are run in the thread that submits them.
+     */
+    private final ExecutorService executor;
+    private final BlockingQueue<Future<T>> pending;
+    private final int maxPending;
+
+    /**
+     * Create an executor that can have twice as many tasks pending as it has threads.
+     *
+     * @param name       Name of the threads, also used in error messages.
+     * @param numThreads Number of threads, zero to run tasks in the thread that submits them.
+     */
+    public OrderedExecutor(final String name, final int numThreads) {
+        this(name, numThreads, Math.max(1, numThreads * 2));
+    }
+
+    /**
+     * Create an executor.
+     *
+     * @param name       Name of the threads, also used in error messages.
+     * @param numThreads Number of threads, zero to run tasks in the thread that submits them.
+     * @param maxPending Maximum number of tasks whose results have not been taken.
+     */
+    public OrderedExecutor(final String name, final int numThreads, final int maxPending) {
+        super();
+        assert maxPending > 0 : "at least one task must be allowed to be pending.";
+        this.name = name;
+        this.maxPending = maxPending;
+        pending = new ArrayBlockingQueue<Future<T>>(maxPending);
+        executor = numThreads > 0 ? newDaemonThreadPool(name, numThreads) : null;
+    }
+
+    /**
+     * Create a fixed size pool of daemon threads. Daemon threads do not prevent the JVM from exiting when
+     * a client forgets to close the object that owns the pool.
+     *
+     * @param name       Name of the threads.
+     * @param numThreads Number of threads.
+     * @return the thread pool.
+     */
+    public static ExecutorService newDaemonThreadPool(final String name, final int numThreads) {
+        return new ThreadPoolExecutor(
+                numThreads, // core thread pool size
+                numThreads, // maximum thread pool size
+                10, // time to wait before resizing pool
+                TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Submit a task. Blocks while maxPending tasks are pending, which only happens when results are taken by
+     * another thread.
+     *
+     * @param task The task to run.
+     * @throws InterruptedIOException If interrupted while waiting for a pending task to be taken.
+     */
+    public void submit(final Callable<T> task) throws InterruptedIOException {
+        final Future<T> future;
+        if (executor == null) {
+            final FutureTask<T> futureTask = new FutureTask<T>(task);
+            futureTask.run();
+            future = futureTask;
+        } else {
+            future = executor.submit(task);
+        }
+        put(future);
+    }
+
+    /**
+     * Signal that no more tasks will be submitted. {@link #take()} returns null once the results of all
+     * the tasks submitted before this call have been taken.
+     *
+     * @throws InterruptedIOException If interrupted while waiting for a pending task to be taken.
+     */
+    @SuppressWarnings("unchecked")
+    public void finish() throws InterruptedIOException {
+        put((Future<T>) END_OF_TASKS);
+    }
+
+    /**
+     * Return true when the oldest result should be taken: either its task has completed, or maxPending tasks
+     * are pending and the result must be taken before another task is submitted.
+     *
+     * @return True when {@link #take()} should be called.
+     */
+    public boolean hasReadyResult() {
+        final Future<T> oldest = pending.peek();
+        return oldest != null && oldest != END_OF_TASKS && (pending.size() >= maxPending || oldest.isDone());
+    }
+
+    /**
+     * Return true when no task is pending.
+     *
+     * @return True when all the results have been taken.
+     */
+    public boolean isEmpty() {
+        final Future<T> oldest = pending.peek();
+        return oldest == null || oldest == END_OF_TASKS;
+    }
+
+    /**
+     * Return the result of the oldest pending task, waiting for the task to complete if needed. When the
+     * task failed, its IOException or unchecked exception is thrown again.
+     *
+     * @return The result of the task, or null if {@link #finish()} was called and all results have been taken.
+     * @throws IOException If the task failed, or if interrupted while waiting for the task.
+     */
+    public T take() throws IOException {
+        try {
+            final Future<T> oldest = pending.take();
+            if (oldest == END_OF_TASKS) {
+                // let other calls see the end of the tasks as well:
+                pending.put(oldest);
+                return null;
+            }
+            return oldest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name + " task.");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Unable to complete " + name + " task.", cause);
+        }
+    }
+
+    /**
+     * Discard the pending tasks and stop the threads. Threads that are running tasks are interrupted.
+     */
+    public void shutdown() {
+        for (final Future<T> future : pending) {
+            if (future != END_OF_TASKS) {
+                future.cancel(true);
+            }
+        }
+        pending.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void put(final Future<T> future) throws InterruptedIOException {
+        try {
+            pending.put(future);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to submit " + name + " task.");
+        }
+    }
+}
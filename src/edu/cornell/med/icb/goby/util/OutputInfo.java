@@ -64,6 +64,31 @@ public class OutputInfo {
         return outStream;
     }
 
+    /**
+     * Return true when the output is a file whose name ends in .gz. Such outputs are written in the block
+     * compressed format (BGZF), which can be decompressed with gzip and indexed with tabix.
+     *
+     * @return True or False.
+     */
+    public boolean isBlockCompressed() {
+        return outputFilename != null && !isToConsole(outputFilename) && outputFilename.endsWith(".gz");
+    }
+
+    /**
+     * Return a stream that writes the output in the block compressed format (BGZF), compressing blocks
+     * with one thread per available processor.
+     *
+     * @return a block compressed output stream.
+     */
+    public OutputStream getBlockCompressedOutputStream() {
+        try {
+            outStream = new ParallelBlockCompressedOutputStream(outputFilename);
+        } catch (IOException e) {
+            System.err.println("Cannot open output file for writing: " + outputFilename);
+        }
+        return outStream;
+    }
+
     public String getFilename() {
         return outputFilename;
     }
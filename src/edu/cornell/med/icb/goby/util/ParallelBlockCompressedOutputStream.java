@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a block compressed (BGZF) stream, the format of bgzip and of samtools BlockCompressedOutputStream.
+ * Bytes are collected in blocks of at most 0xff00 bytes, and blocks are deflated by a pool of threads. Blocks
+ * are written in the order they were filled, so the output can be decompressed with gzip and indexed with tabix.
+ * The stream ends with the empty block that marks the end of a BGZF file.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    /**
+     * Maximum number of uncompressed bytes in a block. Chosen so that a block still fits in 64KB when its
+     * data cannot be compressed.
+     */
+    public static final int MAX_UNCOMPRESSED_BLOCK_SIZE = 0xff00;
+    private static final int MAX_BLOCK_SIZE = 0x10000;
+    private static final int BLOCK_HEADER_LENGTH = 18;
+    private static final int BLOCK_FOOTER_LENGTH = 8;
+    private static final int DEFAULT_COMPRESSION_LEVEL = 5;
+    private static final byte[] EMPTY_BLOCK = {
+            0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43,
+            0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private byte[] uncompressedBlock = new byte[MAX_UNCOMPRESSED_BLOCK_SIZE];
+    private int numUncompressedBytes;
+    private boolean closed;
+
+    /**
+     * Deflates blocks and returns them in the order they were filled.
+     */
+    private final OrderedExecutor<byte[]> compressionExecutor;
+
+    /**
+     * True when blocks are deflated in the calling thread, so that the block buffer can be reused.
+     */
+    private final boolean compressInline;
+
+    /**
+     * Deflater used by each compression thread. Deflaters keep state and cannot be shared.
+     */
+    private final ThreadLocal<Deflater> threadDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(compressionLevel, true);
+        }
+    };
+
+    /**
+     * Create a stream that deflates blocks with one thread per available processor.
+     *
+     * @param filename Name of the file to write.
+     * @throws IOException If the file cannot be created.
+     */
+    public ParallelBlockCompressedOutputStream(final String filename) throws IOException {
+        this(new FileOutputStream(filename), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param output     Where to write the compressed blocks. The output is closed when this stream is closed.
+     * @param numThreads Number of compression threads, zero to deflate blocks in the calling thread.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream output, final int numThreads) {
+        this(output, numThreads, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param output           Where to write the compressed blocks. The output is closed when this stream is closed.
+     * @param numThreads       Number of compression threads, zero to deflate blocks in the calling thread.
+     * @param compressionLevel Deflate compression level, from 0 to 9.
+     */
+    public ParallelBlockCompressedOutputStream(final OutputStream output, final int numThreads,
+                                               final int compressionLevel) {
+        super();
+        this.out = output;
+        this.compressionLevel = compressionLevel;
+        compressionExecutor = new OrderedExecutor<byte[]>("bgzf-compression", numThreads);
+        compressInline = numThreads == 0;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (numUncompressedBytes == MAX_UNCOMPRESSED_BLOCK_SIZE) {
+            flushBlock();
+        }
+        uncompressedBlock[numUncompressedBytes++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int position = offset;
+        int remaining = length;
+        while (remaining > 0) {
+            if (numUncompressedBytes == MAX_UNCOMPRESSED_BLOCK_SIZE) {
+                flushBlock();
+            }
+            final int n = Math.min(remaining, MAX_UNCOMPRESSED_BLOCK_SIZE - numUncompressedBytes);
+            System.arraycopy(bytes, position, uncompressedBlock, numUncompressedBytes, n);
+            numUncompressedBytes += n;
+            position += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Write the current block, even if it is not full, and write the blocks pending compression.
+     *
+     * @throws IOException If an error occurs compressing or writing a block.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (numUncompressedBytes > 0) {
+            flushBlock();
+        }
+        while (!compressionExecutor.isEmpty()) {
+            out.write(compressionExecutor.take());
+        }
+        out.flush();
+    }
+
+    /**
+     * Write pending blocks, the empty block that marks the end of the file, and close the underlying stream.
+     *
+     * @throws IOException If an error occurs compressing or writing a block.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(EMPTY_BLOCK);
+        } finally {
+            compressionExecutor.shutdown();
+            out.close();
+        }
+    }
+
+    /**
+     * Hand the current block to a compression thread, start a new block, and write the blocks whose
+     * compression has completed.
+     */
+    private void flushBlock() throws IOException {
+        final byte[] block = uncompressedBlock;
+        final int length = numUncompressedBytes;
+        compressionExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compressBlock(block, length);
+            }
+        });
+        if (!compressInline) {
+            // the block now belongs to the compression thread:
+            uncompressedBlock = new byte[MAX_UNCOMPRESSED_BLOCK_SIZE];
+        }
+        numUncompressedBytes = 0;
+        while (compressionExecutor.hasReadyResult()) {
+            out.write(compressionExecutor.take());
+        }
+    }
+
+    /**
+     * Deflate a block and wrap it in a gzip member with the BGZF extra field.
+     *
+     * @param block  Uncompressed bytes.
+     * @param length Number of bytes of block to compress.
+     * @return The complete BGZF block.
+     */
+    private byte[] compressBlock(final byte[] block, final int length) {
+        final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        final int maxCompressedLength = MAX_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+        final Deflater deflater = threadDeflater.get();
+        int compressedLength = deflate(deflater, block, length, compressed, maxCompressedLength);
+        if (compressedLength == -1) {
+            // the data does not compress: store it, which always fits with blocks of this size.
+            final Deflater noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                compressedLength = deflate(noCompression, block, length, compressed, maxCompressedLength);
+            } finally {
+                noCompression.end();
+            }
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(block, 0, length);
+        final int blockSize = BLOCK_HEADER_LENGTH + compressedLength + BLOCK_FOOTER_LENGTH;
+        final byte[] result = new byte[blockSize];
+        // gzip header with the BC extra subfield, which records the size of the block minus one:
+        result[0] = 0x1f;
+        result[1] = (byte) 0x8b;
+        result[2] = 8; // deflate
+        result[3] = 4; // FEXTRA
+        result[9] = (byte) 0xff; // unknown OS
+        writeShort(result, 10, 6); // XLEN
+        result[12] = 66; // 'B'
+        result[13] = 67; // 'C'
+        writeShort(result, 14, 2);
+        writeShort(result, 16, blockSize - 1);
+        System.arraycopy(compressed, 0, result, BLOCK_HEADER_LENGTH, compressedLength);
+        final int footer = BLOCK_HEADER_LENGTH + compressedLength;
+        writeInt(result, footer, (int) crc.getValue());
+        writeInt(result, footer + 4, length);
+        return result;
+    }
+
+    /**
+     * Deflate bytes as one complete raw deflate stream.
+     *
+     * @return the compressed length, or -1 if the compressed data would not fit in maxLength bytes.
+     */
+    private static int deflate(final Deflater deflater, final byte[] block, final int length,
+                               final byte[] compressed, final int maxLength) {
+        deflater.reset();
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        final int compressedLength = deflater.deflate(compressed, 0, maxLength);
+        return deflater.finished() ? compressedLength : -1;
+    }
+
+    private static void writeShort(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        writeShort(bytes, offset, value);
+        writeShort(bytes, offset + 2, value >>> 16);
+    }
+}
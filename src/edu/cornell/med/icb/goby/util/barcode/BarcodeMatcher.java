@@ -20,6 +20,8 @@ package edu.cornell.med.icb.goby.util.barcode;
 
 import it.unimi.dsi.fastutil.ints.Int2LongLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,6 +48,23 @@ public abstract class BarcodeMatcher {
     /** The number of allowed mismatchines when matching to a barcode. */
     protected int allowedMismatches;
 
+    /** The length of the longest barcode string (including the adapter). */
+    protected int maxBarcodeWithAdapterLength;
+
+    /**
+     * Maximum number of keys in the barcode index. Larger neighborhoods (many barcodes, long barcodes or
+     * many allowed mismatches) are matched by comparing the sequence to every barcode.
+     */
+    private static final int MAX_INDEX_SIZE = 1 << 22;
+
+    private static final int[] NO_CANDIDATES = new int[0];
+
+    /**
+     * Map from each 2-bit packed k-mer within allowedMismatches of a barcode (without adapter) to the
+     * indices of these barcodes, in increasing order. Null when the barcodes cannot be indexed.
+     */
+    private Long2ObjectMap<int[]> index;
+
     /**
      * Used by constructors to make a BarcodeMatcher.
      * @param barcodesStrArray MutableString version of the barcodes strings (including trailing adapter).
@@ -64,6 +83,183 @@ public abstract class BarcodeMatcher {
         }
         this.barcodeLength = barcodeLength;
         this.allowedMismatches = allowedMismatches;
+        maxBarcodeWithAdapterLength = 0;
+        if (barcodes != null) {
+            for (final MutableString barcode : barcodes) {
+                maxBarcodeWithAdapterLength = Math.max(maxBarcodeWithAdapterLength, barcode.length());
+            }
+        }
+        index = buildIndex();
+    }
+
+    /**
+     * Index the Hamming neighborhood of every barcode, so that a sequence is compared only to the barcodes
+     * that can match it within allowedMismatches.
+     *
+     * @return the index, or null if the barcodes are too long, contain other bases than ACGT, or have
+     * neighborhoods too large to index.
+     */
+    private Long2ObjectMap<int[]> buildIndex() {
+        if (barcodes == null || barcodeLength < 1 || barcodeLength > 31) {
+            return null;
+        }
+        double neighborhoodSize = 0;
+        double numNeighbors = 1;
+        for (int numDiffs = 0; numDiffs <= Math.min(allowedMismatches, barcodeLength); numDiffs++) {
+            neighborhoodSize += numNeighbors;
+            // C(n, d + 1) * 3^(d + 1) from C(n, d) * 3^d:
+            numNeighbors = numNeighbors * (barcodeLength - numDiffs) / (numDiffs + 1) * 3;
+        }
+        if (neighborhoodSize * barcodes.length > MAX_INDEX_SIZE) {
+            LOG.info(String.format("Not indexing barcodes, the index would contain about %g keys.",
+                    neighborhoodSize * barcodes.length));
+            return null;
+        }
+        final Long2ObjectMap<int[]> result = new Long2ObjectOpenHashMap<int[]>();
+        for (int barcodeIndex = 0; barcodeIndex < barcodes.length; barcodeIndex++) {
+            final MutableString barcode = barcodes[barcodeIndex];
+            if (barcode.length() < barcodeLength) {
+                return null;
+            }
+            long key = 0;
+            for (int i = 0; i < barcodeLength; i++) {
+                final int code = baseCode(barcode.charAt(i));
+                if (code < 0) {
+                    return null;
+                }
+                key |= (long) code << (2 * i);
+            }
+            indexNeighborhood(result, key, 0, allowedMismatches, barcodeIndex);
+        }
+        return result;
+    }
+
+    /**
+     * Add key, and the keys that differ from key by at most remainingMismatches bases at positions
+     * fromPosition and after, to the index. Each key is visited once per barcode.
+     */
+    private void indexNeighborhood(final Long2ObjectMap<int[]> result, final long key, final int fromPosition,
+                                   final int remainingMismatches, final int barcodeIndex) {
+        final int[] indices = result.get(key);
+        if (indices == null) {
+            result.put(key, new int[]{barcodeIndex});
+        } else {
+            // barcodes are indexed in increasing order:
+            final int[] extended = new int[indices.length + 1];
+            System.arraycopy(indices, 0, extended, 0, indices.length);
+            extended[indices.length] = barcodeIndex;
+            result.put(key, extended);
+        }
+        if (remainingMismatches == 0) {
+            return;
+        }
+        for (int position = fromPosition; position < barcodeLength; position++) {
+            final int shift = 2 * position;
+            final long base = (key >>> shift) & 3;
+            for (long other = 0; other < 4; other++) {
+                if (other != base) {
+                    indexNeighborhood(result, (key & ~(3L << shift)) | (other << shift), position + 1,
+                            remainingMismatches - 1, barcodeIndex);
+                }
+            }
+        }
+    }
+
+    private static int baseCode(final char base) {
+        switch (base) {
+            case 'A':
+                return 0;
+            case 'C':
+                return 1;
+            case 'G':
+                return 2;
+            case 'T':
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Get the first position in sequence where bestMatch may align the start of a barcode.
+     * @param sequenceLength the length of the sequence
+     * @return the first position
+     */
+    abstract int firstBarcodeStart(final int sequenceLength);
+
+    /**
+     * Get the last position in sequence where bestMatch may align the start of a barcode.
+     * @param sequenceLength the length of the sequence
+     * @return the last position, less than firstBarcodeStart when no barcode can be aligned
+     */
+    abstract int lastBarcodeStart(final int sequenceLength);
+
+    /**
+     * Find the barcodes that are within allowedMismatches of the sequence at one of the positions where
+     * bestMatch aligns a barcode. Other barcodes cannot match the sequence.
+     * @param sequence the sequence to get the barcode for
+     * @return the indices of candidate barcodes in increasing order, or null if the sequence contains
+     * other bases than ACGT where barcodes are aligned
+     */
+    private int[] candidateBarcodes(final MutableString sequence) {
+        final int first = firstBarcodeStart(sequence.length());
+        final int last = lastBarcodeStart(sequence.length());
+        if (last < first) {
+            return NO_CANDIDATES;
+        }
+        final char[] bases = sequence.array();
+        long key = 0;
+        for (int i = 0; i < barcodeLength; i++) {
+            final int code = baseCode(bases[first + i]);
+            if (code < 0) {
+                return null;
+            }
+            key |= (long) code << (2 * i);
+        }
+        int[] candidates = index.get(key);
+        final int lastShift = 2 * (barcodeLength - 1);
+        for (int start = first + 1; start <= last; start++) {
+            final int code = baseCode(bases[start + barcodeLength - 1]);
+            if (code < 0) {
+                return null;
+            }
+            key = (key >>> 2) | ((long) code << lastShift);
+            candidates = union(candidates, index.get(key));
+        }
+        return candidates == null ? NO_CANDIDATES : candidates;
+    }
+
+    /**
+     * Merge two sorted arrays of barcode indices, either of which may be null.
+     */
+    private static int[] union(final int[] a, final int[] b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        final int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            final int next;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (n == 0 || merged[n - 1] != next) {
+                merged[n++] = next;
+            }
+        }
+        if (n == merged.length) {
+            return merged;
+        }
+        final int[] result = new int[n];
+        System.arraycopy(merged, 0, result, 0, n);
+        return result;
     }
 
     BarcodeMatcherResult bestMatch(final MutableString sequence, final MutableString toFind, final int barcodeNum) {
@@ -74,14 +270,19 @@ public abstract class BarcodeMatcher {
 
     /**
      * Determines which barcode this sequence matches or returns null if a barcode isn't found for
-     * the sequence (withing the number of allowedMismatches).
+     * the sequence (withing the number of allowedMismatches). When the barcodes are indexed, only the
+     * barcodes found in the index for the sequence are compared to it, which gives the same result as
+     * comparing every barcode. This method may be called by several threads.
      * @param sequence the sequence to get the barcode for
      * @return the barcode for the sequence or null if not found
      */
     public BarcodeMatcherResult matchSequence(final MutableString sequence) {
+        final int[] candidates = index == null ? null : candidateBarcodes(sequence);
+        final int numCandidates = candidates == null ? barcodes.length : candidates.length;
         BarcodeMatcherResult bestMatch = null;
         int numAtBestMatch = 0;
-        for (int barcodeNum = 0; barcodeNum < barcodes.length; barcodeNum++) {
+        for (int i = 0; i < numCandidates; i++) {
+            final int barcodeNum = candidates == null ? i : candidates[i];
             final MutableString barcode = barcodes[barcodeNum];
             final BarcodeMatcherResult result = bestMatch(sequence, barcode, barcodeNum);
             if (bestMatch == null) {
@@ -105,7 +306,9 @@ public abstract class BarcodeMatcher {
             bestMatch.setAmbiguous(true);
         }
         final int bestBarcodeNum = bestMatch.getBarcodeIndex();
-        barcodeIndexToHitsMap.put(bestBarcodeNum, barcodeIndexToHitsMap.get(bestBarcodeNum) + 1);
+        synchronized (barcodeIndexToHitsMap) {
+            barcodeIndexToHitsMap.put(bestBarcodeNum, barcodeIndexToHitsMap.get(bestBarcodeNum) + 1);
+        }
         return bestMatch;
     }
 
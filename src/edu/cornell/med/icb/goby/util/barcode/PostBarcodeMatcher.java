@@ -78,6 +78,27 @@ public class PostBarcodeMatcher extends BarcodeMatcher {
                 leastNumDiffsBarcodeStartPos, barcodeMatchedLength);
     }
 
+    /**
+     * The barcode with its adapter may overlap the end of the sequence by up to the length of the longest
+     * barcode with adapter.
+     * @param sequenceLength the length of the sequence
+     * @return the first position where the barcode may start
+     */
+    @Override
+    int firstBarcodeStart(final int sequenceLength) {
+        return Math.max(0, sequenceLength - maxBarcodeWithAdapterLength);
+    }
+
+    /**
+     * At least barcodeLength bases of the barcode overlap the end of the sequence.
+     * @param sequenceLength the length of the sequence
+     * @return the last position where the barcode may start
+     */
+    @Override
+    int lastBarcodeStart(final int sequenceLength) {
+        return sequenceLength - barcodeLength;
+    }
+
     /**
      * Determine the overlap portion of the two strings given their lengths.
      * @param sequence the string we are searching
@@ -76,6 +76,26 @@ public class PreBarcodeMatcher extends BarcodeMatcher {
                 0, leastNumDiffsMatchedBarcodeLength);
     }
 
+    /**
+     * The barcode is only aligned at the start of the sequence.
+     * @param sequenceLength the length of the sequence
+     * @return zero
+     */
+    @Override
+    int firstBarcodeStart(final int sequenceLength) {
+        return 0;
+    }
+
+    /**
+     * The barcode is only aligned at the start of the sequence, when the sequence is as long as the barcode.
+     * @param sequenceLength the length of the sequence
+     * @return zero, or -1 when the sequence is shorter than the barcode
+     */
+    @Override
+    int lastBarcodeStart(final int sequenceLength) {
+        return sequenceLength >= barcodeLength ? 0 : -1;
+    }
+
     /**
      * Determine the overlap portion of the two strings given their lengths.
      * @param sequence the string we are searching
@@ -18,7 +18,7 @@
 
 package edu.cornell.med.icb.goby.util.pool;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.Queue;
 
 /**
@@ -33,7 +33,7 @@ public abstract class QueueResettableObjectPool<T extends Resettable> implements
     /**
      * The pool of objects waiting to be borrowed.
      */
-    private final Queue<T> queue = new LinkedList<T>();
+    private final Queue<T> queue = new ArrayDeque<T>();
 
     /**
      * Abstract class for making objects for the pool / to be borrowed.
@@ -18,12 +18,18 @@
 
 package edu.cornell.med.icb.goby.algorithmic.algorithm;
 
+import edu.cornell.med.icb.goby.alignments.AlignmentWriterImpl;
 import edu.cornell.med.icb.goby.alignments.Alignments;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
 import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -31,6 +37,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 
 /**
@@ -39,6 +46,18 @@ import static junit.framework.Assert.assertEquals;
  *         Time: 11:05 AM
  */
 public class ExportSplicingEventsTest {
+    private static final String BASE_TEST_DIR = "test-results/splicing-events";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
     @Test
     public void testProcess() throws Exception {
         final Collection<Alignments.AlignmentEntry> collection = new ArrayList<Alignments.AlignmentEntry>();
@@ -160,15 +179,90 @@ public class ExportSplicingEventsTest {
 
            assertConditions(collection, expected);
        }
-    private void assertConditions(Collection<Alignments.AlignmentEntry> collection, String expected) throws IOException {
+
+    @Test
+    public void testSortedStreaming() throws Exception {
+        // enough distinct junctions that junctions are written while a sorted alignment is read:
+        final Collection<Alignments.AlignmentEntry> collection = new ArrayList<Alignments.AlignmentEntry>();
+        for (int targetIndex = 0; targetIndex < 2; targetIndex++) {
+            for (int position = 0; position < 15000; position += 3) {
+                for (int i = 0; i < 5; i++) {
+                    collection.add(Alignments.AlignmentEntry.newBuilder().setTargetIndex(targetIndex)
+                            .setQueryLength(40)
+                            .setPosition(position)
+                            .setTargetAlignedLength(10 + (position + i) % 4)
+                            .setMatchingReverseStrand(i % 3 == 0)
+                            .setSplicedForwardAlignmentLink(newSpliceLink(targetIndex, position + 100 + i % 2))
+                            .build());
+                }
+            }
+        }
+        assertEquals(export(collection, false), export(collection, true));
+    }
+
+    @Test
+    public void testParallelReferences() throws Exception {
+        // large and small references, some without alignments, so that small references are tallied together:
+        final int[] targetLengths = {200000, 500, 700, 400, 100000, 300, 600};
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "parallel-references");
+        final AlignmentWriterImpl writer = new AlignmentWriterImpl(basename);
+        writer.setNumAlignmentEntriesPerChunk(100);
+        writer.setTargetIdentifiersArray(new String[]{"1", "2", "3", "4", "5", "6", "7"});
+        writer.setTargetLengths(targetLengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int targetIndex = 0; targetIndex < targetLengths.length; targetIndex++) {
+            if (targetIndex == 2 || targetIndex == 5) {
+                continue;
+            }
+            for (int position = 0; position < targetLengths[targetIndex] - 200; position += 7) {
+                writer.appendEntry(Alignments.AlignmentEntry.newBuilder().setTargetIndex(targetIndex)
+                        .setQueryIndex(queryIndex++)
+                        .setQueryLength(40)
+                        .setPosition(position)
+                        .setTargetAlignedLength(10 + position % 3)
+                        .setMatchingReverseStrand(position % 2 == 0)
+                        .setSplicedForwardAlignmentLink(newSpliceLink(targetIndex, position + 100 + position % 5))
+                        .build());
+            }
+        }
+        writer.close();
+
+        final String expected = export(basename, 1);
+        assertTrue(expected.length() > 0);
+        assertEquals(expected, export(basename, 4));
+        assertEquals(expected, export(basename, 3));
+    }
+
+    private String export(final String basename, final int numThreads) throws IOException {
         final StringWriter output = new StringWriter();
         final ExportSplicingEvents processor = new ExportSplicingEvents(output);
+        processor.setNumThreads(numThreads);
+        processor.process(basename);
+        return output.getBuffer().toString();
+    }
+
+    private String export(final Collection<Alignments.AlignmentEntry> collection, final boolean sorted)
+            throws IOException {
+        final StringWriter output = new StringWriter();
+        final ExportSplicingEvents processor = new ExportSplicingEvents(output);
+        processor.setSorted(sorted);
+        processor.process(collection, newReverseIds());
+        return output.getBuffer().toString();
+    }
+
+    private DoubleIndexedIdentifier newReverseIds() {
         final IndexedIdentifier ids = new IndexedIdentifier();
         ids.registerIdentifier(new MutableString("1"));
         ids.registerIdentifier(new MutableString("2"));
-        final DoubleIndexedIdentifier reverseIds = new DoubleIndexedIdentifier(ids);
+        return new DoubleIndexedIdentifier(ids);
+    }
+
+    private void assertConditions(Collection<Alignments.AlignmentEntry> collection, String expected) throws IOException {
+        final StringWriter output = new StringWriter();
+        final ExportSplicingEvents processor = new ExportSplicingEvents(output);
 
-        processor.process(collection, reverseIds);
+        processor.process(collection, newReverseIds());
         assertEquals(expected, output.getBuffer().toString());
     }
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.algorithmic.data.Annotation;
+import edu.cornell.med.icb.goby.algorithmic.data.Segment;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAnnotationOverlapCount {
+    @Test
+    public void testCounts() {
+        final Annotation annotation = new Annotation("gene-1", "chr1", "+");
+        annotation.addSegment(new Segment(2, 6, "exon-1", "+"));
+        annotation.addSegment(new Segment(11, 16, "exon-2", "+"));
+        annotation.sortSegments();
+        final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        annotations.add(annotation);
+
+        final AnnotationOverlapCount counter = new AnnotationOverlapCount(annotations);
+        counter.startPopulating();
+        counter.populate(3, 8);
+        counter.populate(3, 7);
+        counter.populate(5, 12);
+        counter.populate(8, 12);
+        counter.populate(9, 10);
+        counter.populate(15, 18);
+        counter.sortReads();
+
+        assertEquals(6, counter.countReadsPartiallyOverlappingWithInterval(2, 16), 0);
+        assertEquals(5, counter.countReadsStriclyWithinInterval(2, 16), 0);
+        assertEquals(3, counter.countReadsPartiallyOverlappingWithInterval(2, 6), 0);
+        assertEquals(0, counter.countReadsStriclyWithinInterval(2, 6), 0);
+        // intron:
+        assertEquals(5, counter.countReadsPartiallyOverlappingWithInterval(7, 10), 0);
+        assertEquals(1, counter.countReadsStriclyWithinInterval(7, 10), 0);
+        assertEquals(3, counter.countReadsPartiallyOverlappingWithInterval(11, 16), 0);
+        assertEquals(0, counter.countReadsStriclyWithinInterval(11, 16), 0);
+        assertEquals(5, counter.geneExpressionCount(annotation), 0);
+    }
+
+    @Test
+    public void testSameAsAnnotationCount() {
+        final Random random = new Random(37);
+        final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        for (int i = 0; i < 50; i++) {
+            final Annotation annotation = new Annotation("gene-" + i, "chr1", "+");
+            int position = random.nextInt(10000);
+            final int numExons = 1 + random.nextInt(4);
+            for (int j = 0; j < numExons; j++) {
+                final int start = position + random.nextInt(100);
+                final int end = start + random.nextInt(300);
+                annotation.addSegment(new Segment(start, end, "exon-" + i + "-" + j, "+"));
+                position = end + random.nextInt(200);
+            }
+            annotation.sortSegments();
+            annotations.add(annotation);
+        }
+        // distinct read starts:
+        final int[] starts = new int[2000];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = i * 6 + random.nextInt(6);
+        }
+        Arrays.sort(starts);
+
+        final AnnotationCount annotationCount = new AnnotationCount();
+        annotationCount.startPopulating();
+        final AnnotationOverlapCount counter = new AnnotationOverlapCount(annotations);
+        counter.startPopulating();
+        for (final int start : starts) {
+            final int end = start + random.nextInt(100);
+            annotationCount.populate(start, end);
+            counter.populate(start, end);
+        }
+        annotationCount.sortReads();
+        annotationCount.accumulate();
+        annotationCount.baseCount();
+        counter.sortReads();
+        counter.accumulate();
+        counter.baseCount();
+
+        for (final Annotation annotation : annotations) {
+            assertSameCounts(annotationCount, counter, annotation.getStart(), annotation.getEnd());
+            final ObjectList<Segment> segments = annotation.getSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                assertSameCounts(annotationCount, counter, segments.get(i).getStart(), segments.get(i).getEnd());
+                if (i < segments.size() - 1) {
+                    assertSameCounts(annotationCount, counter, segments.get(i).getEnd() + 1,
+                            segments.get(i + 1).getStart() - 1);
+                }
+            }
+            assertEquals(annotationCount.geneExpressionCount(annotation), counter.geneExpressionCount(annotation), 0);
+        }
+    }
+
+    @Test
+    public void testDuplicateStarts() {
+        final Random random = new Random(41);
+        final ObjectList<Annotation> annotations = new ObjectArrayList<Annotation>();
+        final Annotation annotation = new Annotation("gene-1", "chr1", "+");
+        annotation.addSegment(new Segment(10, 40, "exon-1", "+"));
+        annotation.addSegment(new Segment(60, 90, "exon-2", "+"));
+        annotation.sortSegments();
+        annotations.add(annotation);
+        final int[][] intervals = {{10, 90}, {10, 40}, {41, 59}, {60, 90}};
+
+        // many reads start at the same positions, including interval starts:
+        final int[] starts = new int[300];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = random.nextInt(10) * 10;
+        }
+        Arrays.sort(starts);
+        final int[] ends = new int[starts.length];
+        final AnnotationCount annotationCount = new AnnotationCount();
+        annotationCount.startPopulating();
+        final AnnotationOverlapCount counter = new AnnotationOverlapCount(annotations);
+        counter.startPopulating();
+        for (int i = 0; i < starts.length; i++) {
+            ends[i] = starts[i] + random.nextInt(30);
+            annotationCount.populate(starts[i], ends[i]);
+            counter.populate(starts[i], ends[i]);
+        }
+        annotationCount.sortReads();
+        annotationCount.accumulate();
+        annotationCount.baseCount();
+        counter.sortReads();
+
+        for (final int[] interval : intervals) {
+            final int start = interval[0];
+            final int end = interval[1];
+            int overlapping = 0;
+            int within = 0;
+            long coveredBases = 0;
+            for (int i = 0; i < starts.length; i++) {
+                if (starts[i] <= end && ends[i] >= start) {
+                    overlapping++;
+                    coveredBases += Math.min(end, ends[i]) - Math.max(start, starts[i]) + 1;
+                }
+                if (starts[i] >= start && ends[i] <= end) {
+                    within++;
+                }
+            }
+            assertEquals(overlapping, counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+            assertEquals(within, counter.countReadsStriclyWithinInterval(start, end), 0);
+            assertEquals((float) coveredBases / (end - start + 1), counter.averageReadsPerPosition(start, end), 1e-4);
+            assertEquals(annotationCount.countReadsPartiallyOverlappingWithInterval(start, end),
+                    counter.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+            assertEquals(annotationCount.averageReadsPerPosition(start, end),
+                    counter.averageReadsPerPosition(start, end), 1e-4);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedReads() {
+        final AnnotationOverlapCount counter = new AnnotationOverlapCount(new ObjectArrayList<Annotation>());
+        counter.populate(10, 20);
+        counter.populate(5, 20);
+    }
+
+    private static void assertSameCounts(final AnnotationCount expected, final AnnotationOverlapCount actual,
+                                         final int start, final int end) {
+        assertEquals(expected.countReadsPartiallyOverlappingWithInterval(start, end),
+                actual.countReadsPartiallyOverlappingWithInterval(start, end), 0);
+        assertEquals(expected.countReadsStriclyWithinInterval(start, end),
+                actual.countReadsStriclyWithinInterval(start, end), 0);
+        assertEquals(expected.averageReadsPerPosition(start, end), actual.averageReadsPerPosition(start, end), 1e-4);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.algorithmic.algorithm;
+
+import edu.cornell.med.icb.goby.counts.CountsReader;
+import edu.cornell.med.icb.goby.counts.CountsWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestSweepLineCount {
+    @Test
+    public void testCounts() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final SweepLineCount sweep = new SweepLineCount(new CountsWriter(output));
+        sweep.populate(3, 3 + 5);
+        sweep.populate(3, 3 + 4);
+        sweep.populate(5, 5 + 5);
+        sweep.populate(8, 8 + 4);
+        sweep.close();
+
+        final CountsReader countsReader = new CountsReader(new ByteArrayInputStream(output.toByteArray()));
+        final int[] exp = {0, 0, 0, 2, 2, 3, 3, 3, 3, 2, 2, 1, 1};
+        int i = 0;
+        while (countsReader.hasNextPosition()) {
+            assertEquals(exp[i], countsReader.nextCountAtPosition());
+            i++;
+        }
+        assertEquals(exp.length, i);
+        countsReader.close();
+    }
+
+    @Test
+    public void testSameAsComputeCount() throws IOException {
+        final Random random = new Random(37);
+        final int[] starts = new int[2000];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = 1 + random.nextInt(100000);
+        }
+        Arrays.sort(starts);
+        final int[] lengths = new int[starts.length];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = random.nextInt(200);
+        }
+
+        final ComputeCount computeCount = new ComputeCount();
+        computeCount.startPopulating();
+        final ByteArrayOutputStream sweepOutput = new ByteArrayOutputStream();
+        final SweepLineCount sweep = new SweepLineCount(new CountsWriter(sweepOutput));
+        for (int i = 0; i < starts.length; i++) {
+            computeCount.populate(starts[i], starts[i] + lengths[i]);
+            sweep.populate(starts[i], starts[i] + lengths[i]);
+        }
+        sweep.close();
+        computeCount.accumulate();
+        final ByteArrayOutputStream computeCountOutput = new ByteArrayOutputStream();
+        computeCount.baseCount(new CountsWriter(computeCountOutput));
+
+        assertArrayEquals(computeCountOutput.toByteArray(), sweepOutput.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsorted() throws IOException {
+        final SweepLineCount sweep = new SweepLineCount(new CountsWriter(new ByteArrayOutputStream()));
+        sweep.populate(10, 20);
+        sweep.populate(5, 20);
+    }
+}
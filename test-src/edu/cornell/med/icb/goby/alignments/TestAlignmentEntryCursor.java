@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that entries decoded to columns match the entries decoded to protobuf messages.
+ */
+public class TestAlignmentEntryCursor {
+    private static final String BASENAME = "test-data/alignment-hybrid-codec/EJOYQAZ-small-hybrid";
+
+    @Test
+    public void testSameAsEntries() throws IOException {
+        final AlignmentReaderImpl entries = new AlignmentReaderImpl(BASENAME);
+        final AlignmentReaderImpl columns = new AlignmentReaderImpl(BASENAME);
+        final AlignmentEntryCursor cursor = new AlignmentEntryCursor();
+        final MutableString bases = new MutableString();
+        int numEntries = 0;
+        while (columns.readNextChunk(cursor)) {
+            while (cursor.next()) {
+                assertTrue(entries.hasNext());
+                final Alignments.AlignmentEntry entry = entries.next();
+                assertEquals(entry.getQueryIndex(), cursor.getQueryIndex());
+                assertEquals(entry.getTargetIndex(), cursor.getTargetIndex());
+                assertEquals(entry.getPosition(), cursor.getPosition());
+                assertEquals(entry.getMatchingReverseStrand(), cursor.getMatchingReverseStrand());
+                assertEquals(entry.hasQueryLength() ? entry.getQueryLength() : AlignmentEntryCursor.MISSING_VALUE,
+                        cursor.getQueryLength());
+                assertEquals(entry.hasQueryAlignedLength() ? entry.getQueryAlignedLength() : AlignmentEntryCursor.MISSING_VALUE,
+                        cursor.getQueryAlignedLength());
+                assertEquals(entry.hasTargetAlignedLength() ? entry.getTargetAlignedLength() : AlignmentEntryCursor.MISSING_VALUE,
+                        cursor.getTargetAlignedLength());
+                assertEquals(entry.hasMappingQuality() ? entry.getMappingQuality() : AlignmentEntryCursor.MISSING_VALUE,
+                        cursor.getMappingQuality());
+                assertEquals(entry.hasScore(), cursor.hasScore());
+                if (entry.hasScore()) {
+                    assertEquals(entry.getScore(), cursor.getScore(), 0);
+                }
+                assertEquals(entry.getReadQualityScores().size(), cursor.getReadQualityScoresLength());
+                assertEquals(entry.getSequenceVariationsCount(), cursor.getNumberOfSequenceVariations());
+                for (int varIndex = 0; varIndex < entry.getSequenceVariationsCount(); varIndex++) {
+                    final Alignments.SequenceVariation var = entry.getSequenceVariations(varIndex);
+                    assertEquals(var.getPosition(), cursor.getVariationPosition(varIndex));
+                    assertEquals(var.getReadIndex(), cursor.getVariationReadIndex(varIndex));
+                    cursor.getVariationFrom(varIndex, bases);
+                    assertEquals(var.getFrom(), bases.toString());
+                    cursor.getVariationTo(varIndex, bases);
+                    assertEquals(var.getTo(), bases.toString());
+                    assertEquals(var.getToQuality().size(), cursor.getVariationToQualityLength(varIndex));
+                    for (int i = 0; i < var.getToQuality().size(); i++) {
+                        assertEquals(var.getToQuality().byteAt(i), cursor.getVariationToQuality(varIndex, i));
+                    }
+                }
+                numEntries++;
+            }
+        }
+        assertFalse(entries.hasNext());
+        assertTrue(numEntries > 0);
+        entries.close();
+        columns.close();
+    }
+
+    @Test
+    public void testScorePresence() {
+        // a NaN whose bits equal the missing value marker must still be a score:
+        final float missingBitsScore = Float.intBitsToFloat(AlignmentEntryCursor.MISSING_VALUE);
+        final Alignments.AlignmentCollection.Builder collection = Alignments.AlignmentCollection.newBuilder();
+        collection.addAlignmentEntries(newEntry(0).setScore(missingBitsScore));
+        collection.addAlignmentEntries(newEntry(1));
+        collection.addAlignmentEntries(newEntry(2).setScore(12.5f));
+        final AlignmentEntryCursor cursor = new AlignmentEntryCursor();
+        cursor.fill(collection.build());
+        assertTrue(cursor.next());
+        assertTrue(cursor.hasScore());
+        assertTrue(Float.isNaN(cursor.getScore()));
+        assertTrue(cursor.next());
+        assertFalse(cursor.hasScore());
+        assertTrue(cursor.next());
+        assertTrue(cursor.hasScore());
+        assertEquals(12.5f, cursor.getScore(), 0);
+
+        // storage is reused, presence must not leak from a previous chunk:
+        final Alignments.AlignmentCollection.Builder next = Alignments.AlignmentCollection.newBuilder();
+        next.addAlignmentEntries(newEntry(3));
+        cursor.fill(next.build());
+        assertTrue(cursor.next());
+        assertFalse(cursor.hasScore());
+    }
+
+    private static Alignments.AlignmentEntry.Builder newEntry(final int queryIndex) {
+        return Alignments.AlignmentEntry.newBuilder().setQueryIndex(queryIndex).setTargetIndex(0)
+                .setPosition(queryIndex).setMatchingReverseStrand(false);
+    }
+}
@@ -171,6 +171,43 @@ public class TestConcatSortedAlignmentReader {
     }
 
 
+    @Test
+    public void testSortConcatPrefetch() throws IOException {
+        final ConcatSortedAlignmentReader concat = new ConcatSortedAlignmentReader(basename1, basename2, basename3);
+        concat.setPrefetchBatches(2);
+        concat.setAdjustSampleIndices(true);
+        final IntList sortedPositions = new IntArrayList();
+        final int[] expectedPositions = {1, 2, 3, 5, 6, 7, 8, 9, 10, 10, 12, 99};
+        for (final Alignments.AlignmentEntry entry : concat) {
+            sortedPositions.add(entry.getPosition());
+            assertEquals(concat.getReaderIndex(), entry.getSampleIndex());
+        }
+        concat.close();
+        assertEquals(expectedPositions.length, sortedPositions.size());
+        for (int i = 0; i < expectedPositions.length; i++) {
+            assertEquals(expectedPositions[i], sortedPositions.getInt(i));
+        }
+    }
+
+    @Test
+    public void testSkipToPrefetchWithGenomicRange() throws IOException {
+        final ConcatSortedAlignmentReader concat = new ConcatSortedAlignmentReader(basename1, basename2, basename3);
+        concat.setPrefetchBatches(1);
+        concat.setGenomicRange(new GenomicRange(1, 3, 1, 10));
+        final IntList sortedPositions = new IntArrayList();
+        final int[] expectedPositions = {5, 8, 9, 10, 10};
+        Alignments.AlignmentEntry entry = concat.next();
+        sortedPositions.add(entry.getPosition());
+        while ((entry = concat.skipTo(1, 8)) != null) {
+            sortedPositions.add(entry.getPosition());
+        }
+        concat.close();
+        assertEquals(expectedPositions.length, sortedPositions.size());
+        for (int i = 0; i < expectedPositions.length; i++) {
+            assertEquals(expectedPositions[i], sortedPositions.getInt(i));
+        }
+    }
+
     @Test
        public void testSortConcatWithReadGroupOverride() throws IOException {
         final ReadGroupHelper readGroupHelper=new ReadGroupHelper();
@@ -138,6 +138,118 @@ public class TestIterateSortedAlignment {
         }
     }
 
+    @Test
+    public void testIterateSortedParallel() throws IOException {
+        final String basename = "align-iterate-parallel";
+        final String basenamePath = FilenameUtils.concat(BASE_TEST_DIR, basename);
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(basenamePath);
+        writer.setNumAlignmentEntriesPerChunk(1);
+
+        final int numTargets = 3;
+        final int[] targetLengths = new int[numTargets];
+
+        for (int referenceIndex = 0; referenceIndex < numTargets; referenceIndex++) {
+            targetLengths[referenceIndex] = 10000;
+        }
+        writer.setTargetLengths(targetLengths);
+        writer.setSorted(true);
+        int queryIndex = 0;
+        for (int referenceIndex = 0; referenceIndex < numTargets; referenceIndex++) {
+            for (int position = 1; position < 2000; position += 7) {
+                writer.appendEntry(prepareAlignmentEntry(queryIndex++, referenceIndex, position, 30, false,
+                        new int[0]).build());
+            }
+        }
+        writer.close();
+
+        final Int2IntMap[] sequential = {new Int2IntOpenHashMap(), new Int2IntOpenHashMap(), new Int2IntOpenHashMap()};
+        final IterateSortedAlignmentsListImpl sequentialIterator = new IterateSortedAlignmentsListImpl() {
+            @Override
+            public void processPositions(int referenceIndex, int intermediatePosition, DiscoverVariantPositionData positionBaseInfos) {
+                sequential[referenceIndex].put(intermediatePosition, positionBaseInfos.size());
+            }
+        };
+        sequentialIterator.iterate(basenamePath);
+
+        final Int2IntMap[] parallel = {new Int2IntOpenHashMap(), new Int2IntOpenHashMap(), new Int2IntOpenHashMap()};
+        final int[] previous = {-1, -1};
+        final IterateSortedAlignmentsListImpl parallelIterator = new IterateSortedAlignmentsListImpl() {
+            @Override
+            public void processPositions(int referenceIndex, int intermediatePosition, DiscoverVariantPositionData positionBaseInfos) {
+                // positions must be processed in genomic order:
+                assertTrue(referenceIndex > previous[0] ||
+                        referenceIndex == previous[0] && intermediatePosition > previous[1]);
+                previous[0] = referenceIndex;
+                previous[1] = intermediatePosition;
+                parallel[referenceIndex].put(intermediatePosition, positionBaseInfos.size());
+            }
+
+            @Override
+            protected IterateSortedAlignments<DiscoverVariantPositionData> createWindowIterator() {
+                return new IterateSortedAlignmentsListImpl() {
+                    @Override
+                    public void processPositions(int referenceIndex, int intermediatePosition, DiscoverVariantPositionData positionBaseInfos) {
+                    }
+                };
+            }
+        };
+        parallelIterator.setNumThreads(3);
+        parallelIterator.setStartFlapLength(100);
+        parallelIterator.iterate(basenamePath);
+
+        for (int referenceIndex = 0; referenceIndex < numTargets; referenceIndex++) {
+            assertEquals(sequential[referenceIndex], parallel[referenceIndex]);
+        }
+    }
+
+    @Test
+    public void testRecyclePositions() throws IOException {
+        final String basename = "align-iterate-recycle";
+        final String basenamePath = FilenameUtils.concat(BASE_TEST_DIR, basename);
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(basenamePath);
+        writer.setTargetLengths(new int[]{10000});
+        writer.setSorted(true);
+        for (int queryIndex = 0; queryIndex < 200; queryIndex++) {
+            writer.appendEntry(prepareAlignmentEntry(queryIndex, 0, 1 + queryIndex * 5, 30, false,
+                    new int[]{3}).build());
+        }
+        writer.close();
+
+        final Int2IntMap expected = new Int2IntOpenHashMap();
+        new IterateSortedAlignmentsListImpl() {
+            @Override
+            public void processPositions(int referenceIndex, int intermediatePosition, DiscoverVariantPositionData positionBaseInfos) {
+                expected.put(intermediatePosition, positionBaseInfos.size() * 100 + countVariants(positionBaseInfos));
+            }
+        }.iterate(basenamePath);
+
+        final Int2IntMap recycled = new Int2IntOpenHashMap();
+        final IterateSortedAlignmentsListImpl iterator = new IterateSortedAlignmentsListImpl() {
+            {
+                setRecyclePositions(true);
+            }
+
+            @Override
+            public void processPositions(int referenceIndex, int intermediatePosition, DiscoverVariantPositionData positionBaseInfos) {
+                assertEquals(intermediatePosition, positionBaseInfos.getZeroBasedPosition());
+                recycled.put(intermediatePosition, positionBaseInfos.size() * 100 + countVariants(positionBaseInfos));
+            }
+        };
+        iterator.iterate(basenamePath);
+        assertEquals(expected, recycled);
+        LOG.info(iterator.getAllocationStatistics());
+    }
+
+    private static int countVariants(final DiscoverVariantPositionData positionBaseInfos) {
+        int count = 0;
+        for (final PositionBaseInfo info : positionBaseInfos) {
+            count += info.matchesReference ? 0 : 1;
+        }
+        return count;
+    }
+
     @Test
     public void testIterateSortedTwoMutations() throws IOException {
 
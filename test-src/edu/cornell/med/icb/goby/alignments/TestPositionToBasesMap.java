@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPositionToBasesMap {
+
+    @Test
+    public void testSlidingWindow() {
+        final PositionToBasesMap<String> map = new PositionToBasesMap<String>();
+        // slide a window of 100 positions far past the initial capacity:
+        for (int position = 0; position < 10000; position++) {
+            map.put(position, Integer.toString(position));
+            if (position >= 100) {
+                assertEquals(Integer.toString(position - 100), map.remove(map.firstPosition()));
+            }
+        }
+        assertEquals(100, map.size());
+        assertEquals(9900, map.firstPosition());
+        assertEquals(9999, map.lastPosition());
+        assertFalse(map.containsKey(9899));
+        assertEquals("9950", map.get(9950));
+    }
+
+    @Test
+    public void testGrowAndIgnored() {
+        final PositionToBasesMap<String> map = new PositionToBasesMap<String>();
+        map.put(5000, "a");
+        // a long deletion spans more positions than the initial capacity:
+        map.put(1, "b");
+        map.put(20000, "c");
+        map.markIgnoredPosition(5000);
+        assertEquals(3, map.size());
+        assertEquals("b", map.get(1));
+        assertEquals("a", map.get(5000));
+        assertTrue(map.isIgnoredPosition(5000));
+        assertFalse(map.isIgnoredPosition(1));
+        assertNull(map.get(1 + 1024));
+        assertArrayEquals(new int[]{1, 5000, 20000}, map.keySet().toIntArray());
+
+        map.remove(5000);
+        assertFalse(map.isIgnoredPosition(5000));
+        map.remove(20000);
+        assertEquals(1, map.lastPosition());
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+}
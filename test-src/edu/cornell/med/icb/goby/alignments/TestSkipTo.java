@@ -125,6 +125,61 @@ public class TestSkipTo {
 
     }
 
+    @Test
+    public void testFewSkipsReadAhead() throws IOException {
+        final String basename = "align-skip-to-read-ahead";
+        final AlignmentWriterImpl writer =
+                new AlignmentWriterImpl(FilenameUtils.concat(BASE_TEST_DIR, basename));
+        writer.setNumAlignmentEntriesPerChunk(numEntriesPerChunk);
+
+        final int numTargets = 3;
+        final int[] targetLengths = new int[numTargets];
+
+        for (int referenceIndex = 0; referenceIndex < numTargets; referenceIndex++) {
+            targetLengths[referenceIndex] = 1000;
+        }
+        writer.setTargetLengths(targetLengths);
+        // we write this alignment sorted:
+
+        writer.setSorted(true);
+        for (int position = 10; position < 30; position++) {
+            writer.setAlignmentEntry(0, 1, position, 30, false, constantQueryLength);
+            writer.appendEntry();
+        }
+        writer.setAlignmentEntry(0, 2, 123, 30, false, constantQueryLength);
+        writer.appendEntry();
+        writer.setAlignmentEntry(0, 2, 300, 30, false, constantQueryLength);
+        writer.appendEntry();
+        writer.close();
+
+        final AlignmentReaderImpl reader =
+                new AlignmentReaderImpl(FilenameUtils.concat(BASE_TEST_DIR, basename));
+        reader.setReadAheadChunks(3);
+        final Alignments.AlignmentEntry a = reader.skipTo(0, 0);
+        assertNotNull(a);
+        assertEquals(1, a.getTargetIndex());
+        assertEquals(10, a.getPosition());
+        final Alignments.AlignmentEntry b = reader.next();
+        assertEquals(11, b.getPosition());
+
+        // skip within the chunks already decoded ahead:
+        final Alignments.AlignmentEntry c = reader.skipTo(1, 15);
+        assertEquals(1, c.getTargetIndex());
+        assertEquals(15, c.getPosition());
+
+        // go back, past the chunks decoded ahead:
+        reader.reposition(1, 12);
+        final Alignments.AlignmentEntry d = reader.skipTo(1, 12);
+        assertEquals(1, d.getTargetIndex());
+        assertEquals(12, d.getPosition());
+
+        final Alignments.AlignmentEntry e = reader.skipTo(2, 300);
+        assertEquals(2, e.getTargetIndex());
+        assertEquals(300, e.getPosition());
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
     @Test
     public void testFewSkips1_WithConcat() throws IOException {
         final String basename = "align-skip-to-1-concat";
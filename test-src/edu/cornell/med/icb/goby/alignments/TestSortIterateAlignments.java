@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.alignments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSortIterateAlignments {
+
+    @Test
+    public void testSortKeyOrder() {
+        assertTrue(SortIterateAlignments.sortKey(0, -1) < SortIterateAlignments.sortKey(0, 0));
+        assertTrue(SortIterateAlignments.sortKey(0, Integer.MAX_VALUE) < SortIterateAlignments.sortKey(1, Integer.MIN_VALUE));
+        assertTrue(SortIterateAlignments.sortKey(2, 10) < SortIterateAlignments.sortKey(2, 11));
+    }
+
+    @Test
+    public void testSortLikeStableComparatorSort() {
+        final SortIterateAlignments sorter = new SortIterateAlignments();
+        final int[] targets = {2, 0, 1, 0, 2, 0, 1, 0};
+        final int[] positions = {5, 100, 3, -2, 5, 100, 0, 7};
+        for (int i = 0; i < targets.length; i++) {
+            sorter.processAlignmentEntry(null, Alignments.AlignmentEntry.newBuilder().setQueryIndex(i)
+                    .setTargetIndex(targets[i]).setPosition(positions[i])
+                    .setMatchingReverseStrand(false).setQueryLength(30).build());
+        }
+        final List<Alignments.AlignmentEntry> expected = new ArrayList<Alignments.AlignmentEntry>(sorter.entries);
+        Collections.sort(expected, new AlignmentPositionComparator());
+
+        sorter.sort();
+        assertEquals(expected, sorter.entries);
+    }
+}
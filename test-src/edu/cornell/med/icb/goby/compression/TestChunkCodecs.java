@@ -18,12 +18,16 @@
 
 package edu.cornell.med.icb.goby.compression;
 
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.reads.ReadProtobuffCollectionHandler;
+import edu.cornell.med.icb.goby.reads.Reads;
 import org.junit.Test;
 
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -57,6 +61,23 @@ public class TestChunkCodecs {
 
     }
 
+    @Test
+    public void testFastGZipDecodedByGZip() throws IOException {
+        final Reads.ReadCollection.Builder collection = Reads.ReadCollection.newBuilder();
+        for (int readIndex = 0; readIndex < 100; readIndex++) {
+            collection.addReads(Reads.ReadEntry.newBuilder().setReadIndex(readIndex).setReadLength(4)
+                    .setSequence(ByteString.copyFromUtf8("ACTG")));
+        }
+        final FastGZipChunkCodec fastCodec = new FastGZipChunkCodec();
+        assertEquals(GZipChunkCodec.REGISTRATION_CODE, fastCodec.registrationCode());
+        final byte[] compressed = fastCodec.encode(collection.build()).toByteArray();
+
+        final GZipChunkCodec chunkCodec = new GZipChunkCodec();
+        chunkCodec.setHandler(new ReadProtobuffCollectionHandler());
+        final Reads.ReadCollection decoded = (Reads.ReadCollection) chunkCodec.decode(compressed);
+        assertEquals(collection.build(), decoded);
+    }
+
     @Test
     public void testValidateBZip2() throws IOException {
 
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.reads.ReadProtobuffCollectionHandler;
+import edu.cornell.med.icb.goby.reads.Reads;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Read chunks through memory-mapped segments.
+ */
+public class TestMappedMessageChunksReader {
+    private static final String BASE_TEST_DIR = "test-results/mapped-chunks";
+    private static final String FILENAME = BASE_TEST_DIR + "/reads.compact-reads";
+    private static final long[] chunkOffsets = new long[10];
+
+    @BeforeClass
+    public static void writeChunks() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+        final FileOutputStream output = new FileOutputStream(FILENAME);
+        final MessageChunksWriter writer = new MessageChunksWriter(output);
+        writer.setParser(new ReadProtobuffCollectionHandler());
+        writer.setNumEntriesPerChunk(10);
+        final Reads.ReadCollection.Builder collectionBuilder = Reads.ReadCollection.newBuilder();
+        for (int readIndex = 0; readIndex < 100; readIndex++) {
+            final Reads.ReadEntry.Builder entry = Reads.ReadEntry.newBuilder();
+            entry.setReadIndex(readIndex);
+            entry.setReadLength(4);
+            entry.setSequence(ByteString.copyFromUtf8("ACTG"));
+            collectionBuilder.addReads(entry.build());
+            writer.writeAsNeeded(collectionBuilder);
+        }
+        writer.close(collectionBuilder);
+        output.close();
+        for (int chunkNumber = 0; chunkNumber < chunkOffsets.length; chunkNumber++) {
+            chunkOffsets[chunkNumber] = writer.getChunkStartOffset(chunkNumber);
+        }
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testReadAllSmallSegments() throws IOException {
+        // segments much smaller than a chunk force chunks to span segments:
+        final MappedMessageChunksReader reader = new MappedMessageChunksReader(FILENAME, 0, Long.MAX_VALUE, 64);
+        reader.setHandler(new ReadProtobuffCollectionHandler());
+        int expectedReadIndex = 0;
+        while (reader.hasNext(null, 0)) {
+            // decode the mapped chunk in place:
+            final ByteBufferChunkCodec codec = (ByteBufferChunkCodec) reader.getChunkCodec();
+            final Reads.ReadCollection collection =
+                    (Reads.ReadCollection) codec.decode(reader.getCompressedBuffer());
+            for (final Reads.ReadEntry entry : collection.getReadsList()) {
+                assertEquals(expectedReadIndex++, entry.getReadIndex());
+            }
+        }
+        assertEquals(100, expectedReadIndex);
+        reader.close();
+    }
+
+    @Test
+    public void testSeekAndSlice() throws IOException {
+        final MappedMessageChunksReader reader = new MappedMessageChunksReader(FILENAME, 0, Long.MAX_VALUE);
+        reader.setHandler(new ReadProtobuffCollectionHandler());
+        reader.seek(chunkOffsets[5]);
+        assertTrue(reader.hasNext(null, 0));
+        assertEquals(50, firstReadIndex(reader));
+        reader.close();
+
+        // start in the middle of chunk 2, end in the middle of chunk 3:
+        final MappedMessageChunksReader slice = new MappedMessageChunksReader(FILENAME,
+                chunkOffsets[2] + 3, chunkOffsets[3] + 3);
+        slice.setHandler(new ReadProtobuffCollectionHandler());
+        assertTrue(slice.hasNext(null, 0));
+        assertEquals(30, firstReadIndex(slice));
+        assertFalse(slice.hasNext(null, 0));
+        slice.close();
+    }
+
+    @Test
+    public void testSeekInsideChunk() throws IOException {
+        final MappedMessageChunksReader reader = new MappedMessageChunksReader(FILENAME, 0, Long.MAX_VALUE);
+        reader.setHandler(new ReadProtobuffCollectionHandler());
+        // an offset that is not the start of a chunk is not read as one, the next valid chunk is read instead:
+        reader.seek(chunkOffsets[5] + 1);
+        assertEquals(chunkOffsets[6], reader.position());
+        assertTrue(reader.hasNext(null, 0));
+        assertEquals(60, firstReadIndex(reader));
+        reader.close();
+    }
+
+    private int firstReadIndex(final MappedMessageChunksReader reader) throws IOException {
+        final Reads.ReadCollection collection =
+                (Reads.ReadCollection) reader.getChunkCodec().decode(reader.getCompressedBytes());
+        return collection.getReads(0).getReadIndex();
+    }
+}
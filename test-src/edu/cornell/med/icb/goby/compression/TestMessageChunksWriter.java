@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2009-2012 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.compression;
+
+import com.google.protobuf.ByteString;
+import edu.cornell.med.icb.goby.alignments.AlignmentCollectionHandler;
+import edu.cornell.med.icb.goby.alignments.AlignmentReaderImpl;
+import edu.cornell.med.icb.goby.alignments.Alignments;
+import edu.cornell.med.icb.goby.reads.ReadProtobuffCollectionHandler;
+import edu.cornell.med.icb.goby.reads.Reads;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that chunks compressed in parallel are written exactly as chunks compressed sequentially.
+ */
+public class TestMessageChunksWriter {
+
+    @Test
+    public void testParallelCompressionSameBytes() throws IOException {
+        final long[] sequentialOffsets = new long[10];
+        final long[] parallelOffsets = new long[10];
+        final byte[] sequential = write(0, sequentialOffsets);
+        final byte[] parallel = write(4, parallelOffsets);
+        assertArrayEquals(sequential, parallel);
+        assertArrayEquals(sequentialOffsets, parallelOffsets);
+    }
+
+    @Test
+    public void testParallelAlignmentCompressionSameBytes() throws IOException {
+        final byte[] sequential = writeAlignment(0);
+        final byte[] parallel = writeAlignment(4);
+        assertArrayEquals(sequential, parallel);
+    }
+
+    private byte[] writeAlignment(final int numThreads) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final MessageChunksWriter writer = new MessageChunksWriter(output);
+        writer.setCodec(new HybridChunkCodec1());
+        writer.setParser(new AlignmentCollectionHandler());
+        writer.setNumEntriesPerChunk(50);
+        writer.setNumCompressionThreads(numThreads);
+        final Alignments.AlignmentCollection.Builder collectionBuilder = Alignments.AlignmentCollection.newBuilder();
+        final AlignmentReaderImpl reader = new AlignmentReaderImpl("test-data/alignment-hybrid-codec/EJOYQAZ-small-hybrid");
+        try {
+            for (final Alignments.AlignmentEntry entry : reader) {
+                collectionBuilder.addAlignmentEntries(entry);
+                writer.writeAsNeeded(collectionBuilder, 1);
+            }
+        } finally {
+            reader.close();
+        }
+        writer.close(collectionBuilder);
+        assertTrue(writer.getCurrentChunkNumber() > 1);
+        return output.toByteArray();
+    }
+
+    private byte[] write(final int numThreads, final long[] chunkOffsets) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final MessageChunksWriter writer = new MessageChunksWriter(output);
+        writer.setParser(new ReadProtobuffCollectionHandler());
+        writer.setNumEntriesPerChunk(100);
+        writer.setNumCompressionThreads(numThreads);
+        final Reads.ReadCollection.Builder collectionBuilder = Reads.ReadCollection.newBuilder();
+        final byte[] sequence = "ACTGACTGACTGNNACTG".getBytes();
+        for (int readIndex = 0; readIndex < 1000; readIndex++) {
+            sequence[readIndex % sequence.length] = (byte) "ACGT".charAt(readIndex % 4);
+            final Reads.ReadEntry.Builder entry = Reads.ReadEntry.newBuilder();
+            entry.setReadIndex(readIndex);
+            entry.setReadLength(sequence.length);
+            entry.setSequence(ByteString.copyFrom(sequence));
+            collectionBuilder.addReads(entry.build());
+            writer.writeAsNeeded(collectionBuilder);
+        }
+        writer.close(collectionBuilder);
+        assertEquals(9, writer.getCurrentChunkNumber());
+        for (int chunkNumber = 0; chunkNumber < chunkOffsets.length; chunkNumber++) {
+            chunkOffsets[chunkNumber] = writer.getChunkStartOffset(chunkNumber);
+        }
+        return output.toByteArray();
+    }
+}
@@ -160,4 +160,66 @@ public class TestCountsArchive {
         assertNotNull(reader.getCountReader("0"));
         assertNotNull(reader.getCountReader("1"));
     }
+
+    @Test
+    public void testInterleavedWriters() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "104.bin");
+        final CountsArchiveWriter writer = new CountsArchiveWriter(basename);
+        // writers may be populated concurrently and returned in any order:
+        final CountsWriterI cw0 = writer.newCountWriter(0, "count-0");
+        final CountsWriterI cw1 = writer.newCountWriter(1, "count-1");
+        cw0.appendCount(0, 100);
+        cw1.appendCount(0, 200);
+        cw0.appendCount(5, 10);
+        cw1.appendCount(7, 20);
+        writer.returnWriter(cw1);
+        writer.returnWriter(cw0);
+        writer.close();
+
+        final CountsArchiveReader reader = new CountsArchiveReader(basename);
+        assertEquals(2, reader.getNumberOfIndices());
+        CountsReader cr = reader.getCountReader("count-0");
+        cr.nextTransition();
+        cr.nextTransition();
+        assertEquals(5, cr.getCount());
+        assertEquals(100, cr.getPosition());
+        cr.close();
+        cr = reader.getCountReader("count-1");
+        cr.nextTransition();
+        cr.nextTransition();
+        assertEquals(7, cr.getCount());
+        assertEquals(200, cr.getPosition());
+        cr.close();
+    }
+
+    @Test
+    public void testReadersShareSequence() throws IOException {
+        final String basename = FilenameUtils.concat(BASE_TEST_DIR, "105.bin");
+        final CountsArchiveWriter writer = new CountsArchiveWriter(basename);
+        final CountsWriterI cw = writer.newCountWriter(0, "count-0");
+        cw.appendCount(0, 100);
+        cw.appendCount(5, 10);
+        cw.appendCount(7, 20);
+        cw.appendCount(0, 30);
+        writer.returnWriter(cw);
+        writer.close();
+
+        final CountsArchiveReader reader = new CountsArchiveReader(basename);
+        final CountsReader first = reader.getCountReader("count-0");
+        final CountsReader second = reader.getCountReader("count-0");
+        // the index is loaded once and shared by both readers:
+        assertSame(first.positions, second.positions);
+
+        while (first.hasNextTransition()) {
+            first.nextTransition();
+        }
+        // the second reader iterates independently of the first:
+        second.nextTransition();
+        second.nextTransition();
+        assertEquals(5, second.getCount());
+        assertEquals(100, second.getPosition());
+        first.close();
+        second.close();
+        reader.close();
+    }
 }
@@ -167,6 +167,33 @@ public class TestCountsReader {
         assertFalse(reader.hasNextTransition());
     }
 
+    @Test
+    public void testEmbeddedIndex() throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream(100000);
+        final CountsWriterI writerI = new CountsWriter(stream, 0, 3);
+        for (int i = 1; i <= 8; i++) {
+            writerI.appendCount(i % 2 == 0 ? 0 : i, 10);
+        }
+        writerI.close();
+        // no separate index, the reader uses the skip index written in the counts stream:
+        final CountsReader embeddedReader = new CountsReader(new FastByteArrayInputStream(stream.toByteArray()));
+
+        embeddedReader.reposition(65);
+        assertEquals(70, embeddedReader.getPosition());
+        assertEquals(0, embeddedReader.getCount());
+
+        embeddedReader.reposition(20);
+        assertEquals(20, embeddedReader.getPosition());
+        assertEquals(3, embeddedReader.getCount());
+
+        embeddedReader.skipTo(41);
+        assertEquals(50, embeddedReader.getPosition());
+        assertEquals(0, embeddedReader.getCount());
+
+        embeddedReader.reposition(80);
+        assertFalse(embeddedReader.hasNextTransition());
+    }
+
     @Test
     public void testNegativeSkipTo() throws IOException {
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.counts;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestHeapUnionCountsIterator {
+
+    @Test
+    public void testCase1() throws IOException {
+        assertEquals("the result of the union must match", "(0,1)(1,4)(4,1)(6,0)",
+                unionPositionCount("(1,0)(3,3)(2,0)", "(6,1)"));
+    }
+
+    @Test
+    public void testCase2() throws IOException {
+        assertEquals("the result of the union must match", "(0,0)(1,1)(2,0)(4,1)(6,2)(8,1)(9,2)(10,1)(12,2)(13,1)(14,0)(16,1)(17,0)",
+                unionPositionCount("(1,0)(1,1)(4,0)(2,1)(1,0)(1,1)(2,0)(1,1)(3,0)(1,1)",
+                        "(4,0)(10,1)"));
+    }
+
+    @Test
+    public void testSameAsAnyTransition() throws IOException {
+        final Random random = new Random(37);
+        for (int trial = 0; trial < 200; trial++) {
+            final String[] formats = new String[1 + random.nextInt(10)];
+            for (int i = 0; i < formats.length; i++) {
+                final MutableString format = new MutableString();
+                final int numTransitions = 1 + random.nextInt(10);
+                for (int j = 0; j < numTransitions; j++) {
+                    format.append(String.format("(%d,%d)", 1 + random.nextInt(5), random.nextInt(4)));
+                }
+                formats[i] = format.toString();
+            }
+            assertEquals(dump(new AnyTransitionCountsIterator(readers(formats)), formats.length),
+                    dump(new HeapUnionCountsIterator(readers(formats)), formats.length));
+        }
+    }
+
+    @Test
+    public void testNextRuns() throws IOException {
+        final HeapUnionCountsIterator iterator = new HeapUnionCountsIterator(readers("(1,0)(3,3)(2,0)", "(6,1)"));
+        final int[] positions = new int[2];
+        final int[] lengths = new int[2];
+        final int[] counts = new int[4];
+
+        assertEquals(2, iterator.nextRuns(positions, lengths, counts));
+        assertArrayEquals(new int[]{0, 1}, positions);
+        assertArrayEquals(new int[]{1, 3}, lengths);
+        assertArrayEquals(new int[]{0, 1, 3, 1}, counts);
+
+        assertEquals(1, iterator.nextRuns(positions, lengths, counts));
+        assertEquals(4, positions[0]);
+        assertEquals(2, lengths[0]);
+        assertEquals(0, counts[0]);
+        assertEquals(1, counts[1]);
+
+        assertEquals(0, iterator.nextRuns(positions, lengths, counts));
+    }
+
+    private static CountsReaderI[] readers(final String... formats) {
+        final CountsReaderI[] readers = new CountsReaderI[formats.length];
+        for (int i = 0; i < formats.length; i++) {
+            readers[i] = new CountsReaderTestSupport(formats[i]);
+        }
+        return readers;
+    }
+
+    private static String unionPositionCount(final String... formats) throws IOException {
+        final CountsAggregatorI orIterator = new HeapUnionCountsIterator(readers(formats));
+        final MutableString result = new MutableString();
+        while (orIterator.hasNextTransition()) {
+            orIterator.nextTransition();
+            result.append(String.format("(%d,%d)", orIterator.getPosition(), orIterator.getCount()));
+        }
+        // last position must be correctly updated after hasNext returns false:
+        result.append(String.format("(%d,%d)", orIterator.getPosition(), 0));
+        return result.toString();
+    }
+
+    private static String dump(final CountsAggregatorI orIterator, final int numReaders) throws IOException {
+        final MutableString result = new MutableString();
+        while (orIterator.hasNextTransition()) {
+            orIterator.nextTransition();
+            result.append(String.format("(%d,%d,%d", orIterator.getPosition(), orIterator.getLength(),
+                    orIterator.getCount()));
+            for (int i = 0; i < numReaders; i++) {
+                result.append(',');
+                result.append(orIterator.getCount(i));
+            }
+            result.append(')');
+        }
+        result.append(orIterator.getPosition());
+        return result.toString();
+    }
+}
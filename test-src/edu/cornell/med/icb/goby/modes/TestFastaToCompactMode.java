@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.modes;
+
+import edu.cornell.med.icb.goby.readers.FastXReader;
+import edu.cornell.med.icb.goby.reads.QualityEncoding;
+import edu.cornell.med.icb.goby.reads.Reads;
+import edu.cornell.med.icb.goby.reads.ReadsReader;
+import edu.cornell.med.icb.goby.reads.ReadsWriterImpl;
+import org.apache.commons.io.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestFastaToCompactMode {
+    private static final String BASE_TEST_DIR = "test-results/fasta-to-compact";
+    private static final String FIRST_FILENAME = "test-data/fastx-test-data/paired-end_1.fastq";
+    private static final String PAIR_FILENAME = "test-data/fastx-test-data/paired-end_2.fastq";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testEncodingThreadsSameAsSequential() throws IOException {
+        final String sequential = BASE_TEST_DIR + "/sequential.compact-reads";
+        convert(sequential, 0);
+        final String encodingThreads = BASE_TEST_DIR + "/encoding-threads.compact-reads";
+        convert(encodingThreads, 3);
+        assertSameEntries(sequential, encodingThreads);
+    }
+
+    @Test
+    public void testBatchesWrittenInOrder() throws IOException {
+        final String sequential = BASE_TEST_DIR + "/sequential-batches.compact-reads";
+        convert(sequential, 0);
+
+        final String pipelined = BASE_TEST_DIR + "/pipelined-batches.compact-reads";
+        final ReadsWriterImpl writer = new ReadsWriterImpl(new FileOutputStream(pipelined));
+        final FastXEncodingPipeline pipeline =
+                new FastXEncodingPipeline(3, false, false, false, false, false, true, QualityEncoding.ILLUMINA);
+        // many small batches, encoded out of order by the threads:
+        pipeline.setBatchSize(7);
+        pipeline.convert(writer, new FastXReader(FIRST_FILENAME), new FastXReader(PAIR_FILENAME));
+        writer.close();
+        assertSameEntries(sequential, pipelined);
+    }
+
+    private static void convert(final String outputFilename, final int numEncodingThreads) throws IOException {
+        final FastaToCompactMode mode = new FastaToCompactMode();
+        mode.addInputFilename(FIRST_FILENAME);
+        mode.setProcessPairs(true);
+        mode.setPairIndicator1("_1");
+        mode.setPairIndicator2("_2");
+        mode.setOutputFilename(outputFilename);
+        mode.setNumEncodingThreads(numEncodingThreads);
+        mode.execute();
+    }
+
+    private static void assertSameEntries(final String expectedFilename, final String actualFilename)
+            throws IOException {
+        final List<String> expected = entries(expectedFilename);
+        final List<String> actual = entries(actualFilename);
+        assertEquals(73, expected.size());
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> entries(final String filename) throws IOException {
+        final List<String> entries = new ArrayList<String>();
+        final ReadsReader reader = new ReadsReader(filename);
+        try {
+            for (final Reads.ReadEntry entry : reader) {
+                entries.add(entry.toString());
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+}
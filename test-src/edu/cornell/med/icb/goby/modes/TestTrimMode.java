@@ -115,4 +115,25 @@ public class TestTrimMode {
 
     }
 
+    @Test
+    public void testMismatchesLeft() {
+        final MutableString[] adapters = {
+                new MutableString("ACGTACGTAC")
+        };
+        final byte[] bytes = new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14};
+
+        TrimMode trimmer = new TrimMode();
+        ByteArrayList list = new ByteArrayList();
+        MutableString result = trimmer.trimLeft(15, new MutableString("ACGAACGTACGGGGG"), ByteString.copyFrom(bytes), list, adapters);
+        // only the first three bases match exactly:
+        assertEquals(new MutableString("AACGTACGGGGG"), result);
+
+        trimmer = new TrimMode();
+        trimmer.setMaxMismatches(1);
+        list = new ByteArrayList();
+        result = trimmer.trimLeft(15, new MutableString("ACGAACGTACGGGGG"), ByteString.copyFrom(bytes), list, adapters);
+        assertEquals(new MutableString("GGGGG"), result);
+        assertEquals(ByteArrayList.wrap(new byte[]{10, 11, 12, 13, 14}), list);
+    }
+
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMappedSequenceCache {
+    private static final String BASE_TEST_DIR = "test-results/mapped-genome";
+    private static final String FASTA = ">1 first\n" +
+            "aCtGNNNACTGMARARRAQA\n" +
+            ">2\n" +
+            "NNACGTTGCA\n" +
+            "CCN\n";
+
+    @BeforeClass
+    public static void initializeTestDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(BASE_TEST_DIR));
+    }
+
+    @AfterClass
+    public static void cleanupTestDirectory() throws IOException {
+        FileUtils.forceDeleteOnExit(new File(BASE_TEST_DIR));
+    }
+
+    @Test
+    public void testSameBasesAsCache() throws IOException {
+        final String basename = BASE_TEST_DIR + "/fasta";
+        assertFalse(MappedSequenceCache.canLoad(basename));
+        final MappedSequenceCacheWriter writer = new MappedSequenceCacheWriter(basename);
+        writer.appendFasta(new StringReader(FASTA));
+        writer.close();
+        assertTrue(MappedSequenceCache.canLoad(basename));
+
+        final MappedSequenceCache genome = new MappedSequenceCache();
+        genome.load(basename);
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.loadFasta(new StringReader(FASTA));
+
+        assertEquals(2, genome.size());
+        assertEquals(0, genome.getReferenceIndex("1"));
+        assertEquals(1, genome.getReferenceIndex("2"));
+        assertEquals(-1, genome.getReferenceIndex("3"));
+        assertEquals("2", genome.getReferenceName(1));
+        for (int referenceIndex = 0; referenceIndex < cache.size(); referenceIndex++) {
+            assertEquals(cache.getLength(referenceIndex), genome.getLength(referenceIndex));
+            for (int position = 0; position < cache.getLength(referenceIndex); position++) {
+                assertEquals("reference " + referenceIndex + " position " + position,
+                        cache.get(referenceIndex, position), genome.get(referenceIndex, position));
+            }
+        }
+        // positions past the end of a sequence are N:
+        assertEquals('N', genome.get(1, 13));
+        final MutableString bases = new MutableString();
+        genome.getRange(1, 0, 6, bases);
+        assertEquals("NNACGT", bases.toString());
+    }
+
+    @Test
+    public void testConvertCache() throws IOException {
+        final String basename = BASE_TEST_DIR + "/converted";
+        final RandomAccessSequenceCache cache = new RandomAccessSequenceCache();
+        cache.loadFasta(new StringReader(FASTA));
+        final MappedSequenceCacheWriter writer = new MappedSequenceCacheWriter(basename);
+        writer.append(cache);
+        writer.close();
+
+        final MappedSequenceCache genome = new MappedSequenceCache();
+        genome.load(basename);
+        final MutableString bases = new MutableString();
+        genome.getRange(0, 0, 20, bases);
+        assertEquals("ACTGNNNACTGNANANNANA", bases.toString());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPackedSequence {
+    @Test
+    public void testMismatches() {
+        final PackedSequence sequence = new PackedSequence("ACGTACGTTTGCA");
+        final PackedSequence adapter = new PackedSequence("TTGCAAAA");
+        assertEquals(0, sequence.mismatches(8, adapter, 0, 5, 0));
+        assertTrue(sequence.regionMatches(8, adapter, 0, 5, 0));
+        assertFalse(sequence.regionMatches(8, adapter, 0, 6, 0));
+        assertEquals(3, sequence.mismatches(0, adapter, 0, 5, 10));
+        assertEquals(8, sequence.indexOf(new PackedSequence("TTGCA"), 0));
+        assertEquals(-1, sequence.indexOf(new PackedSequence("TTGGA"), 0));
+        assertEquals(8, sequence.indexOf(new PackedSequence("TTGGA"), 1));
+    }
+
+    @Test
+    public void testNonACGT() {
+        final PackedSequence sequence = new PackedSequence("ACGNACGT");
+        assertEquals(1, sequence.mismatches(0, new PackedSequence("ACGTACGT"), 0, 8, 8));
+        assertEquals(0, sequence.mismatches(0, new PackedSequence("ACGNACGT"), 0, 8, 8));
+    }
+
+    @Test
+    public void testSameAsCharacters() {
+        final Random random = new Random(37);
+        final PackedSequence a = new PackedSequence();
+        final PackedSequence b = new PackedSequence();
+        for (int i = 0; i < 1000; i++) {
+            final String first = randomBases(random, 1 + random.nextInt(150));
+            final String second = randomBases(random, 1 + random.nextInt(150));
+            a.pack(first);
+            b.pack(second);
+            final int start = random.nextInt(first.length());
+            final int otherStart = random.nextInt(second.length());
+            final int length = Math.min(first.length() - start, second.length() - otherStart);
+            int expected = 0;
+            for (int j = 0; j < length; j++) {
+                if (first.charAt(start + j) != second.charAt(otherStart + j)) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, a.mismatches(start, b, otherStart, length, length));
+        }
+    }
+
+    private static String randomBases(final Random random, final int length) {
+        final StringBuilder bases = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            bases.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return bases.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.reads;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestSequenceTallyTable {
+    @Test
+    public void testEncode() {
+        final long[] a = new long[SequenceTallyTable.numKeyWords(40)];
+        final long[] b = new long[a.length];
+        SequenceTallyTable.encode("ACGTN", false, a);
+        SequenceTallyTable.encode("ACGTG", false, b);
+        // N is tallied as G:
+        assertArrayEquals(a, b);
+        SequenceTallyTable.encode("ACGTGA", false, b);
+        assertFalse(a[a.length - 1] == b[b.length - 1]);
+        SequenceTallyTable.encode("ACGTACGTACGTACGTACGTACGTACGTACGTA", false, a);
+        SequenceTallyTable.encode("ACGTACGTACGTACGTACGTACGTACGTACGTC", false, b);
+        assertFalse(a[1] == b[1]);
+    }
+
+    @Test
+    public void testConcurrentTally() throws InterruptedException {
+        final int numReads = 200000;
+        final String[] reads = new String[numReads];
+        final Random random = new Random(37);
+        // few distinct sequences, so that threads often increment the same sequence:
+        final String[] sequences = new String[5000];
+        for (int i = 0; i < sequences.length; i++) {
+            final StringBuilder sequence = new StringBuilder();
+            for (int j = 0; j < 36 + random.nextInt(10); j++) {
+                sequence.append("ACGT".charAt(random.nextInt(4)));
+            }
+            sequences[i] = sequence.toString();
+        }
+        final Map<String, Integer> expectedCounts = new HashMap<String, Integer>();
+        final Map<String, Integer> expectedFirstReadIndices = new HashMap<String, Integer>();
+        for (int readIndex = 0; readIndex < numReads; readIndex++) {
+            final String read = sequences[random.nextInt(sequences.length)];
+            reads[readIndex] = read;
+            final Integer count = expectedCounts.get(read);
+            expectedCounts.put(read, count == null ? 1 : count + 1);
+            if (count == null) {
+                expectedFirstReadIndices.put(read, readIndex);
+            }
+        }
+
+        final SequenceTallyTable table = new SequenceTallyTable(45, numReads);
+        final int numThreads = 4;
+        final Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    final long[] key = new long[SequenceTallyTable.numKeyWords(45)];
+                    // interleave the reads of the threads, in reverse order so that smaller read indices
+                    // are often tallied last:
+                    for (int readIndex = numReads - 1 - first; readIndex >= 0; readIndex -= numThreads) {
+                        SequenceTallyTable.encode(reads[readIndex], false, key);
+                        table.increment(key, readIndex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(expectedCounts.size(), table.size());
+        final long[] key = new long[SequenceTallyTable.numKeyWords(45)];
+        for (final Map.Entry<String, Integer> entry : expectedCounts.entrySet()) {
+            SequenceTallyTable.encode(entry.getKey(), false, key);
+            assertEquals(entry.getValue().longValue(), table.getCount(key));
+        }
+        final int[] numVisited = new int[1];
+        table.visit(new SequenceTallyTable.Visitor() {
+            @Override
+            public void visit(final long[] key, final long count, final int firstReadIndex) {
+                final String read = reads[firstReadIndex];
+                assertEquals(expectedFirstReadIndices.get(read).intValue(), firstReadIndex);
+                assertEquals(expectedCounts.get(read).longValue(), count);
+                numVisited[0]++;
+            }
+        });
+        assertEquals(expectedCounts.size(), numVisited[0]);
+    }
+}
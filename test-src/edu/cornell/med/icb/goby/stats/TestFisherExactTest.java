@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.stats;
+
+import edu.cornell.med.icb.goby.R.FisherExact;
+import gominer.Fisher;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Validates {@link FisherExactTest} against p-values calculated with R fisher.test (see TestFisherExact).
+ */
+public class TestFisherExactTest {
+    private static final double EPSILON = 1.0e-9;
+
+    @Test
+    public void chiSquaredUConn() {
+        final FisherExactTest fisher = new FisherExactTest();
+        assertEquals(2.9565806126420623e-05, fisher.pValue(new int[]{12, 4, 15, 17, 25, 4}, 3, 2,
+                FisherExact.AlternativeHypothesis.twosided), EPSILON);
+    }
+
+    @Test
+    public void agrestiJobSatisfaction() {
+        final FisherExactTest fisher = new FisherExactTest();
+        fisher.setMaxEnumeratedTables(Integer.MAX_VALUE);
+        final int[] inputTable = {
+                1, 2, 1, 0,
+                3, 3, 6, 1,
+                10, 10, 14, 9,
+                6, 7, 12, 11
+        };
+        assertEquals(0.7826849389656096, fisher.pValue(inputTable, 4, 4,
+                FisherExact.AlternativeHypothesis.twosided), EPSILON);
+    }
+
+    @Test
+    public void oneSided() {
+        final FisherExactTest fisher = new FisherExactTest();
+        assertEquals(0.24285714285714288, fisher.greater(3, 1, 1, 3), EPSILON);
+        assertEquals(0.00046518094336290525, fisher.lesser(2, 15, 10, 3), EPSILON);
+    }
+
+    @Test
+    public void twoTailed() {
+        final FisherExactTest fisher = new FisherExactTest();
+        final double gominerPValue = new Fisher().fisher(40, 10, 100, 30);
+        assertEquals(gominerPValue, fisher.twoTailed(10, 30, 20, 40), EPSILON);
+        assertEquals(1, fisher.twoTailed(0, 0, 5, 3), EPSILON);
+    }
+
+    @Test
+    public void cache() {
+        final FisherExactTest fisher = new FisherExactTest(2);
+        final int[] table = {10, 30, 20, 40};
+        final double pValue = fisher.pValue(table, 2, 2, FisherExact.AlternativeHypothesis.twosided);
+        // the cache must not be affected when the caller reuses its vector:
+        table[0] = 0;
+        fisher.pValue(table, 2, 2, FisherExact.AlternativeHypothesis.twosided);
+        assertEquals(pValue, fisher.twoTailed(10, 30, 20, 40), 0);
+        assertEquals(1, fisher.getCacheHits());
+        assertEquals(2, fisher.getCacheMisses());
+    }
+}
@@ -18,8 +18,8 @@
 
 package edu.cornell.med.icb.goby.stats;
 
-import edu.cornell.med.icb.goby.R.FisherExact;
 import gominer.Fisher;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.math.MathException;
@@ -435,38 +435,35 @@ public class TestStatistics {
         final DifferentialExpressionResults results = new DifferentialExpressionResults();
 
         final FisherExactRCalculator fisher = new FisherExactRCalculator(results);
-        if (fisher.installed()) {
-            final NormalizationMethod normalizationMethod = new AlignedCountNormalization();
-            fisher.evaluate(deCalc, normalizationMethod, results, info, "A", "B");
-            assertEquals("fisher test equal expected result", 0.5044757698516504, results.getStatistic(info, fisher.statisticIds.get(0)), 0.001);
-
-            final int totalCountInA = 1700;
-            final int totalCountInB = 170; // equal total in each group
-            final int sumCountInA = 90;
-            final int sumCountInB = 45; // half the counts in sample B
-
-            final int sumCountNotInA = totalCountInA - sumCountInA;
-            final int sumCountNotInB = totalCountInB - sumCountInB;
-
-            final FisherExact.Result result =
-                    FisherExact.fexact(sumCountInA, sumCountNotInA, sumCountInB, sumCountNotInB);
-            final double pValue = result.getPValue();
-
-            final double proportionTotalA = divide(totalCountInA, (totalCountInA + totalCountInB));
-            final double proportionTotalB = divide(totalCountInB, (totalCountInA + totalCountInB));
-            final ChiSquareTest chisquare = new ChiSquareTestImpl();
-            final double nGroups = 2;
-            final double[] expected = {divide(sumCountInA + sumCountInB, nGroups) * proportionTotalA * nGroups,
-                    divide(sumCountInA + sumCountInB, nGroups) * proportionTotalB * nGroups};
-            final long[] observed = {sumCountInA, sumCountInB};
-            final double chiPValue = Math.abs(chisquare.chiSquareTest(expected, observed));
-
-            assertTrue("pValue: " + chiPValue, chiPValue < 0.001);
+        final NormalizationMethod normalizationMethod = new AlignedCountNormalization();
+        fisher.evaluate(deCalc, normalizationMethod, results, info, "A", "B");
+        assertEquals("fisher test equal expected result", 0.5044757698516504, results.getStatistic(info, fisher.statisticIds.get(0)), 0.001);
+
+        final int totalCountInA = 1700;
+        final int totalCountInB = 170; // equal total in each group
+        final int sumCountInA = 90;
+        final int sumCountInB = 45; // half the counts in sample B
+
+        final int sumCountNotInA = totalCountInA - sumCountInA;
+        final int sumCountNotInB = totalCountInB - sumCountInB;
+
+        final double pValue =
+                FisherExactRCalculator.getFisherPValue(sumCountInA, sumCountNotInA, sumCountInB, sumCountNotInB);
+
+        final double proportionTotalA = divide(totalCountInA, (totalCountInA + totalCountInB));
+        final double proportionTotalB = divide(totalCountInB, (totalCountInA + totalCountInB));
+        final ChiSquareTest chisquare = new ChiSquareTestImpl();
+        final double nGroups = 2;
+        final double[] expected = {divide(sumCountInA + sumCountInB, nGroups) * proportionTotalA * nGroups,
+                divide(sumCountInA + sumCountInB, nGroups) * proportionTotalB * nGroups};
+        final long[] observed = {sumCountInA, sumCountInB};
+        final double chiPValue = Math.abs(chisquare.chiSquareTest(expected, observed));
+
+        assertTrue("pValue: " + chiPValue, chiPValue < 0.001);
 // The Fisher implementation we are using return 1 for the above. This is wrong. Compare to
 // the chi-square result
 // (results should be comparable since the counts in each cell are large)
-            assertTrue("pValue: " + pValue, pValue < 0.001);
-        }
+        assertTrue("pValue: " + pValue, pValue < 0.001);
     }
 
     private double divide(final int a, final int b) {
@@ -729,6 +726,69 @@ public class TestStatistics {
             , 8.890803e-01, 8.802645e-01, 9.345104e-01, 9.304775e-01, 9.437890e-01
     };
 
+    @Test
+    public void testExternalAdjustment() throws IOException {
+        final Random randomEngine = new Random(1013);
+        final double[] pValues = new double[1000];
+        for (int i = 0; i < pValues.length; i++) {
+            // include NaN and tied P-values:
+            pValues[i] = randomEngine.nextDouble() < .1 ? Double.NaN : randomEngine.nextInt(300) / 300.0;
+        }
+        final BenjaminiHochbergAdjustment fdr = new BenjaminiHochbergAdjustment();
+        fdr.setNumberAboveThreshold(50);
+        final DifferentialExpressionResults list = fdr.adjust(toList(pValues), "p-value");
+        final int index = list.getStatisticIndex("p-value-BH-FDR-q-value");
+
+        // a small run size writes several runs:
+        final ExternalBenjaminiHochbergAdjustment external = new ExternalBenjaminiHochbergAdjustment(null, 64);
+        try {
+            external.setNumberAboveThreshold(50);
+            for (final double pValue : pValues) {
+                external.add(pValue);
+            }
+            final IntArrayList smallestRows = external.adjust(10);
+            for (final DifferentialExpressionInfo info : list) {
+                final int row = Integer.parseInt(info.getElementId().toString());
+                assertEquals("adjusted p-values must match for row=" + row,
+                        info.statistics.getDouble(index), external.getAdjustedPValue(row), 1E-10);
+            }
+            assertEquals(10, smallestRows.size());
+            int numSmaller = 0;
+            for (final double pValue : pValues) {
+                if (pValue < pValues[smallestRows.getInt(0)]) {
+                    numSmaller++;
+                }
+            }
+            assertTrue("the rows returned must have the smallest P-values", numSmaller < 10);
+        } finally {
+            external.close();
+        }
+    }
+
+    @Test
+    public void testObserveByIndex() {
+        final DifferentialExpressionCalculator deCalc = new DifferentialExpressionCalculator();
+        final int element1 = deCalc.defineElement("id-1");
+        final int element2 = deCalc.defineElement("id-2");
+        deCalc.reserve(2, 2);
+        assertEquals(-1, deCalc.getSampleIndex("A-1"));
+        final int sampleA = deCalc.defineSample("A-1");
+        assertEquals(sampleA, deCalc.defineSample("A-1"));
+        deCalc.observe(sampleA, element1, 7);
+        deCalc.observe("A-1", "id-2", 3);
+        deCalc.observe("B-1", "id-1", 15);
+        final int sampleB = deCalc.getSampleIndex("B-1");
+        deCalc.observe(sampleB, element2, 5);
+
+        assertEquals(7, deCalc.getOverlapCount("A-1", new MutableString("id-1")));
+        assertEquals(3, deCalc.getOverlapCount(sampleA, element2));
+        assertEquals(15, deCalc.getOverlapCount(sampleB, element1));
+        assertEquals(5, deCalc.getOverlapCount("B-1", new MutableString("id-2")));
+        assertEquals(0, deCalc.getOverlapCount("C-1", new MutableString("id-1")));
+        assertEquals(10, deCalc.getSumOverlapCounts("A-1"));
+        assertEquals(20, deCalc.getSumOverlapCounts(sampleB));
+    }
+
     private DifferentialExpressionResults toList(double[] p) {
         final DifferentialExpressionResults list2 = new DifferentialExpressionResults();
         list2.declareStatistic("p-value");
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util;
+
+import edu.cornell.med.icb.goby.readers.vcf.ColumnType;
+import edu.cornell.med.icb.goby.stats.VCFWriter;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestParallelBlockCompressedOutputStream {
+    @Test
+    public void testSameContent() throws IOException {
+        final byte[] content = content(1000000);
+        for (final int numThreads : new int[]{0, 1, 4}) {
+            final byte[] compressed = compress(content, numThreads);
+            assertArrayEquals(content, IOUtils.toByteArray(
+                    new BlockCompressedInputStream(new ByteArrayInputStream(compressed))));
+            assertArrayEquals(content, IOUtils.toByteArray(
+                    new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        }
+    }
+
+    @Test
+    public void testIncompressibleContent() throws IOException {
+        final byte[] content = new byte[300000];
+        new Random(37).nextBytes(content);
+        final byte[] compressed = compress(content, 2);
+        assertArrayEquals(content, IOUtils.toByteArray(
+                new BlockCompressedInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testEmptyBlockAtEnd() throws IOException {
+        final byte[] compressed = compress(new byte[0], 2);
+        assertArrayEquals(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, compressed);
+    }
+
+    @Test
+    public void testSameVCFRecords() throws IOException {
+        final StringWriter serial = new StringWriter();
+        writeRecords(new VCFWriter(new PrintWriter(serial)));
+        final byte[] expected = serial.toString().getBytes(Charset.defaultCharset());
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeRecords(new VCFWriter(new ParallelBlockCompressedOutputStream(compressed, 4)));
+        assertArrayEquals(expected, IOUtils.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+
+    /**
+     * Write enough records to fill many blocks.
+     */
+    private static void writeRecords(final VCFWriter writer) {
+        final int pValueField = writer.defineField("INFO", "p-value", 1, ColumnType.Float, "A P-value");
+        final int countField = writer.defineField("INFO", "count", 1, ColumnType.Integer, "A count");
+        writer.defineSamples(new String[]{"SampleA", "SampleB"});
+        final int genotypeField = writer.defineField("FORMAT", "GT", 1, ColumnType.String, "Genotype");
+        final int coverageField = writer.defineField("FORMAT", "DP", 1, ColumnType.Integer, "Coverage");
+        writer.writeHeader();
+        final Random random = new Random(37);
+        for (int i = 0; i < 50000; i++) {
+            writer.setChromosome("chr" + (1 + i / 10000));
+            writer.setPosition(i * 7);
+            writer.setReferenceAllele("A");
+            writer.setAlternateAllele("C");
+            writer.setInfo(pValueField, random.nextDouble());
+            writer.setInfo(countField, random.nextInt(1000));
+            for (int sampleIndex = 0; sampleIndex < 2; sampleIndex++) {
+                writer.setSampleValue(genotypeField, sampleIndex, random.nextBoolean() ? "0/1" : "1/1");
+                writer.setSampleValue(coverageField, sampleIndex, random.nextInt(100));
+            }
+            writer.writeRecord();
+        }
+        writer.close();
+    }
+
+    private static byte[] content(final int length) {
+        final Random random = new Random(37);
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) ("ACGT\t\n".charAt(random.nextInt(6)));
+        }
+        return content;
+    }
+
+    private static byte[] compress(final byte[] content, final int numThreads) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ParallelBlockCompressedOutputStream stream = new ParallelBlockCompressedOutputStream(bytes, numThreads);
+        // write single bytes and arrays that straddle block boundaries:
+        int position = 0;
+        final Random random = new Random(37);
+        while (position < content.length) {
+            if (random.nextInt(10) == 0) {
+                stream.write(content[position++]);
+            } else {
+                final int length = Math.min(content.length - position, random.nextInt(100000));
+                stream.write(content, position, length);
+                position += length;
+            }
+        }
+        stream.close();
+        return bytes.toByteArray();
+    }
+}
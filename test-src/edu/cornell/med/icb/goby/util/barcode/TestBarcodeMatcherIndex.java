@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2009-2013 Institute for Computational Biomedicine,
+ *                    Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.goby.util.barcode;
+
+import it.unimi.dsi.lang.MutableString;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that matching with the barcode index gives the same results as comparing the sequence
+ * to every barcode.
+ */
+public class TestBarcodeMatcherIndex {
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    private static final String ADAPTER = "CGTATGCCGTCT";
+    private static final int BARCODE_LENGTH = 6;
+
+    @Test
+    public void testPostSameAsAllBarcodes() {
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            final Random random = new Random(37 + allowedMismatches);
+            final String[] barcodes = barcodes(random, 96);
+            assertSameMatches(random, new PostBarcodeMatcher(barcodes, BARCODE_LENGTH, allowedMismatches), barcodes,
+                    true);
+        }
+    }
+
+    @Test
+    public void testPreSameAsAllBarcodes() {
+        for (int allowedMismatches = 0; allowedMismatches <= 2; allowedMismatches++) {
+            final Random random = new Random(41 + allowedMismatches);
+            final String[] barcodes = barcodes(random, 96);
+            assertSameMatches(random, new PreBarcodeMatcher(barcodes, BARCODE_LENGTH, allowedMismatches), barcodes,
+                    false);
+        }
+    }
+
+    private static void assertSameMatches(final Random random, final BarcodeMatcher matcher, final String[] barcodes,
+                                          final boolean is3Prime) {
+        for (int i = 0; i < 5000; i++) {
+            final StringBuilder barcode = new StringBuilder(barcodes[random.nextInt(barcodes.length)]);
+            // barcode and part of the adapter, with a few mismatches:
+            barcode.setLength(BARCODE_LENGTH - 2 + random.nextInt(barcode.length() - BARCODE_LENGTH + 3));
+            for (int j = random.nextInt(4); j > 0; j--) {
+                barcode.setCharAt(random.nextInt(barcode.length()), BASES[random.nextInt(BASES.length)]);
+            }
+            if (random.nextInt(20) == 0) {
+                barcode.setCharAt(random.nextInt(barcode.length()), 'N');
+            }
+            final String bases = randomBases(random, random.nextInt(30));
+            final MutableString sequence = new MutableString(is3Prime ? bases + barcode : barcode + bases);
+            assertEquals(sequence.toString(), matchAllBarcodes(matcher, sequence), matcher.matchSequence(sequence));
+        }
+    }
+
+    /**
+     * Compare the sequence to every barcode, as BarcodeMatcher did before barcodes were indexed.
+     */
+    private static BarcodeMatcherResult matchAllBarcodes(final BarcodeMatcher matcher, final MutableString sequence) {
+        BarcodeMatcherResult bestMatch = null;
+        int numAtBestMatch = 0;
+        for (int barcodeNum = 0; barcodeNum < matcher.barcodes.length; barcodeNum++) {
+            final BarcodeMatcherResult result = matcher.bestMatch(sequence, matcher.barcodes[barcodeNum], barcodeNum);
+            if (bestMatch == null || result.getNumberOfDiffs() < bestMatch.getNumberOfDiffs()) {
+                numAtBestMatch = 1;
+                bestMatch = result;
+            } else if (result.getNumberOfDiffs() == bestMatch.getNumberOfDiffs()) {
+                numAtBestMatch++;
+            }
+            if (bestMatch.getNumberOfDiffs() == 0) {
+                break;
+            }
+        }
+        if (bestMatch == null || bestMatch.getNumberOfDiffs() > matcher.getAllowedMismatches()) {
+            return null;
+        }
+        if (numAtBestMatch > 1) {
+            bestMatch.setAmbiguous(true);
+        }
+        return bestMatch;
+    }
+
+    private static String[] barcodes(final Random random, final int numBarcodes) {
+        final String[] barcodes = new String[numBarcodes];
+        for (int i = 0; i < numBarcodes; i++) {
+            // adapters of different lengths:
+            barcodes[i] = randomBases(random, BARCODE_LENGTH) + ADAPTER.substring(0, 4 + random.nextInt(9));
+        }
+        return barcodes;
+    }
+
+    private static String randomBases(final Random random, final int length) {
+        final StringBuilder bases = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            bases.append(BASES[random.nextInt(BASES.length)]);
+        }
+        return bases.toString();
+    }
+}